@@ -23,9 +23,12 @@ import java.io.StringWriter;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import net.onrc.openvirtex.api.service.handlers.StreamingHandler;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.google.gson.stream.JsonWriter;
 import com.thetransactioncompany.jsonrpc2.JSONRPC2ParseException;
 import com.thetransactioncompany.jsonrpc2.JSONRPC2Request;
 import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
@@ -94,6 +97,40 @@ public abstract class AbstractService {
         response.getWriter().println(json);
     }
 
+    /**
+     * Writes a json response whose result is written as it is produced.
+     *
+     * @param response
+     *            the response
+     * @param id the ID of the request
+     * @param result the writer of the result
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    protected void writeJSONStream(final HttpServletResponse response,
+            final Object id, final StreamingHandler.ResultWriter result)
+            throws IOException {
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setHeader("Content-Type", "application/json; charset=utf-8");
+        response.setHeader("Access-Control-Allow-Origin", "*");
+        response.setContentType("application/json; charset=utf-8");
+        final JsonWriter out = new JsonWriter(response.getWriter());
+        out.beginObject();
+        out.name("jsonrpc").value("2.0");
+        out.name("id");
+        if (id instanceof Number) {
+            out.value((Number) id);
+        } else if (id != null) {
+            out.value(id.toString());
+        } else {
+            out.nullValue();
+        }
+        out.name("result");
+        result.write(out);
+        out.endObject();
+        out.flush();
+    }
+
     /**
      * Gets the exception stack trace in a string.
      *
@@ -24,6 +24,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import net.onrc.openvirtex.api.service.handlers.MonitoringHandler;
+import net.onrc.openvirtex.api.service.handlers.StreamingHandler;
 
 import com.thetransactioncompany.jsonrpc2.JSONRPC2Error;
 import com.thetransactioncompany.jsonrpc2.JSONRPC2ParseException;
@@ -37,9 +38,10 @@ public class MonitoringService extends AbstractService {
     private static Logger log = LogManager.getLogger(MonitoringService.class.getName());
 
     Dispatcher dispatcher = new Dispatcher();
+    MonitoringHandler handler = new MonitoringHandler();
 
     public MonitoringService() {
-        this.dispatcher.register(new MonitoringHandler());
+        this.dispatcher.register(this.handler);
     }
 
     @Override
@@ -49,6 +51,12 @@ public class MonitoringService extends AbstractService {
         JSONRPC2Response jsonResp = null;
         try {
             json = this.parseJSONRequest(request);
+            final StreamingHandler streaming = this.handler
+                    .getStreamingHandler(json);
+            if (streaming != null) {
+                this.stream(response, json, streaming);
+                return;
+            }
             jsonResp = this.dispatcher.process(json, null);
             jsonResp.setID(json.getID());
         } catch (final IOException e) {
@@ -59,6 +67,8 @@ public class MonitoringService extends AbstractService {
             jsonResp = new JSONRPC2Response(new JSONRPC2Error(
                     JSONRPC2Error.PARSE_ERROR.getCode(),
                     AbstractService.stack2string(e)), 0);
+        } catch (final JSONRPC2Error e) {
+            jsonResp = new JSONRPC2Response(e, json.getID());
         }
         try {
             this.writeJSONObject(response, jsonResp);
@@ -69,5 +79,19 @@ public class MonitoringService extends AbstractService {
 
     }
 
+    private void stream(final HttpServletResponse response,
+            final JSONRPC2Request json, final StreamingHandler streaming)
+            throws JSONRPC2Error {
+        final StreamingHandler.ResultWriter result = streaming.stream(json
+                .getNamedParams());
+        try {
+            this.writeJSONStream(response, json.getID(), result);
+        } catch (final IOException e) {
+            // part of the response may have been sent already
+            MonitoringService.log.fatal("Unable to send response: {} ",
+                    AbstractService.stack2string(e));
+        }
+    }
+
 
 }
@@ -17,6 +17,8 @@ package net.onrc.openvirtex.api.service.handlers;
 
 import java.util.HashMap;
 
+import net.onrc.openvirtex.api.service.handlers.monitoring.GetMetrics;
+import net.onrc.openvirtex.api.service.handlers.monitoring.GetPacketTraces;
 import net.onrc.openvirtex.api.service.handlers.monitoring.GetPhysicalFlowtable;
 import net.onrc.openvirtex.api.service.handlers.monitoring.GetPhysicalHosts;
 import net.onrc.openvirtex.api.service.handlers.monitoring.GetPhysicalTopology;
@@ -59,6 +61,30 @@ public class MonitoringHandler extends AbstractHandler implements
      * Virtual datapath ID.
      */
     public static final String VDPID = "vdpid";
+    /**
+     * Streams the result, for calls that support it.
+     */
+    public static final String STREAM = "stream";
+    /**
+     * Maximum number of entries of a streamed result.
+     */
+    public static final String LIMIT = "limit";
+    /**
+     * Position after which a streamed result starts.
+     */
+    public static final String CURSOR = "cursor";
+    /**
+     * Lowest cookie of the flows of a streamed result.
+     */
+    public static final String COOKIE_MIN = "cookieMin";
+    /**
+     * Highest cookie of the flows of a streamed result.
+     */
+    public static final String COOKIE_MAX = "cookieMax";
+    /**
+     * Physical cookie of a flow.
+     */
+    public static final String COOKIE = "cookie";
 
     @SuppressWarnings({ "serial", "rawtypes" })
     private HashMap<String, ApiHandler> handlers = new HashMap<String, ApiHandler>() {
@@ -74,6 +100,8 @@ public class MonitoringHandler extends AbstractHandler implements
             this.put("getVirtualFlowtable", new GetVirtualFlowtable());
             this.put("getPhysicalFlowtable", new GetPhysicalFlowtable());
             this.put("getVirtualAddressMapping", new GetVirtualAddressMapping());
+            this.put("getPacketTraces", new GetPacketTraces());
+            this.put("getMetrics", new GetMetrics());
         }
     };
 
@@ -83,6 +111,24 @@ public class MonitoringHandler extends AbstractHandler implements
     }
 
 
+    /**
+     * Gets the handler to stream the result of a request with, if the
+     * request asks for it.
+     *
+     * @param req the request
+     * @return the handler, or null if the result is not to be streamed
+     */
+    public StreamingHandler getStreamingHandler(final JSONRPC2Request req) {
+        final ApiHandler<?> m = this.handlers.get(req.getMethod());
+        if (!(m instanceof StreamingHandler)
+                || req.getParamsType() != JSONRPC2ParamsType.OBJECT
+                || !Boolean.TRUE.equals(req.getNamedParams().get(
+                        MonitoringHandler.STREAM))) {
+            return null;
+        }
+        return (StreamingHandler) m;
+    }
+
     @Override
     @SuppressWarnings({ "rawtypes", "unchecked" })
     public JSONRPC2Response process(final JSONRPC2Request req,
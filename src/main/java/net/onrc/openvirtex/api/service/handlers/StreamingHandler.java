@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.api.service.handlers;
+
+import java.io.IOException;
+import java.util.Map;
+
+import com.google.gson.stream.JsonWriter;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Error;
+
+/**
+ * API call whose result can be written directly to the response instead of
+ * being built in memory first. The result is streamed when the request sets
+ * the {@link MonitoringHandler#STREAM} parameter.
+ */
+public interface StreamingHandler {
+
+    /**
+     * Writes the result of a call.
+     */
+    public interface ResultWriter {
+
+        /**
+         * Writes the result as a JSON value.
+         *
+         * @param out the writer
+         * @throws IOException if the response cannot be written
+         */
+        public void write(JsonWriter out) throws IOException;
+
+    }
+
+    /**
+     * Checks the parameters of a call, before anything is written.
+     *
+     * @param params the named parameters
+     * @return the writer of the result
+     * @throws JSONRPC2Error if the parameters are invalid
+     */
+    public ResultWriter stream(Map<String, Object> params)
+            throws JSONRPC2Error;
+
+}
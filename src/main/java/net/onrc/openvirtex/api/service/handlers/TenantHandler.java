@@ -26,12 +26,15 @@ import net.onrc.openvirtex.api.service.handlers.tenant.CreateOVXSwitch;
 import net.onrc.openvirtex.api.service.handlers.tenant.ConnectOVXRoute;
 import net.onrc.openvirtex.api.service.handlers.tenant.DisconnectHost;
 import net.onrc.openvirtex.api.service.handlers.tenant.DisconnectOVXLink;
+import net.onrc.openvirtex.api.service.handlers.tenant.ProvisionOVXNetwork;
 import net.onrc.openvirtex.api.service.handlers.tenant.RemoveOVXNetwork;
 import net.onrc.openvirtex.api.service.handlers.tenant.RemoveOVXPort;
 import net.onrc.openvirtex.api.service.handlers.tenant.RemoveOVXSwitch;
 import net.onrc.openvirtex.api.service.handlers.tenant.DisconnectOVXRoute;
 import net.onrc.openvirtex.api.service.handlers.tenant.SetOVXBigSwitchRouting;
 import net.onrc.openvirtex.api.service.handlers.tenant.SetOVXLinkPath;
+import net.onrc.openvirtex.api.service.handlers.tenant.SetPacketTracing;
+import net.onrc.openvirtex.api.service.handlers.tenant.SetTenantSchedule;
 import net.onrc.openvirtex.api.service.handlers.tenant.StartOVXNetwork;
 import net.onrc.openvirtex.api.service.handlers.tenant.StartOVXPort;
 import net.onrc.openvirtex.api.service.handlers.tenant.StartOVXSwitch;
@@ -144,6 +147,54 @@ public class TenantHandler extends AbstractHandler implements RequestHandler {
      * Keyword for the boot state.
      */
     public static final String IS_BOOTED = "isBooted";
+    /**
+     * Keyword for the switches of a virtual network.
+     */
+    public static final String SWITCHES = "switches";
+    /**
+     * Keyword for the ports of a virtual network.
+     */
+    public static final String PORTS = "ports";
+    /**
+     * Keyword for the links of a virtual network.
+     */
+    public static final String LINKS = "links";
+    /**
+     * Keyword for the hosts of a virtual network.
+     */
+    public static final String HOSTS = "hosts";
+    /**
+     * Keyword for the routes of a virtual network.
+     */
+    public static final String ROUTES = "routes";
+    /**
+     * Keyword for the time taken by each step of a call.
+     */
+    public static final String TIMING = "timing";
+    /**
+     * Keyword for the number of data path messages per traced message.
+     */
+    public static final String SAMPLE_RATE = "sampleRate";
+    /**
+     * Keyword for a list of virtual network IDs.
+     */
+    public static final String TENANTS = "tenantIds";
+    /**
+     * Keyword for the packet-ins admitted per second.
+     */
+    public static final String RATE = "rate";
+    /**
+     * Keyword for the packet-ins admitted at once.
+     */
+    public static final String BURST = "burst";
+    /**
+     * Keyword for the scheduling weight of a virtual network.
+     */
+    public static final String WEIGHT = "weight";
+    /**
+     * Keyword for the policy applied to packet-ins over the rate.
+     */
+    public static final String POLICY = "policy";
 
     @SuppressWarnings({ "serial", "rawtypes" })
     private HashMap<String, ApiHandler> handlers = new HashMap<String, ApiHandler>() {
@@ -151,6 +202,7 @@ public class TenantHandler extends AbstractHandler implements RequestHandler {
             this.put("addControllers", new AddController());
 
             this.put("createNetwork", new CreateOVXNetwork());
+            this.put("provisionNetwork", new ProvisionOVXNetwork());
             this.put("createSwitch", new CreateOVXSwitch());
             this.put("createPort", new CreateOVXPort());
             this.put("setInternalRouting", new SetOVXBigSwitchRouting());
@@ -172,6 +224,9 @@ public class TenantHandler extends AbstractHandler implements RequestHandler {
             this.put("stopNetwork", new StopOVXNetwork());
             this.put("stopSwitch", new StopOVXSwitch());
             this.put("stopPort", new StopOVXPort());
+
+            this.put("setPacketTracing", new SetPacketTracing());
+            this.put("setTenantSchedule", new SetTenantSchedule());
         }
     };
 
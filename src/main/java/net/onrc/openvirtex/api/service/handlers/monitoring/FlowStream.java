@@ -0,0 +1,226 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.api.service.handlers.monitoring;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import net.onrc.openvirtex.api.service.handlers.HandlerUtils;
+import net.onrc.openvirtex.api.service.handlers.MonitoringHandler;
+import net.onrc.openvirtex.api.service.handlers.StreamingHandler.ResultWriter;
+import net.onrc.openvirtex.exceptions.MissingRequiredField;
+
+import com.google.gson.stream.JsonWriter;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Error;
+
+/**
+ * Writes the flows of a set of switches as one page of a list ordered by
+ * switch DPID, then by a key identifying each flow in its switch.
+ * <p>
+ * The result has the flows of the page, and the cursor to pass to get the
+ * next page if the page is full. Only the flows of the page are held in
+ * memory, at the cost of scanning the flow table of every switch the page
+ * spans. Without a limit, all flows are written as they are scanned.
+ *
+ * @param <S> the switch type
+ * @param <F> the flow type
+ */
+abstract class FlowStream<S, F> implements ResultWriter {
+
+    private final List<S> switches;
+    private final int limit;
+    private final boolean hasCursor;
+    private final long cursorDpid;
+    private final long cursorKey;
+    private final long cookieMin;
+    private final long cookieMax;
+
+    /**
+     * Creates the stream from the paging and filtering parameters of a
+     * request.
+     *
+     * @param switches the switches
+     * @param params the request parameters
+     * @throws JSONRPC2Error if the parameters are invalid
+     */
+    FlowStream(final Collection<S> switches, final Map<String, Object> params)
+            throws JSONRPC2Error {
+        try {
+            this.limit = HandlerUtils.<Number>fetchField(
+                    MonitoringHandler.LIMIT, params, false, 0).intValue();
+            final String cursor = HandlerUtils.<String>fetchField(
+                    MonitoringHandler.CURSOR, params, false, null);
+            this.cookieMin = HandlerUtils.<Number>fetchField(
+                    MonitoringHandler.COOKIE_MIN, params, false,
+                    Long.MIN_VALUE).longValue();
+            this.cookieMax = HandlerUtils.<Number>fetchField(
+                    MonitoringHandler.COOKIE_MAX, params, false,
+                    Long.MAX_VALUE).longValue();
+            if (this.limit < 0) {
+                throw new IllegalArgumentException("limit must not be negative");
+            }
+            this.hasCursor = cursor != null;
+            if (this.hasCursor) {
+                final int sep = cursor.indexOf(':');
+                this.cursorDpid = Long.parseLong(cursor.substring(0, sep));
+                this.cursorKey = Long.parseLong(cursor.substring(sep + 1));
+            } else {
+                this.cursorDpid = 0;
+                this.cursorKey = 0;
+            }
+        } catch (ClassCastException | MissingRequiredField
+                | IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new JSONRPC2Error(JSONRPC2Error.INVALID_PARAMS.getCode(),
+                    "Invalid paging parameters : " + e.getMessage());
+        }
+        this.switches = new ArrayList<S>(switches);
+        Collections.sort(this.switches, new Comparator<S>() {
+            @Override
+            public int compare(final S a, final S b) {
+                return Long.compare(FlowStream.this.getDpid(a),
+                        FlowStream.this.getDpid(b));
+            }
+        });
+    }
+
+    protected abstract long getDpid(S sw);
+
+    protected abstract Iterable<F> getFlows(S sw);
+
+    /**
+     * @return the key of the flow, unique in its switch
+     */
+    protected abstract long getKey(F flow);
+
+    /**
+     * @return the cookie the cookie range applies to
+     */
+    protected abstract long getCookie(F flow);
+
+    protected abstract void writeFlow(JsonWriter out, S sw, F flow)
+            throws IOException;
+
+    @Override
+    public void write(final JsonWriter out) throws IOException {
+        out.beginObject();
+        out.name("flows");
+        out.beginArray();
+        String next = null;
+        int remaining = this.limit;
+        for (S sw : this.switches) {
+            final long dpid = this.getDpid(sw);
+            if (this.hasCursor && dpid < this.cursorDpid) {
+                continue;
+            }
+            final boolean after = this.hasCursor && dpid == this.cursorDpid;
+            if (this.limit == 0) {
+                for (F flow : this.getFlows(sw)) {
+                    if (this.isSelected(flow, after)) {
+                        this.writeFlow(out, sw, flow);
+                    }
+                }
+                continue;
+            }
+            final List<F> page = this.select(sw, after, remaining);
+            for (F flow : page) {
+                this.writeFlow(out, sw, flow);
+            }
+            remaining -= page.size();
+            if (remaining == 0) {
+                next = dpid + ":" + this.getKey(page.get(page.size() - 1));
+                break;
+            }
+        }
+        out.endArray();
+        if (next != null) {
+            out.name("next").value(next);
+        }
+        out.endObject();
+    }
+
+    private boolean isSelected(final F flow, final boolean after) {
+        final long cookie = this.getCookie(flow);
+        return cookie >= this.cookieMin && cookie <= this.cookieMax
+                && (!after || this.getKey(flow) > this.cursorKey);
+    }
+
+    /**
+     * Selects the flows of a switch with the lowest keys.
+     */
+    private List<F> select(final S sw, final boolean after, final int max) {
+        final Comparator<F> byKey = new Comparator<F>() {
+            @Override
+            public int compare(final F a, final F b) {
+                return Long.compare(FlowStream.this.getKey(a),
+                        FlowStream.this.getKey(b));
+            }
+        };
+        // the highest selected key first, to be replaced by lower ones
+        final PriorityQueue<F> selected = new PriorityQueue<F>(Math.min(max,
+                1024), Collections.reverseOrder(byKey));
+        for (F flow : this.getFlows(sw)) {
+            if (!this.isSelected(flow, after)) {
+                continue;
+            }
+            if (selected.size() < max) {
+                selected.add(flow);
+            } else if (this.getKey(flow) < this.getKey(selected.peek())) {
+                selected.poll();
+                selected.add(flow);
+            }
+        }
+        final List<F> page = new ArrayList<F>(selected);
+        Collections.sort(page, byKey);
+        return page;
+    }
+
+    /**
+     * Writes a value made of maps, collections, strings, numbers and
+     * booleans, e.g. the map of a flow mod.
+     */
+    static void writeValue(final JsonWriter out, final Object value)
+            throws IOException {
+        if (value == null) {
+            out.nullValue();
+        } else if (value instanceof Map) {
+            out.beginObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                out.name(String.valueOf(entry.getKey()));
+                FlowStream.writeValue(out, entry.getValue());
+            }
+            out.endObject();
+        } else if (value instanceof Collection) {
+            out.beginArray();
+            for (Object item : (Collection<?>) value) {
+                FlowStream.writeValue(out, item);
+            }
+            out.endArray();
+        } else if (value instanceof Number) {
+            out.value((Number) value);
+        } else if (value instanceof Boolean) {
+            out.value(((Boolean) value).booleanValue());
+        } else {
+            out.value(value.toString());
+        }
+    }
+
+}
@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.api.service.handlers.monitoring;
+
+import java.util.Map;
+
+import net.onrc.openvirtex.api.service.handlers.ApiHandler;
+import net.onrc.openvirtex.api.service.handlers.HandlerUtils;
+import net.onrc.openvirtex.api.service.handlers.MonitoringHandler;
+import net.onrc.openvirtex.exceptions.MissingRequiredField;
+import net.onrc.openvirtex.util.Metrics;
+import net.onrc.openvirtex.util.MetricsRegistry;
+
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Error;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2ParamsType;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
+
+/**
+ * Gets the metrics of OVX: counters, latency histograms and gauges. Without
+ * parameters, all metrics are returned. Given a tenant id, the metrics of
+ * the virtual network are returned, or of one of its virtual switches if a
+ * dpid is also given; given only a dpid, the metrics of the physical
+ * switch are returned. Latencies are in microseconds.
+ */
+public class GetMetrics extends ApiHandler<Map<String, Object>> {
+
+    @Override
+    public JSONRPC2Response process(final Map<String, Object> params) {
+        try {
+            final Number tid = HandlerUtils.<Number>fetchField(
+                    MonitoringHandler.TENANT, params, false, null);
+            final Number dpid = HandlerUtils.<Number>fetchField(
+                    MonitoringHandler.DPID, params, false, null);
+
+            final MetricsRegistry registry = MetricsRegistry.getInstance();
+            Metrics metrics = registry.getRoot();
+            if (tid != null) {
+                metrics = registry.findTenant(tid.intValue());
+                if (metrics != null && dpid != null) {
+                    metrics = metrics.getGroup("switches").findGroup(
+                            MetricsRegistry.name(dpid.longValue()));
+                }
+            } else if (dpid != null) {
+                metrics = registry.getSwitches().findGroup(
+                        MetricsRegistry.name(dpid.longValue()));
+            }
+            if (metrics == null) {
+                return new JSONRPC2Response(new JSONRPC2Error(
+                        JSONRPC2Error.INVALID_PARAMS.getCode(), this.cmdName()
+                                + ": No metrics for virtual network " + tid
+                                + " and switch " + dpid), 0);
+            }
+            return new JSONRPC2Response(metrics.toMap(), 0);
+        } catch (ClassCastException | MissingRequiredField e) {
+            return new JSONRPC2Response(new JSONRPC2Error(
+                    JSONRPC2Error.INVALID_PARAMS.getCode(), this.cmdName()
+                            + ": Unable to fetch metrics : " + e.getMessage()),
+                    0);
+        }
+    }
+
+    @Override
+    public JSONRPC2ParamsType getType() {
+        return JSONRPC2ParamsType.OBJECT;
+    }
+
+}
@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.api.service.handlers.monitoring;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import net.onrc.openvirtex.api.service.handlers.ApiHandler;
+import net.onrc.openvirtex.api.service.handlers.HandlerUtils;
+import net.onrc.openvirtex.api.service.handlers.MonitoringHandler;
+import net.onrc.openvirtex.api.service.handlers.StreamingHandler;
+import net.onrc.openvirtex.exceptions.MissingRequiredField;
+import net.onrc.openvirtex.util.PacketTracer;
+import net.onrc.openvirtex.util.PacketTracer.Event;
+
+import com.google.gson.stream.JsonWriter;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Error;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2ParamsType;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
+
+/**
+ * Gets the recent events of the traced data path messages, optionally of a
+ * single virtual network, switch or flow. The result has the events, oldest
+ * first, and the cursor to pass to get the events recorded since.
+ */
+public class GetPacketTraces extends ApiHandler<Map<String, Object>>
+        implements StreamingHandler {
+
+    @Override
+    public JSONRPC2Response process(final Map<String, Object> params) {
+        final List<Event> events;
+        try {
+            events = this.fetchEvents(params);
+        } catch (JSONRPC2Error e) {
+            return new JSONRPC2Response(e, 0);
+        }
+        final List<Map<String, Object>> list = new LinkedList<Map<String, Object>>();
+        for (Event event : events) {
+            list.add(event.toMap());
+        }
+        final Map<String, Object> res = new HashMap<String, Object>();
+        res.put("events", list);
+        res.put("next", this.next(params, events));
+        return new JSONRPC2Response(res, 0);
+    }
+
+    @Override
+    public ResultWriter stream(final Map<String, Object> params)
+            throws JSONRPC2Error {
+        final List<Event> events = this.fetchEvents(params);
+        final String next = this.next(params, events);
+        return new ResultWriter() {
+            @Override
+            public void write(final JsonWriter out) throws IOException {
+                out.beginObject();
+                out.name("events");
+                out.beginArray();
+                for (Event event : events) {
+                    FlowStream.writeValue(out, event.toMap());
+                }
+                out.endArray();
+                out.name("next").value(next);
+                out.endObject();
+            }
+        };
+    }
+
+    private List<Event> fetchEvents(final Map<String, Object> params)
+            throws JSONRPC2Error {
+        try {
+            final Number tid = HandlerUtils.<Number>fetchField(
+                    MonitoringHandler.TENANT, params, false, null);
+            final Number dpid = HandlerUtils.<Number>fetchField(
+                    MonitoringHandler.DPID, params, false, null);
+            final Number cookie = HandlerUtils.<Number>fetchField(
+                    MonitoringHandler.COOKIE, params, false, null);
+            final String cursor = HandlerUtils.<String>fetchField(
+                    MonitoringHandler.CURSOR, params, false, "-1");
+            final int limit = HandlerUtils.<Number>fetchField(
+                    MonitoringHandler.LIMIT, params, false, 0).intValue();
+            if (limit < 0) {
+                throw new IllegalArgumentException("limit must not be negative");
+            }
+            return PacketTracer.getInstance().getEvents(
+                    Long.parseLong(cursor),
+                    tid == null ? null : tid.intValue(),
+                    dpid == null ? null : dpid.longValue(),
+                    cookie == null ? null : cookie.longValue(), limit);
+        } catch (ClassCastException | MissingRequiredField
+                | IllegalArgumentException e) {
+            throw new JSONRPC2Error(JSONRPC2Error.INVALID_PARAMS.getCode(),
+                    this.cmdName() + ": Unable to fetch packet traces : "
+                            + e.getMessage());
+        }
+    }
+
+    /**
+     * Gets the cursor after the given events, the one of the request if
+     * there are none.
+     */
+    private String next(final Map<String, Object> params,
+            final List<Event> events) {
+        if (events.isEmpty()) {
+            final Object cursor = params.get(MonitoringHandler.CURSOR);
+            return cursor == null ? "-1" : cursor.toString();
+        }
+        return String.valueOf(events.get(events.size() - 1).getSequence());
+    }
+
+    @Override
+    public JSONRPC2ParamsType getType() {
+        return JSONRPC2ParamsType.OBJECT;
+    }
+
+}
@@ -15,6 +15,10 @@
  ******************************************************************************/
 package net.onrc.openvirtex.api.service.handlers.monitoring;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -23,20 +27,35 @@ import java.util.Map;
 import net.onrc.openvirtex.api.service.handlers.ApiHandler;
 import net.onrc.openvirtex.api.service.handlers.HandlerUtils;
 import net.onrc.openvirtex.api.service.handlers.MonitoringHandler;
+import net.onrc.openvirtex.api.service.handlers.StreamingHandler;
 import net.onrc.openvirtex.elements.Mappable;
 import net.onrc.openvirtex.elements.OVXMap;
 import net.onrc.openvirtex.elements.datapath.PhysicalSwitch;
 import net.onrc.openvirtex.elements.network.PhysicalNetwork;
 import net.onrc.openvirtex.exceptions.InvalidDPIDException;
 import net.onrc.openvirtex.exceptions.MissingRequiredField;
+import net.onrc.openvirtex.exceptions.UnknownActionException;
 import net.onrc.openvirtex.messages.OVXFlowMod;
 import net.onrc.openvirtex.messages.statistics.OVXFlowStatisticsReply;
+import net.onrc.openvirtex.protocol.OVXMatch;
+import net.onrc.openvirtex.util.OVXUtil;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.util.HexString;
+
+import com.google.common.collect.Iterables;
+import com.google.gson.stream.JsonWriter;
 import com.thetransactioncompany.jsonrpc2.JSONRPC2Error;
 import com.thetransactioncompany.jsonrpc2.JSONRPC2ParamsType;
 import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
 
-public class GetPhysicalFlowtable extends ApiHandler<Map<String, Object>> {
+public class GetPhysicalFlowtable extends ApiHandler<Map<String, Object>>
+        implements StreamingHandler {
+
+    private static Logger log = LogManager.getLogger(GetPhysicalFlowtable.class
+            .getName());
 
     private JSONRPC2Response resp = null;
 
@@ -77,6 +96,101 @@ public class GetPhysicalFlowtable extends ApiHandler<Map<String, Object>> {
 
     }
 
+    @Override
+    public ResultWriter stream(final Map<String, Object> params)
+            throws JSONRPC2Error {
+        final Collection<PhysicalSwitch> switches;
+        final Collection<Integer> tenants;
+        try {
+            final Number dpid = HandlerUtils.<Number>fetchField(
+                    MonitoringHandler.DPID, params, false, -1);
+            final Number tid = HandlerUtils.<Number>fetchField(
+                    MonitoringHandler.TENANT, params, false, -1);
+            if (dpid.longValue() == -1) {
+                switches = PhysicalNetwork.getInstance().getSwitches();
+            } else {
+                final PhysicalSwitch sw = PhysicalNetwork.getInstance()
+                        .getSwitch(dpid.longValue());
+                if (sw == null) {
+                    throw new InvalidDPIDException("DPID "
+                            + HexString.toHexString(dpid.longValue())
+                            + " is unknown ");
+                }
+                switches = Collections.singletonList(sw);
+            }
+            if (tid.intValue() == -1) {
+                tenants = OVXMap.getInstance().listVirtualNetworks().keySet();
+            } else {
+                tenants = Collections.singletonList(tid.intValue());
+            }
+        } catch (ClassCastException | MissingRequiredField
+                | InvalidDPIDException e) {
+            throw new JSONRPC2Error(JSONRPC2Error.INVALID_PARAMS.getCode(),
+                    this.cmdName() + ": Unable to fetch physical flowtable : "
+                            + e.getMessage());
+        }
+
+        return new FlowStream<PhysicalSwitch, OVXFlowStatisticsReply>(
+                switches, params) {
+            @Override
+            protected long getDpid(final PhysicalSwitch sw) {
+                return sw.getSwitchId();
+            }
+
+            @Override
+            protected Iterable<OVXFlowStatisticsReply> getFlows(
+                    final PhysicalSwitch sw) {
+                final List<Iterable<OVXFlowStatisticsReply>> flows = new ArrayList<Iterable<OVXFlowStatisticsReply>>();
+                for (Integer tid : tenants) {
+                    if (sw.getFlowStats(tid) != null) {
+                        flows.add(sw.getFlowStats(tid));
+                    }
+                }
+                return Iterables.concat(flows);
+            }
+
+            @Override
+            protected long getKey(final OVXFlowStatisticsReply flow) {
+                return flow.getCookie();
+            }
+
+            @Override
+            protected long getCookie(final OVXFlowStatisticsReply flow) {
+                return flow.getCookie();
+            }
+
+            @Override
+            protected void writeFlow(final JsonWriter out,
+                    final PhysicalSwitch sw, final OVXFlowStatisticsReply flow)
+                    throws IOException {
+                // written as the map of a flow mod, without building one
+                out.beginObject();
+                out.name(MonitoringHandler.DPID).value(sw.getSwitchName());
+                out.name(MonitoringHandler.TENANT).value(
+                        (int) (flow.getCookie() >> 32));
+                out.name("cookie").value(flow.getCookie());
+                out.name("match");
+                FlowStream.writeValue(out, new OVXMatch(flow.getMatch())
+                        .toMap());
+                out.name("actionsList");
+                out.beginArray();
+                for (OFAction act : flow.getActions()) {
+                    try {
+                        FlowStream.writeValue(out, OVXUtil.actionToMap(act));
+                    } catch (UnknownActionException e) {
+                        log.warn("Ignoring action {} because {}", act,
+                                e.getMessage());
+                    }
+                }
+                out.endArray();
+                out.name("priority").value(String.valueOf(flow.getPriority()));
+                out.name("packetCount").value(flow.getPacketCount());
+                out.name("byteCount").value(flow.getByteCount());
+                out.endObject();
+            }
+        };
+    }
+
     @Override
     public JSONRPC2ParamsType getType() {
         return JSONRPC2ParamsType.OBJECT;
@@ -15,32 +15,39 @@
  ******************************************************************************/
 package net.onrc.openvirtex.api.service.handlers.monitoring;
 
+import java.io.IOException;
+import java.lang.reflect.Type;
 import java.util.Map;
 
 import net.onrc.openvirtex.api.service.handlers.ApiHandler;
+import net.onrc.openvirtex.api.service.handlers.StreamingHandler;
 import net.onrc.openvirtex.elements.datapath.PhysicalSwitch;
 import net.onrc.openvirtex.elements.datapath.PhysicalSwitchSerializer;
-
+import net.onrc.openvirtex.elements.link.PhysicalLink;
 import net.onrc.openvirtex.elements.network.PhysicalNetwork;
+import net.onrc.openvirtex.elements.network.Topology;
 import net.onrc.openvirtex.elements.port.PhysicalPort;
 import net.onrc.openvirtex.elements.port.PhysicalPortSerializer;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonIOException;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonWriter;
 import com.thetransactioncompany.jsonrpc2.JSONRPC2ParamsType;
 import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
 
 /**
  * Gets the physical topology in json format.
  */
-public class GetPhysicalTopology extends ApiHandler<Object> {
+public class GetPhysicalTopology extends ApiHandler<Object> implements
+        StreamingHandler {
 
-    @SuppressWarnings("unchecked")
-    @Override
-    public JSONRPC2Response process(final Object params) {
-        Map<String, Object> result;
-        JSONRPC2Response resp = null;
-        // TODO: gson objects can be shared with other methods
+    private static final Gson GSON;
+    private static final Type TOPOLOGY = new TypeToken<Topology<PhysicalSwitch, PhysicalPort, PhysicalLink>>() {
+    }.getType();
+
+    static {
         final GsonBuilder gsonBuilder = new GsonBuilder();
         // gsonBuilder.setPrettyPrinting();
         gsonBuilder.excludeFieldsWithoutExposeAnnotation();
@@ -52,15 +59,39 @@ public class GetPhysicalTopology extends ApiHandler<Object> {
          * gsonBuilder.registerTypeAdapter(PhysicalLink.class, new
          * PhysicalLinkSerializer());
          */
+        GSON = gsonBuilder.create();
+    }
 
-        final Gson gson = gsonBuilder.create();
-
-        result = gson.fromJson(gson.toJson(PhysicalNetwork.getInstance()),
-                Map.class);
+    @SuppressWarnings("unchecked")
+    @Override
+    public JSONRPC2Response process(final Object params) {
+        Map<String, Object> result;
+        JSONRPC2Response resp = null;
+        result = GSON.fromJson(GSON.toJson(PhysicalNetwork.getInstance()
+                .getTopology(), TOPOLOGY), Map.class);
         resp = new JSONRPC2Response(result, 0);
         return resp;
     }
 
+    /**
+     * Serializes the physical network straight to the response, without
+     * going through a string and maps.
+     */
+    @Override
+    public ResultWriter stream(final Map<String, Object> params) {
+        return new ResultWriter() {
+            @Override
+            public void write(final JsonWriter out) throws IOException {
+                try {
+                    GSON.toJson(PhysicalNetwork.getInstance().getTopology(),
+                            TOPOLOGY, out);
+                } catch (final JsonIOException e) {
+                    throw new IOException(e);
+                }
+            }
+        };
+    }
+
     @Override
     public JSONRPC2ParamsType getType() {
         return JSONRPC2ParamsType.NO_PARAMS;
@@ -49,12 +49,9 @@ public class GetVirtualAddressMapping extends ApiHandler<Map<String, Object>> {
              * for (PhysicalLink link : map.getPhysicalLinks(vlink))
              * list.add(link.getLinkId()); res.put(vlink.getLinkId(), list); }
              */
-            for (CharSequence vip : map.getAllKeys()) {
-                String ip = vip.toString().replace("OVXIPAddress[", "")
-                        .replace("]", "");
-                res.put(ip,
-                        map.getPhysicalIP(new OVXIPAddress(ip, tid.intValue()),
-                                tid.intValue()).toSimpleString());
+            for (OVXIPAddress vip : map.getVirtualIPs(tid.intValue())) {
+                res.put(vip.toSimpleString(),
+                        map.getPhysicalIP(vip, tid.intValue()).toSimpleString());
             }
 
             resp = new JSONRPC2Response(res, 0);
@@ -15,7 +15,9 @@
  ******************************************************************************/
 package net.onrc.openvirtex.api.service.handlers.monitoring;
 
+import java.io.IOException;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
@@ -23,18 +25,24 @@ import java.util.Map;
 import net.onrc.openvirtex.api.service.handlers.ApiHandler;
 import net.onrc.openvirtex.api.service.handlers.HandlerUtils;
 import net.onrc.openvirtex.api.service.handlers.MonitoringHandler;
+import net.onrc.openvirtex.api.service.handlers.StreamingHandler;
 import net.onrc.openvirtex.elements.OVXMap;
 import net.onrc.openvirtex.elements.datapath.OVXSwitch;
+import net.onrc.openvirtex.elements.network.OVXNetwork;
 import net.onrc.openvirtex.exceptions.InvalidDPIDException;
 import net.onrc.openvirtex.exceptions.MissingRequiredField;
 import net.onrc.openvirtex.exceptions.NetworkMappingException;
 import net.onrc.openvirtex.messages.OVXFlowMod;
 
+import org.openflow.util.HexString;
+
+import com.google.gson.stream.JsonWriter;
 import com.thetransactioncompany.jsonrpc2.JSONRPC2Error;
 import com.thetransactioncompany.jsonrpc2.JSONRPC2ParamsType;
 import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
 
-public class GetVirtualFlowtable extends ApiHandler<Map<String, Object>> {
+public class GetVirtualFlowtable extends ApiHandler<Map<String, Object>>
+        implements StreamingHandler {
 
     JSONRPC2Response resp = null;
 
@@ -96,6 +104,74 @@ public class GetVirtualFlowtable extends ApiHandler<Map<String, Object>> {
 
     }
 
+    @Override
+    public ResultWriter stream(final Map<String, Object> params)
+            throws JSONRPC2Error {
+        final Collection<OVXSwitch> switches;
+        try {
+            final Number tid = HandlerUtils.<Number>fetchField(
+                    MonitoringHandler.TENANT, params, true, null);
+            final Number dpid = HandlerUtils.<Number>fetchField(
+                    MonitoringHandler.VDPID, params, false, -1);
+            final OVXNetwork vnet = OVXMap.getInstance().getVirtualNetwork(
+                    tid.intValue());
+            if (dpid.longValue() == -1) {
+                switches = vnet.getSwitches();
+            } else {
+                final OVXSwitch vsw = vnet.getSwitch(dpid.longValue());
+                if (vsw == null) {
+                    throw new InvalidDPIDException("DPID "
+                            + HexString.toHexString(dpid.longValue())
+                            + " is unknown ");
+                }
+                switches = Collections.singletonList(vsw);
+            }
+        } catch (ClassCastException | MissingRequiredField
+                | InvalidDPIDException | NetworkMappingException e) {
+            throw new JSONRPC2Error(JSONRPC2Error.INVALID_PARAMS.getCode(),
+                    this.cmdName() + ": Unable to fetch virtual flowtable : "
+                            + e.getMessage());
+        }
+
+        return new FlowStream<OVXSwitch, Map.Entry<Long, OVXFlowMod>>(
+                switches, params) {
+            @Override
+            protected long getDpid(final OVXSwitch sw) {
+                return sw.getSwitchId();
+            }
+
+            @Override
+            protected Iterable<Map.Entry<Long, OVXFlowMod>> getFlows(
+                    final OVXSwitch sw) {
+                return sw.getFlowTable().getFlowEntries();
+            }
+
+            @Override
+            protected long getKey(final Map.Entry<Long, OVXFlowMod> flow) {
+                return flow.getKey();
+            }
+
+            @Override
+            protected long getCookie(final Map.Entry<Long, OVXFlowMod> flow) {
+                return flow.getValue().getCookie();
+            }
+
+            @Override
+            protected void writeFlow(final JsonWriter out, final OVXSwitch sw,
+                    final Map.Entry<Long, OVXFlowMod> flow) throws IOException {
+                out.beginObject();
+                out.name(MonitoringHandler.VDPID).value(sw.getSwitchName());
+                out.name("cookie").value(flow.getValue().getCookie());
+                for (Map.Entry<String, Object> entry : flow.getValue().toMap()
+                        .entrySet()) {
+                    out.name(entry.getKey());
+                    FlowStream.writeValue(out, entry.getValue());
+                }
+                out.endObject();
+            }
+        };
+    }
+
     @Override
     public JSONRPC2ParamsType getType() {
         return JSONRPC2ParamsType.OBJECT;
@@ -23,7 +23,9 @@ import net.onrc.openvirtex.api.service.handlers.MonitoringHandler;
 import net.onrc.openvirtex.elements.OVXMap;
 import net.onrc.openvirtex.elements.datapath.OVXSwitch;
 import net.onrc.openvirtex.elements.datapath.OVXSwitchSerializer;
+import net.onrc.openvirtex.elements.link.OVXLink;
 import net.onrc.openvirtex.elements.network.OVXNetwork;
+import net.onrc.openvirtex.elements.network.Topology;
 import net.onrc.openvirtex.elements.port.OVXPort;
 import net.onrc.openvirtex.elements.port.OVXPortSerializer;
 import net.onrc.openvirtex.exceptions.MissingRequiredField;
@@ -31,6 +33,7 @@ import net.onrc.openvirtex.exceptions.NetworkMappingException;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
 import com.thetransactioncompany.jsonrpc2.JSONRPC2Error;
 import com.thetransactioncompany.jsonrpc2.JSONRPC2ParamsType;
 import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
@@ -65,7 +68,9 @@ public class GetVirtualTopology extends ApiHandler<Map<String, Object>> {
              */
 
             final Gson gson = gsonBuilder.create();
-            result = gson.fromJson(gson.toJson(vnet), Map.class);
+            result = gson.fromJson(gson.toJson(vnet.getTopology(),
+                    new TypeToken<Topology<OVXSwitch, OVXPort, OVXLink>>() {
+                    }.getType()), Map.class);
             resp = new JSONRPC2Response(result, 0);
             return resp;
         } catch (ClassCastException | MissingRequiredField e) {
@@ -0,0 +1,540 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.api.service.handlers.tenant;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.onrc.openvirtex.api.service.handlers.ApiHandler;
+import net.onrc.openvirtex.api.service.handlers.HandlerUtils;
+import net.onrc.openvirtex.api.service.handlers.TenantHandler;
+import net.onrc.openvirtex.core.OpenVirteXController;
+import net.onrc.openvirtex.db.DBManager;
+import net.onrc.openvirtex.elements.address.OVXIPAddress;
+import net.onrc.openvirtex.elements.datapath.OVXSwitch;
+import net.onrc.openvirtex.elements.datapath.PhysicalSwitch;
+import net.onrc.openvirtex.elements.host.Host;
+import net.onrc.openvirtex.elements.link.OVXLink;
+import net.onrc.openvirtex.elements.link.OVXLinkField;
+import net.onrc.openvirtex.elements.link.PhysicalLink;
+import net.onrc.openvirtex.elements.network.OVXNetwork;
+import net.onrc.openvirtex.elements.network.PhysicalNetwork;
+import net.onrc.openvirtex.elements.port.OVXPort;
+import net.onrc.openvirtex.elements.port.PhysicalPort;
+import net.onrc.openvirtex.exceptions.ControllerUnavailableException;
+import net.onrc.openvirtex.exceptions.DuplicateIndexException;
+import net.onrc.openvirtex.exceptions.IndexOutOfBoundException;
+import net.onrc.openvirtex.exceptions.InvalidDPIDException;
+import net.onrc.openvirtex.exceptions.InvalidPortException;
+import net.onrc.openvirtex.exceptions.MappingException;
+import net.onrc.openvirtex.exceptions.MissingRequiredField;
+import net.onrc.openvirtex.exceptions.RoutingAlgorithmException;
+import net.onrc.openvirtex.exceptions.VirtualLinkException;
+import net.onrc.openvirtex.routing.RoutingAlgorithms;
+import net.onrc.openvirtex.routing.RoutingAlgorithms.RoutingType;
+import net.onrc.openvirtex.routing.SwitchRoute;
+import net.onrc.openvirtex.util.MACAddress;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Error;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2ParamsType;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
+
+/**
+ * Creates a whole virtual network from a single description of its
+ * switches, ports, links, hosts and big switch routes.
+ * <p>
+ * Switches are given by their physical DPIDs, and ports by their physical
+ * DPID and port number; links, hosts and routes refer to ports of the
+ * description by their physical DPID and port number too. The description
+ * is checked as a whole against the physical network before anything is
+ * created, and a network that cannot be created entirely is removed. The
+ * network is written to the database as one document, and is not started.
+ * <p>
+ * The reply has the network, the elements created in the order they are
+ * given, and the time in microseconds taken to validate the description,
+ * create the network and write it to the database.
+ */
+public class ProvisionOVXNetwork extends ApiHandler<Map<String, Object>> {
+
+    Logger log = LogManager.getLogger(ProvisionOVXNetwork.class.getName());
+
+    /**
+     * A virtual port of the description.
+     */
+    private static class PortSpec {
+        private final int sw;
+        private final PhysicalPort port;
+        private final Short vport;
+        private OVXPort ovxPort;
+
+        PortSpec(final int sw, final PhysicalPort port, final Short vport) {
+            this.sw = sw;
+            this.port = port;
+            this.vport = vport;
+        }
+    }
+
+    /**
+     * A virtual link or route of the description.
+     */
+    private static class PathSpec {
+        private final PortSpec src;
+        private final PortSpec dst;
+        private final String algorithm;
+        private final byte backups;
+        private final List<PhysicalLink> path;
+        private final byte priority;
+
+        PathSpec(final PortSpec src, final PortSpec dst,
+                final String algorithm, final byte backups,
+                final List<PhysicalLink> path, final byte priority) {
+            this.src = src;
+            this.dst = dst;
+            this.algorithm = algorithm;
+            this.backups = backups;
+            this.path = path;
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * The description of a virtual network, checked against the physical
+     * network.
+     */
+    private static class Description {
+        private final List<List<Long>> switches = new ArrayList<List<Long>>();
+        private final List<Long> vdpids = new ArrayList<Long>();
+        private final Map<PhysicalPort, PortSpec> ports = new LinkedHashMap<PhysicalPort, PortSpec>();
+        private final List<PathSpec> links = new ArrayList<PathSpec>();
+        private final Map<PortSpec, MACAddress> hosts = new LinkedHashMap<PortSpec, MACAddress>();
+        private final List<PathSpec> routes = new ArrayList<PathSpec>();
+        // the switch of the description each physical switch belongs to
+        private final Map<Long, Integer> switchOf = new HashMap<Long, Integer>();
+        // ports already connected to a link or host
+        private final Set<PortSpec> connected = new HashSet<PortSpec>();
+        // the element being checked, to report errors
+        private String element = "";
+    }
+
+    @Override
+    public JSONRPC2Response process(final Map<String, Object> params) {
+        JSONRPC2Response resp = null;
+        final Description desc = new Description();
+        try {
+            final ArrayList<String> ctrlUrls = HandlerUtils
+                    .<ArrayList<String>>fetchField(TenantHandler.CTRLURLS,
+                            params, true, null);
+            final String netAddress = HandlerUtils.<String>fetchField(
+                    TenantHandler.NETADD, params, true, null);
+            final Number netMask = HandlerUtils.<Number>fetchField(
+                    TenantHandler.NETMASK, params, true, null);
+            for (String ctrl : ctrlUrls) {
+                String[] ctrlParts = ctrl.split(":");
+                HandlerUtils.isControllerAvailable(ctrlParts[1],
+                        Integer.parseInt(ctrlParts[2]), -1);
+            }
+
+            final long start = System.nanoTime();
+            this.validate(desc, params);
+            final long validated = System.nanoTime();
+
+            final OVXNetwork virtualNetwork = new OVXNetwork(ctrlUrls, new OVXIPAddress(
+                    netAddress, -1), netMask.shortValue());
+            final DBManager dbManager = DBManager.getInstance();
+            final Map<String, Object> reply;
+            dbManager.beginBatch();
+            try {
+                virtualNetwork.register();
+                reply = this.apply(virtualNetwork, desc);
+            } catch (final Exception e) {
+                // also undoes the changes held by the batch
+                virtualNetwork.unregister();
+                dbManager.abortBatch();
+                throw e;
+            }
+            final long applied = System.nanoTime();
+            dbManager.commitBatch();
+            final long persisted = System.nanoTime();
+
+            final Map<String, Object> timing = new HashMap<String, Object>();
+            timing.put("validate", (validated - start) / 1000);
+            timing.put("apply", (applied - validated) / 1000);
+            timing.put("persist", (persisted - applied) / 1000);
+            reply.put(TenantHandler.TIMING, timing);
+            this.log.info(
+                    "Provisioned virtual network {} with {} switches, {} ports, {} links, {} hosts and {} routes in {} us",
+                    virtualNetwork.getTenantId(), desc.switches.size(),
+                    desc.ports.size(), desc.links.size(), desc.hosts.size(),
+                    desc.routes.size(), (persisted - start) / 1000);
+            resp = new JSONRPC2Response(reply, 0);
+
+        } catch (final MissingRequiredField e) {
+            resp = this.error(desc, "Unable to provision virtual network : "
+                    + e.getMessage());
+        } catch (final ControllerUnavailableException e) {
+            resp = this.error(desc, "Controller already in use : "
+                    + e.getMessage());
+        } catch (final IndexOutOfBoundException e) {
+            resp = this.error(desc,
+                    "Impossible to provision the virtual network, too many elements : "
+                            + e.getMessage());
+        } catch (final DuplicateIndexException e) {
+            resp = this.error(desc, "Duplicate index : " + e.getMessage());
+        } catch (final RoutingAlgorithmException e) {
+            resp = this.error(desc, "Invalid routing algorithm : "
+                    + e.getMessage());
+        } catch (final InvalidDPIDException e) {
+            resp = this.error(desc, "Invalid dpid : " + e.getMessage());
+        } catch (final InvalidPortException e) {
+            resp = this.error(desc, "Invalid port : " + e.getMessage());
+        } catch (final VirtualLinkException e) {
+            resp = this.error(desc, "Invalid path : " + e.getMessage());
+        } catch (final MappingException e) {
+            resp = this.error(desc, e.getMessage());
+        } catch (final IllegalArgumentException | ClassCastException e) {
+            resp = this.error(desc, "Invalid parameter : " + e.getMessage());
+        } catch (final Exception e) {
+            // errors unknown to the validation, the network is removed
+            this.log.error("Unable to provision virtual network: {}", e);
+            resp = new JSONRPC2Response(new JSONRPC2Error(
+                    JSONRPC2Error.INTERNAL_ERROR.getCode(), this.cmdName()
+                            + ": " + e.getMessage()), 0);
+        }
+        return resp;
+    }
+
+    private JSONRPC2Response error(final Description desc, final String msg) {
+        final String element = desc.element.isEmpty() ? ""
+                : desc.element + ": ";
+        return new JSONRPC2Response(new JSONRPC2Error(
+                JSONRPC2Error.INVALID_PARAMS.getCode(), this.cmdName() + ": "
+                        + element + msg), 0);
+    }
+
+    /**
+     * Checks the description against the physical network and the
+     * virtual networks already created.
+     */
+    @SuppressWarnings("unchecked")
+    private void validate(final Description desc,
+            final Map<String, Object> params) throws MissingRequiredField,
+            RoutingAlgorithmException {
+        final List<Map<String, Object>> switches = HandlerUtils
+                .<List<Map<String, Object>>>fetchField(TenantHandler.SWITCHES,
+                        params, true, null);
+        final List<Map<String, Object>> ports = HandlerUtils
+                .<List<Map<String, Object>>>fetchField(TenantHandler.PORTS,
+                        params, false, Collections.EMPTY_LIST);
+        final List<Map<String, Object>> links = HandlerUtils
+                .<List<Map<String, Object>>>fetchField(TenantHandler.LINKS,
+                        params, false, Collections.EMPTY_LIST);
+        final List<Map<String, Object>> hosts = HandlerUtils
+                .<List<Map<String, Object>>>fetchField(TenantHandler.HOSTS,
+                        params, false, Collections.EMPTY_LIST);
+        final List<Map<String, Object>> routes = HandlerUtils
+                .<List<Map<String, Object>>>fetchField(TenantHandler.ROUTES,
+                        params, false, Collections.EMPTY_LIST);
+        final PhysicalNetwork phyNet = PhysicalNetwork.getInstance();
+
+        final Set<Long> vdpids = new HashSet<Long>();
+        for (int i = 0; i < switches.size(); i++) {
+            desc.element = TenantHandler.SWITCHES + "[" + i + "]";
+            final Map<String, Object> sw = switches.get(i);
+            final List<Long> dpids = new ArrayList<Long>();
+            for (Number dpid : HandlerUtils.<List<Number>>fetchField(
+                    TenantHandler.DPIDS, sw, true, null)) {
+                dpids.add(dpid.longValue());
+            }
+            final Number vdpid = HandlerUtils.<Number>fetchField(
+                    TenantHandler.VDPID, sw, false, null);
+            // the new network has no switch yet
+            HandlerUtils.isValidDPID(-1, dpids);
+            for (long dpid : dpids) {
+                if (desc.switchOf.put(dpid, i) != null) {
+                    throw new InvalidDPIDException(
+                            "The physical dpid is part of another virtual switch: "
+                                    + dpid);
+                }
+            }
+            if (vdpid != null && !vdpids.add(vdpid.longValue())) {
+                throw new InvalidDPIDException(
+                        "The virtual dpid is given to another virtual switch: "
+                                + vdpid);
+            }
+            desc.switches.add(dpids);
+            desc.vdpids.add(vdpid == null ? null : vdpid.longValue());
+        }
+
+        final boolean vlan = OpenVirteXController.getInstance()
+                .getOvxLinkField() == OVXLinkField.VLAN;
+        for (int i = 0; i < ports.size(); i++) {
+            desc.element = TenantHandler.PORTS + "[" + i + "]";
+            final Map<String, Object> port = ports.get(i);
+            final Number dpid = HandlerUtils.<Number>fetchField(
+                    TenantHandler.DPID, port, true, null);
+            final Number number = HandlerUtils.<Number>fetchField(
+                    TenantHandler.PORT, port, true, null);
+            final Number vport = HandlerUtils.<Number>fetchField(
+                    TenantHandler.VPORT, port, false, null);
+            final Integer sw = desc.switchOf.get(dpid.longValue());
+            if (sw == null) {
+                throw new InvalidDPIDException(
+                        "The physical dpid is not part of any virtual switch: "
+                                + dpid);
+            }
+            final PhysicalPort phyPort = phyNet.getSwitch(dpid.longValue())
+                    .getPort(number.shortValue());
+            if (phyPort == null) {
+                throw new InvalidPortException("The port specified is invalid: "
+                        + dpid + "/" + number);
+            }
+            if (vlan && phyPort.isEdge() && phyPort.isUsed()) {
+                throw new InvalidPortException(
+                        "The edge port is used by another virtual network: "
+                                + dpid + "/" + number);
+            }
+            if (desc.ports.put(phyPort, new PortSpec(sw, phyPort,
+                    vport == null ? null : vport.shortValue())) != null) {
+                throw new InvalidPortException(
+                        "The port is given to another virtual port: " + dpid
+                                + "/" + number);
+            }
+        }
+
+        for (int i = 0; i < links.size(); i++) {
+            desc.element = TenantHandler.LINKS + "[" + i + "]";
+            final Map<String, Object> link = links.get(i);
+            final String alg = HandlerUtils.<String>fetchField(
+                    TenantHandler.ALGORITHM, link, true, null);
+            final Number backups = HandlerUtils.<Number>fetchField(
+                    TenantHandler.BACKUPS, link, true, null);
+            final PathSpec spec = this.validatePath(desc, link, alg,
+                    backups.byteValue());
+            if (spec.path == null
+                    && new RoutingAlgorithms(alg, spec.backups).getRoutingType() == RoutingType.NONE) {
+                throw new MissingRequiredField(TenantHandler.PATH);
+            }
+            this.connect(desc, spec.src);
+            this.connect(desc, spec.dst);
+            desc.links.add(spec);
+        }
+
+        final Set<MACAddress> macs = new HashSet<MACAddress>();
+        for (int i = 0; i < hosts.size(); i++) {
+            desc.element = TenantHandler.HOSTS + "[" + i + "]";
+            final Map<String, Object> host = hosts.get(i);
+            final PortSpec port = this.getPort(desc, host, TenantHandler.DPID,
+                    TenantHandler.PORT);
+            final MACAddress mac = MACAddress.valueOf(HandlerUtils
+                    .<String>fetchField(TenantHandler.MAC, host, true, null));
+            HandlerUtils.isUniqueHostMAC(mac);
+            if (!macs.add(mac)) {
+                throw new IllegalArgumentException(
+                        "The MAC address is given to another host: " + mac);
+            }
+            this.connect(desc, port);
+            desc.hosts.put(port, mac);
+        }
+
+        for (int i = 0; i < routes.size(); i++) {
+            desc.element = TenantHandler.ROUTES + "[" + i + "]";
+            final PathSpec spec = this.validatePath(desc, routes.get(i),
+                    null, (byte) 0);
+            if (spec.path == null) {
+                throw new MissingRequiredField(TenantHandler.PATH);
+            }
+            if (spec.src.sw != spec.dst.sw
+                    || desc.switches.get(spec.src.sw).size() < 2) {
+                throw new InvalidPortException(
+                        "The route ports are not on the same virtual big switch");
+            }
+            desc.routes.add(spec);
+        }
+        desc.element = "";
+    }
+
+    /**
+     * Checks the end points and the path of a link or route. The path is
+     * optional, and needs a priority.
+     */
+    private PathSpec validatePath(final Description desc,
+            final Map<String, Object> params, final String alg,
+            final byte backups) throws MissingRequiredField {
+        final PortSpec src = this.getPort(desc, params,
+                TenantHandler.SRC_DPID, TenantHandler.SRC_PORT);
+        final PortSpec dst = this.getPort(desc, params,
+                TenantHandler.DST_DPID, TenantHandler.DST_PORT);
+        final String pathString = HandlerUtils.<String>fetchField(
+                TenantHandler.PATH, params, false, null);
+        if (pathString == null) {
+            return new PathSpec(src, dst, alg, backups, null, (byte) 0);
+        }
+        final Number priority = HandlerUtils.<Number>fetchField(
+                TenantHandler.PRIORITY, params, true, null);
+        final List<PhysicalLink> path = HandlerUtils
+                .getPhysicalPath(pathString);
+        HandlerUtils.isValidVirtualLink(path);
+        HandlerUtils.isValidPriority(priority.intValue());
+        if (!path.get(0).getSrcPort().equals(src.port)
+                || !path.get(path.size() - 1).getDstPort().equals(dst.port)) {
+            throw new VirtualLinkException(
+                    "The path does not start and end at the given ports");
+        }
+        return new PathSpec(src, dst, alg, backups, path,
+                priority.byteValue());
+    }
+
+    /**
+     * Gets the port of the description at the given physical DPID and port
+     * number.
+     */
+    private PortSpec getPort(final Description desc,
+            final Map<String, Object> params, final String dpidField,
+            final String portField) throws MissingRequiredField {
+        final Number dpid = HandlerUtils.<Number>fetchField(dpidField, params,
+                true, null);
+        final Number port = HandlerUtils.<Number>fetchField(portField, params,
+                true, null);
+        final PhysicalSwitch sw = PhysicalNetwork.getInstance().getSwitch(
+                dpid.longValue());
+        final PortSpec spec = sw == null ? null : desc.ports.get(sw
+                .getPort(port.shortValue()));
+        if (spec == null) {
+            throw new InvalidPortException(
+                    "The port is not a port of the virtual network: " + dpid
+                            + "/" + port);
+        }
+        return spec;
+    }
+
+    /**
+     * Connects a port to a link or host, once.
+     */
+    private void connect(final Description desc, final PortSpec port) {
+        if (!desc.connected.add(port)) {
+            throw new InvalidPortException(
+                    "The port is already connected to a link or host: "
+                            + port.port.getParentSwitch().getSwitchId() + "/"
+                            + port.port.getPortNumber());
+        }
+    }
+
+    /**
+     * Creates the elements of the description in the registered network.
+     *
+     * @return the reply, with the network and the elements created
+     */
+    private Map<String, Object> apply(final OVXNetwork virtualNetwork,
+            final Description desc) throws IndexOutOfBoundException,
+            DuplicateIndexException, MappingException {
+        final Map<String, Object> reply = new HashMap<String, Object>(
+                virtualNetwork.getDBObject());
+
+        final List<OVXSwitch> switches = new ArrayList<OVXSwitch>();
+        final List<Map<String, Object>> switchReplies = new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < desc.switches.size(); i++) {
+            desc.element = TenantHandler.SWITCHES + "[" + i + "]";
+            final Long vdpid = desc.vdpids.get(i);
+            final OVXSwitch sw = vdpid == null ? virtualNetwork
+                    .createSwitch(desc.switches.get(i)) : virtualNetwork
+                    .createSwitch(desc.switches.get(i), vdpid);
+            switches.add(sw);
+            switchReplies.add(sw.getDBObject());
+        }
+        reply.put(TenantHandler.SWITCHES, switchReplies);
+
+        final List<Map<String, Object>> portReplies = new ArrayList<Map<String, Object>>();
+        int i = 0;
+        for (PortSpec spec : desc.ports.values()) {
+            desc.element = TenantHandler.PORTS + "[" + i++ + "]";
+            final long dpid = spec.port.getParentSwitch().getSwitchId();
+            final short number = spec.port.getPortNumber();
+            spec.ovxPort = spec.vport == null ? virtualNetwork.createPort(
+                    dpid, number) : virtualNetwork.createPort(dpid, number,
+                    spec.vport);
+            if (spec.ovxPort == null) {
+                throw new InvalidPortException(
+                        "The edge port is used by another virtual network: "
+                                + dpid + "/" + number);
+            }
+            portReplies.add(spec.ovxPort.getDBObject());
+        }
+        reply.put(TenantHandler.PORTS, portReplies);
+
+        final List<Map<String, Object>> linkReplies = new ArrayList<Map<String, Object>>();
+        i = 0;
+        for (PathSpec spec : desc.links) {
+            desc.element = TenantHandler.LINKS + "[" + i++ + "]";
+            OVXLink link = virtualNetwork.connectLink(
+                    switches.get(spec.src.sw).getSwitchId(),
+                    spec.src.ovxPort.getPortNumber(),
+                    switches.get(spec.dst.sw).getSwitchId(),
+                    spec.dst.ovxPort.getPortNumber(), spec.algorithm,
+                    spec.backups);
+            if (link == null) {
+                throw new VirtualLinkException("Could not connect link");
+            }
+            if (spec.path != null) {
+                link = virtualNetwork.setLinkPath(link.getLinkId(), spec.path,
+                        spec.priority);
+            }
+            linkReplies.add(link.getDBObject());
+        }
+        reply.put(TenantHandler.LINKS, linkReplies);
+
+        final List<Map<String, Object>> hostReplies = new ArrayList<Map<String, Object>>();
+        i = 0;
+        for (Map.Entry<PortSpec, MACAddress> spec : desc.hosts.entrySet()) {
+            desc.element = TenantHandler.HOSTS + "[" + i++ + "]";
+            final OVXPort port = spec.getKey().ovxPort;
+            final Host host = virtualNetwork.connectHost(port
+                    .getParentSwitch().getSwitchId(), port.getPortNumber(),
+                    spec.getValue());
+            hostReplies.add(host.getDBObject());
+        }
+        reply.put(TenantHandler.HOSTS, hostReplies);
+
+        final List<Map<String, Object>> routeReplies = new ArrayList<Map<String, Object>>();
+        i = 0;
+        for (PathSpec spec : desc.routes) {
+            desc.element = TenantHandler.ROUTES + "[" + i++ + "]";
+            final SwitchRoute route = virtualNetwork.connectRoute(
+                    switches.get(spec.src.sw).getSwitchId(),
+                    spec.src.ovxPort.getPortNumber(),
+                    spec.dst.ovxPort.getPortNumber(), spec.path,
+                    spec.priority);
+            routeReplies.add(route.getDBObject());
+        }
+        reply.put(TenantHandler.ROUTES, routeReplies);
+        desc.element = "";
+        return reply;
+    }
+
+    @Override
+    public JSONRPC2ParamsType getType() {
+        return JSONRPC2ParamsType.OBJECT;
+    }
+
+}
@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.api.service.handlers.tenant;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.onrc.openvirtex.api.service.handlers.ApiHandler;
+import net.onrc.openvirtex.api.service.handlers.HandlerUtils;
+import net.onrc.openvirtex.api.service.handlers.TenantHandler;
+import net.onrc.openvirtex.exceptions.MissingRequiredField;
+import net.onrc.openvirtex.util.PacketTracer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Error;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2ParamsType;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
+
+/**
+ * Handler to set which data path messages are traced.
+ */
+public class SetPacketTracing extends ApiHandler<Map<String, Object>> {
+
+    Logger log = LogManager.getLogger(SetPacketTracing.class.getName());
+
+    @Override
+    public JSONRPC2Response process(final Map<String, Object> params) {
+        JSONRPC2Response resp = null;
+
+        try {
+            final Number rate = HandlerUtils.<Number>fetchField(
+                    TenantHandler.SAMPLE_RATE, params, true, null);
+            final List<Number> tenantIds = HandlerUtils.<List<Number>>fetchField(
+                    TenantHandler.TENANTS, params, false,
+                    Collections.<Number>emptyList());
+            final List<Number> dpids = HandlerUtils.<List<Number>>fetchField(
+                    TenantHandler.DPIDS, params, false,
+                    Collections.<Number>emptyList());
+
+            final List<Integer> tenants = new ArrayList<Integer>();
+            for (final Number tenantId : tenantIds) {
+                tenants.add(tenantId.intValue());
+            }
+            final List<Long> longDpids = new ArrayList<Long>();
+            for (final Number dpid : dpids) {
+                longDpids.add(dpid.longValue());
+            }
+
+            final PacketTracer tracer = PacketTracer.getInstance();
+            tracer.setSampling(rate.intValue(), tenants, longDpids);
+            this.log.info(
+                    "Set packet tracing to one in every {} messages of virtual networks {} on switches {}",
+                    rate, tenants, longDpids);
+
+            final Map<String, Object> reply = new HashMap<String, Object>();
+            reply.put(TenantHandler.SAMPLE_RATE, tracer.getSampleRate());
+            reply.put(TenantHandler.TENANTS, tracer.getTenants());
+            reply.put(TenantHandler.DPIDS, tracer.getDpids());
+            resp = new JSONRPC2Response(reply, 0);
+
+        } catch (final MissingRequiredField e) {
+            resp = new JSONRPC2Response(new JSONRPC2Error(
+                    JSONRPC2Error.INVALID_PARAMS.getCode(), this.cmdName()
+                            + ": Unable to set packet tracing : "
+                            + e.getMessage()), 0);
+        } catch (final ClassCastException | IllegalArgumentException e) {
+            resp = new JSONRPC2Response(new JSONRPC2Error(
+                    JSONRPC2Error.INVALID_PARAMS.getCode(), this.cmdName()
+                            + ": Invalid sampling : " + e.getMessage()), 0);
+        }
+        return resp;
+    }
+
+    @Override
+    public JSONRPC2ParamsType getType() {
+        return JSONRPC2ParamsType.OBJECT;
+    }
+
+}
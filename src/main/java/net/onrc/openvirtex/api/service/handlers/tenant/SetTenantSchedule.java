@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.api.service.handlers.tenant;
+
+import java.util.Map;
+
+import net.onrc.openvirtex.api.service.handlers.ApiHandler;
+import net.onrc.openvirtex.api.service.handlers.HandlerUtils;
+import net.onrc.openvirtex.api.service.handlers.TenantHandler;
+import net.onrc.openvirtex.core.OpenVirteXController;
+import net.onrc.openvirtex.elements.network.TenantScheduler;
+import net.onrc.openvirtex.elements.network.TenantScheduler.Budget;
+import net.onrc.openvirtex.elements.network.TenantScheduler.Policy;
+import net.onrc.openvirtex.exceptions.InvalidTenantIdException;
+import net.onrc.openvirtex.exceptions.MissingRequiredField;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Error;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2ParamsType;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
+
+/**
+ * Handler to set the packet-in rate and scheduling weight of a virtual
+ * network. Fields that are not given keep their current value.
+ */
+public class SetTenantSchedule extends ApiHandler<Map<String, Object>> {
+
+    Logger log = LogManager.getLogger(SetTenantSchedule.class.getName());
+
+    @Override
+    public JSONRPC2Response process(final Map<String, Object> params) {
+        JSONRPC2Response resp = null;
+
+        try {
+            final Number tenantId = HandlerUtils.<Number>fetchField(
+                    TenantHandler.TENANT, params, true, null);
+            HandlerUtils.isValidTenantId(tenantId.intValue());
+
+            final TenantScheduler scheduler = OpenVirteXController
+                    .getInstance().getTenantScheduler();
+            final Budget current = scheduler.getBudget(tenantId.intValue());
+            final Number rate = HandlerUtils.<Number>fetchField(
+                    TenantHandler.RATE, params, false, current.getRate());
+            final Number burst = HandlerUtils.<Number>fetchField(
+                    TenantHandler.BURST, params, false, current.getBurst());
+            final Number weight = HandlerUtils.<Number>fetchField(
+                    TenantHandler.WEIGHT, params, false, current.getWeight());
+            final String policy = HandlerUtils.<String>fetchField(
+                    TenantHandler.POLICY, params, false, current.getPolicy()
+                            .name());
+            final Number sampleRate = HandlerUtils.<Number>fetchField(
+                    TenantHandler.SAMPLE_RATE, params, false,
+                    current.getSampleRate());
+
+            final Budget budget = new Budget(rate.longValue(),
+                    burst.longValue(), weight.intValue(),
+                    Policy.valueOf(policy.toUpperCase()),
+                    sampleRate.intValue());
+            scheduler.setBudget(tenantId.intValue(), budget);
+            this.log.info(
+                    "Set schedule of virtual network {} to {} packet-ins per second, burst {}, weight {}, policy {}",
+                    tenantId, budget.getRate(), budget.getBurst(),
+                    budget.getWeight(), budget.getPolicy());
+
+            final Map<String, Object> reply = budget.toMap();
+            reply.put(TenantHandler.TENANT, tenantId.intValue());
+            reply.put("queueLength", scheduler.getMaxQueue());
+            resp = new JSONRPC2Response(reply, 0);
+
+        } catch (final MissingRequiredField e) {
+            resp = new JSONRPC2Response(new JSONRPC2Error(
+                    JSONRPC2Error.INVALID_PARAMS.getCode(), this.cmdName()
+                            + ": Unable to set schedule : " + e.getMessage()),
+                    0);
+        } catch (final InvalidTenantIdException e) {
+            resp = new JSONRPC2Response(new JSONRPC2Error(
+                    JSONRPC2Error.INVALID_PARAMS.getCode(), this.cmdName()
+                            + ": Invalid tenant id : " + e.getMessage()), 0);
+        } catch (final ClassCastException | IllegalArgumentException e) {
+            resp = new JSONRPC2Response(new JSONRPC2Error(
+                    JSONRPC2Error.INVALID_PARAMS.getCode(), this.cmdName()
+                            + ": Invalid schedule : " + e.getMessage()), 0);
+        }
+        return resp;
+    }
+
+    @Override
+    public JSONRPC2ParamsType getType() {
+        return JSONRPC2ParamsType.OBJECT;
+    }
+
+}
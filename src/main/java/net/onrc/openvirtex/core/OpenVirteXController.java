@@ -26,13 +26,20 @@ import net.onrc.openvirtex.core.cmd.CmdLineSettings;
 import net.onrc.openvirtex.core.io.ClientChannelPipeline;
 import net.onrc.openvirtex.core.io.SwitchChannelPipeline;
 import net.onrc.openvirtex.db.DBManager;
+import net.onrc.openvirtex.db.DBWriter;
 import net.onrc.openvirtex.elements.datapath.OVXSwitch;
 import net.onrc.openvirtex.elements.link.OVXLinkField;
 import net.onrc.openvirtex.elements.network.OVXNetwork;
 import net.onrc.openvirtex.elements.network.PhysicalNetwork;
+import net.onrc.openvirtex.elements.network.TenantExecutor;
+import net.onrc.openvirtex.elements.network.TenantScheduler;
+import net.onrc.openvirtex.elements.network.TenantScheduler.Budget;
+import net.onrc.openvirtex.elements.network.TenantScheduler.Policy;
 import net.onrc.openvirtex.exceptions.NetworkMappingException;
 import net.onrc.openvirtex.util.BitSetIndex;
 import net.onrc.openvirtex.util.BitSetIndex.IndexType;
+import net.onrc.openvirtex.util.MetricsRegistry;
+import net.onrc.openvirtex.util.PacketTracer;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -63,6 +70,7 @@ public class OpenVirteXController implements Runnable {
     private String dbHost = null;
     private Integer dbPort = null;
     private Boolean dbClear = null;
+    private DBWriter.Mode dbDurability = null;
     Thread server;
 
     private final NioClientSocketChannelFactory clientSockets = new NioClientSocketChannelFactory(
@@ -82,23 +90,58 @@ public class OpenVirteXController implements Runnable {
 
     private Integer statsRefresh;
 
+    private final Integer statsMaxAge;
+
     private Integer nClientThreads;
 
     private Integer nServerThreads;
 
     private final Boolean useBDDP;
 
+    private final Boolean linearFlowTable;
+
+    private final Boolean lazyDecode;
+
+    private final Boolean unbatchedWrites;
+
+    private final Integer bufferDimension;
+
+    private final Integer bufferExpiry;
+
+    private final Integer bufferDataLength;
+
+    private final Integer barrierTimeout;
+
+    private final TenantExecutor tenantExecutor;
+    private final TenantScheduler tenantScheduler;
+    private final Integer fastProbeInterval;
+
     public OpenVirteXController(CmdLineSettings settings) {
         this.ofHost = settings.getOFHost();
         this.ofPort = settings.getOFPort();
         this.dbHost = settings.getDBHost();
         this.dbPort = settings.getDBPort();
         this.dbClear = settings.getDBClear();
+        this.dbDurability = settings.getDBDurability();
         this.maxVirtual = settings.getNumberOfVirtualNets();
         this.statsRefresh = settings.getStatsRefresh();
+        this.statsMaxAge = settings.getStatsMaxAge();
         this.nClientThreads = settings.getClientThreads();
         this.nServerThreads = settings.getServerThreads();
         this.useBDDP = settings.getUseBDDP();
+        this.linearFlowTable = settings.getLinearFlowTable();
+        this.lazyDecode = settings.getLazyDecode();
+        this.unbatchedWrites = settings.getUnbatchedWrites();
+        this.bufferDimension = settings.getBufferDimension();
+        this.bufferExpiry = settings.getBufferExpiry();
+        this.bufferDataLength = settings.getBufferDataLength();
+        this.barrierTimeout = settings.getBarrierTimeout();
+        this.tenantExecutor = new TenantExecutor(settings.getTenantThreads());
+        this.tenantScheduler = new TenantScheduler(settings.getTenantQueue(),
+                new Budget(settings.getTenantRate(), settings.getTenantBurst(),
+                        1, Policy.DROP, 1), this.tenantExecutor);
+        this.fastProbeInterval = settings.getFastProbeInterval();
+        PacketTracer.getInstance().setSampling(settings.getTraceSample());
         // by default, use Mac addresses to store vLinks informations
         //modify hujw
         //this.ovxLinkField = OVXLinkField.MAC_ADDRESS;
@@ -118,6 +161,7 @@ public class OpenVirteXController implements Runnable {
     public void run() {
         Runtime.getRuntime().addShutdownHook(new OpenVirtexShutdownHook(this));
         initVendorMessages();
+        MetricsRegistry.getInstance().register();
         PhysicalNetwork.getInstance().boot();
 
         this.startDatabase();
@@ -222,7 +266,8 @@ public class OpenVirteXController implements Runnable {
 
     private void startDatabase() {
         DBManager dbManager = DBManager.getInstance();
-        dbManager.init(this.dbHost, this.dbPort, this.dbClear);
+        dbManager.init(this.dbHost, this.dbPort, this.dbClear,
+                this.dbDurability);
     }
 
     private void startServer() {
@@ -250,6 +295,7 @@ public class OpenVirteXController implements Runnable {
         if (this.cfact != null) {
             this.cfact.releaseExternalResources();
         }
+        this.tenantExecutor.shutdown();
 
         this.log.info("Shutting down database connection");
         DBManager.getInstance().close();
@@ -278,6 +324,10 @@ public class OpenVirteXController implements Runnable {
         return this.statsRefresh;
     }
 
+    public Integer getStatsMaxAge() {
+        return this.statsMaxAge;
+    }
+
     public static BitSetIndex getTenantCounter() {
         if (OpenVirteXController.instance == null) {
             throw new RuntimeException(
@@ -297,4 +347,44 @@ public class OpenVirteXController implements Runnable {
         return this.useBDDP;
     }
 
+    public Boolean getLinearFlowTable() {
+        return this.linearFlowTable;
+    }
+
+    public Boolean getLazyDecode() {
+        return this.lazyDecode;
+    }
+
+    public Boolean getUnbatchedWrites() {
+        return this.unbatchedWrites;
+    }
+
+    public Integer getBufferDimension() {
+        return this.bufferDimension;
+    }
+
+    public Integer getBufferExpiry() {
+        return this.bufferExpiry;
+    }
+
+    public Integer getBufferDataLength() {
+        return this.bufferDataLength;
+    }
+
+    public Integer getBarrierTimeout() {
+        return this.barrierTimeout;
+    }
+
+    public TenantExecutor getTenantExecutor() {
+        return this.tenantExecutor;
+    }
+
+    public TenantScheduler getTenantScheduler() {
+        return this.tenantScheduler;
+    }
+
+    public Integer getFastProbeInterval() {
+        return this.fastProbeInterval;
+    }
+
 }
@@ -15,6 +15,7 @@
  ******************************************************************************/
 package net.onrc.openvirtex.core.cmd;
 
+import net.onrc.openvirtex.db.DBWriter;
 import net.onrc.openvirtex.elements.link.OVXLinkField;
 import net.onrc.openvirtex.util.OVXUtil;
 
@@ -51,10 +52,19 @@ public class CmdLineSettings {
      * Default value if database is cleared at start.
      */
     public static final Boolean DEFAULT_DB_CLEAR = false;
+    /**
+     * Default durability mode of database writes.
+     */
+    public static final String DEFAULT_DB_DURABILITY = "ASYNC";
     /**
      * Default value (in seconds) the switch statistics are queried.
      */
     public static final Integer DEFAULT_STATS_REFRESH = 30;
+    /**
+     * Default age (in milliseconds) of switch statistics served to virtual
+     * switches, 0 for any age.
+     */
+    public static final Integer DEFAULT_STATS_MAX_AGE = 0;
     /**
      * Default number of threads to handle switch connection events.
      */
@@ -71,6 +81,58 @@ public class CmdLineSettings {
      * Default value of link field (MAC_ADDRESS  or VLAN).
      */
     public static final String DEFAULT_LINKFIELD = "MAC_ADDRESS";
+    /**
+     * Default value if virtual flow tables are scanned linearly.
+     */
+    public static final Boolean DEFAULT_LINEAR_FLOWTABLE = false;
+    /**
+     * Default value if message bodies are decoded on first access.
+     */
+    public static final Boolean DEFAULT_LAZY_DECODE = false;
+    /**
+     * Default value if every outbound message is written on its own.
+     */
+    public static final Boolean DEFAULT_UNBATCHED_WRITES = false;
+    /**
+     * Default number of packet_ins buffered per virtual switch.
+     */
+    public static final Integer DEFAULT_BUFFER_DIMENSION = 4096;
+    /**
+     * Default time (in milliseconds) buffered packet_ins can be referred to.
+     */
+    public static final Integer DEFAULT_BUFFER_EXPIRY = 0;
+    /**
+     * Default number of bytes kept of buffered packet_ins.
+     */
+    public static final Integer DEFAULT_BUFFER_DATA_LENGTH = 0;
+    /**
+     * Default time (in milliseconds) to wait for barrier replies along a path.
+     */
+    public static final Integer DEFAULT_BARRIER_TIMEOUT = 1000;
+    /**
+     * Default number of threads handling port status changes per tenant.
+     */
+    public static final Integer DEFAULT_TENANT_THREADS = 4;
+    /**
+     * Default time (in milliseconds) between probes of ports with a link.
+     */
+    public static final Integer DEFAULT_FAST_PROBE_INTERVAL = 0;
+    /**
+     * Default number of data path messages per traced message.
+     */
+    public static final Integer DEFAULT_TRACE_SAMPLE = 0;
+    /**
+     * Default number of messages queued per tenant by the scheduler.
+     */
+    public static final Integer DEFAULT_TENANT_QUEUE = 0;
+    /**
+     * Default number of packet-ins admitted per second per tenant.
+     */
+    public static final Integer DEFAULT_TENANT_RATE = 0;
+    /**
+     * Default number of packet-ins admitted at once per tenant.
+     */
+    public static final Integer DEFAULT_TENANT_BURST = 0;
 
     @Option(name = "-p", aliases = "--of-port", metaVar = "INT", usage = "OpenVirteX OpenFlow listen port")
     private Integer ofPort = CmdLineSettings.DEFAULT_OF_PORT;
@@ -90,9 +152,15 @@ public class CmdLineSettings {
     @Option(name = "--db-clear", usage = "Clear database")
     private Boolean dbClear = CmdLineSettings.DEFAULT_DB_CLEAR;
 
+    @Option(name = "--db-durability", metaVar = "String", usage = "Durability of database writes ('SYNC', 'ASYNC' or 'BATCHED')")
+    private String dbDurability = CmdLineSettings.DEFAULT_DB_DURABILITY;
+
     @Option(name = "--stats-refresh", usage = "Sets what interval to poll statistics with")
     private Integer statsRefresh = CmdLineSettings.DEFAULT_STATS_REFRESH;
 
+    @Option(name = "--stats-max-age", metaVar = "INT", usage = "Time in milliseconds after which flow statistics requested by tenants are polled again instead of served from the last poll; 0 to always serve the last poll")
+    private Integer statsMaxAge = CmdLineSettings.DEFAULT_STATS_MAX_AGE;
+
     @Option(name = "--ct", aliases = "--client-threads", metaVar = "INT", usage = "Number of threads handles controller connections")
     private Integer clientThreads = CmdLineSettings.DEFAULT_CLIENT_THREADS;
 
@@ -105,6 +173,45 @@ public class CmdLineSettings {
     @Option(name = "-lf", aliases = "--link-field", metaVar = "String", usage = "Link field (currently support 'MAC_ADDRESS' or 'VLAN'")
     private String linkField = CmdLineSettings.DEFAULT_LINKFIELD;
 
+    @Option(name = "--linear-flowtable", usage = "Scan virtual flow tables linearly instead of indexing them by match")
+    private Boolean linearFlowTable = CmdLineSettings.DEFAULT_LINEAR_FLOWTABLE;
+
+    @Option(name = "--lazy-decode", usage = "Decode the body of echo and vendor messages only when accessed, and forward them as received otherwise")
+    private Boolean lazyDecode = CmdLineSettings.DEFAULT_LAZY_DECODE;
+
+    @Option(name = "--unbatched-writes", usage = "Write every OpenFlow message on its own instead of together with the messages sent while the connection is busy")
+    private Boolean unbatchedWrites = CmdLineSettings.DEFAULT_UNBATCHED_WRITES;
+
+    @Option(name = "--buffer-dimension", metaVar = "INT", usage = "Number of packet_ins each virtual switch buffers for its controller")
+    private Integer bufferDimension = CmdLineSettings.DEFAULT_BUFFER_DIMENSION;
+
+    @Option(name = "--buffer-expiry", metaVar = "INT", usage = "Time in milliseconds buffered packet_ins can be referred to by the controller; 0 to keep them until overwritten")
+    private Integer bufferExpiry = CmdLineSettings.DEFAULT_BUFFER_EXPIRY;
+
+    @Option(name = "--buffer-data-length", metaVar = "INT", usage = "Number of bytes kept of buffered packet_ins also buffered by the physical switch; 0 to keep whole packets. Packets forwarded over virtual links from a truncated buffer are truncated too")
+    private Integer bufferDataLength = CmdLineSettings.DEFAULT_BUFFER_DATA_LENGTH;
+
+    @Option(name = "--barrier-timeout", metaVar = "INT", usage = "Time in milliseconds the first flow_mod of a virtual link or big switch route waits for the rest of the path to be confirmed by barrier replies; 0 to not wait")
+    private Integer barrierTimeout = CmdLineSettings.DEFAULT_BARRIER_TIMEOUT;
+
+    @Option(name = "--tenant-threads", metaVar = "INT", usage = "Number of threads recovering the virtual links and routes of tenants in parallel on port status changes, and handling queued tenant messages; 0 to do both on the switch I/O threads")
+    private Integer tenantThreads = CmdLineSettings.DEFAULT_TENANT_THREADS;
+
+    @Option(name = "--fast-probe-interval", metaVar = "INT", usage = "Time in milliseconds between discovery probes of ports with a link, down to tens of milliseconds, so silent link failures are detected and failed over quickly; 0 to probe them with the other ports every second")
+    private Integer fastProbeInterval = CmdLineSettings.DEFAULT_FAST_PROBE_INTERVAL;
+
+    @Option(name = "--trace-sample", metaVar = "INT", usage = "Trace how one in every INT packet_ins, packet_outs and flow_mods is virtualized, for retrieval through the monitoring API; 0 to disable tracing")
+    private Integer traceSample = CmdLineSettings.DEFAULT_TRACE_SAMPLE;
+
+    @Option(name = "--tenant-queue", metaVar = "INT", usage = "Number of packet_ins and controller messages queued per tenant, shared fairly among tenants by weight; 0 to handle messages as they are received")
+    private Integer tenantQueue = CmdLineSettings.DEFAULT_TENANT_QUEUE;
+
+    @Option(name = "--tenant-rate", metaVar = "INT", usage = "Number of packet_ins admitted per second per tenant when queuing; 0 for no limit")
+    private Integer tenantRate = CmdLineSettings.DEFAULT_TENANT_RATE;
+
+    @Option(name = "--tenant-burst", metaVar = "INT", usage = "Number of packet_ins admitted at once per tenant when limited; 0 for the rate")
+    private Integer tenantBurst = CmdLineSettings.DEFAULT_TENANT_BURST;
+
     /**
      * Gets the host OVX is running on.
      *
@@ -161,6 +268,20 @@ public class CmdLineSettings {
         return this.dbClear;
     }
 
+    /**
+     * Gets the durability mode of database writes. Unknown values fall back
+     * to the default.
+     *
+     * @return the durability mode
+     */
+    public DBWriter.Mode getDBDurability() {
+        try {
+            return DBWriter.Mode.valueOf(this.dbDurability.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return DBWriter.Mode.valueOf(CmdLineSettings.DEFAULT_DB_DURABILITY);
+        }
+    }
+
     /**
      * Gets the value (in seconds) the switch statistics are queried.
      *
@@ -170,6 +291,16 @@ public class CmdLineSettings {
         return this.statsRefresh;
     }
 
+    /**
+     * Gets the age after which switch statistics are polled on demand.
+     *
+     * @return the age in milliseconds, 0 if statistics are never polled on
+     *         demand
+     */
+    public Integer getStatsMaxAge() {
+        return this.statsMaxAge;
+    }
+
     /**
      * Gets the number of threads used to handle controller connection events.
      *
@@ -209,4 +340,121 @@ public class CmdLineSettings {
     	return OVXLinkField.MAC_ADDRESS; 
     }
 
+    /**
+     * Checks if virtual flow tables are scanned linearly.
+     *
+     * @return true if the linear flow table is used, false otherwise
+     */
+    public Boolean getLinearFlowTable() {
+        return this.linearFlowTable;
+    }
+
+    /**
+     * Checks if message bodies are decoded on first access.
+     *
+     * @return true if lazy decoding is used, false otherwise
+     */
+    public Boolean getLazyDecode() {
+        return this.lazyDecode;
+    }
+
+    /**
+     * Checks if every outbound message is written on its own.
+     *
+     * @return true if batching is disabled, false otherwise
+     */
+    public Boolean getUnbatchedWrites() {
+        return this.unbatchedWrites;
+    }
+
+    /**
+     * Gets the number of packet_ins buffered per virtual switch.
+     *
+     * @return the buffer dimension
+     */
+    public Integer getBufferDimension() {
+        return this.bufferDimension;
+    }
+
+    /**
+     * Gets the time buffered packet_ins can be referred to.
+     *
+     * @return the expiry in milliseconds, 0 if packet_ins do not expire
+     */
+    public Integer getBufferExpiry() {
+        return this.bufferExpiry;
+    }
+
+    /**
+     * Gets the number of bytes kept of buffered packet_ins.
+     *
+     * @return the data length, 0 if whole packets are kept
+     */
+    public Integer getBufferDataLength() {
+        return this.bufferDataLength;
+    }
+
+    /**
+     * Gets the time to wait for barrier replies along a path.
+     *
+     * @return the timeout in milliseconds, 0 if barriers are not used
+     */
+    public Integer getBarrierTimeout() {
+        return this.barrierTimeout;
+    }
+
+    /**
+     * Gets the number of threads handling port status changes per tenant.
+     *
+     * @return the number of tenant threads, 0 if handled by I/O threads
+     */
+    public Integer getTenantThreads() {
+        return this.tenantThreads;
+    }
+
+    /**
+     * Gets the time between probes of ports with a link.
+     *
+     * @return the interval in milliseconds, 0 if fast probing is disabled
+     */
+    public Integer getFastProbeInterval() {
+        return this.fastProbeInterval;
+    }
+
+    /**
+     * Gets the number of data path messages per traced message.
+     *
+     * @return the sample rate, 0 if tracing is disabled
+     */
+    public Integer getTraceSample() {
+        return this.traceSample;
+    }
+
+    /**
+     * Gets the number of messages queued per tenant.
+     *
+     * @return the queue length
+     */
+    public Integer getTenantQueue() {
+        return this.tenantQueue;
+    }
+
+    /**
+     * Gets the number of packet-ins admitted per second per tenant.
+     *
+     * @return the rate
+     */
+    public Integer getTenantRate() {
+        return this.tenantRate;
+    }
+
+    /**
+     * Gets the number of packet-ins admitted at once per tenant.
+     *
+     * @return the burst
+     */
+    public Integer getTenantBurst() {
+        return this.tenantBurst;
+    }
+
 }
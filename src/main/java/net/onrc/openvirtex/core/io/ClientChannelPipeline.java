@@ -58,8 +58,11 @@ public class ClientChannelPipeline extends OpenflowChannelPipeline {
         final ChannelPipeline pipeline = Channels.pipeline();
         pipeline.addLast("reconnect", new ReconnectHandler(this.sw,
                 this.bootstrap, this.timer, 15, this.cg));
-        pipeline.addLast("ofmessagedecoder", new OVXMessageDecoder());
-        pipeline.addLast("ofmessageencoder", new OVXMessageEncoder());
+        pipeline.addLast("ofmessagedecoder", new OVXMessageDecoder(
+                this.ctrl.getLazyDecode()));
+        pipeline.addLast("ofmessageencoder", new OVXMessageEncoder(
+                this.ctrl.getUnbatchedWrites() ? 0
+                        : OVXMessageEncoder.DEFAULT_MAX_BATCH_SIZE));
         pipeline.addLast("idle", this.idleHandler);
         pipeline.addLast("timeout", this.readTimeoutHandler);
         pipeline.addLast("handshaketimeout", new HandshakeTimeoutHandler(
@@ -24,6 +24,7 @@ import java.util.concurrent.RejectedExecutionException;
 import net.onrc.openvirtex.core.OpenVirteXController;
 import net.onrc.openvirtex.elements.OVXMap;
 import net.onrc.openvirtex.elements.datapath.OVXSwitch;
+import net.onrc.openvirtex.elements.network.TenantScheduler;
 import net.onrc.openvirtex.exceptions.ControllerStateException;
 import net.onrc.openvirtex.exceptions.HandshakeTimeoutException;
 import net.onrc.openvirtex.exceptions.SwitchStateException;
@@ -40,7 +41,6 @@ import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.handler.timeout.IdleStateEvent;
 import org.jboss.netty.handler.timeout.ReadTimeoutException;
-import org.openflow.protocol.OFBarrierReply;
 import org.openflow.protocol.OFBarrierRequest;
 import org.openflow.protocol.OFEchoReply;
 import org.openflow.protocol.OFEchoRequest;
@@ -149,7 +149,7 @@ public class ControllerChannelHandler extends OFChannelHandler {
             @Override
             void processOFError(final ControllerChannelHandler h,
                     final OFError m) throws IOException {
-                h.sw.handleIO(m, h.channel);
+                h.handleIO(m);
             }
 
             @Override
@@ -157,7 +157,7 @@ public class ControllerChannelHandler extends OFChannelHandler {
                     final OFVendor m) {
                 if (m.getVendor() == OFNiciraVendorData.NX_VENDOR_ID
                         && m.getVendorData() instanceof OFRoleRequestVendorData) {
-                    h.sw.handleRoleIO(m, h.channel);
+                    h.handleRoleIO(m);
                 } else {
                     this.unhandledMessageReceived(h, m);
                 }
@@ -181,11 +181,6 @@ public class ControllerChannelHandler extends OFChannelHandler {
                     this.processOFFeaturesRequest(h, (OFFeaturesRequest) m);
                     break;
                 case BARRIER_REQUEST:
-                    // TODO: actually implement barrier contract
-                    final OFBarrierReply breply = new OFBarrierReply();
-                    breply.setXid(m.getXid());
-                    h.channel.write(Collections.singletonList(breply));
-                    break;
                 case SET_CONFIG:
                 case ERROR:
                 case PACKET_OUT:
@@ -194,7 +189,7 @@ public class ControllerChannelHandler extends OFChannelHandler {
                 case STATS_REQUEST:
                 case FLOW_MOD:
                 case GET_CONFIG_REQUEST:
-                    h.sw.handleIO(m, h.channel);
+                    h.handleIO(m);
                     break;
                 case VENDOR:
                     processOFVendor(h, (OFVendor) m);
@@ -489,6 +484,51 @@ public class ControllerChannelHandler extends OFChannelHandler {
         this.sw = sw;
     }
 
+    /**
+     * Hands a message to the virtual switch, through the scheduler of its
+     * tenant so the messages of controllers of other tenants are not held
+     * up behind it.
+     *
+     * @param m the message
+     */
+    private void handleIO(final OFMessage m) {
+        final TenantScheduler scheduler = this.ctrl.getTenantScheduler();
+        if (!scheduler.isEnabled()) {
+            this.sw.handleIO(m, this.channel);
+            return;
+        }
+        final OVXSwitch vsw = (OVXSwitch) this.sw;
+        final Channel ch = this.channel;
+        scheduler.submit(vsw.getTenantId(), ch, new Runnable() {
+            @Override
+            public void run() {
+                vsw.handleIO(m, ch);
+            }
+        });
+    }
+
+    /**
+     * Hands a role request to the virtual switch, after the messages of
+     * the tenant submitted before it.
+     *
+     * @param m the role request
+     */
+    private void handleRoleIO(final OFVendor m) {
+        final TenantScheduler scheduler = this.ctrl.getTenantScheduler();
+        if (!scheduler.isEnabled()) {
+            this.sw.handleRoleIO(m, this.channel);
+            return;
+        }
+        final OVXSwitch vsw = (OVXSwitch) this.sw;
+        final Channel ch = this.channel;
+        scheduler.submit(vsw.getTenantId(), ch, new Runnable() {
+            @Override
+            public void run() {
+                vsw.handleRoleIO(m, ch);
+            }
+        });
+    }
+
     @Override
     public boolean isHandShakeComplete() {
         return this.state.isHandShakeComplete();
@@ -18,22 +18,68 @@ package net.onrc.openvirtex.core.io;
 import java.util.List;
 
 import net.onrc.openvirtex.messages.OVXMessageFactory;
+import net.onrc.openvirtex.util.LatencyHistogram;
+import net.onrc.openvirtex.util.Metrics;
+import net.onrc.openvirtex.util.MetricsRegistry;
+import net.onrc.openvirtex.util.StripedCounter;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.handler.codec.frame.FrameDecoder;
 import org.openflow.protocol.OFMessage;
 
 /**
  * Decode an openflow message from a netty Channel.
+ * <p>
+ * In lazy mode, the body of messages that support it is only decoded on
+ * first access, and messages that are forwarded without being accessed are
+ * written out as received. Such messages keep a slice of the buffer they
+ * were read from, so they are read from the buffer of a single read when
+ * possible, and from a copy of the complete messages otherwise.
  *
  * @author alshabib
  */
 public class OVXMessageDecoder extends FrameDecoder {
 
+    private static final Metrics METRICS = MetricsRegistry.getInstance()
+            .getGroup("io");
+    private static final StripedCounter BYTES_IN = OVXMessageDecoder.METRICS
+            .getCounter("bytesIn");
+    private static final StripedCounter MESSAGES_IN = OVXMessageDecoder.METRICS
+            .getCounter("messagesIn");
+    private static final LatencyHistogram DECODE_TIME = OVXMessageDecoder.METRICS
+            .getHistogram("decodeTime");
+
     OVXMessageFactory factory = OVXMessageFactory.getInstance();
 
+    private final boolean lazy;
+    // Buffer of the read being decoded; the frame decoder never writes to it
+    private ChannelBuffer input;
+
+    public OVXMessageDecoder() {
+        this(false);
+    }
+
+    public OVXMessageDecoder(final boolean lazy) {
+        this.lazy = lazy;
+    }
+
+    @Override
+    public void messageReceived(final ChannelHandlerContext ctx,
+            final MessageEvent e) throws Exception {
+        if (e.getMessage() instanceof ChannelBuffer) {
+            this.input = (ChannelBuffer) e.getMessage();
+            OVXMessageDecoder.BYTES_IN.add(this.input.readableBytes());
+        }
+        try {
+            super.messageReceived(ctx, e);
+        } finally {
+            this.input = null;
+        }
+    }
+
     @Override
     protected Object decode(final ChannelHandlerContext ctx,
             final Channel channel, final ChannelBuffer buffer) throws Exception {
@@ -41,9 +87,58 @@ public class OVXMessageDecoder extends FrameDecoder {
             // if the channel is closed, there will be nothing to read.
             return null;
         }
+        final long start = System.nanoTime();
+        final List<OFMessage> messages = this.decodeMessages(buffer);
+        if (messages != null) {
+            OVXMessageDecoder.MESSAGES_IN.add(messages.size());
+            OVXMessageDecoder.DECODE_TIME.record(System.nanoTime() - start);
+        }
+        return messages;
+    }
 
-        final List<OFMessage> message = this.factory.parseMessage(buffer);
+    private List<OFMessage> decodeMessages(final ChannelBuffer buffer)
+            throws Exception {
+        if (!this.lazy) {
+            return this.factory.parseMessage(buffer);
+        }
+        if (buffer == this.input) {
+            return this.factory.parseMessage(buffer, true);
+        }
+        // The cumulation buffer is compacted when more data arrives, so
+        // messages must not keep slices of it
+        final int length = OVXMessageDecoder.completeLength(buffer);
+        if (length < 0) {
+            return this.factory.parseMessage(buffer);
+        }
+        if (length == 0) {
+            return null;
+        }
+        final List<OFMessage> message = this.factory.parseMessage(
+                buffer.readBytes(length), true);
         return message;
     }
 
+    /**
+     * Gets the length of the complete messages at the start of the buffer.
+     *
+     * @param buffer the buffer
+     * @return the length in bytes, or -1 if a message header is malformed
+     */
+    private static int completeLength(final ChannelBuffer buffer) {
+        final int readable = buffer.readableBytes();
+        int length = 0;
+        while (length + OFMessage.MINIMUM_LENGTH <= readable) {
+            final int msgLength = buffer.getUnsignedShort(buffer.readerIndex()
+                    + length + 2);
+            if (msgLength < OFMessage.MINIMUM_LENGTH) {
+                return -1;
+            }
+            if (length + msgLength > readable) {
+                break;
+            }
+            length += msgLength;
+        }
+        return length;
+    }
+
 }
@@ -15,44 +15,286 @@
  ******************************************************************************/
 package net.onrc.openvirtex.core.io;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.onrc.openvirtex.util.Metrics;
+import net.onrc.openvirtex.util.MetricsRegistry;
+import net.onrc.openvirtex.util.StripedCounter;
 
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferFactory;
 import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.buffer.DirectChannelBufferFactory;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
-import org.jboss.netty.handler.codec.oneone.OneToOneEncoder;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
 import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFType;
 
 /**
  * encode an openflow message into a netty Channel.
+ * <p>
+ * Messages are encoded as soon as they are written, so callers may reuse
+ * them, into direct buffers sliced from preallocated chunks. When batching
+ * is enabled, a message written while no write is in progress on the
+ * channel is written out at once. The messages written while a write is in
+ * progress are held back and written out together once it completes, from
+ * the I/O thread of the channel, or earlier when they reach the maximum
+ * batch size, when a barrier or echo message is written, or when
+ * {@link #flush(Channel)} is called. Batching thus only delays messages
+ * while the channel is busy anyway.
  *
  * @author alshabib
  */
-public class OVXMessageEncoder extends OneToOneEncoder {
+public class OVXMessageEncoder extends SimpleChannelDownstreamHandler {
+
+    /**
+     * Default number of bytes after which a batch is written out.
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 16384;
+
+    private static final ChannelBufferFactory BUFFERS = DirectChannelBufferFactory
+            .getInstance();
+    private static final Metrics METRICS = MetricsRegistry.getInstance()
+            .getGroup("io");
+    private static final StripedCounter BYTES_OUT = OVXMessageEncoder.METRICS
+            .getCounter("bytesOut");
+    private static final StripedCounter MESSAGES_OUT = OVXMessageEncoder.METRICS
+            .getCounter("messagesOut");
+    private static final StripedCounter BATCHES_OUT = OVXMessageEncoder.METRICS
+            .getCounter("batchesOut");
+
+    /**
+     * A write held back until the batch it belongs to is written out.
+     */
+    private static final class Pending {
+        private final ChannelBuffer buf;
+        private final MessageEvent raw;
+        private final boolean urgent;
+
+        private Pending(final ChannelBuffer buf, final MessageEvent raw,
+                final boolean urgent) {
+            this.buf = buf;
+            this.raw = raw;
+            this.urgent = urgent;
+        }
+    }
+
+    private final int maxBatchSize;
+
+    // Writes held back, in the order they were requested. Writers never
+    // wait for each other: whoever holds the writing lock writes out the
+    // batches, and everyone checks again after releasing it. The I/O thread
+    // notifies write completions while holding the channel's write lock, so
+    // it must not block on the encoder.
+    private final Queue<Pending> queue = new ConcurrentLinkedQueue<Pending>();
+    private final ReentrantLock writing = new ReentrantLock();
+    private final AtomicInteger queuedBytes = new AtomicInteger();
+    private final AtomicInteger queuedUrgent = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile boolean flushRequested;
+    private volatile ChannelHandlerContext ctx;
+
+    /**
+     * Creates an encoder that writes every message as soon as it is
+     * written.
+     */
+    public OVXMessageEncoder() {
+        this(0);
+    }
+
+    /**
+     * Creates an encoder that batches the messages written while the
+     * channel is busy.
+     *
+     * @param maxBatchSize the number of bytes after which a batch is written
+     *            out, or 0 to disable batching
+     */
+    public OVXMessageEncoder(final int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Writes out the messages that are waiting in the encoder of a channel.
+     *
+     * @param channel the channel
+     */
+    public static void flush(final Channel channel) {
+        final OVXMessageEncoder encoder = channel.getPipeline().get(
+                OVXMessageEncoder.class);
+        if (encoder != null) {
+            encoder.flush();
+        }
+    }
 
     @Override
-    protected Object encode(final ChannelHandlerContext ctx,
-            final Channel channel, final Object msg) throws Exception {
-        if (!(msg instanceof List)) {
-            return msg;
+    public void writeRequested(final ChannelHandlerContext ctx,
+            final MessageEvent e) throws Exception {
+        if (!(e.getMessage() instanceof List)) {
+            if (this.maxBatchSize <= 0) {
+                ctx.sendDownstream(e);
+                return;
+            }
+            // Keep the order of raw writes with respect to held back ones
+            this.ctx = ctx;
+            this.queue.add(new Pending(null, e, true));
+            this.queuedUrgent.incrementAndGet();
+            this.writeOut();
+            return;
         }
 
         @SuppressWarnings("unchecked")
-        final List<OFMessage> msglist = (List<OFMessage>) msg;
+        final List<OFMessage> msglist = (List<OFMessage>) e.getMessage();
         int size = 0;
+        boolean urgent = false;
         for (final OFMessage ofm : msglist) {
             size += ofm.getLengthU();
+            urgent |= OVXMessageEncoder.isUrgent(ofm.getType());
         }
+        OVXMessageEncoder.MESSAGES_OUT.add(msglist.size());
+        OVXMessageEncoder.BYTES_OUT.add(size);
 
-        final ChannelBuffer buf = ChannelBuffers.buffer(size);
-
+        final ChannelBuffer buf = OVXMessageEncoder.BUFFERS.getBuffer(size);
         for (final OFMessage ofm : msglist) {
-
             ofm.writeTo(buf);
+        }
+        if (this.maxBatchSize <= 0) {
+            Channels.write(ctx, e.getFuture(), buf, e.getRemoteAddress());
+            return;
+        }
 
+        this.ctx = ctx;
+        this.queue.add(new Pending(buf, e, urgent));
+        if (urgent) {
+            this.queuedUrgent.incrementAndGet();
         }
-        return buf;
+        this.queuedBytes.addAndGet(size);
+        this.writeOut();
+    }
+
+    /**
+     * Writes out the messages that are held back, if any.
+     */
+    public void flush() {
+        if (this.maxBatchSize <= 0) {
+            return;
+        }
+        this.flushRequested = true;
+        this.writeOut();
+    }
+
+    /**
+     * Writes out batches for as long as the held back messages should not
+     * wait any longer, unless another thread is already doing so.
+     */
+    private void writeOut() {
+        while (this.mustWrite() && this.writing.tryLock()) {
+            try {
+                while (this.mustWrite()) {
+                    this.writeBatch();
+                }
+            } finally {
+                this.writing.unlock();
+            }
+        }
+    }
+
+    private boolean mustWrite() {
+        return !this.queue.isEmpty()
+                && (this.inFlight.get() == 0 || this.flushRequested
+                        || this.queuedUrgent.get() > 0 || this.queuedBytes
+                        .get() >= this.maxBatchSize);
+    }
+
+    /**
+     * Writes out the held back messages up to the maximum batch size, or up
+     * to the next raw write. Called while holding the writing lock.
+     */
+    private void writeBatch() {
+        final List<ChannelBuffer> bufs = new ArrayList<ChannelBuffer>();
+        final List<ChannelFuture> futures = new ArrayList<ChannelFuture>();
+        int size = 0;
+        Pending p;
+        while (size < this.maxBatchSize && (p = this.queue.peek()) != null) {
+            if (p.raw != null && p.buf == null) {
+                if (bufs.isEmpty()) {
+                    this.queue.poll();
+                    this.queuedUrgent.decrementAndGet();
+                    this.ctx.sendDownstream(p.raw);
+                }
+                break;
+            }
+            this.queue.poll();
+            if (p.urgent) {
+                this.queuedUrgent.decrementAndGet();
+            }
+            this.queuedBytes.addAndGet(-p.buf.readableBytes());
+            size += p.buf.readableBytes();
+            bufs.add(p.buf);
+            futures.add(p.raw.getFuture());
+        }
+        if (this.queue.isEmpty()) {
+            this.flushRequested = false;
+        }
+        if (bufs.isEmpty()) {
+            return;
+        }
+
+        OVXMessageEncoder.BATCHES_OUT.increment();
+        this.inFlight.incrementAndGet();
+        final ChannelFuture future = Channels.future(this.ctx.getChannel());
+        future.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(final ChannelFuture f) {
+                // Runs on the I/O thread: write out what was held back
+                // meanwhile before notifying the batched writes
+                OVXMessageEncoder.this.inFlight.decrementAndGet();
+                OVXMessageEncoder.this.writeOut();
+                for (final ChannelFuture pending : futures) {
+                    if (f.isSuccess()) {
+                        pending.setSuccess();
+                    } else {
+                        pending.setFailure(f.getCause());
+                    }
+                }
+            }
+        });
+        Channels.write(this.ctx, future, ChannelBuffers.wrappedBuffer(bufs
+                .toArray(new ChannelBuffer[bufs.size()])));
+    }
+
+    @Override
+    public void closeRequested(final ChannelHandlerContext ctx,
+            final ChannelStateEvent e) throws Exception {
+        this.flush();
+        super.closeRequested(ctx, e);
+    }
+
+    @Override
+    public void disconnectRequested(final ChannelHandlerContext ctx,
+            final ChannelStateEvent e) throws Exception {
+        this.flush();
+        super.disconnectRequested(ctx, e);
+    }
+
+    /**
+     * Checks if messages of the given type should be written out without
+     * waiting for others. Barriers mark the end of a burst, and echoes are
+     * used to measure latency.
+     */
+    private static boolean isUrgent(final OFType type) {
+        return type == OFType.BARRIER_REQUEST || type == OFType.BARRIER_REPLY
+                || type == OFType.ECHO_REQUEST || type == OFType.ECHO_REPLY;
     }
 
 }
@@ -31,8 +31,10 @@ import java.util.concurrent.RejectedExecutionException;
 import net.onrc.openvirtex.core.OpenVirteXController;
 import net.onrc.openvirtex.elements.datapath.PhysicalSwitch;
 import net.onrc.openvirtex.elements.network.PhysicalNetwork;
+import net.onrc.openvirtex.elements.network.TenantScheduler;
 import net.onrc.openvirtex.exceptions.HandshakeTimeoutException;
 import net.onrc.openvirtex.exceptions.SwitchStateException;
+import net.onrc.openvirtex.messages.OVXPacketIn;
 import net.onrc.openvirtex.messages.OVXSetConfig;
 import net.onrc.openvirtex.messages.statistics.OVXDescriptionStatistics;
 import net.onrc.openvirtex.packet.OVXLLDP;
@@ -41,6 +43,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.Channels;
@@ -260,7 +263,6 @@ public class SwitchChannelHandler extends OFChannelHandler {
                 case ECHO_REQUEST:
                     this.processOFEchoRequest(h, (OFEchoRequest) m);
                     break;
-                case BARRIER_REPLY:
                 case ECHO_REPLY:
                     // do nothing but thank the switch
                     break;
@@ -271,16 +273,19 @@ public class SwitchChannelHandler extends OFChannelHandler {
                     h.featuresReply = (OFFeaturesReply) m;
                     h.sw.setFeaturesReply(h.featuresReply);
                     break;
+                case BARRIER_REPLY:
                 case ERROR:
                 case FLOW_REMOVED:
                 case GET_CONFIG_REPLY:
-                case PACKET_IN:
                 case PORT_STATUS:
                 case QUEUE_GET_CONFIG_REPLY:
                 case STATS_REPLY:
                 case VENDOR:
                     h.sw.handleIO(m, h.channel);
                     break;
+                case PACKET_IN:
+                    h.handlePacketIn(m);
+                    break;
                     // The following messages are sent to switches. The controller
                     // should never receive them
                 case SET_CONFIG:
@@ -680,6 +685,32 @@ public class SwitchChannelHandler extends OFChannelHandler {
         this.pendingPortStatusMsg = new ArrayList<OFPortStatus>();
     }
 
+    /**
+     * Hands a packet-in to the physical switch, through the scheduler of
+     * its tenant if the tenant is known from the port or MAC address of the
+     * packet.
+     *
+     * @param m the packet-in
+     */
+    private void handlePacketIn(final OFMessage m) {
+        final TenantScheduler scheduler = this.ctrl.getTenantScheduler();
+        final PhysicalSwitch psw = (PhysicalSwitch) this.sw;
+        final Integer tenantId = scheduler.isEnabled()
+                && m instanceof OVXPacketIn ? ((OVXPacketIn) m)
+                .lookupTenantId(psw) : null;
+        if (tenantId == null) {
+            psw.handleIO(m, this.channel);
+            return;
+        }
+        final Channel ch = this.channel;
+        scheduler.submit(tenantId, null, new Runnable() {
+            @Override
+            public void run() {
+                psw.handleIO(m, ch);
+            }
+        });
+    }
+
     @Override
     public boolean isHandShakeComplete() {
         return this.state.isHandShakeComplete();
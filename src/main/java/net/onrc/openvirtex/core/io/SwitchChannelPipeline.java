@@ -47,8 +47,11 @@ public class SwitchChannelPipeline extends OpenflowChannelPipeline {
         final SwitchChannelHandler handler = new SwitchChannelHandler(this.ctrl);
 
         final ChannelPipeline pipeline = Channels.pipeline();
-        pipeline.addLast("ofmessagedecoder", new OVXMessageDecoder());
-        pipeline.addLast("ofmessageencoder", new OVXMessageEncoder());
+        pipeline.addLast("ofmessagedecoder", new OVXMessageDecoder(
+                this.ctrl.getLazyDecode()));
+        pipeline.addLast("ofmessageencoder", new OVXMessageEncoder(
+                this.ctrl.getUnbatchedWrites() ? 0
+                        : OVXMessageEncoder.DEFAULT_MAX_BATCH_SIZE));
         pipeline.addLast("idle", this.idleHandler);
         pipeline.addLast("timeout", this.readTimeoutHandler);
         pipeline.addLast("handshaketimeout", new HandshakeTimeoutHandler(
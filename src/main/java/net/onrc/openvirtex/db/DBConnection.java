@@ -15,8 +15,37 @@
  ******************************************************************************/
 package net.onrc.openvirtex.db;
 
+import com.mongodb.DBObject;
+
 public interface DBConnection {
     public void connect(String host, Integer port);
 
     public void disconnect();
+
+    /**
+     * Inserts a document into the given collection.
+     *
+     * @param coll the collection name
+     * @param doc the document
+     */
+    public void insert(String coll, DBObject doc);
+
+    /**
+     * Applies an update to the first document matching the query.
+     *
+     * @param coll the collection name
+     * @param query the query selecting the document
+     * @param update the update operators
+     * @param upsert create the document if none matches
+     */
+    public void update(String coll, DBObject query, DBObject update,
+            boolean upsert);
+
+    /**
+     * Removes all documents matching the query.
+     *
+     * @param coll the collection name
+     * @param query the query selecting the documents
+     */
+    public void remove(String coll, DBObject query);
 }
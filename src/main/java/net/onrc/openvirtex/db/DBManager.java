@@ -15,9 +15,10 @@
  ******************************************************************************/
 package net.onrc.openvirtex.db;
 
-import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -33,6 +34,11 @@ import net.onrc.openvirtex.elements.port.Port;
 import net.onrc.openvirtex.exceptions.DuplicateIndexException;
 import net.onrc.openvirtex.exceptions.IndexOutOfBoundException;
 import net.onrc.openvirtex.routing.SwitchRoute;
+import net.onrc.openvirtex.util.LatencyHistogram;
+import net.onrc.openvirtex.util.Metrics;
+import net.onrc.openvirtex.util.Metrics.Gauge;
+import net.onrc.openvirtex.util.MetricsRegistry;
+import net.onrc.openvirtex.util.StripedCounter;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -41,7 +47,6 @@ import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
-import com.mongodb.MongoException;
 
 
 /**
@@ -68,6 +73,7 @@ public final class DBManager {
 
     private static DBManager instance;
     private DBConnection dbConnection;
+    private DBWriter writer;
     private Map<String, DBCollection> collections;
     private boolean clear;
     // Mapping between physical dpids and a list of vnet managers
@@ -77,6 +83,20 @@ public final class DBManager {
     // Mapping between physical ports and a list of vnet managers
     private Map<DPIDandPort, List<OVXNetworkManager>> portToMngr;
 
+    // Documents created by the batch of the current thread, if any
+    private final ThreadLocal<Map<List<Object>, BasicDBObject>> batch = new ThreadLocal<Map<List<Object>, BasicDBObject>>();
+
+    // Updates requested, and the time taken to batch or queue them, or to
+    // write them in the synchronous mode
+    private final Metrics metrics = MetricsRegistry.getInstance().getGroup(
+            "db");
+    private final StripedCounter creates = this.metrics.getCounter("creates");
+    private final StripedCounter removes = this.metrics.getCounter("removes");
+    private final StripedCounter saves = this.metrics.getCounter("saves");
+    private final StripedCounter pulls = this.metrics.getCounter("pulls");
+    private final LatencyHistogram updateTime = this.metrics
+            .getHistogram("updateTime");
+
     private static Logger log = LogManager.getLogger(DBManager.class.getName());
 
     /** Creates the database manager instance. Connects
@@ -85,10 +105,53 @@ public final class DBManager {
      */
     private DBManager() {
         this.dbConnection = new MongoConnection();
+        this.writer = new DBWriter(this.dbConnection, DBWriter.Mode.SYNC);
         this.collections = new HashMap<String, DBCollection>();
         this.dpidToMngr = new HashMap<Long, List<OVXNetworkManager>>();
         this.linkToMngr = new HashMap<DPIDandPortPair, List<OVXNetworkManager>>();
         this.portToMngr = new HashMap<DPIDandPort, List<OVXNetworkManager>>();
+        this.addGauges();
+    }
+
+    /**
+     * Adds the counters kept by the database writer to the metrics.
+     */
+    private void addGauges() {
+        this.metrics.addGauge("queueDepth", new Gauge() {
+            @Override
+            public Object getValue() {
+                return DBManager.this.writer.getQueueDepth();
+            }
+        });
+        this.metrics.addGauge("flushes", new Gauge() {
+            @Override
+            public Object getValue() {
+                return DBManager.this.writer.getFlushCount();
+            }
+        });
+        this.metrics.addGauge("writes", new Gauge() {
+            @Override
+            public Object getValue() {
+                return DBManager.this.writer.getWriteCount();
+            }
+        });
+        this.metrics.addGauge("averageFlushLatency", new Gauge() {
+            @Override
+            public Object getValue() {
+                return DBManager.this.writer.getAverageFlushLatency();
+            }
+        });
+        this.metrics.addGauge("maxFlushLatency", new Gauge() {
+            @Override
+            public Object getValue() {
+                return DBManager.this.writer.getMaxFlushLatency();
+            }
+        });
+    }
+
+    private void record(final StripedCounter counter, final long start) {
+        counter.increment();
+        this.updateTime.record(System.nanoTime() - start);
     }
 
     /**
@@ -111,13 +174,11 @@ public final class DBManager {
      * @param host the database host
      * @param port the database port
      * @param clear flag to clear the database
+     * @param durability the durability mode of writes
      */
-    public void init(String host, Integer port, boolean clear) {
+    public void init(String host, Integer port, boolean clear,
+            DBWriter.Mode durability) {
         this.dbConnection.connect(host, port);
-        // Suppress error stream when MongoDB raises java.net.ConnectException
-        // in another component (and cannot be caught)
-        PrintStream ps = System.err;
-        System.setErr(null);
         try {
             // Retrieve (create if non-existing) collections from db
             // and store their handlers
@@ -139,11 +200,11 @@ public final class DBManager {
                 this.readOVXNetworks();
             }
 
+            this.writer = new DBWriter(this.dbConnection, durability);
+            this.writer.start();
+
         } catch (Exception e) {
             log.error("Failed to initialize database: {}", e.getMessage());
-        } finally {
-            // Restore error stream
-            System.setErr(ps);
         }
     }
 
@@ -153,19 +214,12 @@ public final class DBManager {
      * @param coll the collection
      */
     private void setIndex(String coll) {
-        // Suppress error stream when MongoDB raises java.net.ConnectException
-        // in another component (and cannot be caught)
-        PrintStream ps = System.err;
-        System.setErr(null);
         try {
             BasicDBObject options = new BasicDBObject("unique", true);
             BasicDBObject index = new BasicDBObject(TenantHandler.TENANT, 1);
             this.collections.get(coll).ensureIndex(index, options);
         } catch (Exception e) {
             log.error("Failed to set database index: {}", e.getMessage());
-        } finally {
-            // Restore error stream
-            System.setErr(ps);
         }
     }
 
@@ -175,18 +229,11 @@ public final class DBManager {
      * @param coll the collection
      */
     private void clear(String coll) {
-        // Suppress error stream when MongoDB raises java.net.ConnectException
-        // in another component (and cannot be caught)
-        PrintStream ps = System.err;
-        System.setErr(null);
         try {
             this.collections.get(coll).drop();
             this.setIndex(DBManager.DB_VNET);
         } catch (Exception e) {
             log.error("Failed to clear database: {}", e.getMessage());
-        } finally {
-            // Restore error stream
-            System.setErr(ps);
         }
     }
 
@@ -194,45 +241,80 @@ public final class DBManager {
      * Closes connection to database backend.
      */
     public void close() {
-        // Suppress error stream when MongoDB raises java.net.ConnectException
-        // in another component (and cannot be caught)
-        PrintStream ps = System.err;
-        System.setErr(null);
+        this.writer.close();
         try {
             this.dbConnection.disconnect();
         } catch (Exception e) {
             log.error("Failed to close database connection: {}", e.getMessage());
-        } finally {
-            // Restore error stream
-            System.setErr(ps);
         }
     }
 
+    /**
+     * Gets the writer that persists updates to the database.
+     *
+     * @return the database writer
+     */
+    public DBWriter getWriter() {
+        return this.writer;
+    }
+
+    /**
+     * Starts a batch on the current thread. Until the batch is committed,
+     * documents created by the thread are held back, together with the
+     * objects saved into them, so that each is written at once.
+     */
+    public void beginBatch() {
+        this.batch.set(new LinkedHashMap<List<Object>, BasicDBObject>());
+    }
+
+    /**
+     * Writes the documents created since the batch started on the current
+     * thread, and ends the batch.
+     */
+    public void commitBatch() {
+        final Map<List<Object>, BasicDBObject> docs = this.batch.get();
+        this.batch.remove();
+        if (docs == null) {
+            return;
+        }
+        for (Map.Entry<List<Object>, BasicDBObject> doc : docs.entrySet()) {
+            this.writer.insert((String) doc.getKey().get(0),
+                    new BasicDBObject((Map<?, ?>) doc.getKey().get(1)),
+                    doc.getValue());
+        }
+    }
+
+    /**
+     * Drops the documents created since the batch started on the current
+     * thread, and ends the batch.
+     */
+    public void abortBatch() {
+        this.batch.remove();
+    }
+
+    private List<Object> getBatchKey(Persistable obj) {
+        return Arrays.<Object>asList(obj.getDBName(), obj.getDBIndex());
+    }
+
     /**
      * Creates document in db from persistable object obj.
      *
      * @param obj the object to create
      */
     public void createDoc(Persistable obj) {
-        // Suppress error stream when MongoDB raises java.net.ConnectException
-        // in another component (and cannot be caught)
-        PrintStream ps = System.err;
-        System.setErr(null);
+        final long start = System.nanoTime();
         try {
-            DBCollection collection = this.collections.get(obj.getDBName());
-            collection.insert(new BasicDBObject(obj.getDBObject()));
-        } catch (Exception e) {
-            // Do not log when duplicate key
-            // Virtual network was already stored and we're trying to create it
-            // again on startup
-            if (e instanceof MongoException.DuplicateKey) {
-                log.warn("Skipped saving of virtual network with duplicate tenant id");
-            } else {
-                log.error("Failed to insert document into database: {}", e.getMessage());
+            final Map<List<Object>, BasicDBObject> docs = this.batch.get();
+            if (docs != null) {
+                docs.put(this.getBatchKey(obj),
+                        new BasicDBObject(obj.getDBObject()));
+                return;
             }
+            this.writer.insert(obj.getDBName(),
+                    new BasicDBObject(obj.getDBIndex()),
+                    new BasicDBObject(obj.getDBObject()));
         } finally {
-            // Restore error stream
-            System.setErr(ps);
+            this.record(this.creates, start);
         }
     }
 
@@ -242,19 +324,17 @@ public final class DBManager {
      * @param obj the object to remove
      */
     public void removeDoc(Persistable obj) {
-        // Suppress error stream when MongoDB raises java.net.ConnectException
-        // in another component (and cannot be caught)
-        PrintStream ps = System.err;
-        System.setErr(null);
+        final long start = System.nanoTime();
         try {
-            DBCollection collection = this.collections.get(obj.getDBName());
-            collection.remove(new BasicDBObject(obj.getDBObject()));
-        } catch (Exception e) {
-            log.error("Failed to remove document from database: {}",
-                    e.getMessage());
+            final Map<List<Object>, BasicDBObject> docs = this.batch.get();
+            if (docs != null && docs.remove(this.getBatchKey(obj)) != null) {
+                return;
+            }
+            this.writer.remove(obj.getDBName(),
+                    new BasicDBObject(obj.getDBIndex()),
+                    new BasicDBObject(obj.getDBObject()));
         } finally {
-            // Restore error stream
-            System.setErr(ps);
+            this.record(this.removes, start);
         }
     }
 
@@ -263,20 +343,30 @@ public final class DBManager {
      *
      * @param obj the object to persist
      */
+    @SuppressWarnings("unchecked")
     public void save(Persistable obj) {
-        BasicDBObject query = new BasicDBObject();
-        query.putAll(obj.getDBIndex());
-        BasicDBObject update = new BasicDBObject("$addToSet",
-                new BasicDBObject(obj.getDBKey(), obj.getDBObject()));
-        PrintStream ps = System.err;
-        System.setErr(null);
+        final long start = System.nanoTime();
         try {
-            DBCollection collection = this.collections.get(obj.getDBName());
-            collection.update(query, update, true, false);
-        } catch (Exception e) {
-            log.error("Failed to update database: {}", e.getMessage());
+            final Map<List<Object>, BasicDBObject> docs = this.batch.get();
+            final BasicDBObject doc = docs == null ? null : docs.get(this
+                    .getBatchKey(obj));
+            if (doc != null) {
+                List<Object> values = (List<Object>) doc.get(obj.getDBKey());
+                if (values == null) {
+                    values = new ArrayList<Object>();
+                    doc.put(obj.getDBKey(), values);
+                }
+                final BasicDBObject value = new BasicDBObject(obj.getDBObject());
+                if (!values.contains(value)) {
+                    values.add(value);
+                }
+                return;
+            }
+            this.writer.addToSet(obj.getDBName(),
+                    new BasicDBObject(obj.getDBIndex()), obj.getDBKey(),
+                    new BasicDBObject(obj.getDBObject()));
         } finally {
-            System.setErr(ps);
+            this.record(this.saves, start);
         }
     }
 
@@ -286,19 +376,24 @@ public final class DBManager {
      * @param obj the object to remove
      */
     public void remove(Persistable obj) {
-        BasicDBObject query = new BasicDBObject();
-        query.putAll(obj.getDBIndex());
-        BasicDBObject update = new BasicDBObject("$pull", new BasicDBObject(
-                obj.getDBKey(), obj.getDBObject()));
-        PrintStream ps = System.err;
-        System.setErr(null);
+        final long start = System.nanoTime();
         try {
-            DBCollection collection = this.collections.get(obj.getDBName());
-            collection.update(query, update);
-        } catch (Exception e) {
-            log.error("Failed to remove from db: {}", e.getMessage());
+            final Map<List<Object>, BasicDBObject> docs = this.batch.get();
+            final BasicDBObject doc = docs == null ? null : docs.get(this
+                    .getBatchKey(obj));
+            if (doc != null) {
+                final Object values = doc.get(obj.getDBKey());
+                if (values != null) {
+                    ((List<?>) values).remove(new BasicDBObject(obj
+                            .getDBObject()));
+                }
+                return;
+            }
+            this.writer.pull(obj.getDBName(),
+                    new BasicDBObject(obj.getDBIndex()), obj.getDBKey(),
+                    new BasicDBObject(obj.getDBObject()));
         } finally {
-            System.setErr(ps);
+            this.record(this.pulls, start);
         }
     }
 
@@ -309,21 +404,9 @@ public final class DBManager {
      * @param switchId the dpid
      */
     public void removeSwitchPath(int tenantId, long switchId) {
-        BasicDBObject query = new BasicDBObject();
-        query.put(TenantHandler.TENANT, tenantId);
-        BasicDBObject pull = new BasicDBObject("$pull", new BasicDBObject(
-                SwitchRoute.DB_KEY, new BasicDBObject(TenantHandler.DPID,
-                        switchId)));
-        PrintStream ps = System.err;
-        System.setErr(null);
-        try {
-            DBCollection collection = this.collections.get(DB_VNET);
-            collection.update(query, pull);
-        } catch (Exception e) {
-            log.error("Failed to remove from db: {}", e.getMessage());
-        } finally {
-            System.setErr(ps);
-        }
+        this.writer.pull(DB_VNET, new BasicDBObject(TenantHandler.TENANT,
+                tenantId), SwitchRoute.DB_KEY, new BasicDBObject(
+                TenantHandler.DPID, switchId));
     }
 
     /**
@@ -333,20 +416,9 @@ public final class DBManager {
      * @param linkId the link ID
      */
     public void removeLinkPath(int tenantId, int linkId) {
-        BasicDBObject query = new BasicDBObject();
-        query.put(TenantHandler.TENANT, tenantId);
-        BasicDBObject pull = new BasicDBObject("$pull", new BasicDBObject(
-                OVXLink.DB_KEY, new BasicDBObject(TenantHandler.LINK, linkId)));
-        PrintStream ps = System.err;
-        System.setErr(null);
-        try {
-            DBCollection collection = this.collections.get(DB_VNET);
-            collection.update(query, pull);
-        } catch (Exception e) {
-            log.error("Failed to remove from db: {}", e.getMessage());
-        } finally {
-            System.setErr(ps);
-        }
+        this.writer.pull(DB_VNET, new BasicDBObject(TenantHandler.TENANT,
+                tenantId), OVXLink.DB_KEY, new BasicDBObject(
+                TenantHandler.LINK, linkId));
     }
 
     /**
@@ -355,8 +427,6 @@ public final class DBManager {
      */
     @SuppressWarnings("unchecked")
     private void readOVXNetworks() {
-        PrintStream ps = System.err;
-        System.setErr(null);
         try {
             // Get a cursor over all virtual networks
             DBCollection coll = this.collections.get(DBManager.DB_VNET);
@@ -397,8 +467,6 @@ public final class DBManager {
         } catch (Exception e) {
             log.error("Failed to load virtual networks from db: {}",
                     e.getMessage());
-        } finally {
-            System.setErr(ps);
         }
     }
 
@@ -0,0 +1,583 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.db;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * Write-behind stage between the {@link DBManager} and the database.
+ * Writes are queued per document and flushed by a background thread, which
+ * coalesces consecutive $addToSet and $pull updates of a document into a
+ * single update. The queue is bounded; writers block when it is full.
+ * <p>
+ * In {@link Mode#SYNC} mode writes are applied on the calling thread, as
+ * before. In {@link Mode#ASYNC} mode the flusher drains the queue as soon
+ * as anything is pending, in {@link Mode#BATCHED} mode it waits for a full
+ * batch or for the flush interval to expire, which coalesces more writes
+ * at the expense of a longer window in which they can be lost.
+ */
+public class DBWriter implements Runnable {
+
+    /**
+     * Durability mode of the writer.
+     */
+    public enum Mode {
+        SYNC, ASYNC, BATCHED
+    }
+
+    /**
+     * Default maximum number of pending writes.
+     */
+    public static final int DEFAULT_CAPACITY = 10000;
+    /**
+     * Default number of pending writes that triggers a flush in batched mode.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    /**
+     * Default time (in milliseconds) a write waits in batched mode.
+     */
+    public static final long DEFAULT_FLUSH_INTERVAL = 100;
+
+    private enum OpType {
+        INSERT, REMOVE, ADD, PULL
+    }
+
+    /**
+     * A single queued write.
+     */
+    private static final class Op {
+        private final OpType type;
+        private final String key;
+        private final DBObject value;
+
+        private Op(OpType type, String key, DBObject value) {
+            this.type = type;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Identifies a document by collection and index query.
+     */
+    private static final class DocKey {
+        private final String coll;
+        private final DBObject query;
+
+        private DocKey(String coll, DBObject query) {
+            this.coll = coll;
+            this.query = query;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.coll.hashCode() + this.query.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof DocKey)) {
+                return false;
+            }
+            DocKey other = (DocKey) obj;
+            return this.coll.equals(other.coll)
+                    && this.query.equals(other.query);
+        }
+    }
+
+    private static Logger log = LogManager.getLogger(DBWriter.class.getName());
+
+    private final DBConnection connection;
+    private final Mode mode;
+    private final int capacity;
+    private final int batchSize;
+    private final long flushInterval;
+
+    // Pending writes per document, in arrival order; guarded by this
+    private Map<DocKey, List<Op>> pending;
+    private int depth;
+    private boolean flushing;
+    private boolean flushRequested;
+    private boolean running;
+    private Thread thread;
+
+    // Metrics, guarded by this
+    private long flushCount;
+    private long writeCount;
+    private long updateCount;
+    private long lastFlushLatency;
+    private long maxFlushLatency;
+    private long totalFlushLatency;
+
+    /**
+     * Creates a writer with default capacity, batch size and flush interval.
+     *
+     * @param connection the database connection
+     * @param mode the durability mode
+     */
+    public DBWriter(DBConnection connection, Mode mode) {
+        this(connection, mode, DBWriter.DEFAULT_CAPACITY,
+                DBWriter.DEFAULT_BATCH_SIZE, DBWriter.DEFAULT_FLUSH_INTERVAL);
+    }
+
+    /**
+     * Creates a writer.
+     *
+     * @param connection the database connection
+     * @param mode the durability mode
+     * @param capacity the maximum number of pending writes
+     * @param batchSize the number of pending writes that triggers a flush
+     *        in batched mode
+     * @param flushInterval the time (in milliseconds) a write waits in
+     *        batched mode
+     */
+    public DBWriter(DBConnection connection, Mode mode, int capacity,
+            int batchSize, long flushInterval) {
+        this.connection = connection;
+        this.mode = mode;
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.flushInterval = flushInterval;
+        this.pending = new LinkedHashMap<DocKey, List<Op>>();
+    }
+
+    /**
+     * Starts the background flusher. Does nothing in sync mode.
+     */
+    public synchronized void start() {
+        if (this.mode == Mode.SYNC || this.running) {
+            return;
+        }
+        this.running = true;
+        this.thread = new Thread(this, "DBWriter");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Stops the background flusher after writing all pending writes.
+     */
+    public void close() {
+        Thread t;
+        synchronized (this) {
+            this.running = false;
+            this.notifyAll();
+            t = this.thread;
+            this.thread = null;
+        }
+        if (t != null) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // Writes that raced with shutdown
+        this.flushPending();
+    }
+
+    /**
+     * Blocks until all writes queued so far have been applied.
+     */
+    public synchronized void flush() {
+        while ((this.depth > 0 || this.flushing) && this.running) {
+            this.flushRequested = true;
+            this.notifyAll();
+            try {
+                this.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Inserts a document.
+     *
+     * @param coll the collection name
+     * @param query the index of the document
+     * @param doc the document
+     */
+    public void insert(String coll, DBObject query, DBObject doc) {
+        this.submit(coll, query, new Op(OpType.INSERT, null, doc));
+    }
+
+    /**
+     * Removes a document.
+     *
+     * @param coll the collection name
+     * @param query the index of the document
+     * @param doc the document
+     */
+    public void remove(String coll, DBObject query, DBObject doc) {
+        this.submit(coll, query, new Op(OpType.REMOVE, null, doc));
+    }
+
+    /**
+     * Adds an element to an array of a document, creating the document if
+     * needed.
+     *
+     * @param coll the collection name
+     * @param query the index of the document
+     * @param key the array field
+     * @param value the element
+     */
+    public void addToSet(String coll, DBObject query, String key,
+            DBObject value) {
+        this.submit(coll, query, new Op(OpType.ADD, key, value));
+    }
+
+    /**
+     * Removes all elements that match the given condition from an array of a
+     * document.
+     *
+     * @param coll the collection name
+     * @param query the index of the document
+     * @param key the array field
+     * @param cond the condition
+     */
+    public void pull(String coll, DBObject query, String key, DBObject cond) {
+        this.submit(coll, query, new Op(OpType.PULL, key, cond));
+    }
+
+    private void submit(String coll, DBObject query, Op op) {
+        DocKey doc = new DocKey(coll, query);
+        synchronized (this) {
+            while (this.depth >= this.capacity && this.running) {
+                try {
+                    this.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (this.running) {
+                List<Op> ops = this.pending.get(doc);
+                if (ops == null) {
+                    ops = new LinkedList<Op>();
+                    this.pending.put(doc, ops);
+                }
+                ops.add(op);
+                if (this.depth++ == 0 || this.mode == Mode.ASYNC
+                        || this.depth >= this.batchSize) {
+                    this.notifyAll();
+                }
+                return;
+            }
+        }
+        // Sync mode, or the flusher is not running
+        Map<DocKey, List<Op>> single = new LinkedHashMap<DocKey, List<Op>>();
+        List<Op> ops = new ArrayList<Op>(1);
+        ops.add(op);
+        single.put(doc, ops);
+        this.write(single, 1);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            synchronized (this) {
+                if (!this.running) {
+                    return;
+                }
+                if (!this.awaitBatch()) {
+                    continue;
+                }
+            }
+            this.flushPending();
+        }
+    }
+
+    /**
+     * Waits until there is something to flush, which in batched mode means
+     * a full batch or a write older than the flush interval.
+     *
+     * @return true if pending writes should be flushed now
+     */
+    private boolean awaitBatch() {
+        try {
+            while (this.depth == 0 && this.running) {
+                this.wait();
+            }
+            if (this.mode == Mode.BATCHED) {
+                long deadline = System.currentTimeMillis() + this.flushInterval;
+                long left = this.flushInterval;
+                while (this.depth < this.batchSize && !this.flushRequested
+                        && this.running && left > 0) {
+                    this.wait(left);
+                    left = deadline - System.currentTimeMillis();
+                }
+            }
+        } catch (InterruptedException e) {
+            this.running = false;
+        }
+        return this.depth > 0;
+    }
+
+    /**
+     * Takes all pending writes and applies them.
+     */
+    private void flushPending() {
+        Map<DocKey, List<Op>> batch;
+        int count;
+        synchronized (this) {
+            if (this.depth == 0) {
+                return;
+            }
+            batch = this.pending;
+            count = this.depth;
+            this.pending = new LinkedHashMap<DocKey, List<Op>>();
+            this.depth = 0;
+            this.flushing = true;
+            this.flushRequested = false;
+            // Wake up writers blocked on a full queue
+            this.notifyAll();
+        }
+        try {
+            this.write(batch, count);
+        } finally {
+            synchronized (this) {
+                this.flushing = false;
+                this.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Applies the given writes, coalescing those of each document, and
+     * updates the metrics.
+     *
+     * @param batch the writes per document
+     * @param count the number of writes
+     */
+    private void write(Map<DocKey, List<Op>> batch, int count) {
+        long start = System.nanoTime();
+        int updates = 0;
+        for (Map.Entry<DocKey, List<Op>> entry : batch.entrySet()) {
+            updates += this.writeDoc(entry.getKey(), entry.getValue());
+        }
+        long latency = System.nanoTime() - start;
+        synchronized (this) {
+            this.flushCount++;
+            this.writeCount += count;
+            this.updateCount += updates;
+            this.lastFlushLatency = latency;
+            this.totalFlushLatency += latency;
+            if (latency > this.maxFlushLatency) {
+                this.maxFlushLatency = latency;
+            }
+        }
+    }
+
+    /**
+     * Applies the writes of a single document in order. Runs of $addToSet
+     * and $pull updates are merged into one update as long as they touch
+     * different arrays, since MongoDB rejects conflicting operators on the
+     * same field.
+     *
+     * @param doc the document
+     * @param ops the writes
+     * @return the number of database operations performed
+     */
+    private int writeDoc(DocKey doc, List<Op> ops) {
+        int updates = 0;
+        Map<String, List<DBObject>> adds = new LinkedHashMap<String, List<DBObject>>();
+        Map<String, DBObject> pulls = new LinkedHashMap<String, DBObject>();
+        for (Op op : ops) {
+            switch (op.type) {
+            case ADD:
+                if (pulls.containsKey(op.key)) {
+                    updates += this.update(doc, adds, pulls);
+                }
+                List<DBObject> values = adds.get(op.key);
+                if (values == null) {
+                    values = new ArrayList<DBObject>();
+                    adds.put(op.key, values);
+                }
+                values.add(op.value);
+                break;
+            case PULL:
+                if (adds.containsKey(op.key) || pulls.containsKey(op.key)) {
+                    updates += this.update(doc, adds, pulls);
+                }
+                pulls.put(op.key, op.value);
+                break;
+            default:
+                updates += this.update(doc, adds, pulls);
+                updates += this.apply(doc, op);
+                break;
+            }
+        }
+        updates += this.update(doc, adds, pulls);
+        return updates;
+    }
+
+    /**
+     * Applies and clears the merged $addToSet and $pull updates.
+     *
+     * @return the number of database operations performed
+     */
+    private int update(DocKey doc, Map<String, List<DBObject>> adds,
+            Map<String, DBObject> pulls) {
+        if (adds.isEmpty() && pulls.isEmpty()) {
+            return 0;
+        }
+        BasicDBObject update = new BasicDBObject();
+        if (!adds.isEmpty()) {
+            BasicDBObject addToSet = new BasicDBObject();
+            for (Map.Entry<String, List<DBObject>> entry : adds.entrySet()) {
+                List<DBObject> values = entry.getValue();
+                if (values.size() == 1) {
+                    addToSet.put(entry.getKey(), values.get(0));
+                } else {
+                    addToSet.put(entry.getKey(), new BasicDBObject("$each",
+                            values));
+                }
+            }
+            update.put("$addToSet", addToSet);
+        }
+        if (!pulls.isEmpty()) {
+            update.put("$pull", new BasicDBObject(pulls));
+        }
+        boolean upsert = !adds.isEmpty();
+        adds.clear();
+        pulls.clear();
+        try {
+            this.connection.update(doc.coll, doc.query, update, upsert);
+        } catch (Exception e) {
+            log.error("Failed to update database: {}", e.getMessage());
+        }
+        return 1;
+    }
+
+    /**
+     * Applies an insert or remove of a whole document.
+     *
+     * @return the number of database operations performed
+     */
+    private int apply(DocKey doc, Op op) {
+        try {
+            if (op.type == OpType.INSERT) {
+                this.connection.insert(doc.coll, op.value);
+            } else {
+                this.connection.remove(doc.coll, op.value);
+            }
+        } catch (Exception e) {
+            // Do not log when duplicate key
+            // Virtual network was already stored and we're trying to create it
+            // again on startup
+            if (e instanceof MongoException.DuplicateKey) {
+                log.warn("Skipped saving of virtual network with duplicate tenant id");
+            } else {
+                log.error("Failed to write document to database: {}",
+                        e.getMessage());
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Gets the durability mode.
+     *
+     * @return the mode
+     */
+    public Mode getMode() {
+        return this.mode;
+    }
+
+    /**
+     * Gets the number of writes waiting to be flushed.
+     *
+     * @return the queue depth
+     */
+    public synchronized int getQueueDepth() {
+        return this.depth;
+    }
+
+    /**
+     * Gets the number of flushes, including synchronous writes.
+     *
+     * @return the number of flushes
+     */
+    public synchronized long getFlushCount() {
+        return this.flushCount;
+    }
+
+    /**
+     * Gets the number of writes that have been flushed.
+     *
+     * @return the number of writes
+     */
+    public synchronized long getWriteCount() {
+        return this.writeCount;
+    }
+
+    /**
+     * Gets the number of database operations the flushed writes were
+     * coalesced into.
+     *
+     * @return the number of database operations
+     */
+    public synchronized long getUpdateCount() {
+        return this.updateCount;
+    }
+
+    /**
+     * Gets the latency of the last flush.
+     *
+     * @return the latency in microseconds
+     */
+    public synchronized long getLastFlushLatency() {
+        return this.lastFlushLatency / 1000;
+    }
+
+    /**
+     * Gets the highest flush latency.
+     *
+     * @return the latency in microseconds
+     */
+    public synchronized long getMaxFlushLatency() {
+        return this.maxFlushLatency / 1000;
+    }
+
+    /**
+     * Gets the average flush latency.
+     *
+     * @return the latency in microseconds
+     */
+    public synchronized long getAverageFlushLatency() {
+        if (this.flushCount == 0) {
+            return 0;
+        }
+        return this.totalFlushLatency / this.flushCount / 1000;
+    }
+
+}
@@ -16,11 +16,13 @@
 package net.onrc.openvirtex.db;
 
 import java.net.UnknownHostException;
+import java.util.logging.Level;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import com.mongodb.DB;
+import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
 
 public class MongoConnection implements DBConnection {
@@ -30,6 +32,16 @@ public class MongoConnection implements DBConnection {
     private static Logger log = LogManager.getLogger(MongoConnection.class
             .getName());
 
+    // The driver logs connection failures from its own threads, where they
+    // cannot be caught, so its logger is silenced once for the whole process.
+    // The reference is kept since the logging framework only holds it weakly.
+    private static final java.util.logging.Logger DRIVER_LOG = java.util.logging.Logger
+            .getLogger("com.mongodb");
+
+    static {
+        MongoConnection.DRIVER_LOG.setLevel(Level.OFF);
+    }
+
     @Override
     public void connect(String host, Integer port) {
         MongoConnection.log.info("Connecting to MongoDB at {}:{}", host, port);
@@ -49,6 +61,22 @@ public class MongoConnection implements DBConnection {
         this.mongo.close();
     }
 
+    @Override
+    public void insert(String coll, DBObject doc) {
+        this.getDB().getCollection(coll).insert(doc);
+    }
+
+    @Override
+    public void update(String coll, DBObject query, DBObject update,
+            boolean upsert) {
+        this.getDB().getCollection(coll).update(query, update, upsert, false);
+    }
+
+    @Override
+    public void remove(String coll, DBObject query) {
+        this.getDB().getCollection(coll).remove(query);
+    }
+
     public DB getDB() {
         return mongo.getDB(MongoConnection.DB_NAME);
     }
@@ -15,6 +15,7 @@
  ******************************************************************************/
 package net.onrc.openvirtex.elements;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -329,6 +330,77 @@ public interface Mappable {
     public boolean hasOVXLinks(final PhysicalLink physicalLink,
             final Integer tenantId);
 
+    /**
+     * Records that a virtual link may switch back to a path it failed over
+     * from once the physical links of the path are up again.
+     *
+     * @param virtualLink the virtual link
+     * @param path the unusable path
+     */
+    public void addUnusablePath(OVXLink virtualLink,
+            Collection<PhysicalLink> path);
+
+    /**
+     * Records that a switch route may switch back to a path it failed over
+     * from once the physical links of the path are up again.
+     *
+     * @param route the switch route
+     * @param path the unusable path
+     */
+    public void addUnusablePath(SwitchRoute route,
+            Collection<PhysicalLink> path);
+
+    /**
+     * Removes the given physical links from the unusable paths recorded for
+     * a virtual link.
+     *
+     * @param virtualLink the virtual link
+     * @param path the physical links
+     */
+    public void removeUnusablePath(OVXLink virtualLink,
+            Collection<PhysicalLink> path);
+
+    /**
+     * Removes the given physical links from the unusable paths recorded for
+     * a switch route.
+     *
+     * @param route the switch route
+     * @param path the physical links
+     */
+    public void removeUnusablePath(SwitchRoute route,
+            Collection<PhysicalLink> path);
+
+    /**
+     * Gets the virtual links of a virtual network with an unusable path
+     * through the given physical link.
+     *
+     * @param physicalLink the physical link
+     * @param tenantId the tenant ID
+     * @return the virtual links, possibly empty
+     */
+    public Set<OVXLink> getUnusableLinks(PhysicalLink physicalLink,
+            Integer tenantId);
+
+    /**
+     * Gets the switch routes of a virtual network with an unusable path
+     * through the given physical link.
+     *
+     * @param physicalLink the physical link
+     * @param tenantId the tenant ID
+     * @return the switch routes, possibly empty
+     */
+    public Set<SwitchRoute> getUnusableRoutes(PhysicalLink physicalLink,
+            Integer tenantId);
+
+    /**
+     * Gets the virtual networks with a virtual link or switch route whose
+     * current or unusable path goes through the given physical link.
+     *
+     * @param physicalLink the physical link
+     * @return the tenant IDs
+     */
+    public Set<Integer> getTenants(PhysicalLink physicalLink);
+
     /**
      * @param psw
      *            the PhysicalSwitch mapped to the OVXSwitch we want to check
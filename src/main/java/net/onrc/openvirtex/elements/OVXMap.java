@@ -16,6 +16,7 @@
 package net.onrc.openvirtex.elements;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
@@ -45,10 +46,6 @@ import net.onrc.openvirtex.util.MACAddress;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import com.googlecode.concurrenttrees.radix.ConcurrentRadixTree;
-import com.googlecode.concurrenttrees.radix.RadixTree;
-import com.googlecode.concurrenttrees.radix.node.concrete.DefaultCharArrayNodeFactory;
-
 /**
  * This singleton class maintains all the virtual-to-physical and reverse mappings.
  * These encompass switch mappings, link mappings, switch route mappings,
@@ -66,11 +63,17 @@ public final class OVXMap implements Mappable {
     private ConcurrentHashMap<PhysicalLink, ConcurrentHashMap<Integer, List<OVXLink>>> physicalLinkMap;
     private ConcurrentHashMap<SwitchRoute, ArrayList<PhysicalLink>> routetoPhyLinkMap;
     private ConcurrentHashMap<PhysicalLink, ConcurrentHashMap<Integer, Set<SwitchRoute>>> phyLinktoRouteMap;
+    // Links and routes that failed over from a path through a physical link,
+    // and may switch back to it once the link is up again
+    private ConcurrentHashMap<PhysicalLink, ConcurrentHashMap<Integer, Set<OVXLink>>> unusableLinkMap;
+    private ConcurrentHashMap<PhysicalLink, ConcurrentHashMap<Integer, Set<SwitchRoute>>> unusableRouteMap;
     private ConcurrentHashMap<Integer, OVXNetwork> networkMap;
-    private RadixTree<OVXIPAddress> physicalIPMap;
-    private RadixTree<ConcurrentHashMap<Integer, PhysicalIPAddress>> virtualIPMap;
-    private RadixTree<Integer> macMap;
-    private RadixTree<Integer> physicalPortMap;
+    // Address maps are looked up for every packet, so they are keyed by the
+    // numeric value of the address rather than by its string form
+    private ConcurrentHashMap<Integer, OVXIPAddress> physicalIPMap;
+    private ConcurrentHashMap<Long, PhysicalIPAddress> virtualIPMap;
+    private ConcurrentHashMap<Long, Integer> macMap;
+    private ConcurrentHashMap<Long, ConcurrentHashMap<Short, Integer>> physicalPortMap;
 
     /**
      * Creates a new map instance, by initializing all mapping data structures.
@@ -82,15 +85,13 @@ public final class OVXMap implements Mappable {
         this.physicalLinkMap = new ConcurrentHashMap<PhysicalLink, ConcurrentHashMap<Integer, List<OVXLink>>>();
         this.routetoPhyLinkMap = new ConcurrentHashMap<SwitchRoute, ArrayList<PhysicalLink>>();
         this.phyLinktoRouteMap = new ConcurrentHashMap<PhysicalLink, ConcurrentHashMap<Integer, Set<SwitchRoute>>>();
+        this.unusableLinkMap = new ConcurrentHashMap<PhysicalLink, ConcurrentHashMap<Integer, Set<OVXLink>>>();
+        this.unusableRouteMap = new ConcurrentHashMap<PhysicalLink, ConcurrentHashMap<Integer, Set<SwitchRoute>>>();
         this.networkMap = new ConcurrentHashMap<Integer, OVXNetwork>();
-        this.physicalIPMap = new ConcurrentRadixTree<OVXIPAddress>(
-                new DefaultCharArrayNodeFactory());
-        this.virtualIPMap = new ConcurrentRadixTree<ConcurrentHashMap<Integer, PhysicalIPAddress>>(
-                new DefaultCharArrayNodeFactory());
-        this.macMap = new ConcurrentRadixTree<Integer>(
-                new DefaultCharArrayNodeFactory());
-        this.physicalPortMap = new ConcurrentRadixTree<Integer>(
-                new DefaultCharArrayNodeFactory());
+        this.physicalIPMap = new ConcurrentHashMap<Integer, OVXIPAddress>();
+        this.virtualIPMap = new ConcurrentHashMap<Long, PhysicalIPAddress>();
+        this.macMap = new ConcurrentHashMap<Long, Integer>();
+        this.physicalPortMap = new ConcurrentHashMap<Long, ConcurrentHashMap<Short, Integer>>();
     } 
 
     /**
@@ -180,8 +181,34 @@ public final class OVXMap implements Mappable {
         this.addVirtualLink(virtualLink, physicalLink);
     }
 
-    public Iterable<CharSequence> getAllKeys() {
-        return this.virtualIPMap.getClosestKeys("");
+    /**
+     * Builds the key of the virtual IP map from a virtual IP address and a
+     * tenant ID. The tenant ID is the upper half of the key, so all
+     * addresses of a tenant share the same key prefix.
+     *
+     * @param ip the virtual IP address
+     * @param tenantId the tenant ID
+     * @return the key
+     */
+    private static long virtualIPKey(final int ip, final int tenantId) {
+        return (long) tenantId << 32 | ip & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Gets the virtual IP addresses that are mapped to a physical IP
+     * address in the virtual network identified by the tenant ID.
+     *
+     * @param tenantId the tenant ID
+     * @return the virtual IP addresses
+     */
+    public List<OVXIPAddress> getVirtualIPs(final int tenantId) {
+        final List<OVXIPAddress> ips = new ArrayList<OVXIPAddress>();
+        for (Long key : this.virtualIPMap.keySet()) {
+            if ((int) (key >>> 32) == tenantId) {
+                ips.add(new OVXIPAddress(tenantId, key.intValue()));
+            }
+        }
+        return ips;
     }
 
     /**
@@ -214,7 +241,7 @@ public final class OVXMap implements Mappable {
      */
     private void addPhysicalIP(final PhysicalIPAddress physicalIP,
             final OVXIPAddress virtualIP) {
-        this.physicalIPMap.put(physicalIP.toString(), virtualIP);
+        this.physicalIPMap.put(physicalIP.getIp(), virtualIP);
     }
 
     /**
@@ -229,13 +256,9 @@ public final class OVXMap implements Mappable {
      */
     private void addVirtualIP(final OVXIPAddress virtualIP,
             final PhysicalIPAddress physicalIP) {
-        ConcurrentHashMap<Integer, PhysicalIPAddress> ipMap = this.virtualIPMap
-                .getValueForExactKey(virtualIP.toString());
-        if (ipMap == null) {
-            ipMap = new ConcurrentHashMap<Integer, PhysicalIPAddress>();
-            this.virtualIPMap.put(virtualIP.toString(), ipMap);
-        }
-        ipMap.put(virtualIP.getTenantId(), physicalIP);
+        this.virtualIPMap.put(
+                OVXMap.virtualIPKey(virtualIP.getIp(),
+                        virtualIP.getTenantId()), physicalIP);
     }
 
     /**
@@ -342,7 +365,7 @@ public final class OVXMap implements Mappable {
 
     @Override
     public void addMAC(final MACAddress mac, final Integer tenantId) {
-        this.macMap.put(mac.toStringNoColon(), tenantId);
+        this.macMap.put(mac.toLong(), tenantId);
     }
 
     @Override
@@ -400,14 +423,10 @@ public final class OVXMap implements Mappable {
     @Override
     public PhysicalIPAddress getPhysicalIP(final OVXIPAddress ip,
             final Integer tenantId) throws AddressMappingException {
-        final ConcurrentHashMap<Integer, PhysicalIPAddress> ips = this.virtualIPMap
-                .getValueForExactKey(ip.toString());
-        if (ips == null) {
-            throw new AddressMappingException(ip, PhysicalIPAddress.class);
-        }
-        PhysicalIPAddress pip = ips.get(tenantId);
+        PhysicalIPAddress pip = this.virtualIPMap.get(OVXMap.virtualIPKey(
+                ip.getIp(), tenantId));
         if (pip == null) {
-            throw new AddressMappingException(tenantId, PhysicalIPAddress.class);
+            throw new AddressMappingException(ip, PhysicalIPAddress.class);
         }
         return pip;
     }
@@ -415,8 +434,7 @@ public final class OVXMap implements Mappable {
     @Override
     public OVXIPAddress getVirtualIP(final PhysicalIPAddress ip)
             throws AddressMappingException {
-        OVXIPAddress vip = this.physicalIPMap
-                .getValueForExactKey(ip.toString());
+        OVXIPAddress vip = this.physicalIPMap.get(ip.getIp());
         if (vip == null) {
             throw new AddressMappingException(ip, OVXIPAddress.class);
         }
@@ -541,7 +559,7 @@ public final class OVXMap implements Mappable {
 
     @Override
     public Integer getMAC(final MACAddress mac) throws AddressMappingException {
-        Integer macint = this.macMap.getValueForExactKey(mac.toStringNoColon());
+        Integer macint = this.macMap.get(mac.toLong());
         if (macint == null) {
             throw new AddressMappingException("Given Key " + mac
                     + " not mapped to any values");
@@ -641,18 +659,15 @@ public final class OVXMap implements Mappable {
 
     @Override
     public void removeVirtualIPs(int tenantId) {
-        ArrayList<String> physicalIPs = new ArrayList<String>();
-        for (ConcurrentHashMap<Integer, PhysicalIPAddress> map : virtualIPMap
-                .getValuesForKeysStartingWith("")) {
-            if (map.containsKey(tenantId)) {
-                physicalIPs.add(map.get(tenantId).toString());
-                map.remove(tenantId);
+        Iterator<Map.Entry<Long, PhysicalIPAddress>> iter = this.virtualIPMap
+                .entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<Long, PhysicalIPAddress> entry = iter.next();
+            if ((int) (entry.getKey() >>> 32) == tenantId) {
+                this.physicalIPMap.remove(entry.getValue().getIp());
+                iter.remove();
             }
         }
-
-        for (String physicalIP : physicalIPs) {
-            physicalIPMap.remove(physicalIP);
-        }
     }
 
     /**
@@ -661,7 +676,7 @@ public final class OVXMap implements Mappable {
      * @param mac the MAC address
      */
     public void removeMAC(final MACAddress mac) {
-        this.macMap.remove(mac.toStringNoColon());
+        this.macMap.remove(mac.toLong());
     }
 
     @Override
@@ -765,14 +780,13 @@ public final class OVXMap implements Mappable {
      * @return true if the mapping exists, false otherwise
      */
     public boolean hasPhysicalIP(OVXIPAddress vip, Integer tenantId) {
-        final ConcurrentHashMap<Integer, PhysicalIPAddress> ips = this.virtualIPMap
-                .getValueForExactKey(vip.toString());
-        return (ips != null) && (ips.get(tenantId) != null);
+        return this.virtualIPMap.containsKey(OVXMap.virtualIPKey(vip.getIp(),
+                tenantId));
     }
 
     @Override
     public boolean hasVirtualIP(PhysicalIPAddress ip) {
-        return this.physicalIPMap.getValueForExactKey(ip.toString()) != null;
+        return this.physicalIPMap.containsKey(ip.getIp());
     }
 
     /**
@@ -782,7 +796,7 @@ public final class OVXMap implements Mappable {
      * @return true if the MAC is registered, false otherwise
      */
     public boolean hasMAC(MACAddress mac) {
-        return this.macMap.getValueForExactKey(mac.toStringNoColon()) != null;
+        return this.macMap.containsKey(mac.toLong());
     }
 
     /**
@@ -816,6 +830,144 @@ public final class OVXMap implements Mappable {
         return (pair != null) && (pair.get(tenantId) != null);
     }
 
+    @Override
+    public void addUnusablePath(final OVXLink virtualLink,
+            final Collection<PhysicalLink> path) {
+        for (PhysicalLink physicalLink : path) {
+            this.addUnusable(this.unusableLinkMap, physicalLink,
+                    virtualLink.getTenantId(), virtualLink);
+        }
+    }
+
+    @Override
+    public void addUnusablePath(final SwitchRoute route,
+            final Collection<PhysicalLink> path) {
+        for (PhysicalLink physicalLink : path) {
+            this.addUnusable(this.unusableRouteMap, physicalLink,
+                    route.getTenantId(), route);
+        }
+    }
+
+    @Override
+    public void removeUnusablePath(final OVXLink virtualLink,
+            final Collection<PhysicalLink> path) {
+        for (PhysicalLink physicalLink : path) {
+            this.removeUnusable(this.unusableLinkMap, physicalLink,
+                    virtualLink.getTenantId(), virtualLink);
+        }
+    }
+
+    @Override
+    public void removeUnusablePath(final SwitchRoute route,
+            final Collection<PhysicalLink> path) {
+        for (PhysicalLink physicalLink : path) {
+            this.removeUnusable(this.unusableRouteMap, physicalLink,
+                    route.getTenantId(), route);
+        }
+    }
+
+    @Override
+    public Set<OVXLink> getUnusableLinks(final PhysicalLink physicalLink,
+            final Integer tenantId) {
+        return this.getUnusable(this.unusableLinkMap, physicalLink, tenantId);
+    }
+
+    @Override
+    public Set<SwitchRoute> getUnusableRoutes(final PhysicalLink physicalLink,
+            final Integer tenantId) {
+        return this.getUnusable(this.unusableRouteMap, physicalLink, tenantId);
+    }
+
+    @Override
+    public Set<Integer> getTenants(final PhysicalLink physicalLink) {
+        final Set<Integer> tenants = new HashSet<Integer>();
+        for (Map<PhysicalLink, ? extends Map<Integer, ?>> index : Arrays
+                .asList(this.physicalLinkMap, this.phyLinktoRouteMap,
+                        this.unusableLinkMap, this.unusableRouteMap)) {
+            final Map<Integer, ?> tmap = index.get(physicalLink);
+            if (tmap != null) {
+                tenants.addAll(tmap.keySet());
+            }
+        }
+        return tenants;
+    }
+
+    /**
+     * Helper function for adding a link or route to an unusable path index.
+     *
+     * @param index the index
+     * @param physicalLink the physical link on the unusable path
+     * @param tenantId the tenant ID
+     * @param value the link or route
+     */
+    private <T> void addUnusable(
+            final ConcurrentHashMap<PhysicalLink, ConcurrentHashMap<Integer, Set<T>>> index,
+            final PhysicalLink physicalLink, final int tenantId, final T value) {
+        ConcurrentHashMap<Integer, Set<T>> tmap = index.get(physicalLink);
+        if (tmap == null) {
+            final ConcurrentHashMap<Integer, Set<T>> prev = index.putIfAbsent(
+                    physicalLink, tmap = new ConcurrentHashMap<Integer, Set<T>>());
+            if (prev != null) {
+                tmap = prev;
+            }
+        }
+        Set<T> values = tmap.get(tenantId);
+        if (values == null) {
+            final Set<T> prev = tmap.putIfAbsent(tenantId, values = Collections
+                    .newSetFromMap(new ConcurrentHashMap<T, Boolean>()));
+            if (prev != null) {
+                values = prev;
+            }
+        }
+        values.add(value);
+    }
+
+    /**
+     * Helper function for removing a link or route from an unusable path
+     * index.
+     *
+     * @param index the index
+     * @param physicalLink the physical link no longer on an unusable path
+     * @param tenantId the tenant ID
+     * @param value the link or route
+     */
+    private <T> void removeUnusable(
+            final ConcurrentHashMap<PhysicalLink, ConcurrentHashMap<Integer, Set<T>>> index,
+            final PhysicalLink physicalLink, final int tenantId, final T value) {
+        final Map<Integer, Set<T>> tmap = index.get(physicalLink);
+        if (tmap == null) {
+            return;
+        }
+        final Set<T> values = tmap.get(tenantId);
+        if (values != null && values.remove(value) && values.isEmpty()) {
+            /* clean up any empty maps */
+            tmap.remove(tenantId, values);
+            if (tmap.isEmpty()) {
+                index.remove(physicalLink, tmap);
+            }
+        }
+    }
+
+    /**
+     * Helper function for looking up the links or routes with an unusable
+     * path through a physical link.
+     *
+     * @param index the index
+     * @param physicalLink the physical link
+     * @param tenantId the tenant ID
+     * @return a copy of the links or routes
+     */
+    private <T> Set<T> getUnusable(
+            final ConcurrentHashMap<PhysicalLink, ConcurrentHashMap<Integer, Set<T>>> index,
+            final PhysicalLink physicalLink, final Integer tenantId) {
+        final Map<Integer, Set<T>> tmap = index.get(physicalLink);
+        final Set<T> values = (tmap == null) ? null : tmap.get(tenantId);
+        if (values == null) {
+            return Collections.emptySet();
+        }
+        return new HashSet<T>(values);
+    }
+
     @Override
     public boolean hasVirtualSwitch(PhysicalSwitch physicalSwitch, int tenantId) {
         final ConcurrentHashMap<Integer, OVXSwitch> sws = this.physicalSwitchMap
@@ -838,18 +990,34 @@ public final class OVXMap implements Mappable {
 	@Override
 	public void bindPhysicalPort(long physicalDpid, short portNumber,
 			Integer tenantId) {
-		this.physicalPortMap.put(physicalDpid+"-"+portNumber, tenantId);
+		ConcurrentHashMap<Short, Integer> ports = this.physicalPortMap
+				.get(physicalDpid);
+		if (ports == null) {
+			ports = new ConcurrentHashMap<Short, Integer>();
+			final ConcurrentHashMap<Short, Integer> prev = this.physicalPortMap
+					.putIfAbsent(physicalDpid, ports);
+			if (prev != null) {
+				ports = prev;
+			}
+		}
+		ports.put(portNumber, tenantId);
 	}
 
 	@Override
 	public Integer getTenantId(long physicalDpid, short portNumber) {
-		return this.physicalPortMap.getValueForExactKey(physicalDpid+"-"+portNumber);
+		final ConcurrentHashMap<Short, Integer> ports = this.physicalPortMap
+				.get(physicalDpid);
+		return ports == null ? null : ports.get(portNumber);
 	}
 
 	@Override
 	public void releasePhysicalPort(long physicalDpid, short portNumber,
 			Integer tenantId) {
-		this.physicalPortMap.remove(physicalDpid+"-"+portNumber);
+		final ConcurrentHashMap<Short, Integer> ports = this.physicalPortMap
+				.get(physicalDpid);
+		if (ports != null) {
+			ports.remove(portNumber);
+		}
 	}
 
 }
@@ -84,7 +84,7 @@ public final class IPMapper {
     	// modify by hujw
     	if (linkField == OVXLinkField.VLAN) {
             match.setDataLayerVirtualLan(tenantId.shortValue());
-            log.info("rewriteMatch: {}", match);    		
+            log.debug("rewriteMatch: {}", match);
     	} else if (linkField == OVXLinkField.MAC_ADDRESS) {
         	match.setNetworkSource(getPhysicalIp(tenantId, match.getNetworkSource()));
         	match.setNetworkDestination(getPhysicalIp(tenantId,
@@ -0,0 +1,343 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.elements.datapath;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.onrc.openvirtex.messages.OVXFlowMod;
+
+import org.openflow.protocol.OFMatch;
+
+/**
+ * Tuple-space index over the entries of a virtual flow table.
+ * <p>
+ * Entries are partitioned by the set of fields they match exactly (their
+ * tuple), and hashed on the values of those fields within each tuple.
+ * The definition of "exact" follows {@link OVXFlowEntry#compare}, so two
+ * matches that compare as strictly equal always fall in the same bucket.
+ * Entries are also partitioned by priority for overlap checking.
+ * <p>
+ * The index only narrows down candidates: callers still confirm them with
+ * {@link OVXFlowEntry#compare}. Writers are serialized on the index, while
+ * readers run unlocked.
+ */
+class FlowMatchIndex {
+
+    /* wildcard bits that decide if a field is matched exactly */
+    static final int FIELD_BITS = OFMatch.OFPFW_IN_PORT
+            | OFMatch.OFPFW_DL_VLAN | OFMatch.OFPFW_DL_SRC
+            | OFMatch.OFPFW_DL_DST | OFMatch.OFPFW_DL_TYPE
+            | OFMatch.OFPFW_NW_PROTO | OFMatch.OFPFW_TP_SRC
+            | OFMatch.OFPFW_TP_DST | OFMatch.OFPFW_NW_SRC_ALL
+            | OFMatch.OFPFW_NW_DST_ALL | OFMatch.OFPFW_DL_VLAN_PCP
+            | OFMatch.OFPFW_NW_TOS;
+
+    // exact-field mask -> match key -> cookies
+    private final ConcurrentHashMap<Integer, ConcurrentHashMap<MatchKey, Set<Long>>> tuples;
+    // priority -> cookies
+    private final ConcurrentHashMap<Short, Set<Long>> priorities;
+
+    FlowMatchIndex() {
+        this.tuples = new ConcurrentHashMap<Integer, ConcurrentHashMap<MatchKey, Set<Long>>>();
+        this.priorities = new ConcurrentHashMap<Short, Set<Long>>();
+    }
+
+    /**
+     * Indexes the given stored FlowMod.
+     *
+     * @param cookie the cookie the FlowMod is stored under
+     * @param fm the flow mod
+     */
+    synchronized void add(long cookie, OVXFlowMod fm) {
+        MatchKey key = new MatchKey(fm.getMatch(), fm.getMatch()
+                .getWildcards());
+        ConcurrentHashMap<MatchKey, Set<Long>> tuple = this.tuples
+                .get(key.mask);
+        if (tuple == null) {
+            tuple = new ConcurrentHashMap<MatchKey, Set<Long>>();
+            this.tuples.put(key.mask, tuple);
+        }
+        FlowMatchIndex.bucket(tuple, key).add(cookie);
+        FlowMatchIndex.bucket(this.priorities, fm.getPriority()).add(cookie);
+    }
+
+    /**
+     * Removes the given stored FlowMod from the index.
+     *
+     * @param cookie the cookie the FlowMod was stored under
+     * @param fm the flow mod
+     */
+    synchronized void remove(long cookie, OVXFlowMod fm) {
+        MatchKey key = new MatchKey(fm.getMatch(), fm.getMatch()
+                .getWildcards());
+        ConcurrentHashMap<MatchKey, Set<Long>> tuple = this.tuples
+                .get(key.mask);
+        if (tuple != null) {
+            FlowMatchIndex.unbucket(tuple, key, cookie);
+            if (tuple.isEmpty()) {
+                this.tuples.remove(key.mask);
+            }
+        }
+        FlowMatchIndex.unbucket(this.priorities, fm.getPriority(), cookie);
+    }
+
+    /**
+     * Empties the index.
+     */
+    synchronized void clear() {
+        this.tuples.clear();
+        this.priorities.clear();
+    }
+
+    /**
+     * Gets the entries that may strictly equal the given match.
+     *
+     * @param match the match of an incoming FlowMod
+     * @return the candidate cookies
+     */
+    Collection<Long> getEqualCandidates(OFMatch match) {
+        MatchKey key = new MatchKey(match,
+                OVXFlowEntry.convertToWcards(match));
+        Map<MatchKey, Set<Long>> tuple = this.tuples.get(key.mask);
+        if (tuple == null) {
+            return Collections.emptySet();
+        }
+        Set<Long> cookies = tuple.get(key);
+        if (cookies == null) {
+            return Collections.emptySet();
+        }
+        return cookies;
+    }
+
+    /**
+     * Gets the entries that may be equal to or more specific than the given
+     * match, i.e. those a non-strict delete would remove. Only tuples that
+     * match at least the same fields as the given match are visited.
+     *
+     * @param match the match of an incoming FlowMod
+     * @return the candidate cookies
+     */
+    List<Long> getCoveredCandidates(OFMatch match) {
+        MatchKey key = new MatchKey(match,
+                OVXFlowEntry.convertToWcards(match));
+        List<Long> cookies = new LinkedList<Long>();
+        for (Map.Entry<Integer, ConcurrentHashMap<MatchKey, Set<Long>>> tuple : this.tuples
+                .entrySet()) {
+            int mask = tuple.getKey();
+            if ((mask & key.mask) != key.mask) {
+                continue;
+            }
+            if (mask == key.mask) {
+                Set<Long> bucket = tuple.getValue().get(key);
+                if (bucket != null) {
+                    cookies.addAll(bucket);
+                }
+                continue;
+            }
+            for (Map.Entry<MatchKey, Set<Long>> entry : tuple.getValue()
+                    .entrySet()) {
+                if (entry.getKey().covers(key)) {
+                    cookies.addAll(entry.getValue());
+                }
+            }
+        }
+        return cookies;
+    }
+
+    /**
+     * Gets the entries with the given priority.
+     *
+     * @param priority the priority
+     * @return the cookies of entries with that priority
+     */
+    Collection<Long> getPriorityCandidates(short priority) {
+        Set<Long> cookies = this.priorities.get(priority);
+        if (cookies == null) {
+            return Collections.emptySet();
+        }
+        return cookies;
+    }
+
+    private static <K> Set<Long> bucket(Map<K, Set<Long>> map, K key) {
+        Set<Long> cookies = map.get(key);
+        if (cookies == null) {
+            cookies = Collections
+                    .newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+            map.put(key, cookies);
+        }
+        return cookies;
+    }
+
+    private static <K> void unbucket(Map<K, Set<Long>> map, K key,
+            long cookie) {
+        Set<Long> cookies = map.get(key);
+        if (cookies != null) {
+            cookies.remove(cookie);
+            if (cookies.isEmpty()) {
+                map.remove(key);
+            }
+        }
+    }
+
+    /**
+     * The exactly matched fields of an OFMatch and their values. Fields that
+     * are not matched exactly are zeroed so they do not affect equality.
+     */
+    static final class MatchKey {
+        private final int mask;
+        // in_port, dl_type, dl_vlan, dl_vlan_pcp, nw_proto
+        private final long header;
+        private final long dlSrc;
+        private final long dlDst;
+        // nw_src, nw_dst
+        private final long nw;
+        // nw_tos, tp_src, tp_dst
+        private final long tp;
+
+        /**
+         * Builds the key of a match given the wildcards to interpret it with.
+         *
+         * @param match the match
+         * @param wildcards the wildcards
+         */
+        MatchKey(OFMatch match, int wildcards) {
+            this.mask = ~wildcards & FIELD_BITS;
+            this.header = ((match.getInputPort() & 0xffffL) << 48
+                    | (match.getDataLayerType() & 0xffffL) << 32
+                    | (match.getDataLayerVirtualLan() & 0xffffL) << 16
+                    | (match.getDataLayerVirtualLanPriorityCodePoint() & 0xffL) << 8
+                    | match.getNetworkProtocol() & 0xffL)
+                    & MatchKey.headerMask(this.mask);
+            this.dlSrc = this.isExact(OFMatch.OFPFW_DL_SRC) ? FlowMatchIndex
+                    .macToLong(match.getDataLayerSource()) : 0;
+            this.dlDst = this.isExact(OFMatch.OFPFW_DL_DST) ? FlowMatchIndex
+                    .macToLong(match.getDataLayerDestination()) : 0;
+            this.nw = ((match.getNetworkSource() & 0xffffffffL) << 32
+                    | match.getNetworkDestination() & 0xffffffffL)
+                    & MatchKey.nwMask(this.mask);
+            this.tp = ((match.getNetworkTypeOfService() & 0xffL) << 32
+                    | (match.getTransportSource() & 0xffffL) << 16
+                    | match.getTransportDestination() & 0xffffL)
+                    & MatchKey.tpMask(this.mask);
+        }
+
+        private boolean isExact(int field) {
+            return (this.mask & field) != 0;
+        }
+
+        /**
+         * Checks if this key has the same values as the other key on all
+         * fields the other key matches exactly.
+         *
+         * @param other the less specific key
+         * @return true if this key is covered by the other key
+         */
+        boolean covers(MatchKey other) {
+            return (this.mask & other.mask) == other.mask
+                    && (this.header & MatchKey.headerMask(other.mask)) == other.header
+                    && (!other.isExact(OFMatch.OFPFW_DL_SRC) || this.dlSrc == other.dlSrc)
+                    && (!other.isExact(OFMatch.OFPFW_DL_DST) || this.dlDst == other.dlDst)
+                    && (this.nw & MatchKey.nwMask(other.mask)) == other.nw
+                    && (this.tp & MatchKey.tpMask(other.mask)) == other.tp;
+        }
+
+        private static long headerMask(int mask) {
+            long m = 0;
+            if ((mask & OFMatch.OFPFW_IN_PORT) != 0) {
+                m |= 0xffffL << 48;
+            }
+            if ((mask & OFMatch.OFPFW_DL_TYPE) != 0) {
+                m |= 0xffffL << 32;
+            }
+            if ((mask & OFMatch.OFPFW_DL_VLAN) != 0) {
+                m |= 0xffffL << 16;
+            }
+            if ((mask & OFMatch.OFPFW_DL_VLAN_PCP) != 0) {
+                m |= 0xffL << 8;
+            }
+            if ((mask & OFMatch.OFPFW_NW_PROTO) != 0) {
+                m |= 0xffL;
+            }
+            return m;
+        }
+
+        private static long nwMask(int mask) {
+            long m = 0;
+            if ((mask & OFMatch.OFPFW_NW_SRC_ALL) != 0) {
+                m |= 0xffffffffL << 32;
+            }
+            if ((mask & OFMatch.OFPFW_NW_DST_ALL) != 0) {
+                m |= 0xffffffffL;
+            }
+            return m;
+        }
+
+        private static long tpMask(int mask) {
+            long m = 0;
+            if ((mask & OFMatch.OFPFW_NW_TOS) != 0) {
+                m |= 0xffL << 32;
+            }
+            if ((mask & OFMatch.OFPFW_TP_SRC) != 0) {
+                m |= 0xffffL << 16;
+            }
+            if ((mask & OFMatch.OFPFW_TP_DST) != 0) {
+                m |= 0xffffL;
+            }
+            return m;
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = this.mask;
+            result = prime * result + (int) (this.header ^ (this.header >>> 32));
+            result = prime * result + (int) (this.dlSrc ^ (this.dlSrc >>> 32));
+            result = prime * result + (int) (this.dlDst ^ (this.dlDst >>> 32));
+            result = prime * result + (int) (this.nw ^ (this.nw >>> 32));
+            result = prime * result + (int) (this.tp ^ (this.tp >>> 32));
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof MatchKey)) {
+                return false;
+            }
+            MatchKey other = (MatchKey) obj;
+            return this.mask == other.mask && this.header == other.header
+                    && this.dlSrc == other.dlSrc && this.dlDst == other.dlDst
+                    && this.nw == other.nw && this.tp == other.tp;
+        }
+    }
+
+    private static long macToLong(byte[] mac) {
+        long value = 0;
+        for (int i = 0; i < mac.length; i++) {
+            value = (value << 8) | (mac[i] & 0xffL);
+        }
+        return value;
+    }
+
+}
@@ -16,10 +16,14 @@
 package net.onrc.openvirtex.elements.datapath;
 
 import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
 
 import net.onrc.openvirtex.exceptions.MappingException;
 import net.onrc.openvirtex.messages.OVXFlowMod;
 
+import org.openflow.protocol.OFMatch;
+
 /**
  * Base interface for the flow table.
  */
@@ -42,6 +46,26 @@ public interface FlowTable {
      */
     public OVXFlowMod getFlowMod(Long cookie) throws MappingException;
 
+    /**
+     * Gets the FlowMod stored for the given cookie without copying it. The
+     * FlowMod must not be modified.
+     *
+     * @param cookie the cookie
+     * @return the FlowMod, null if the cookie is not found
+     */
+    public OVXFlowMod peekFlowMod(long cookie);
+
+    /**
+     * Gets the cookies of the entries a statistics request applies to: the
+     * entries that the given match covers, as for a non-strict delete, with
+     * an output action to the given port unless it is OFPP_NONE.
+     *
+     * @param match the match
+     * @param outPort the virtual output port, or OFPP_NONE
+     * @return the cookies
+     */
+    public Collection<Long> getCookies(OFMatch match, short outPort);
+
     /**
      * Checks if a FlowMod with given cookie exists in the FlowTable.
      *
@@ -72,9 +96,22 @@ public interface FlowTable {
      */
     public long addFlowMod(final OVXFlowMod flowmod, long cookie);
 
+    /**
+     * Gets the FlowMods with an output action to the given port.
+     *
+     * @param port the virtual port number
+     * @return the FlowMods
+     */
+    public Collection<OVXFlowMod> getFlowModsByOutPort(short port);
+
     /**
      * @return The contents of this flow table.
      */
     public abstract Collection<OVXFlowMod> getFlowTable();
 
+    /**
+     * @return The contents of this flow table, keyed by physical cookie.
+     */
+    public abstract Set<Map.Entry<Long, OVXFlowMod>> getFlowEntries();
+
 }
@@ -29,6 +29,7 @@ import net.onrc.openvirtex.elements.link.PhysicalLink;
 import net.onrc.openvirtex.elements.port.OVXPort;
 import net.onrc.openvirtex.exceptions.IndexOutOfBoundException;
 import net.onrc.openvirtex.exceptions.RoutingAlgorithmException;
+import net.onrc.openvirtex.routing.RouteCache;
 import net.onrc.openvirtex.routing.RoutingAlgorithms;
 import net.onrc.openvirtex.routing.RoutingAlgorithms.RoutingType;
 import net.onrc.openvirtex.routing.SwitchRoute;
@@ -53,6 +54,8 @@ public class OVXBigSwitch extends OVXSwitch {
     private final BitSetIndex routeCounter;
     // The calculated routes
     private final ConcurrentHashMap<OVXPort, ConcurrentHashMap<OVXPort, SwitchRoute>> routeMap;
+    // Shortest path trees over the physical switches of this switch
+    private final RouteCache routeCache;
 
     public OVXBigSwitch(final long switchId, final int tenantId) {
         super(switchId, tenantId);
@@ -63,6 +66,7 @@ public class OVXBigSwitch extends OVXSwitch {
                     + this.getSwitchName());
         }
         this.routeMap = new ConcurrentHashMap<OVXPort, ConcurrentHashMap<OVXPort, SwitchRoute>>();
+        this.routeCache = new RouteCache(this);
 
         this.routeCounter = new BitSetIndex(IndexType.ROUTE_ID);
     }
@@ -154,6 +158,15 @@ public class OVXBigSwitch extends OVXSwitch {
         return this.routeMap;
     }
 
+    /**
+     * Gets the cache of shortest path trees used to compute routes.
+     *
+     * @return the route cache
+     */
+    public RouteCache getRouteCache() {
+        return this.routeCache;
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -81,7 +81,7 @@ public class OVXFlowEntry implements Comparable<OVXFlowEntry> {
 
         OFMatch tmatch = this.flowmod.getMatch();
         int twcard = tmatch.getWildcards();
-        int owcard = this.convertToWcards(omatch);
+        int owcard = convertToWcards(omatch);
 
         /* inport */
         if ((twcard & OFMatch.OFPFW_IN_PORT) == (owcard & OFMatch.OFPFW_IN_PORT)) {
@@ -223,11 +223,9 @@ public class OVXFlowEntry implements Comparable<OVXFlowEntry> {
      *
      * @param omatch
      *            The OFMatch of the FlowMod we are comparing entries against
-     * @param owcard
-     *            The wildcard field of the FlowMod.
      * @return the modified wildcard value (a copy).
      */
-    private int convertToWcards(OFMatch omatch) {
+    static int convertToWcards(OFMatch omatch) {
         int owcard = omatch.getWildcards();
         if (omatch.getNetworkDestination() == 0) {
             owcard |= OFMatch.OFPFW_NW_DST_ALL | OFMatch.OFPFW_NW_DST_MASK;
@@ -15,13 +15,14 @@
  ******************************************************************************/
 package net.onrc.openvirtex.elements.datapath;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -31,6 +32,9 @@ import org.openflow.protocol.OFFlowMod;
 import org.openflow.protocol.OFMatch;
 import org.openflow.protocol.OFPort;
 import org.openflow.protocol.OFError.OFFlowModFailedCode;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.action.OFActionType;
 
 import net.onrc.openvirtex.exceptions.MappingException;
 import net.onrc.openvirtex.exceptions.SwitchMappingException;
@@ -51,6 +55,8 @@ public class OVXFlowTable implements FlowTable {
     protected ConcurrentHashMap<Long, OVXFlowMod> flowmodMap;
     // Reverse map of FlowMod hashcode to cookie
     protected ConcurrentHashMap<Integer, Long> cookieMap;
+    // Map of virtual output ports to the cookies of the FlowMods using them
+    protected ConcurrentHashMap<Short, Set<Long>> outPortMap;
 
     /**
      * Temporary solution that should be replaced by something that doesn't
@@ -80,6 +86,7 @@ public class OVXFlowTable implements FlowTable {
     public OVXFlowTable(OVXSwitch vsw) {
         this.flowmodMap = new ConcurrentHashMap<Long, OVXFlowMod>();
         this.cookieMap = new ConcurrentHashMap<Integer, Long>();
+        this.outPortMap = new ConcurrentHashMap<Short, Set<Long>>();
         this.cookieCounter = new AtomicInteger(1);
         this.freeList = new LinkedList<Long>();
         this.vswitch = vsw;
@@ -153,19 +160,15 @@ public class OVXFlowTable implements FlowTable {
                 }
                 this.flowmodMap.clear();
                 this.cookieMap.clear();
+                this.clearIndex();
                 return false;
             } else {
                 /* remove matching flow entries, and let FlowMod be sent down */
-                Iterator<Map.Entry<Long, OVXFlowMod>> itr = this.flowmodMap
-                        .entrySet().iterator();
-                OVXFlowEntry fe = new OVXFlowEntry();
-                while (itr.hasNext()) {
-                    Map.Entry<Long, OVXFlowMod> entry = itr.next();
-                    fe.setFlowMod(entry.getValue());
-                    int overlap = fe.compare(fm.getMatch(), strict);
-                    if (overlap == OVXFlowEntry.EQUAL) {
-                        this.cookieMap.remove(entry.getValue().hashCode());
-                        itr.remove();
+                for (Long cookie : this.findMatches(fm.getMatch(), strict)) {
+                    OVXFlowMod old = this.flowmodMap.remove(cookie);
+                    if (old != null) {
+                        this.cookieMap.remove(old.hashCode());
+                        this.unindexFlowMod(cookie, old);
                     }
                 }
                 return true;
@@ -185,21 +188,14 @@ public class OVXFlowTable implements FlowTable {
      */
     private boolean doFlowModAdd(OVXFlowMod fm) {
         if ((fm.getFlags() & OFFlowMod.OFPFF_CHECK_OVERLAP) == OFFlowMod.OFPFF_CHECK_OVERLAP) {
-            OVXFlowEntry fe = new OVXFlowEntry();
-            for (OVXFlowMod fmod : this.flowmodMap.values()) {
-                /*
-                 * if not disjoint AND same priority send up OVERLAP error and
-                 * drop it
-                 */
-                fe.setFlowMod(fmod);
-                int res = fe.compare(fm.getMatch(), false);
-                if ((res != OVXFlowEntry.DISJOINT)
-                        & (fm.getPriority() == fe.getPriority())) {
-                    this.vswitch.sendMsg(OVXMessageUtil.makeErrorMsg(
-                            OFFlowModFailedCode.OFPFMFC_OVERLAP, fm),
-                            this.vswitch);
-                    return false;
-                }
+            /*
+             * if not disjoint AND same priority send up OVERLAP error and drop
+             * it
+             */
+            if (this.isOverlapping(fm)) {
+                this.vswitch.sendMsg(OVXMessageUtil.makeErrorMsg(
+                        OFFlowModFailedCode.OFPFMFC_OVERLAP, fm), this.vswitch);
+                return false;
             }
         }
         return doFlowModModify(fm);
@@ -212,21 +208,17 @@ public class OVXFlowTable implements FlowTable {
      * @return true if FlowMod should be written South
      */
     private boolean doFlowModModify(OVXFlowMod fm) {
-        OVXFlowEntry fe = new OVXFlowEntry();
-        int res;
-        for (Map.Entry<Long, OVXFlowMod> fmod : this.flowmodMap.entrySet()) {
-            fe.setFlowMod(fmod.getValue());
-            res = fe.compare(fm.getMatch(), true);
-            /* replace table entry that strictly matches with given FlowMod. */
-            if (res == OVXFlowEntry.EQUAL) {
-                long c = fmod.getKey();
-                log.info("replacing equivalent FlowEntry [cookie={}]", c);
-                OVXFlowMod old = this.flowmodMap.get(c);
+        /* replace table entry that strictly matches with given FlowMod. */
+        Long c = this.findEqual(fm.getMatch());
+        if (c != null) {
+            log.info("replacing equivalent FlowEntry [cookie={}]", c);
+            OVXFlowMod old = this.flowmodMap.get(c);
+            if (old != null) {
                 this.cookieMap.remove(old.hashCode());
-                this.addFlowMod(fm, c);
-                /* return cookie to pool and use the previous cookie */
-                return true;
             }
+            this.addFlowMod(fm, c);
+            /* return cookie to pool and use the previous cookie */
+            return true;
         }
         /* make a new cookie, add FlowMod */
         long newc = this.getCookie();
@@ -249,6 +241,43 @@ public class OVXFlowTable implements FlowTable {
         return fm.clone();
     }
 
+    public OVXFlowMod peekFlowMod(long cookie) {
+        return this.flowmodMap.get(cookie);
+    }
+
+    /**
+     * Gets the cookies of the entries a statistics request applies to. The
+     * output port index narrows requests on a port, and
+     * {@link #findMatches(OFMatch, boolean)} the others.
+     *
+     * @param match the match
+     * @param outPort the virtual output port, or OFPP_NONE
+     * @return the cookies
+     */
+    public Collection<Long> getCookies(OFMatch match, short outPort) {
+        // the -1 is for beacon...
+        final boolean all = match.getWildcardObj().isFull()
+                || match.getWildcards() == -1;
+        if (outPort == OFPort.OFPP_NONE.getValue()) {
+            return all ? new ArrayList<Long>(this.flowmodMap.keySet())
+                    : this.findMatches(match, false);
+        }
+        Set<Long> cookies = this.outPortMap.get(outPort);
+        if (cookies == null) {
+            return Collections.emptyList();
+        }
+        List<Long> matches = new ArrayList<Long>(cookies.size());
+        OVXFlowEntry fe = new OVXFlowEntry();
+        for (Long cookie : cookies) {
+            OVXFlowMod fm = this.flowmodMap.get(cookie);
+            if (fm != null
+                    && (all || fe.setFlowMod(fm).compare(match, false) == OVXFlowEntry.EQUAL)) {
+                matches.add(cookie);
+            }
+        }
+        return matches;
+    }
+
     /**
      * Checks if the cookie is present in the flow table.
      *
@@ -278,26 +307,20 @@ public class OVXFlowTable implements FlowTable {
     public final long getCookie(OVXFlowMod flowmod, Boolean cflag) {
         if (cflag) {
             long cookie = this.getCookie();
-            OVXFlowEntry fe = new OVXFlowEntry();
-            int res;
-            for (Map.Entry<Long, OVXFlowMod> fmod : this.flowmodMap.entrySet()) {
-                fe.setFlowMod(fmod.getValue());
-                res = fe.compare(flowmod.getMatch(), true);
-                /* replace table entry that strictly matches with given FlowMod. */
-                if (res == OVXFlowEntry.EQUAL) {
-                    long c = fmod.getKey();
-                    log.info(
-                            "replacing equivalent FlowEntry with new [cookie={}]",
-                            cookie);
-                    OVXFlowMod old = this.flowmodMap.get(c);
+            /* replace table entry that strictly matches with given FlowMod. */
+            Long c = this.findEqual(flowmod.getMatch());
+            if (c != null) {
+                log.info("replacing equivalent FlowEntry with new [cookie={}]",
+                        cookie);
+                OVXFlowMod old = this.flowmodMap.remove(c);
+                if (old != null) {
                     this.cookieMap.remove(old.hashCode());
-                    this.flowmodMap.remove(c);
-                    this.addFlowMod(flowmod, cookie);
-                    /* return cookie to pool and use the previous cookie */
-                    return cookie;
+                    this.unindexFlowMod(c, old);
                 }
+                this.addFlowMod(flowmod, cookie);
+                /* return cookie to pool and use the previous cookie */
+                return cookie;
             }
-
         }
         Long cookie = this.cookieMap.get(flowmod.hashCode());
         if (cookie == null) {
@@ -314,8 +337,12 @@ public class OVXFlowTable implements FlowTable {
      * @return the cookie
      */
     public long addFlowMod(final OVXFlowMod flowmod, long cookie) {
-        this.flowmodMap.put(cookie, flowmod);
+        OVXFlowMod old = this.flowmodMap.put(cookie, flowmod);
+        if (old != null) {
+            this.unindexFlowMod(cookie, old);
+        }
         this.cookieMap.put(flowmod.hashCode(), cookie);
+        this.indexFlowMod(cookie, flowmod);
         return cookie;
     }
 
@@ -338,11 +365,151 @@ public class OVXFlowTable implements FlowTable {
             OVXFlowMod ret = this.flowmodMap.remove(cookie);
             if (ret != null) {
                 this.cookieMap.remove(ret.hashCode());
+                this.unindexFlowMod(cookie, ret);
             }
             return ret;
         }
     }
 
+    /**
+     * Finds the entry whose match is strictly equal to the given match.
+     * This implementation scans the whole table.
+     *
+     * @param match the match to look up
+     * @return the cookie of the equal entry, or null if there is none
+     */
+    protected Long findEqual(OFMatch match) {
+        OVXFlowEntry fe = new OVXFlowEntry();
+        for (Map.Entry<Long, OVXFlowMod> fmod : this.flowmodMap.entrySet()) {
+            fe.setFlowMod(fmod.getValue());
+            if (fe.compare(match, true) == OVXFlowEntry.EQUAL) {
+                return fmod.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the entries that compare as equal to the given match.
+     * This implementation scans the whole table.
+     *
+     * @param match the match to look up
+     * @param strict true if a STRICT match
+     * @return the cookies of the matching entries
+     */
+    protected List<Long> findMatches(OFMatch match, boolean strict) {
+        List<Long> cookies = new LinkedList<Long>();
+        OVXFlowEntry fe = new OVXFlowEntry();
+        for (Map.Entry<Long, OVXFlowMod> fmod : this.flowmodMap.entrySet()) {
+            fe.setFlowMod(fmod.getValue());
+            if (fe.compare(match, strict) == OVXFlowEntry.EQUAL) {
+                cookies.add(fmod.getKey());
+            }
+        }
+        return cookies;
+    }
+
+    /**
+     * Checks if the given FlowMod overlaps with an entry of the same
+     * priority. This implementation scans the whole table.
+     *
+     * @param fm the flow mod
+     * @return true if an overlapping entry exists
+     */
+    protected boolean isOverlapping(OVXFlowMod fm) {
+        OVXFlowEntry fe = new OVXFlowEntry();
+        for (OVXFlowMod fmod : this.flowmodMap.values()) {
+            fe.setFlowMod(fmod);
+            if (fm.getPriority() == fe.getPriority()
+                    && fe.compare(fm.getMatch(), false) != OVXFlowEntry.DISJOINT) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Called whenever a FlowMod is stored under the given cookie, so that
+     * subclasses can maintain their lookup structures. Indexes the FlowMod
+     * by output port here, so overriding methods must call it.
+     *
+     * @param cookie the cookie
+     * @param fm the stored flow mod
+     */
+    protected void indexFlowMod(long cookie, OVXFlowMod fm) {
+        for (Short port : OVXFlowTable.getOutPorts(fm)) {
+            Set<Long> cookies = this.outPortMap.get(port);
+            if (cookies == null) {
+                cookies = Collections
+                        .newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+                Set<Long> prev = this.outPortMap.putIfAbsent(port, cookies);
+                if (prev != null) {
+                    cookies = prev;
+                }
+            }
+            cookies.add(cookie);
+        }
+    }
+
+    /**
+     * Called whenever the FlowMod stored under the given cookie is removed
+     * or replaced. Overriding methods must call this implementation.
+     *
+     * @param cookie the cookie
+     * @param fm the removed flow mod
+     */
+    protected void unindexFlowMod(long cookie, OVXFlowMod fm) {
+        for (Short port : OVXFlowTable.getOutPorts(fm)) {
+            Set<Long> cookies = this.outPortMap.get(port);
+            if (cookies != null) {
+                cookies.remove(cookie);
+            }
+        }
+    }
+
+    /**
+     * Called when the whole table is flushed. Overriding methods must call
+     * this implementation.
+     */
+    protected void clearIndex() {
+        this.outPortMap.clear();
+    }
+
+    private static List<Short> getOutPorts(OVXFlowMod fm) {
+        List<Short> ports = new LinkedList<Short>();
+        if (fm.getActions() == null) {
+            return ports;
+        }
+        for (OFAction act : fm.getActions()) {
+            if (act.getType() == OFActionType.OUTPUT) {
+                ports.add(((OFActionOutput) act).getPort());
+            }
+        }
+        return ports;
+    }
+
+    /**
+     * Gets the FlowMods with an output action to the given port, without
+     * scanning the table.
+     *
+     * @param port the virtual port number
+     * @return the FlowMods
+     */
+    public Collection<OVXFlowMod> getFlowModsByOutPort(short port) {
+        Set<Long> cookies = this.outPortMap.get(port);
+        if (cookies == null) {
+            return Collections.emptyList();
+        }
+        List<OVXFlowMod> fms = new ArrayList<OVXFlowMod>(cookies.size());
+        for (Long cookie : cookies) {
+            OVXFlowMod fm = this.flowmodMap.get(cookie);
+            if (fm != null) {
+                fms.add(fm);
+            }
+        }
+        return fms;
+    }
+
     /**
      * Fetches a usable cookie for FlowMod storage. If no cookies are available,
      * generate a new physical cookie from the OVXSwitch tenant ID and
@@ -383,4 +550,14 @@ public class OVXFlowTable implements FlowTable {
         return Collections.unmodifiableCollection(this.flowmodMap.values());
     }
 
+    /**
+     * Gets an unmodifiable view of the flow table entries, keyed by
+     * physical cookie.
+     *
+     * @return the flow table entries
+     */
+    public Set<Map.Entry<Long, OVXFlowMod>> getFlowEntries() {
+        return Collections.unmodifiableMap(this.flowmodMap).entrySet();
+    }
+
 }
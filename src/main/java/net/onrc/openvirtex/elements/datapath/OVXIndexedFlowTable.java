@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.elements.datapath;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import net.onrc.openvirtex.messages.OVXFlowMod;
+
+import org.openflow.protocol.OFMatch;
+
+/**
+ * Virtual flow table that looks up entries through a {@link FlowMatchIndex}
+ * instead of scanning the whole table. Strict lookups are a hash lookup in
+ * the tuple of the given match, non-strict deletes only visit tuples that
+ * are at least as specific as the given match, and overlap checks only
+ * visit entries of the same priority.
+ */
+public class OVXIndexedFlowTable extends OVXFlowTable {
+
+    private final FlowMatchIndex index;
+
+    /**
+     * Instantiates a new indexed flow table associated to the given
+     * virtual switch.
+     *
+     * @param vsw the virtual switch
+     */
+    public OVXIndexedFlowTable(OVXSwitch vsw) {
+        super(vsw);
+        this.index = new FlowMatchIndex();
+    }
+
+    @Override
+    protected Long findEqual(OFMatch match) {
+        OVXFlowEntry fe = new OVXFlowEntry();
+        for (Long cookie : this.index.getEqualCandidates(match)) {
+            OVXFlowMod fm = this.flowmodMap.get(cookie);
+            if (fm != null
+                    && fe.setFlowMod(fm).compare(match, true) == OVXFlowEntry.EQUAL) {
+                return cookie;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected List<Long> findMatches(OFMatch match, boolean strict) {
+        List<Long> cookies = new LinkedList<Long>();
+        OVXFlowEntry fe = new OVXFlowEntry();
+        for (Long cookie : strict ? this.index.getEqualCandidates(match)
+                : this.index.getCoveredCandidates(match)) {
+            OVXFlowMod fm = this.flowmodMap.get(cookie);
+            if (fm != null
+                    && fe.setFlowMod(fm).compare(match, strict) == OVXFlowEntry.EQUAL) {
+                cookies.add(cookie);
+            }
+        }
+        return cookies;
+    }
+
+    @Override
+    protected boolean isOverlapping(OVXFlowMod fm) {
+        OVXFlowEntry fe = new OVXFlowEntry();
+        for (Long cookie : this.index.getPriorityCandidates(fm.getPriority())) {
+            OVXFlowMod fmod = this.flowmodMap.get(cookie);
+            if (fmod != null
+                    && fe.setFlowMod(fmod).compare(fm.getMatch(), false) != OVXFlowEntry.DISJOINT) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    protected void indexFlowMod(long cookie, OVXFlowMod fm) {
+        super.indexFlowMod(cookie, fm);
+        this.index.add(cookie, fm);
+    }
+
+    @Override
+    protected void unindexFlowMod(long cookie, OVXFlowMod fm) {
+        super.unindexFlowMod(cookie, fm);
+        this.index.remove(cookie, fm);
+    }
+
+    @Override
+    protected void clearIndex() {
+        super.clearIndex();
+        this.index.clear();
+    }
+
+}
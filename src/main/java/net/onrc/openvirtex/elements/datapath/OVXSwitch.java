@@ -18,10 +18,14 @@ package net.onrc.openvirtex.elements.datapath;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import net.onrc.openvirtex.api.service.handlers.TenantHandler;
 import net.onrc.openvirtex.core.OpenVirteXController;
@@ -34,8 +38,10 @@ import java.util.TreeSet;
 
 import net.onrc.openvirtex.elements.datapath.role.RoleManager;
 import net.onrc.openvirtex.elements.datapath.role.RoleManager.Role;
+import net.onrc.openvirtex.elements.datapath.statistics.FlowStatisticsCache;
 import net.onrc.openvirtex.elements.host.Host;
 import net.onrc.openvirtex.elements.network.OVXNetwork;
+import net.onrc.openvirtex.elements.network.PhysicalNetwork;
 import net.onrc.openvirtex.elements.port.OVXPort;
 import net.onrc.openvirtex.exceptions.ControllerStateException;
 import net.onrc.openvirtex.exceptions.DuplicateIndexException;
@@ -50,21 +56,32 @@ import net.onrc.openvirtex.messages.OVXMessageUtil;
 import net.onrc.openvirtex.messages.OVXPacketIn;
 import net.onrc.openvirtex.util.BitSetIndex;
 import net.onrc.openvirtex.util.BitSetIndex.IndexType;
+import net.onrc.openvirtex.util.LatencyHistogram;
+import net.onrc.openvirtex.util.Metrics;
+import net.onrc.openvirtex.util.Metrics.Gauge;
+import net.onrc.openvirtex.util.MetricsRegistry;
+import net.onrc.openvirtex.util.StripedCounter;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
 import org.openflow.protocol.OFFeaturesReply;
 import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFPhysicalPort;
 import org.openflow.protocol.OFPort;
 import org.openflow.protocol.OFVendor;
 import org.openflow.protocol.OFError.OFBadRequestCode;
-import org.openflow.util.LRULinkedHashMap;
 import org.openflow.vendor.nicira.OFNiciraVendorData;
 import org.openflow.vendor.nicira.OFRoleReplyVendorData;
 import org.openflow.vendor.nicira.OFRoleRequestVendorData;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
 /**
  * The base virtual switch.
  */
@@ -79,7 +96,6 @@ public abstract class OVXSwitch extends Switch<OVXPort> implements Persistable {
      */
     public static final String DPDESCSTRING = "OpenVirteX Virtual Switch";
     protected static int supportedActions = 0xFFF;
-    protected static int bufferDimension = 4096;
     protected Integer tenantId = 0;
     // default in spec is 128
     protected Short missSendLen = 128;
@@ -87,10 +103,16 @@ public abstract class OVXSwitch extends Switch<OVXPort> implements Persistable {
     protected OVXSwitchCapabilities capabilities;
     // The backoff counter for this switch when unconnected
     private AtomicInteger backOffCounter = null;
-    protected LRULinkedHashMap<Integer, OVXPacketIn> bufferMap;
-    private AtomicInteger bufferId = null;
+    protected PacketBuffer bufferMap;
     private final BitSetIndex portCounter;
     protected FlowTable flowTable;
+    private final FlowStatisticsCache flowStats;
+    // Physical switches sent messages since the last barrier, and sends
+    // waiting for paths to be installed
+    private final Set<PhysicalSwitch> barrierTargets;
+    private final Set<ListenableFuture<?>> pendingSends;
+    // The last barrier of the tenant, replied to before the next one
+    private final AtomicReference<ListenableFuture<Void>> lastBarrier;
     // Used to save which channel the message came in on
     private final XidTranslator<Channel> channelMux;
     /**
@@ -99,6 +121,12 @@ public abstract class OVXSwitch extends Switch<OVXPort> implements Persistable {
      * the current role of a controller.
      */
     private final RoleManager roleMan;
+    // Metrics of the switch, in the registry while the switch is registered
+    private final Metrics metrics = new Metrics();
+    private final StripedCounter messagesIn = this.metrics
+            .getCounter("messagesIn");
+    private final LatencyHistogram devirtualizeTime = this.metrics
+            .getHistogram("devirtualizeTime");
 
     /**
      * Instantiates a new OVX switch.
@@ -114,11 +142,22 @@ public abstract class OVXSwitch extends Switch<OVXPort> implements Persistable {
         this.capabilities = new OVXSwitchCapabilities();
         this.backOffCounter = new AtomicInteger();
         this.resetBackOff();
-        this.bufferMap = new LRULinkedHashMap<Integer, OVXPacketIn>(
-                OVXSwitch.bufferDimension);
+        final OpenVirteXController ctrl = OpenVirteXController.getInstance();
+        this.bufferMap = new PacketBuffer(ctrl.getBufferDimension(),
+                ctrl.getBufferExpiry(), ctrl.getBufferDataLength());
         this.portCounter = new BitSetIndex(IndexType.PORT_ID);
-        this.bufferId = new AtomicInteger(1);
-        this.flowTable = new OVXFlowTable(this);
+        if (ctrl.getLinearFlowTable()) {
+            this.flowTable = new OVXFlowTable(this);
+        } else {
+            this.flowTable = new OVXIndexedFlowTable(this);
+        }
+        this.flowStats = new FlowStatisticsCache(this);
+        this.barrierTargets = Collections
+                .newSetFromMap(new ConcurrentHashMap<PhysicalSwitch, Boolean>());
+        this.pendingSends = Collections
+                .newSetFromMap(new ConcurrentHashMap<ListenableFuture<?>, Boolean>());
+        this.lastBarrier = new AtomicReference<ListenableFuture<Void>>(
+                Futures.<Void> immediateFuture(null));
         this.roleMan = new RoleManager();
         this.channelMux = new XidTranslator<Channel>();
 
@@ -253,6 +292,48 @@ public abstract class OVXSwitch extends Switch<OVXPort> implements Persistable {
     public void register(final List<PhysicalSwitch> physicalSwitches) {
         this.map.addSwitches(physicalSwitches, this);
         DBManager.getInstance().save(this);
+        this.addGauges();
+        MetricsRegistry.getInstance().getTenant(this.tenantId)
+                .getGroup("switches")
+                .putGroup(MetricsRegistry.name(this.switchId), this.metrics);
+    }
+
+    /**
+     * Adds the counters kept by the packet buffer and controller XID
+     * translator of this switch to its metrics.
+     */
+    private void addGauges() {
+        this.metrics.addGauge("bufferedPackets", new Gauge() {
+            @Override
+            public Object getValue() {
+                return OVXSwitch.this.bufferMap.getBufferedCount();
+            }
+        });
+        this.metrics.addGauge("bufferOverwrites", new Gauge() {
+            @Override
+            public Object getValue() {
+                return OVXSwitch.this.bufferMap.getOverwriteCount();
+            }
+        });
+        this.metrics.addGauge("bufferMisses", new Gauge() {
+            @Override
+            public Object getValue() {
+                return OVXSwitch.this.bufferMap.getMissCount();
+            }
+        });
+        this.metrics.addGauge("xidEvictions", new Gauge() {
+            @Override
+            public Object getValue() {
+                return OVXSwitch.this.channelMux.getEvictionCount();
+            }
+        });
+    }
+
+    /**
+     * @return the metrics of this switch
+     */
+    public Metrics getMetrics() {
+        return this.metrics;
     }
 
     /**
@@ -262,6 +343,12 @@ public abstract class OVXSwitch extends Switch<OVXPort> implements Persistable {
     public void unregister() {
         DBManager.getInstance().remove(this);
         this.isActive = false;
+        final Metrics tenant = MetricsRegistry.getInstance().findTenant(
+                this.tenantId);
+        if (tenant != null) {
+            tenant.getGroup("switches").removeGroup(
+                    MetricsRegistry.name(this.switchId), this.metrics);
+        }
         if (this.getPorts() != null) {
             OVXNetwork net;
             try {
@@ -397,7 +484,7 @@ public abstract class OVXSwitch extends Switch<OVXPort> implements Persistable {
          */
         this.addDefaultPort(portList);
         ofReply.setPorts(portList);
-        ofReply.setBuffers(OVXSwitch.bufferDimension);
+        ofReply.setBuffers(this.bufferMap.getCapacity());
         ofReply.setTables((byte) 1);
         ofReply.setCapabilities(this.capabilities.getOVXSwitchCapabilities());
         ofReply.setActions(OVXSwitch.supportedActions);
@@ -449,23 +536,30 @@ public abstract class OVXSwitch extends Switch<OVXPort> implements Persistable {
      * @param pktIn the packet_in
      * @return the buffer ID
      */
-    public synchronized int addToBufferMap(final OVXPacketIn pktIn) {
-        // TODO: this isn't thread safe... fix it
-        this.bufferId.compareAndSet(OVXSwitch.bufferDimension, 0);
-        this.bufferMap.put(this.bufferId.get(), new OVXPacketIn(pktIn));
-        return this.bufferId.getAndIncrement();
+    public int addToBufferMap(final OVXPacketIn pktIn) {
+        return this.bufferMap.add(pktIn.getBufferId(), pktIn.getInPort(),
+                pktIn.getPacketData());
     }
 
     /**
-     * Gets a packet_in from a given buffer ID.
+     * Gets a buffered packet_in from a given buffer ID.
      *
      * @param bufId the buffer ID
-     * @return packet_in packet
+     * @return the buffered packet_in, or null if unknown or expired
      */
-    public OVXPacketIn getFromBufferMap(final Integer bufId) {
+    public PacketBuffer.Entry getFromBufferMap(final int bufId) {
         return this.bufferMap.get(bufId);
     }
 
+    /**
+     * Gets the buffer of packet_ins sent to the controller.
+     *
+     * @return the packet buffer
+     */
+    public PacketBuffer getPacketBuffer() {
+        return this.bufferMap;
+    }
+
     /**
      * Gets the flow table.
      *
@@ -475,6 +569,15 @@ public abstract class OVXSwitch extends Switch<OVXPort> implements Persistable {
         return this.flowTable;
     }
 
+    /**
+     * Gets the flow statistics polled from the physical switches.
+     *
+     * @return the flow statistics cache
+     */
+    public FlowStatisticsCache getFlowStatisticsCache() {
+        return this.flowStats;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
@@ -545,6 +648,7 @@ public abstract class OVXSwitch extends Switch<OVXPort> implements Persistable {
         /*
          * Save the channel the msg came in on
          */
+        final long start = System.nanoTime();
         msg.setXid(channelMux.translate(msg.getXid(), channel));
         try {
             /*
@@ -560,6 +664,15 @@ public abstract class OVXSwitch extends Switch<OVXPort> implements Persistable {
         } catch (final ClassCastException e) {
             OVXSwitch.log.error("Received illegal message: " + msg);
         }
+        final long elapsed = System.nanoTime() - start;
+        this.messagesIn.increment();
+        this.devirtualizeTime.record(elapsed);
+        if (msg instanceof OVXFlowMod) {
+            final Metrics tenant = MetricsRegistry.getInstance().getTenant(
+                    this.tenantId);
+            tenant.getCounter("flowMods").increment();
+            tenant.getHistogram("flowModTime").record(elapsed);
+        }
     }
 
     @Override
@@ -589,6 +702,177 @@ public abstract class OVXSwitch extends Switch<OVXPort> implements Persistable {
         return this.flowTable.getFlowMod(cookie).clone();
     }
 
+    /**
+     * Records that a message of this switch was sent to the given physical
+     * switch, so the next barrier covers it.
+     *
+     * @param psw the physical switch
+     */
+    public void addBarrierTarget(final PhysicalSwitch psw) {
+        this.barrierTargets.add(psw);
+    }
+
+    /**
+     * Records a send that is deferred until the given future completes, so
+     * the next barrier waits for it.
+     *
+     * @param send the future completed once the messages are sent
+     */
+    public void addPendingSend(final ListenableFuture<?> send) {
+        this.pendingSends.add(send);
+        send.addListener(new Runnable() {
+            @Override
+            public void run() {
+                OVXSwitch.this.pendingSends.remove(send);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    /**
+     * Sends messages once the pending sends of this switch are done, and
+     * once the given future completes, so that they do not overtake a flow
+     * mod waiting for the paths it leads to. The send is run right away if
+     * there is nothing to wait for.
+     *
+     * @param after the future to wait for as well, or null
+     * @param send sends the messages
+     */
+    public void sendAfterPending(final ListenableFuture<?> after,
+            final Runnable send) {
+        final SettableFuture<Void> sent = SettableFuture.create();
+        final ListenableFuture<?> ready;
+        synchronized (this.pendingSends) {
+            final List<ListenableFuture<?>> waits = new ArrayList<ListenableFuture<?>>(
+                    this.pendingSends);
+            if (after != null) {
+                waits.add(after);
+            }
+            if (waits.isEmpty()) {
+                ready = null;
+            } else {
+                ready = Futures.successfulAsList(waits);
+                this.addPendingSend(sent);
+            }
+        }
+        if (ready == null) {
+            send.run();
+            return;
+        }
+        ready.addListener(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    send.run();
+                } finally {
+                    sent.set(null);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    /**
+     * Sends a barrier to every physical switch this switch sent messages to
+     * since its last barrier, once the pending sends are done, and waits
+     * for the replies for the configured barrier timeout.
+     *
+     * @return a future completed when all physical switches replied,
+     *         disconnected or timed out
+     */
+    public ListenableFuture<Void> sendBarrier() {
+        return this.sendBarrier(OpenVirteXController.getInstance()
+                .getBarrierTimeout());
+    }
+
+    /**
+     * Sends a barrier to every physical switch this switch sent messages to
+     * since its last barrier, once the pending sends are done. Barriers
+     * complete in the order they were sent, even if the physical switches
+     * of a later one reply first.
+     *
+     * @param timeout the time in milliseconds to wait for the replies of
+     *            the physical switches, 0 to wait until they reply or
+     *            disconnect
+     * @return a future completed when all physical switches replied,
+     *         disconnected or timed out, and the previous barrier completed
+     */
+    public ListenableFuture<Void> sendBarrier(final long timeout) {
+        final SettableFuture<Void> replied = SettableFuture.create();
+        final SettableFuture<Void> barrier = SettableFuture.create();
+        final ListenableFuture<Void> previous = this.lastBarrier
+                .getAndSet(barrier);
+        Futures.successfulAsList(previous, replied).addListener(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        barrier.set(null);
+                    }
+                }, MoreExecutors.sameThreadExecutor());
+        final List<ListenableFuture<?>> pending = new ArrayList<ListenableFuture<?>>(
+                this.pendingSends);
+        Futures.successfulAsList(pending).addListener(new Runnable() {
+            @Override
+            public void run() {
+                final List<PhysicalSwitch> targets = new ArrayList<PhysicalSwitch>();
+                final List<ListenableFuture<Void>> replies = new ArrayList<ListenableFuture<Void>>();
+                final Iterator<PhysicalSwitch> it = OVXSwitch.this.barrierTargets
+                        .iterator();
+                while (it.hasNext()) {
+                    final PhysicalSwitch psw = it.next();
+                    it.remove();
+                    targets.add(psw);
+                    replies.add(psw.sendBarrier());
+                }
+                Futures.successfulAsList(replies).addListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        replied.set(null);
+                    }
+                }, MoreExecutors.sameThreadExecutor());
+                if (!replied.isDone() && timeout > 0) {
+                    OVXSwitch.this.expireBarrier(replied, replies, targets,
+                            timeout);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return barrier;
+    }
+
+    /**
+     * Completes the replies to a barrier late if the physical switches do
+     * not reply in time, and stops waiting for their replies.
+     *
+     * @param replied the future completed once the physical switches replied
+     * @param replies the replies waited for
+     * @param targets the physical switches sent a barrier
+     * @param timeout the time in milliseconds
+     */
+    private void expireBarrier(final SettableFuture<Void> replied,
+            final List<ListenableFuture<Void>> replies,
+            final List<PhysicalSwitch> targets, final long timeout) {
+        final Timeout timer = PhysicalNetwork.getTimer().newTimeout(
+                new TimerTask() {
+                    @Override
+                    public void run(final Timeout t) {
+                        if (replied.isDone()) {
+                            return;
+                        }
+                        OVXSwitch.log.warn(
+                                "No barrier reply from {} within {} ms, replying to barrier of {} late",
+                                targets, timeout, OVXSwitch.this.getSwitchName());
+                        for (ListenableFuture<Void> reply : replies) {
+                            reply.cancel(false);
+                        }
+                        replied.set(null);
+                    }
+                }, timeout, TimeUnit.MILLISECONDS);
+        replied.addListener(new Runnable() {
+            @Override
+            public void run() {
+                timer.cancel();
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
     /**
      * Sets the channel.
      *
@@ -0,0 +1,219 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.elements.datapath;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.openflow.protocol.OFPacketOut;
+
+/**
+ * Buffers the packet_ins sent to the controller of a virtual switch, so that
+ * the packet_outs and flow_mods referring to them by buffer ID can be
+ * translated.
+ * <p>
+ * Packets are kept in a fixed-size ring indexed by buffer ID modulo its
+ * capacity. Each slot remembers the buffer ID it was written with, so an ID
+ * whose slot has since been reused is detected on lookup rather than
+ * resolved to another packet. Only what translation needs is kept: the
+ * physical buffer ID, the physical in port and the packet data. Buffering
+ * and lookups are lock-free.
+ */
+public class PacketBuffer {
+
+    // buffer IDs are kept positive, as all ones means no buffer
+    private static final int ID_MASK = 0x7fffffff;
+
+    /**
+     * A buffered packet_in.
+     */
+    public static final class Entry {
+        private final int id;
+        private final int bufferId;
+        private final short inPort;
+        private final byte[] packetData;
+        private final long timestamp;
+        // set once a packet_out or flow_mod has referred to the entry
+        private volatile boolean used;
+
+        private Entry(final int id, final int bufferId, final short inPort,
+                final byte[] packetData, final long timestamp) {
+            this.id = id;
+            this.bufferId = bufferId;
+            this.inPort = inPort;
+            this.packetData = packetData;
+            this.timestamp = timestamp;
+        }
+
+        /**
+         * Gets the buffer ID of the packet on the physical switch.
+         *
+         * @return the physical buffer ID
+         */
+        public int getBufferId() {
+            return this.bufferId;
+        }
+
+        /**
+         * Gets the physical port the packet was received on.
+         *
+         * @return the physical in port
+         */
+        public short getInPort() {
+            return this.inPort;
+        }
+
+        /**
+         * Gets the packet data, possibly truncated.
+         *
+         * @return the packet data
+         */
+        public byte[] getPacketData() {
+            return this.packetData;
+        }
+    }
+
+    private final int capacity;
+    private final long expiry;
+    private final int maxDataLength;
+    private final AtomicInteger nextID;
+    private final AtomicReferenceArray<Entry> slots;
+
+    private final AtomicLong buffered = new AtomicLong();
+    private final AtomicLong overwrites = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates an empty packet buffer.
+     *
+     * @param capacity the number of packets kept
+     * @param expiry the time in milliseconds after which a packet can no
+     *        longer be referred to, 0 to keep packets until overwritten
+     * @param maxDataLength the number of bytes of data kept of packets that
+     *        are also buffered by the physical switch, 0 to keep all
+     */
+    public PacketBuffer(final int capacity, final long expiry,
+            final int maxDataLength) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Buffer capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.expiry = expiry;
+        this.maxDataLength = maxDataLength;
+        this.nextID = new AtomicInteger(1);
+        this.slots = new AtomicReferenceArray<Entry>(capacity);
+    }
+
+    /**
+     * Buffers a packet_in and returns the buffer ID the controller refers
+     * to it by.
+     *
+     * @param bufferId the buffer ID on the physical switch
+     * @param inPort the physical in port
+     * @param packetData the packet data
+     * @return the virtual buffer ID
+     */
+    public int add(final int bufferId, final short inPort,
+            final byte[] packetData) {
+        final int id = this.nextID.getAndIncrement() & PacketBuffer.ID_MASK;
+        byte[] data = packetData;
+        // the physical switch still holds the whole packet
+        if (data != null && this.maxDataLength > 0
+                && bufferId != OFPacketOut.BUFFER_ID_NONE
+                && data.length > this.maxDataLength) {
+            data = Arrays.copyOf(data, this.maxDataLength);
+        }
+        final long now = System.currentTimeMillis();
+        final Entry old = this.slots.getAndSet(id % this.capacity, new Entry(
+                id, bufferId, inPort, data, now));
+        this.buffered.incrementAndGet();
+        if (old != null && !old.used && !this.isExpired(old, now)) {
+            this.overwrites.incrementAndGet();
+        }
+        return id;
+    }
+
+    /**
+     * Gets a buffered packet_in by buffer ID.
+     *
+     * @param id the virtual buffer ID
+     * @return the buffered packet_in, or null if the ID is unknown, expired
+     *         or has been overwritten
+     */
+    public Entry get(final int id) {
+        if (id < 0) {
+            return null;
+        }
+        final int slot = id % this.capacity;
+        final Entry entry = this.slots.get(slot);
+        if (entry == null || entry.id != id) {
+            this.misses.incrementAndGet();
+            return null;
+        }
+        if (this.isExpired(entry, System.currentTimeMillis())) {
+            if (this.slots.compareAndSet(slot, entry, null)) {
+                this.expirations.incrementAndGet();
+            }
+            return null;
+        }
+        entry.used = true;
+        return entry;
+    }
+
+    private boolean isExpired(final Entry entry, final long now) {
+        return this.expiry > 0 && now - entry.timestamp > this.expiry;
+    }
+
+    /**
+     * @return the number of packets kept
+     */
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * @return the number of packets buffered
+     */
+    public long getBufferedCount() {
+        return this.buffered.get();
+    }
+
+    /**
+     * @return the number of packets overwritten before being referred to or
+     *         expiring, which suggests the buffer is too small
+     */
+    public long getOverwriteCount() {
+        return this.overwrites.get();
+    }
+
+    /**
+     * @return the number of packets referred to after expiring
+     */
+    public long getExpirationCount() {
+        return this.expirations.get();
+    }
+
+    /**
+     * @return the number of unknown or overwritten buffer IDs referred to
+     */
+    public long getMissCount() {
+        return this.misses.get();
+    }
+
+}
@@ -16,20 +16,32 @@
 package net.onrc.openvirtex.elements.datapath;
 
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
+import net.onrc.openvirtex.core.io.OVXMessageEncoder;
 import net.onrc.openvirtex.core.io.OVXSendMsg;
 import net.onrc.openvirtex.elements.datapath.statistics.StatisticsManager;
 import net.onrc.openvirtex.elements.network.PhysicalNetwork;
 import net.onrc.openvirtex.elements.port.PhysicalPort;
 import net.onrc.openvirtex.exceptions.SwitchMappingException;
+import net.onrc.openvirtex.messages.OVXBarrierRequest;
 import net.onrc.openvirtex.messages.OVXFlowMod;
+import net.onrc.openvirtex.messages.OVXPacketIn;
 import net.onrc.openvirtex.messages.OVXStatisticsReply;
 import net.onrc.openvirtex.messages.Virtualizable;
 import net.onrc.openvirtex.messages.statistics.OVXFlowStatisticsReply;
 import net.onrc.openvirtex.messages.statistics.OVXPortStatisticsReply;
+import net.onrc.openvirtex.util.LatencyHistogram;
+import net.onrc.openvirtex.util.Metrics;
+import net.onrc.openvirtex.util.Metrics.Gauge;
+import net.onrc.openvirtex.util.MetricsRegistry;
+import net.onrc.openvirtex.util.StripedCounter;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -40,6 +52,11 @@ import org.openflow.protocol.OFPort;
 import org.openflow.protocol.OFVendor;
 import org.openflow.protocol.statistics.OFStatistics;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
 /**
  * The Class PhysicalSwitch.
  */
@@ -51,6 +68,16 @@ public class PhysicalSwitch extends Switch<PhysicalPort> {
     private StatisticsManager statsMan = null;
     private AtomicReference<Map<Short, OVXPortStatisticsReply>> portStats;
     private AtomicReference<Map<Integer, List<OVXFlowStatisticsReply>>> flowStats;
+    // Barriers sent by OVX itself, by XID. Their XIDs are negative, so they
+    // never collide with the XIDs given out by the translator.
+    private final ConcurrentHashMap<Integer, SettableFuture<Void>> barriers;
+    private final AtomicInteger barrierXid;
+    // Metrics of the switch, in the registry while the switch is connected
+    private final Metrics metrics = new Metrics();
+    private final StripedCounter messagesIn = this.metrics
+            .getCounter("messagesIn");
+    private final LatencyHistogram virtualizeTime = this.metrics
+            .getHistogram("virtualizeTime");
 
     /**
      * Unregisters OVXSwitches and associated virtual elements mapped to this
@@ -100,6 +127,8 @@ public class PhysicalSwitch extends Switch<PhysicalPort> {
         this.portStats = new AtomicReference<Map<Short, OVXPortStatisticsReply>>();
         this.flowStats = new AtomicReference<Map<Integer, List<OVXFlowStatisticsReply>>>();
         this.statsMan = new StatisticsManager(this);
+        this.barriers = new ConcurrentHashMap<Integer, SettableFuture<Void>>();
+        this.barrierXid = new AtomicInteger();
     }
 
     /**
@@ -125,11 +154,31 @@ public class PhysicalSwitch extends Switch<PhysicalPort> {
      */
     @Override
     public void handleIO(final OFMessage msg, Channel channel) {
+        final long start = System.nanoTime();
         try {
             ((Virtualizable) msg).virtualize(this);
         } catch (final ClassCastException e) {
             PhysicalSwitch.log.error("Received illegal message : " + msg);
         }
+        final long elapsed = System.nanoTime() - start;
+        this.messagesIn.increment();
+        this.virtualizeTime.record(elapsed);
+        if (msg instanceof OVXPacketIn) {
+            final Integer tenantId = ((OVXPacketIn) msg).getTenantId();
+            if (tenantId != null) {
+                final Metrics tenant = MetricsRegistry.getInstance().getTenant(
+                        tenantId);
+                tenant.getCounter("packetIns").increment();
+                tenant.getHistogram("packetInTime").record(elapsed);
+            }
+        }
+    }
+
+    /**
+     * @return the metrics of this switch
+     */
+    public Metrics getMetrics() {
+        return this.metrics;
     }
 
     /*
@@ -142,6 +191,11 @@ public class PhysicalSwitch extends Switch<PhysicalPort> {
         PhysicalSwitch.log.info("Switch disconnected {} ",
                 this.featuresReply.getDatapathId());
         this.statsMan.stop();
+        MetricsRegistry.getInstance().getSwitches().removeGroup(
+                MetricsRegistry.name(this.switchId), this.metrics);
+        for (SettableFuture<Void> barrier : this.barriers.values()) {
+            barrier.cancel(false);
+        }
         this.channel.disconnect();
         this.map.removePhysicalSwitch(this);
     }
@@ -195,9 +249,49 @@ public class PhysicalSwitch extends Switch<PhysicalPort> {
         PhysicalNetwork.getInstance().addSwitch(this);
         this.fillPortMap();
         this.statsMan.start();
+        this.addGauges();
+        MetricsRegistry.getInstance().getSwitches().putGroup(
+                MetricsRegistry.name(this.switchId), this.metrics);
         return true;
     }
 
+    /**
+     * Adds the counters kept by the XID translator and statistics manager
+     * of this switch to its metrics.
+     */
+    private void addGauges() {
+        this.metrics.addGauge("xidHits", new Gauge() {
+            @Override
+            public Object getValue() {
+                return PhysicalSwitch.this.translator.getHitCount();
+            }
+        });
+        this.metrics.addGauge("xidMisses", new Gauge() {
+            @Override
+            public Object getValue() {
+                return PhysicalSwitch.this.translator.getMissCount();
+            }
+        });
+        this.metrics.addGauge("xidEvictions", new Gauge() {
+            @Override
+            public Object getValue() {
+                return PhysicalSwitch.this.translator.getEvictionCount();
+            }
+        });
+        this.metrics.addGauge("statsPolls", new Gauge() {
+            @Override
+            public Object getValue() {
+                return PhysicalSwitch.this.statsMan.getPollCount();
+            }
+        });
+        this.metrics.addGauge("flows", new Gauge() {
+            @Override
+            public Object getValue() {
+                return PhysicalSwitch.this.statsMan.getFlowCount();
+            }
+        });
+    }
+
     /**
      * Removes this PhysicalSwitch from the network. Also removes associated
      * ports, links, and virtual elements mapped to it (OVX*Switch, etc.).
@@ -217,11 +311,35 @@ public class PhysicalSwitch extends Switch<PhysicalPort> {
 
     @Override
     public void sendMsg(final OFMessage msg, final OVXSendMsg from) {
+        if (from instanceof OVXSwitch) {
+            ((OVXSwitch) from).addBarrierTarget(this);
+        }
         if ((this.channel.isOpen()) && (this.isConnected)) {
             this.channel.write(Collections.singletonList(msg));
         }
     }
 
+    /**
+     * Sends messages to the switch in a single write.
+     *
+     * @param msgs the messages
+     */
+    public void sendMsgs(final List<OFMessage> msgs) {
+        if (!msgs.isEmpty() && (this.channel.isOpen()) && (this.isConnected)) {
+            this.channel.write(msgs);
+        }
+    }
+
+    /**
+     * Writes out the messages held back for the switch, e.g. at the end of
+     * a burst of flow mods.
+     */
+    public void flush() {
+        if (this.channel != null && this.channel.isOpen()) {
+            OVXMessageEncoder.flush(this.channel);
+        }
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -270,14 +388,83 @@ public class PhysicalSwitch extends Switch<PhysicalPort> {
         return pair;
     }
 
+    /**
+     * Sends a barrier request to the switch.
+     *
+     * @return a future completed when the switch replies, immediately if the
+     *         switch is not connected
+     */
+    public ListenableFuture<Void> sendBarrier() {
+        if (!this.isConnected) {
+            return Futures.immediateFuture(null);
+        }
+        final int xid = this.barrierXid.getAndIncrement() | Integer.MIN_VALUE;
+        final SettableFuture<Void> barrier = SettableFuture.create();
+        this.barriers.put(xid, barrier);
+        barrier.addListener(new Runnable() {
+            @Override
+            public void run() {
+                PhysicalSwitch.this.barriers.remove(xid, barrier);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        final OVXBarrierRequest req = new OVXBarrierRequest();
+        req.setXid(xid);
+        this.sendMsg(req, this);
+        return barrier;
+    }
+
+    /**
+     * Completes the barrier sent by OVX with the given XID.
+     *
+     * @param xid the XID of the barrier reply
+     * @return true if the barrier was sent by OVX, false otherwise
+     */
+    public boolean handleBarrierReply(final int xid) {
+        final SettableFuture<Void> barrier = this.barriers.get(xid);
+        if (barrier == null) {
+            return false;
+        }
+        barrier.set(null);
+        return true;
+    }
+
     public void setPortStatistics(Map<Short, OVXPortStatisticsReply> stats) {
         this.portStats.set(stats);
     }
 
+    /**
+     * Sets the flow statistics of the last poll, by tenant, and updates the
+     * flow statistics cache of the virtual switches of the tenants.
+     *
+     * @param stats the statistics of the flows of each tenant, null if none
+     */
     public void setFlowStatistics(
             Map<Integer, List<OVXFlowStatisticsReply>> stats) {
-        this.flowStats.set(stats);
-
+        final Map<Integer, List<OVXFlowStatisticsReply>> old = this.flowStats
+                .getAndSet(stats);
+        final Set<Integer> tenants = new HashSet<Integer>();
+        if (old != null) {
+            tenants.addAll(old.keySet());
+        }
+        if (stats != null) {
+            tenants.addAll(stats.keySet());
+        }
+        for (Integer tid : tenants) {
+            final List<OVXFlowStatisticsReply> tenantStats = stats == null ? null
+                    : stats.get(tid);
+            try {
+                if (this.map.hasVirtualSwitch(this, tid)) {
+                    this.map.getVirtualSwitch(this, tid)
+                            .getFlowStatisticsCache()
+                            .update(this, tenantStats == null ? Collections
+                                    .<OVXFlowStatisticsReply>emptyList()
+                                    : tenantStats);
+                }
+            } catch (SwitchMappingException e) {
+                log.debug("No virtual switch of tenant {} on {}", tid,
+                        this.getSwitchName());
+            }
+        }
     }
 
     public List<OVXFlowStatisticsReply> getFlowStats(int tid) {
@@ -296,6 +483,10 @@ public class PhysicalSwitch extends Switch<PhysicalPort> {
         return null;
     }
 
+    public StatisticsManager getStatisticsManager() {
+        return this.statsMan;
+    }
+
     public void cleanUpTenant(Integer tenantId, Short port) {
         this.statsMan.cleanUpTenant(tenantId, port);
     }
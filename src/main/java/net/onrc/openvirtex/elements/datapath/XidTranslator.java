@@ -15,47 +15,157 @@
  ******************************************************************************/
 package net.onrc.openvirtex.elements.datapath;
 
-import org.openflow.util.LRULinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Based on Flowvisor XidTranslator by capveg.
+ * <p>
+ * Translations are kept in a fixed-size ring indexed by the low bits of the
+ * new XID. Each slot packs the new XID, used as a generation tag, with the
+ * original XID, so stale slots that have since been reused by a newer XID
+ * are detected on lookup. The ring is allocated in segments on first use,
+ * so idle switches only pay for the slots they touch. Translating is
+ * lock-free and only allocates when entering a new segment.
  */
 public class XidTranslator<T> {
 
     static final int MIN_XID = 256;
-    static final int INIT_SIZE = 1 << 10;
     static final int MAX_SIZE = 1 << 14; // must be larger than the max lifetime
                                          // of an XID * rate of
                                          // mesgs/sec
-    int nextID;
-    LRULinkedHashMap<Integer, XidPair<T>> xidMap;
+    private static final int MASK = XidTranslator.MAX_SIZE - 1;
+    private static final int SEGMENT_BITS = 8;
+    private static final int SEGMENT_SIZE = 1 << XidTranslator.SEGMENT_BITS;
+    private static final int SEGMENT_MASK = XidTranslator.SEGMENT_SIZE - 1;
+    // slot value while a writer is filling it in; never a valid tag
+    private static final long BUSY = -1L;
+
+    /**
+     * A contiguous range of slots of the ring.
+     */
+    private static final class Segment<T> {
+        // new XID << 32 | original XID
+        private final AtomicLongArray xids = new AtomicLongArray(
+                XidTranslator.SEGMENT_SIZE);
+        private final AtomicReferenceArray<T> owners = new AtomicReferenceArray<T>(
+                XidTranslator.SEGMENT_SIZE);
+    }
+
+    private final AtomicInteger nextID;
+    private final AtomicReferenceArray<Segment<T>> segments;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
 
     public XidTranslator() {
-        this.nextID = XidTranslator.MIN_XID;
-        this.xidMap = new LRULinkedHashMap<Integer, XidPair<T>>(
-                XidTranslator.INIT_SIZE, XidTranslator.MAX_SIZE);
+        this.nextID = new AtomicInteger(XidTranslator.MIN_XID);
+        this.segments = new AtomicReferenceArray<Segment<T>>(
+                XidTranslator.MAX_SIZE >> XidTranslator.SEGMENT_BITS);
+    }
+
+    /**
+     * Gets the segment holding the given slot, creating it if needed.
+     *
+     * @param slot the slot
+     * @return the segment
+     */
+    private Segment<T> getSegment(final int slot) {
+        final int i = slot >>> XidTranslator.SEGMENT_BITS;
+        Segment<T> seg = this.segments.get(i);
+        if (seg == null) {
+            seg = new Segment<T>();
+            if (!this.segments.compareAndSet(i, null, seg)) {
+                seg = this.segments.get(i);
+            }
+        }
+        return seg;
     }
 
     /**
      * Recovers the source of the message transaction by Xid.
      *
      * @param xid
-     * @return
+     * @return the original XID and its source, or null if the XID is unknown
+     *         or has been evicted
      */
     public XidPair<T> untranslate(final int xid) {
-        return this.xidMap.get(Integer.valueOf(xid));
+        final int slot = xid & XidTranslator.MASK;
+        final Segment<T> seg = this.segments
+                .get(slot >>> XidTranslator.SEGMENT_BITS);
+        if (seg == null) {
+            this.misses.incrementAndGet();
+            return null;
+        }
+        final int i = slot & XidTranslator.SEGMENT_MASK;
+        final long packed = seg.xids.get(i);
+        if ((int) (packed >>> 32) == xid) {
+            final T sw = seg.owners.get(i);
+            /* make sure no writer reused the slot while we were reading */
+            if (seg.xids.get(i) == packed) {
+                this.hits.incrementAndGet();
+                return new XidPair<T>((int) packed, sw);
+            }
+        }
+        this.misses.incrementAndGet();
+        return null;
     }
 
     /**
      * @return the new Xid for the message.
      */
     public int translate(final int xid, final T sw) {
-        final int ret = this.nextID++;
-        if (this.nextID < XidTranslator.MIN_XID) {
-            this.nextID = XidTranslator.MIN_XID;
+        final int ret = this.nextXid();
+        final int slot = ret & XidTranslator.MASK;
+        final Segment<T> seg = this.getSegment(slot);
+        final int i = slot & XidTranslator.SEGMENT_MASK;
+        long old;
+        do {
+            old = seg.xids.get(i);
+        } while (old == XidTranslator.BUSY
+                || !seg.xids.compareAndSet(i, old, XidTranslator.BUSY));
+        if (old != 0) {
+            this.evictions.incrementAndGet();
         }
-        this.xidMap.put(Integer.valueOf(ret), new XidPair<T>(xid, sw));
+        seg.owners.set(i, sw);
+        seg.xids.set(i, (long) ret << 32 | (xid & 0xffffffffL));
         return ret;
     }
 
+    private int nextXid() {
+        int ret;
+        do {
+            ret = this.nextID.getAndIncrement();
+            if (ret < XidTranslator.MIN_XID) {
+                /* wrapped around, restart from the lowest usable XID */
+                this.nextID.compareAndSet(ret + 1, XidTranslator.MIN_XID);
+            }
+        } while (ret < XidTranslator.MIN_XID);
+        return ret;
+    }
+
+    /**
+     * @return the number of XIDs that were successfully untranslated
+     */
+    public long getHitCount() {
+        return this.hits.get();
+    }
+
+    /**
+     * @return the number of XIDs that could not be untranslated
+     */
+    public long getMissCount() {
+        return this.misses.get();
+    }
+
+    /**
+     * @return the number of translations overwritten by newer ones
+     */
+    public long getEvictionCount() {
+        return this.evictions.get();
+    }
+
 }
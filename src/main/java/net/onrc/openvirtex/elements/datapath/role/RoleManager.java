@@ -138,6 +138,7 @@ public class RoleManager {
             return true;
         }
         switch (m.getType()) {
+        case BARRIER_REQUEST:
         case GET_CONFIG_REQUEST:
         case QUEUE_GET_CONFIG_REQUEST:
         case PORT_STATUS:
@@ -154,6 +155,7 @@ public class RoleManager {
             return true;
         }
         switch (m.getType()) {
+        case BARRIER_REPLY:
         case GET_CONFIG_REPLY:
         case QUEUE_GET_CONFIG_REPLY:
         case PORT_STATUS:
@@ -0,0 +1,211 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.elements.datapath.statistics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.onrc.openvirtex.elements.datapath.FlowTable;
+import net.onrc.openvirtex.elements.datapath.OVXSwitch;
+import net.onrc.openvirtex.elements.datapath.PhysicalSwitch;
+import net.onrc.openvirtex.messages.OVXFlowMod;
+import net.onrc.openvirtex.messages.statistics.OVXAggregateStatisticsReply;
+import net.onrc.openvirtex.messages.statistics.OVXFlowStatisticsReply;
+
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.util.U16;
+
+/**
+ * Flow statistics of a virtual switch, kept up to date with the polls of the
+ * physical switches it maps to.
+ * <p>
+ * The counters polled for a physical cookie are joined once with the
+ * virtual flow entry owning the cookie, so the statistics requests of the
+ * tenant are answered by looking up the entries they select in the flow
+ * table, without walking the statistics of the physical switches. When
+ * several physical switches report the same cookie, the counters of the
+ * first one are served.
+ */
+public class FlowStatisticsCache {
+
+    /**
+     * Counters of a physical cookie joined with its virtual flow entry.
+     */
+    private static final class Entry {
+        private final long dpid;
+        private final OVXFlowMod fm;
+        private final OVXFlowStatisticsReply stat;
+
+        private Entry(final long dpid, final OVXFlowMod fm,
+                final OVXFlowStatisticsReply stat) {
+            this.dpid = dpid;
+            this.fm = fm;
+            this.stat = stat;
+        }
+    }
+
+    private final OVXSwitch sw;
+    private final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<Long, Entry>();
+    // cookies reported by the last poll of each physical switch
+    private final Map<Long, Set<Long>> reported = new HashMap<Long, Set<Long>>();
+
+    /**
+     * Creates an empty cache for the given virtual switch.
+     *
+     * @param sw the virtual switch
+     */
+    public FlowStatisticsCache(final OVXSwitch sw) {
+        this.sw = sw;
+    }
+
+    /**
+     * Replaces the statistics reported by a physical switch for the tenant
+     * of the virtual switch.
+     *
+     * @param psw the physical switch
+     * @param stats the statistics of the flows of the tenant, with physical
+     *            cookies
+     */
+    public synchronized void update(final PhysicalSwitch psw,
+            final List<OVXFlowStatisticsReply> stats) {
+        final FlowTable table = this.sw.getFlowTable();
+        final long dpid = psw.getSwitchId();
+        final Set<Long> cookies = new HashSet<Long>(stats.size() * 2);
+        for (OVXFlowStatisticsReply stat : stats) {
+            final long cookie = stat.getCookie();
+            final OVXFlowMod fm = table.peekFlowMod(cookie);
+            if (fm == null) {
+                continue;
+            }
+            cookies.add(cookie);
+            final Entry old = this.entries.get(cookie);
+            if (old == null || old.dpid == dpid || old.fm != fm) {
+                this.entries.put(cookie, new Entry(dpid, fm, this.join(stat,
+                        fm)));
+            }
+        }
+        final Set<Long> previous = cookies.isEmpty() ? this.reported
+                .remove(dpid) : this.reported.put(dpid, cookies);
+        if (previous != null) {
+            for (Long cookie : previous) {
+                final Entry entry = this.entries.get(cookie);
+                if (!cookies.contains(cookie) && entry != null
+                        && entry.dpid == dpid) {
+                    this.entries.remove(cookie);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the statistics of the flows selected by a flow statistics
+     * request.
+     *
+     * @param match the match of the request
+     * @param outPort the output port of the request, or OFPP_NONE
+     * @return the statistics, with virtual cookies, matches and actions
+     */
+    public List<OVXFlowStatisticsReply> getFlowStatistics(final OFMatch match,
+            final short outPort) {
+        final FlowTable table = this.sw.getFlowTable();
+        final Collection<Long> cookies = table.getCookies(match, outPort);
+        final List<OVXFlowStatisticsReply> stats = new ArrayList<OVXFlowStatisticsReply>(
+                cookies.size());
+        for (Long cookie : cookies) {
+            final Entry entry = this.getEntry(table, cookie);
+            if (entry != null) {
+                stats.add(entry.stat);
+            }
+        }
+        return Collections.unmodifiableList(stats);
+    }
+
+    /**
+     * Gets the aggregate statistics of the flows selected by an aggregate
+     * statistics request. Flows without statistics yet count as flows
+     * without traffic.
+     *
+     * @param match the match of the request
+     * @param outPort the output port of the request, or OFPP_NONE
+     * @return the aggregate statistics
+     */
+    public OVXAggregateStatisticsReply getAggregateStatistics(
+            final OFMatch match, final short outPort) {
+        final FlowTable table = this.sw.getFlowTable();
+        final Collection<Long> cookies = table.getCookies(match, outPort);
+        long packets = 0;
+        long bytes = 0;
+        for (Long cookie : cookies) {
+            final Entry entry = this.getEntry(table, cookie);
+            if (entry != null) {
+                packets += entry.stat.getPacketCount();
+                bytes += entry.stat.getByteCount();
+            }
+        }
+        final OVXAggregateStatisticsReply stat = new OVXAggregateStatisticsReply();
+        stat.setFlowCount(cookies.size());
+        stat.setPacketCount(packets);
+        stat.setByteCount(bytes);
+        return stat;
+    }
+
+    /**
+     * Gets the cached entry of a cookie, unless the cookie was given to
+     * another flow since it was polled.
+     */
+    private Entry getEntry(final FlowTable table, final Long cookie) {
+        final Entry entry = this.entries.get(cookie);
+        if (entry == null || table.peekFlowMod(cookie) != entry.fm) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Copies the counters of a polled statistic, with the cookie, match and
+     * actions of the virtual flow entry.
+     */
+    private OVXFlowStatisticsReply join(final OVXFlowStatisticsReply stat,
+            final OVXFlowMod fm) {
+        final OVXFlowStatisticsReply joined = new OVXFlowStatisticsReply();
+        joined.setTableId(stat.getTableId());
+        joined.setDurationSeconds(stat.getDurationSeconds());
+        joined.setDurationNanoseconds(stat.getDurationNanoseconds());
+        joined.setPriority(stat.getPriority());
+        joined.setIdleTimeout(stat.getIdleTimeout());
+        joined.setHardTimeout(stat.getHardTimeout());
+        joined.setPacketCount(stat.getPacketCount());
+        joined.setByteCount(stat.getByteCount());
+        joined.setCookie(fm.getCookie());
+        joined.setMatch(fm.getMatch());
+        joined.setActions(fm.getActions());
+        int length = OVXFlowStatisticsReply.MINIMUM_LENGTH;
+        for (OFAction act : fm.getActions()) {
+            length += act.getLength();
+        }
+        joined.setLength(U16.t(length));
+        return joined;
+    }
+
+}
@@ -15,14 +15,25 @@
  ******************************************************************************/
 package net.onrc.openvirtex.elements.datapath.statistics;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import net.onrc.openvirtex.core.OpenVirteXController;
 import net.onrc.openvirtex.core.io.OVXSendMsg;
 import net.onrc.openvirtex.elements.datapath.PhysicalSwitch;
 import net.onrc.openvirtex.elements.network.PhysicalNetwork;
+import net.onrc.openvirtex.messages.OVXStatisticsReply;
 import net.onrc.openvirtex.messages.OVXStatisticsRequest;
+import net.onrc.openvirtex.messages.statistics.OVXFlowStatisticsReply;
 import net.onrc.openvirtex.messages.statistics.OVXFlowStatisticsRequest;
 import net.onrc.openvirtex.messages.statistics.OVXPortStatisticsRequest;
 import net.onrc.openvirtex.protocol.OVXMatch;
@@ -34,18 +45,61 @@ import org.jboss.netty.util.Timeout;
 import org.jboss.netty.util.TimerTask;
 import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFPort;
+import org.openflow.protocol.OFStatisticsReply.OFStatisticsReplyFlags;
 import org.openflow.protocol.Wildcards;
+import org.openflow.protocol.statistics.OFStatistics;
 import org.openflow.protocol.statistics.OFStatisticsType;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Polls the flow and port statistics of a physical switch.
+ * <p>
+ * Polls are spread over the refresh interval, so that switches connecting
+ * together do not reply in bursts, and their interval adapts to the switch:
+ * switches with large flow tables are polled less often, and switches whose
+ * flows change between polls more often. Virtual switches are served the
+ * statistics of the last poll, unless older than the configured maximum
+ * age, in which case a poll is sent right away.
+ */
 public class StatisticsManager implements TimerTask, OVXSendMsg {
 
+    // number of flows that can be polled every refresh interval
+    private static final int FLOWS_PER_POLL = 5000;
+    // share of flows added or removed since the last poll for it to be
+    // considered frequently changing
+    private static final double CHURN = 0.25;
+    private static final double MIN_FACTOR = 0.5;
+    private static final double MAX_FACTOR = 4;
+    // polls are moved by up to this share of the interval
+    private static final double JITTER = 0.1;
+
     private HashedWheelTimer timer = null;
     private PhysicalSwitch sw;
 
     Logger log = LogManager.getLogger(StatisticsManager.class.getName());
 
     private Integer refreshInterval = 30;
-    private boolean stopTimer = false;
+    private final long maxAge;
+    private final Random random = new Random();
+    private volatile boolean stopTimer = false;
+    private volatile long interval;
+
+    // parts of the flow statistics reply being received
+    private List<OVXFlowStatisticsReply> parts = new ArrayList<OVXFlowStatisticsReply>();
+    private int partsLength;
+    private Set<Long> cookies = Collections.emptySet();
+    private final AtomicReference<SettableFuture<Void>> refresh = new AtomicReference<SettableFuture<Void>>();
+    private volatile long pollSent;
+    private volatile long updated;
+
+    private final AtomicLong polls = new AtomicLong();
+    private volatile int flowCount;
+    private volatile int replyLength;
+    private volatile long pollTime;
+    private volatile double churn;
 
     public StatisticsManager(PhysicalSwitch sw) {
         /*
@@ -55,20 +109,28 @@ public class StatisticsManager implements TimerTask, OVXSendMsg {
         this.sw = sw;
         this.refreshInterval = OpenVirteXController.getInstance()
                 .getStatsRefresh();
+        this.maxAge = OpenVirteXController.getInstance().getStatsMaxAge();
+        this.interval = TimeUnit.SECONDS.toMillis(this.refreshInterval);
     }
 
     @Override
     public void run(Timeout timeout) throws Exception {
+        if (this.stopTimer) {
+            return;
+        }
         log.debug("Collecting stats for {}", this.sw.getSwitchName());
         sendPortStatistics();
         sendFlowStatistics(0, (short) 0);
 
-        if (!this.stopTimer) {
-            log.debug("Scheduling stats collection in {} seconds for {}",
-                    this.refreshInterval, this.sw.getSwitchName());
-            timeout.getTimer().newTimeout(this, refreshInterval,
-                    TimeUnit.SECONDS);
-        }
+        final long next = this.jitter(this.interval);
+        log.debug("Scheduling stats collection in {} ms for {}", next,
+                this.sw.getSwitchName());
+        timeout.getTimer().newTimeout(this, next, TimeUnit.MILLISECONDS);
+    }
+
+    private long jitter(final long delay) {
+        return (long) (delay * (1 - StatisticsManager.JITTER + 2
+                * StatisticsManager.JITTER * this.random.nextDouble()));
     }
 
     private void sendFlowStatistics(int tid, short port) {
@@ -85,6 +147,10 @@ public class StatisticsManager implements TimerTask, OVXSendMsg {
         freq.setTableId((byte) 0xFF);
         req.setStatistics(Collections.singletonList(freq));
         req.setLengthU(req.getLengthU() + freq.getLength());
+        if (xid == 0) {
+            this.polls.incrementAndGet();
+            this.pollSent = System.nanoTime();
+        }
         sendMsg(req, this);
     }
 
@@ -98,14 +164,123 @@ public class StatisticsManager implements TimerTask, OVXSendMsg {
         sendMsg(req, this);
     }
 
+    /**
+     * Handles a part of the reply to a flow statistics poll. The statistics
+     * are made available to virtual switches once all parts are received.
+     *
+     * @param msg the statistics reply
+     */
+    public void handleFlowStatistics(final OVXStatisticsReply msg) {
+        for (OFStatistics stat : msg.getStatistics()) {
+            this.parts.add((OVXFlowStatisticsReply) stat);
+        }
+        this.partsLength += msg.getLengthU();
+        if ((msg.getFlags() & OFStatisticsReplyFlags.REPLY_MORE
+                .getTypeValue()) != 0) {
+            return;
+        }
+        final List<OVXFlowStatisticsReply> replies = this.parts;
+        this.parts = new ArrayList<OVXFlowStatisticsReply>(replies.size());
+
+        final Map<Integer, List<OVXFlowStatisticsReply>> stats = new HashMap<Integer, List<OVXFlowStatisticsReply>>();
+        final Set<Long> current = new HashSet<Long>(replies.size() * 2);
+        for (OVXFlowStatisticsReply reply : replies) {
+            final int tid = (int) (reply.getCookie() >> 32);
+            List<OVXFlowStatisticsReply> statsList = stats.get(tid);
+            if (statsList == null) {
+                statsList = new ArrayList<OVXFlowStatisticsReply>();
+                stats.put(tid, statsList);
+            }
+            statsList.add(reply);
+            current.add(reply.getCookie());
+        }
+        this.sw.setFlowStatistics(stats.isEmpty() ? null : stats);
+
+        int changed = 0;
+        for (Long cookie : current) {
+            if (!this.cookies.contains(cookie)) {
+                changed++;
+            }
+        }
+        changed += this.cookies.size() - (current.size() - changed);
+        this.churn = (double) changed
+                / Math.max(1, Math.max(current.size(), this.cookies.size()));
+        this.cookies = current;
+        this.flowCount = replies.size();
+        this.replyLength = this.partsLength;
+        this.partsLength = 0;
+        this.pollTime = (System.nanoTime() - this.pollSent) / 1000;
+        this.updated = System.currentTimeMillis();
+        this.interval = this.adapt(this.flowCount, this.churn);
+
+        final SettableFuture<Void> waiting = this.refresh.getAndSet(null);
+        if (waiting != null) {
+            waiting.set(null);
+        }
+    }
+
+    /**
+     * Computes the polling interval of a switch.
+     *
+     * @param flows the number of flows of the switch
+     * @param churn the share of flows added or removed since the last poll
+     * @return the interval in milliseconds
+     */
+    private long adapt(final int flows, final double churn) {
+        double factor = Math.max(1, (double) flows
+                / StatisticsManager.FLOWS_PER_POLL);
+        if (churn >= StatisticsManager.CHURN) {
+            factor /= 2;
+        } else if (churn == 0) {
+            factor *= 2;
+        }
+        factor = Math.min(StatisticsManager.MAX_FACTOR,
+                Math.max(StatisticsManager.MIN_FACTOR, factor));
+        return (long) (TimeUnit.SECONDS.toMillis(this.refreshInterval) * factor);
+    }
+
+    /**
+     * Makes sure the flow statistics of the switch are not older than the
+     * configured maximum age, by polling the switch if they are.
+     *
+     * @return a future completed once the statistics are fresh, or once the
+     *         switch failed to reply within the maximum age
+     */
+    public ListenableFuture<Void> refreshFlowStatistics() {
+        if (this.maxAge <= 0
+                || System.currentTimeMillis() - this.updated <= this.maxAge) {
+            return Futures.immediateFuture(null);
+        }
+        final SettableFuture<Void> waiting = SettableFuture.create();
+        if (!this.refresh.compareAndSet(null, waiting)) {
+            // a poll is already on its way
+            final SettableFuture<Void> pending = this.refresh.get();
+            return pending == null ? Futures.<Void>immediateFuture(null)
+                    : pending;
+        }
+        this.sendFlowStatistics(0, (short) 0);
+        this.timer.newTimeout(new TimerTask() {
+            @Override
+            public void run(final Timeout timeout) {
+                if (StatisticsManager.this.refresh.compareAndSet(waiting, null)) {
+                    waiting.set(null);
+                }
+            }
+        }, this.maxAge, TimeUnit.MILLISECONDS);
+        return waiting;
+    }
+
     public void start() {
 
         /*
-         * Initially start polling quickly. Then drop down to configured value
+         * Initially start polling quickly, at a random time so switches
+         * connecting together are not polled together. Then drop down to
+         * configured value
          */
         log.info("Starting Stats collection thread for {}",
                 this.sw.getSwitchName());
-        timer.newTimeout(this, 1, TimeUnit.SECONDS);
+        timer.newTimeout(this, 1000 + this.random.nextInt(1000),
+                TimeUnit.MILLISECONDS);
     }
 
     public void stop() {
@@ -128,4 +303,47 @@ public class StatisticsManager implements TimerTask, OVXSendMsg {
         sendFlowStatistics(tenantId, port);
     }
 
+    /**
+     * @return the number of flow statistics polls sent
+     */
+    public long getPollCount() {
+        return this.polls.get();
+    }
+
+    /**
+     * @return the time in microseconds the switch took to reply to the last
+     *         poll
+     */
+    public long getPollTime() {
+        return this.pollTime;
+    }
+
+    /**
+     * @return the number of flows in the last poll reply
+     */
+    public int getFlowCount() {
+        return this.flowCount;
+    }
+
+    /**
+     * @return the length in bytes of the last poll reply
+     */
+    public int getReplyLength() {
+        return this.replyLength;
+    }
+
+    /**
+     * @return the share of flows added or removed between the last polls
+     */
+    public double getChurn() {
+        return this.churn;
+    }
+
+    /**
+     * @return the current polling interval in milliseconds
+     */
+    public long getInterval() {
+        return this.interval;
+    }
+
 }
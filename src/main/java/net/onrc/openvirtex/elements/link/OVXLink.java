@@ -17,14 +17,16 @@ package net.onrc.openvirtex.elements.link;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.onrc.openvirtex.api.service.handlers.TenantHandler;
 import net.onrc.openvirtex.db.DBManager;
@@ -43,6 +45,7 @@ import net.onrc.openvirtex.messages.OVXFlowMod;
 import net.onrc.openvirtex.messages.OVXPacketOut;
 import net.onrc.openvirtex.messages.actions.OVXActionOutput;
 import net.onrc.openvirtex.packet.Ethernet;
+import net.onrc.openvirtex.routing.PathInstaller;
 import net.onrc.openvirtex.routing.RoutingAlgorithms;
 import net.onrc.openvirtex.routing.RoutingAlgorithms.RoutingType;
 
@@ -51,9 +54,10 @@ import org.apache.logging.log4j.Logger;
 import org.openflow.protocol.OFFlowMod;
 import org.openflow.protocol.action.OFAction;
 import org.openflow.protocol.action.OFActionOutput;
-import org.openflow.protocol.action.OFActionType;
 import org.openflow.util.U8;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.gson.annotations.Expose;
 import com.google.gson.annotations.SerializedName;
 
@@ -77,6 +81,8 @@ public class OVXLink extends Link<OVXPort, OVXSwitch> {
     private final TreeMap<Byte, List<PhysicalLink>> backupLinks;
     private final TreeMap<Byte, List<PhysicalLink>> unusableLinks;
     private Mappable map = null;
+    private volatile long switchTime;
+    private final AtomicLong switchCount = new AtomicLong();
 
     /**
      * Instantiates a new virtual link. Sets its priority to 0.
@@ -230,6 +236,9 @@ public class OVXLink extends Link<OVXPort, OVXSwitch> {
             DBManager.getInstance().remove(this);
             this.tearDown();
             map.removeVirtualLink(this);
+            for (List<PhysicalLink> path : this.unusableLinks.values()) {
+                map.removeUnusablePath(this, path);
+            }
             map.getVirtualNetwork(this.tenantId).removeLink(this);
         } catch (NetworkMappingException e) {
             log.warn(
@@ -261,40 +270,64 @@ public class OVXLink extends Link<OVXPort, OVXSwitch> {
 
         this.setPriority(priority);
 
-        Collection<OVXFlowMod> flows = this.getSrcSwitch().getFlowTable()
-                .getFlowTable();
-        for (OVXFlowMod fe : flows) {
-            for (OFAction act : fe.getActions()) {
-                if (act.getType() == OFActionType.OUTPUT) {
-                    if (((OFActionOutput) act).getPort() == this.getSrcPort()
-                            .getPortNumber()) {
-                        try {
-                            Integer flowId = this.map
-                                    .getVirtualNetwork(this.tenantId)
-                                    .getFlowManager()
-                                    .storeFlowValues(
-                                            fe.getMatch().getDataLayerSource(),
-                                            fe.getMatch()
-                                                    .getDataLayerDestination());
-
-                            OVXFlowMod fm = fe.clone();
-                            fm.setCookie(((OVXFlowTable) this.getSrcPort()
-                                    .getParentSwitch().getFlowTable())
-                                    .getCookie(fe, true));
-                            this.generateLinkFMs(fm, flowId);
-                        } catch (IndexOutOfBoundException e) {
-                            log.error(
-                                    "Too many hosts to generate the flow pairs in this virtual network {}. "
-                                            + "Dropping flow-mod {} ",
-                                    this.getTenantId(), fe);
-                        } catch (NetworkMappingException e) {
-                            log.warn("{}: skipping processing of OFAction", e);
-                            return;
-                        }
-                    }
-                }
+        final long start = System.nanoTime();
+        final PathInstaller installer = new PathInstaller();
+        int counter = 0;
+        for (OVXFlowMod fe : this.getSrcSwitch().getFlowTable()
+                .getFlowModsByOutPort(this.getSrcPort().getPortNumber())) {
+            try {
+                Integer flowId = this.map
+                        .getVirtualNetwork(this.tenantId)
+                        .getFlowManager()
+                        .storeFlowValues(fe.getMatch().getDataLayerSource(),
+                                fe.getMatch().getDataLayerDestination());
+
+                OVXFlowMod fm = fe.clone();
+                fm.setCookie(((OVXFlowTable) this.getSrcPort()
+                        .getParentSwitch().getFlowTable()).getCookie(fe, true));
+                this.generateLinkFMs(fm, flowId, installer);
+                counter++;
+            } catch (IndexOutOfBoundException e) {
+                log.error(
+                        "Too many hosts to generate the flow pairs in this virtual network {}. "
+                                + "Dropping flow-mod {} ",
+                        this.getTenantId(), fe);
+            } catch (NetworkMappingException e) {
+                log.warn("{}: skipping processing of OFAction", e);
+                return;
             }
         }
+        final int flows = counter;
+        installer.commit().addListener(new Runnable() {
+            @Override
+            public void run() {
+                OVXLink.this.switchTime = (System.nanoTime() - start) / 1000;
+                OVXLink.this.switchCount.incrementAndGet();
+                OVXLink.this.log.info(
+                        "Virtual network {}: link {} switched {} flows to the new path in {} us",
+                        OVXLink.this.tenantId, OVXLink.this.linkId, flows,
+                        OVXLink.this.switchTime);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    /**
+     * Gets the time the last path switch took, from the switch until the
+     * physical switches confirmed the flow mods of the new path.
+     *
+     * @return the time in microseconds
+     */
+    public long getSwitchTime() {
+        return this.switchTime;
+    }
+
+    /**
+     * Gets the number of path switches.
+     *
+     * @return the number of path switches
+     */
+    public long getSwitchCount() {
+        return this.switchCount.get();
     }
 
     @Override
@@ -346,8 +379,29 @@ public class OVXLink extends Link<OVXPort, OVXSwitch> {
      *            the original flow mod
      * @param flowId
      *            the flow identifier
+     * @return a future completed once the intermediate switches have
+     *         installed the flow mods
+     */
+    public ListenableFuture<Void> generateLinkFMs(final OVXFlowMod fm,
+            final Integer flowId) {
+        final PathInstaller installer = new PathInstaller();
+        this.generateLinkFMs(fm, flowId, installer);
+        return installer.commit();
+    }
+
+    /**
+     * Sends the flow mod to all the intermediate switches of the virtual link
+     * through the given installer.
+     *
+     * @param fm
+     *            the original flow mod
+     * @param flowId
+     *            the flow identifier
+     * @param installer
+     *            the installer
      */
-    public void generateLinkFMs(final OVXFlowMod fm, final Integer flowId) {
+    private void generateLinkFMs(final OVXFlowMod fm, final Integer flowId,
+            final PathInstaller installer) {
         /*
          * Change the packet match: 1) change the fields where the virtual link
          * info are stored 2) change the fields where the physical IPs are
@@ -395,8 +449,7 @@ public class OVXLink extends Link<OVXPort, OVXSwitch> {
                         + OVXActionOutput.MINIMUM_LENGTH);
                 fm.setActions(Arrays.asList((OFAction) new OFActionOutput(
                         outPort.getPortNumber(), (short) 0xffff)));
-                phyLink.getSrcPort().getParentSwitch()
-                        .sendMsg(fm, phyLink.getSrcPort().getParentSwitch());
+                installer.send(phyLink.getSrcPort().getParentSwitch(), fm);
                 this.log.debug(
                         "Sending virtual link intermediate fm to sw {}: {}",
                         phyLink.getSrcPort().getParentSwitch().getSwitchName(),
@@ -404,13 +457,6 @@ public class OVXLink extends Link<OVXPort, OVXSwitch> {
             }
             outPort = phyLink.getDstPort();
         }
-        // TODO: With POX we need to put a timeout between this flows and the
-        // first flow mod. Check how to solve.
-        try {
-            Thread.sleep(5);
-        } catch (final InterruptedException e) {
-            log.warn("Timeout interrupted; might be a problem if you are running POX.");
-        }
     }
 
     /**
@@ -429,7 +475,12 @@ public class OVXLink extends Link<OVXPort, OVXSwitch> {
                 List<PhysicalLink> unusableLinks = new ArrayList<>(
                         map.getPhysicalLinks(this));
                 Collections.copy(unusableLinks, map.getPhysicalLinks(this));
-                this.unusableLinks.put(this.getPriority(), unusableLinks);
+                map.addUnusablePath(this, unusableLinks);
+                final List<PhysicalLink> replaced = this.unusableLinks.put(
+                        this.getPriority(), unusableLinks);
+                if (replaced != null) {
+                    this.removeUnusablePath(replaced);
+                }
             } catch (LinkMappingException e) {
                 log.warn("No physical Links mapped to OVXLink? : {}", e);
                 return false;
@@ -451,10 +502,12 @@ public class OVXLink extends Link<OVXPort, OVXSwitch> {
      * @return true if successful, false otherwise.
      */
     public boolean tryRevert(PhysicalLink plink) {
+        final List<List<PhysicalLink>> reverted = new ArrayList<List<PhysicalLink>>();
         Iterator<Byte> it = this.unusableLinks.descendingKeySet().iterator();
         while (it.hasNext()) {
             Byte curPriority = it.next();
             if (this.unusableLinks.get(curPriority).contains(plink)) {
+                reverted.add(this.unusableLinks.get(curPriority));
                 log.info(
                         "Reactivate all inactive paths for virtual link {} in virtual network {} ",
                         this.linkId, this.tenantId);
@@ -481,7 +534,25 @@ public class OVXLink extends Link<OVXPort, OVXSwitch> {
                 it.remove();
             }
         }
+        for (List<PhysicalLink> path : reverted) {
+            this.removeUnusablePath(path);
+        }
         return true;
     }
 
+    /**
+     * Removes the physical links of a path that is no longer unusable from
+     * the unusable path index, unless another unusable path of this link
+     * still goes through them.
+     *
+     * @param path the path
+     */
+    private void removeUnusablePath(final List<PhysicalLink> path) {
+        final Set<PhysicalLink> plinks = new HashSet<PhysicalLink>(path);
+        for (List<PhysicalLink> unusable : this.unusableLinks.values()) {
+            plinks.removeAll(unusable);
+        }
+        map.removeUnusablePath(this, plinks);
+    }
+
 }
@@ -23,6 +23,9 @@ import net.onrc.openvirtex.core.OpenVirteXController;
 import net.onrc.openvirtex.elements.OVXMap;
 import net.onrc.openvirtex.exceptions.NetworkMappingException;
 import net.onrc.openvirtex.util.MACAddress;
+import net.onrc.openvirtex.util.PacketTracer;
+import net.onrc.openvirtex.util.PacketTracer.Stage;
+import net.onrc.openvirtex.util.PacketTracer.Trace;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -259,12 +262,14 @@ public class OVXLinkUtils {
 //            // this vlan come from "tenantId")
 //            match.setDataLayerVirtualLan(Short.parseShort(this.tenantId.toString()));
 //            // end
-            
-            log.info("match {} ", match);
-            
         } else if (linkField == OVXLinkField.VLAN) {
             match.setDataLayerVirtualLan(this.getVlan());
         }
+        final Trace trace = PacketTracer.getInstance().current();
+        if (trace != null) {
+            trace.record(Stage.LINK, "rewriteMatch for link {}: {}",
+                    this.linkId, match);
+        }
     }
 
     /**
@@ -287,7 +292,11 @@ public class OVXLinkUtils {
         } else if (linkField == OVXLinkField.VLAN) {
             actions.add(new OFActionVirtualLanIdentifier(this.getVlan()));
         }
-        OVXLinkUtils.log.info("setLinkFields {}, {}",actions.get(0), actions.get(1));
+        final Trace trace = PacketTracer.getInstance().current();
+        if (trace != null) {
+            trace.record(Stage.LINK, "setLinkFields for link {}: {}",
+                    this.linkId, actions);
+        }
         return actions;
     }
 
@@ -304,17 +313,16 @@ public class OVXLinkUtils {
             LinkedList<MACAddress> macList;
             try {
                 macList = this.getOriginalMacAddresses();
+                if (macList.isEmpty()) {
+                    OVXLinkUtils.log.debug(
+                            "Unable to restore actions, flow id {} was released",
+                            this.flowId);
+                    return actions;
+                }
                 actions.add(new OFActionDataLayerSource(macList.get(0)
                         .toBytes()));
-                
-                OVXLinkUtils.log.info(new OFActionDataLayerSource(macList.get(0)
-                        .toBytes()));
-                
                 actions.add(new OFActionDataLayerDestination(macList.get(1)
                         .toBytes()));
-                
-                OVXLinkUtils.log.info(new OFActionDataLayerSource(macList.get(1)
-                        .toBytes()));
 //                // modified by hujw (return to the original setting.
 //                // that means strip the vlan tag.)
 //                actions.add(new OFActionStripVirtualLan());
@@ -328,7 +336,11 @@ public class OVXLinkUtils {
                         .warn("Unable to restore actions, VLANs not supported");
             }
         }
-        OVXLinkUtils.log.info("unsetLinkFields {}, {}",actions.get(0), actions.get(1));
+        final Trace trace = PacketTracer.getInstance().current();
+        if (trace != null) {
+            trace.record(Stage.LINK, "unsetLinkFields for link {}: {}",
+                    this.linkId, actions);
+        }
         return actions;
     }
 }
@@ -15,12 +15,12 @@
  ******************************************************************************/
 package net.onrc.openvirtex.elements.network;
 
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 
 import net.onrc.openvirtex.core.io.OVXSendMsg;
@@ -32,13 +32,12 @@ import net.onrc.openvirtex.linkdiscovery.LLDPEventHandler;
 
 import org.openflow.util.HexString;
 
-import com.google.gson.annotations.Expose;
-import com.google.gson.annotations.SerializedName;
-
 /**
  *
  * Abstract parent class for networks, maintains data structures for the
- * topology graph.
+ * topology graph. The data structures are changed with the lock on the
+ * network, and published as immutable {@link Topology} snapshots that are
+ * read without locking.
  *
  * @param <T1> generic Switch type
  * @param <T2> generic Port type
@@ -48,15 +47,19 @@ import com.google.gson.annotations.SerializedName;
 public abstract class Network<T1 extends Switch, T2 extends Port, T3 extends Link>
         implements LLDPEventHandler, OVXSendMsg {
 
-    @SerializedName("switches")
-    @Expose
+    // Topology data structures, only changed with the lock on the network
     protected final Set<T1> switchSet;
-    @SerializedName("links")
-    @Expose
     protected final Set<T3> linkSet;
     protected final Map<Long, T1> dpidMap;
     protected final Map<T2, T2> neighborPortMap;
     protected final Map<T1, HashSet<T1>> neighborMap;
+    // Outgoing links of each switch, indexed by source port number
+    protected final Map<T1, Map<Short, T3>> portLinkMap;
+    // Incoming links of each switch
+    protected final Map<T1, Set<T3>> inLinkMap;
+    private volatile long version;
+    // Snapshot of the current version, null until it is next read
+    private volatile Topology<T1, T2, T3> topology;
 
     /**
      * Instantiates the network.
@@ -67,6 +70,8 @@ public abstract class Network<T1 extends Switch, T2 extends Port, T3 extends Lin
         this.dpidMap = new HashMap<Long, T1>();
         this.neighborPortMap = new HashMap<T2, T2>();
         this.neighborMap = new HashMap<T1, HashSet<T1>>();
+        this.portLinkMap = new HashMap<T1, Map<Short, T3>>();
+        this.inLinkMap = new HashMap<T1, Set<T3>>();
     }
 
     // Protected methods to update topology (only allowed from subclasses)
@@ -77,7 +82,7 @@ public abstract class Network<T1 extends Switch, T2 extends Port, T3 extends Lin
      * @param link the link
      */
     @SuppressWarnings("unchecked")
-    protected void addLink(final T3 link) {
+    protected synchronized void addLink(final T3 link) {
         // Actual link creation is in child classes, because creation of generic
         // types sucks
         this.linkSet.add(link);
@@ -91,6 +96,19 @@ public abstract class Network<T1 extends Switch, T2 extends Port, T3 extends Lin
         neighbours.add(dstSwitch);
         this.neighborPortMap
                 .put((T2) link.getSrcPort(), (T2) link.getDstPort());
+        Map<Short, T3> links = this.portLinkMap.get(srcSwitch);
+        if (links == null) {
+            links = new HashMap<Short, T3>();
+            this.portLinkMap.put(srcSwitch, links);
+        }
+        links.put(link.getSrcPort().getPortNumber(), link);
+        Set<T3> inLinks = this.inLinkMap.get(dstSwitch);
+        if (inLinks == null) {
+            inLinks = new HashSet<T3>();
+            this.inLinkMap.put(dstSwitch, inLinks);
+        }
+        inLinks.add(link);
+        this.changed();
     }
 
     /**
@@ -99,71 +117,155 @@ public abstract class Network<T1 extends Switch, T2 extends Port, T3 extends Lin
      * @param link the link
      * @return true if successful, false otherwise
      */
-    @SuppressWarnings("unchecked")
-    protected boolean removeLink(final T3 link) {
-        this.linkSet.remove(link);
-        final T1 srcSwitch = (T1) link.getSrcSwitch();
-        final T1 dstSwitch = (T1) link.getDstSwitch();
+    protected synchronized boolean removeLink(final T3 link) {
         final Port srcPort = link.getSrcPort();
         final Port dstPort = link.getSrcPort();
         srcPort.setEdge(true);
         dstPort.setEdge(true);
+        this.unlink(link);
+        return true;
+    }
+
+    /**
+     * Removes link from the topology data structures, leaving its ports as
+     * they are. The source port and the neighbors of the source switch are
+     * only updated if no other link has since taken them.
+     *
+     * @param link the link
+     * @return true if the link was in the topology, false otherwise
+     */
+    @SuppressWarnings("unchecked")
+    protected synchronized boolean unlink(final T3 link) {
+        if (!this.linkSet.remove(link)) {
+            return false;
+        }
+        final T1 srcSwitch = (T1) link.getSrcSwitch();
+        final T1 dstSwitch = (T1) link.getDstSwitch();
+        final Map<Short, T3> links = this.portLinkMap.get(srcSwitch);
+        if (links != null) {
+            final Short portNumber = link.getSrcPort().getPortNumber();
+            if (link.equals(links.get(portNumber))) {
+                links.remove(portNumber);
+                if (link.getDstPort().equals(
+                        this.neighborPortMap.get(link.getSrcPort()))) {
+                    this.neighborPortMap.remove(link.getSrcPort());
+                }
+            }
+        }
+        final Set<T3> inLinks = this.inLinkMap.get(dstSwitch);
+        if (inLinks != null) {
+            inLinks.remove(link);
+        }
         final HashSet<T1> neighbours = this.neighborMap.get(srcSwitch);
-        neighbours.remove(dstSwitch);
-        this.neighborPortMap.remove(link.getSrcPort());
+        if (neighbours != null && !this.isNeighbor(srcSwitch, dstSwitch)) {
+            neighbours.remove(dstSwitch);
+        }
+        this.changed();
         return true;
     }
 
+    /**
+     * Checks whether a link is left from one switch to another.
+     */
+    private boolean isNeighbor(final T1 srcSwitch, final T1 dstSwitch) {
+        final Map<Short, T3> links = this.portLinkMap.get(srcSwitch);
+        if (links != null) {
+            for (T3 link : links.values()) {
+                if (link.getDstSwitch() == dstSwitch) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     /**
      * Adds switch to topology.
      *
      * @param sw the switch
      */
-    protected void addSwitch(final T1 sw) {
+    protected synchronized void addSwitch(final T1 sw) {
         if (this.switchSet.add(sw)) {
             this.dpidMap.put(sw.getSwitchId(), sw);
             this.neighborMap.put(sw, new HashSet<T1>());
+            this.changed();
         }
     }
 
     /**
-     * Removes switch from topology.
+     * Removes switch from topology, with the links that start or end at
+     * it.
      *
      * @param sw the switch
      * @return true if successful, false otherwise
      */
-    @SuppressWarnings("unchecked")
-    protected boolean removeSwitch(final T1 sw) {
+    protected synchronized boolean removeSwitch(final T1 sw) {
         if (this.switchSet.remove(sw)) {
-            this.neighborMap.remove(sw);
-            this.dpidMap.remove(((Switch) sw).getSwitchId());
-            // Remove links that start/end at the given switch
-            // TODO: can be optimized
-            Iterator linkIter = this.linkSet.iterator();
-            while (linkIter.hasNext()) {
-                T3 link = (T3) linkIter.next();
-                if (link.getSrcSwitch() == sw || link.getDstSwitch() == sw) {
-                    linkIter.remove();
-                }
+            final List<T3> links = new ArrayList<T3>();
+            final Map<Short, T3> outLinks = this.portLinkMap.get(sw);
+            if (outLinks != null) {
+                links.addAll(outLinks.values());
             }
-            // Remove neighbour ports on the given switch
-            // TODO: can be optimized
-            Iterator neighbourIter = this.neighborPortMap.entrySet().iterator();
-            while (neighbourIter.hasNext()) {
-                Entry<T2, T2> neighbours = (Entry<T2, T2>) neighbourIter.next();
-                if (neighbours.getKey().getParentSwitch() == sw ||
-                        neighbours.getValue().getParentSwitch() == sw) {
-                    neighbourIter.remove();
-                }
+            final Set<T3> inLinks = this.inLinkMap.get(sw);
+            if (inLinks != null) {
+                links.addAll(inLinks);
             }
-
+            for (T3 link : links) {
+                this.unlink(link);
+            }
+            this.neighborMap.remove(sw);
+            this.dpidMap.remove(((Switch) sw).getSwitchId());
+            this.portLinkMap.remove(sw);
+            this.inLinkMap.remove(sw);
+            this.changed();
             return true;
         }
         return false;
     }
 
+    /**
+     * Records a change of the topology, to be published in a new snapshot.
+     */
+    private void changed() {
+        this.version++;
+        this.topology = null;
+    }
+
     // Public methods to query topology information
 
+    /**
+     * Returns the snapshot of the current topology. A snapshot is only made
+     * when read after a change, so that bursts of changes are published
+     * once.
+     *
+     * @return the topology
+     */
+    public Topology<T1, T2, T3> getTopology() {
+        final Topology<T1, T2, T3> current = this.topology;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            if (this.topology == null) {
+                this.topology = new Topology<T1, T2, T3>(this.version,
+                        this.switchSet, this.linkSet, this.dpidMap,
+                        this.neighborPortMap, this.neighborMap,
+                        this.portLinkMap);
+            }
+            return this.topology;
+        }
+    }
+
+    /**
+     * Gets the version of the topology, incremented on every change. It is
+     * cheaper than {@link #getTopology()} when only checking for changes.
+     *
+     * @return the version
+     */
+    public long getVersion() {
+        return this.version;
+    }
+
     /**
      * Returns neighbor switches of given switch.
      *
@@ -171,7 +273,7 @@ public abstract class Network<T1 extends Switch, T2 extends Port, T3 extends Lin
      * @return Unmodifiable set of switch instances.
      */
     public Set<T1> getNeighbors(final T1 sw) {
-        return Collections.unmodifiableSet(this.neighborMap.get(sw));
+        return this.getTopology().getNeighbors(sw);
     }
 
     /**
@@ -181,7 +283,11 @@ public abstract class Network<T1 extends Switch, T2 extends Port, T3 extends Lin
      * @return the neighbour port
      */
     public T2 getNeighborPort(final T2 port) {
-        return this.neighborPortMap.get(port);
+        if (Thread.holdsLock(this)) {
+            // changes in progress are not published yet
+            return this.neighborPortMap.get(port);
+        }
+        return this.getTopology().getNeighborPort(port);
     }
 
     /**
@@ -192,7 +298,10 @@ public abstract class Network<T1 extends Switch, T2 extends Port, T3 extends Lin
      */
     public T1 getSwitch(final Long dpid) throws InvalidDPIDException {
         try {
-            return this.dpidMap.get(dpid);
+            if (Thread.holdsLock(this)) {
+                return this.dpidMap.get(dpid);
+            }
+            return this.getTopology().getSwitch(dpid);
         } catch (ClassCastException | NullPointerException ex) {
             throw new InvalidDPIDException("DPID "
                     + HexString.toHexString(dpid) + " is unknown ");
@@ -205,7 +314,7 @@ public abstract class Network<T1 extends Switch, T2 extends Port, T3 extends Lin
      * @return set of switches
      */
     public Set<T1> getSwitches() {
-        return Collections.unmodifiableSet(this.switchSet);
+        return this.getTopology().getSwitches();
     }
 
     /**
@@ -214,7 +323,17 @@ public abstract class Network<T1 extends Switch, T2 extends Port, T3 extends Lin
      * @return set of links
      */
     public Set<T3> getLinks() {
-        return Collections.unmodifiableSet(this.linkSet);
+        return this.getTopology().getLinks();
+    }
+
+    /**
+     * Returns the links that start at the given switch.
+     *
+     * @param sw the switch
+     * @return unmodifiable collection of links
+     */
+    public Collection<T3> getOutgoingLinks(final T1 sw) {
+        return this.getTopology().getOutgoingLinks(sw);
     }
 
     /**
@@ -225,14 +344,10 @@ public abstract class Network<T1 extends Switch, T2 extends Port, T3 extends Lin
      * @return the link instance, null if it doesn't exist
      */
     public T3 getLink(final T2 srcPort, final T2 dstPort) {
-        // TODO: optimize this because we iterate over all links
-        for (final T3 link : this.linkSet) {
-            if (link.getSrcPort().equals(srcPort)
-                    && link.getDstPort().equals(dstPort)) {
-                return link;
-            }
+        if (Thread.holdsLock(this)) {
+            return Topology.getLink(this.portLinkMap, srcPort, dstPort);
         }
-        return null;
+        return this.getTopology().getLink(srcPort, dstPort);
     }
 
     /**
@@ -54,6 +54,7 @@ import net.onrc.openvirtex.routing.SwitchRoute;
 import net.onrc.openvirtex.util.BitSetIndex;
 import net.onrc.openvirtex.util.BitSetIndex.IndexType;
 import net.onrc.openvirtex.util.MACAddress;
+import net.onrc.openvirtex.util.MetricsRegistry;
 import net.onrc.openvirtex.util.OVXFlowManager;
 
 import org.apache.logging.log4j.LogManager;
@@ -118,8 +119,7 @@ public class OVXNetwork extends Network<OVXSwitch, OVXPort, OVXLink> implements
         this.ipCounter = new BitSetIndex(IndexType.IP_ID);
         this.hostCounter = new BitSetIndex(IndexType.HOST_ID);
         this.hostMap = new HashMap<OVXPort, Host>();
-        this.flowManager = new OVXFlowManager(this.tenantId,
-                this.hostMap.values());
+        this.flowManager = new OVXFlowManager(this.tenantId);
     }
 
     /**
@@ -240,6 +240,9 @@ public class OVXNetwork extends Network<OVXSwitch, OVXPort, OVXLink> implements
         // remove the network from the Map
         OVXMap.getInstance().removeVirtualIPs(this.tenantId);
         OVXMap.getInstance().removeNetwork(this);
+        OpenVirteXController.getInstance().getTenantScheduler()
+                .removeTenant(this.tenantId);
+        MetricsRegistry.getInstance().removeTenant(this.tenantId);
         OpenVirteXController.getTenantCounter().releaseIndex(this.tenantId);
     }
 
@@ -617,15 +620,6 @@ public class OVXNetwork extends Network<OVXSwitch, OVXPort, OVXLink> implements
     @Override
     public boolean boot() {
         boolean result = true;
-        try {
-            flowManager.boot();
-        } catch (final IndexOutOfBoundException e) {
-            OVXNetwork.log
-                    .error("Too many host to generate the flow pairs. Tear down the virtual network {}",
-                            this.tenantId);
-            this.stop();
-            return false;
-        }
         for (final OVXSwitch sw : this.getSwitches()) {
             result &= sw.boot();
         }
@@ -738,17 +732,17 @@ public class OVXNetwork extends Network<OVXSwitch, OVXPort, OVXLink> implements
     }
 
     public Set<OVXLink> getLinkSet() {
-        return Collections.unmodifiableSet(this.linkSet);
+        return this.getLinks();
     }
 
     @Override
     public boolean removeLink(final OVXLink virtualLink) {
-        return this.linkSet.remove(virtualLink);
+        return this.unlink(virtualLink);
     }
 
     @Override
     public boolean removeSwitch(final OVXSwitch ovxSwitch) {
-        return this.switchSet.remove(ovxSwitch);
+        return super.removeSwitch(ovxSwitch);
     }
 
     public void removeHost(final Host host) {
@@ -24,11 +24,18 @@ import net.onrc.openvirtex.db.DBManager;
 import net.onrc.openvirtex.elements.OVXMap;
 import net.onrc.openvirtex.elements.datapath.DPIDandPort;
 import net.onrc.openvirtex.elements.datapath.DPIDandPortPair;
+import net.onrc.openvirtex.elements.datapath.OVXBigSwitch;
+import net.onrc.openvirtex.elements.datapath.OVXSwitch;
 import net.onrc.openvirtex.elements.datapath.PhysicalSwitch;
 import net.onrc.openvirtex.elements.datapath.Switch;
+import net.onrc.openvirtex.elements.link.OVXLink;
 import net.onrc.openvirtex.elements.link.PhysicalLink;
 import net.onrc.openvirtex.elements.port.PhysicalPort;
+import net.onrc.openvirtex.exceptions.LinkMappingException;
+import net.onrc.openvirtex.exceptions.SwitchMappingException;
+import net.onrc.openvirtex.linkdiscovery.DiscoveryScheduler;
 import net.onrc.openvirtex.linkdiscovery.SwitchDiscoveryManager;
+import net.onrc.openvirtex.routing.SwitchRoute;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -52,6 +59,7 @@ public final class PhysicalNetwork extends
     private static PhysicalNetwork instance;
     private ArrayList<Uplink> uplinkList;
     private final ConcurrentHashMap<Long, SwitchDiscoveryManager> discoveryManager;
+    private final DiscoveryScheduler discoveryScheduler;
     private static HashedWheelTimer timer;
     private static Logger log = LogManager.getLogger(PhysicalNetwork.class.getName());
 
@@ -59,6 +67,9 @@ public final class PhysicalNetwork extends
         PhysicalNetwork.log.info("Starting network discovery...");
         // PhysicalNetwork.timer = new HashedWheelTimer();
         this.discoveryManager = new ConcurrentHashMap<Long, SwitchDiscoveryManager>();
+        this.discoveryScheduler = new DiscoveryScheduler(
+                DiscoveryScheduler.DEFAULT_PROBE_RATE, OpenVirteXController
+                        .getInstance().getFastProbeInterval());
     }
 
     public static PhysicalNetwork getInstance() {
@@ -78,6 +89,9 @@ public final class PhysicalNetwork extends
     public static void reset() {
         log.debug("PhysicalNetwork has been explicitly reset. "
                 + "Hope you know what you are doing!!");
+        if (PhysicalNetwork.instance != null) {
+            PhysicalNetwork.instance.discoveryScheduler.stop();
+        }
         PhysicalNetwork.instance = null;
     }
 
@@ -97,8 +111,11 @@ public final class PhysicalNetwork extends
     @Override
     public synchronized void addSwitch(final PhysicalSwitch sw) {
         super.addSwitch(sw);
-        this.discoveryManager.put(sw.getSwitchId(), new SwitchDiscoveryManager(
-                sw, OpenVirteXController.getInstance().getUseBDDP()));
+        final SwitchDiscoveryManager sdm = new SwitchDiscoveryManager(sw,
+                this.discoveryScheduler, OpenVirteXController.getInstance()
+                        .getUseBDDP());
+        this.discoveryManager.put(sw.getSwitchId(), sdm);
+        this.discoveryScheduler.register(sdm);
         DBManager.getInstance().addSwitch(sw.getSwitchId());
     }
 
@@ -112,6 +129,9 @@ public final class PhysicalNetwork extends
         DBManager.getInstance().delSwitch(sw.getSwitchId());
         SwitchDiscoveryManager sdm = this.discoveryManager
                 .get(sw.getSwitchId());
+        if (sdm != null) {
+            this.discoveryScheduler.unregister(sdm);
+        }
         for (PhysicalPort port : sw.getPorts().values()) {
             removePort(sdm, port);
         }
@@ -176,6 +196,7 @@ public final class PhysicalNetwork extends
             final PhysicalLink link = new PhysicalLink(srcPort, dstPort);
             OVXMap.getInstance().knownLink(link);
             super.addLink(link);
+            this.invalidateRoutes(link, true);
             log.info("Adding physical link between {}/{} and {}/{}", link
                     .getSrcSwitch().getSwitchName(), link.getSrcPort()
                     .getPortNumber(), link.getDstSwitch().getSwitchName(), link
@@ -185,6 +206,134 @@ public final class PhysicalNetwork extends
                     new DPIDandPort(dstPort.getParentSwitch().getSwitchId(),
                             dstPort.getPortNumber()));
             DBManager.getInstance().addLink(dpp);
+            this.revert(link);
+        }
+    }
+
+    /**
+     * Handles a link whose discovery probes are no longer acknowledged:
+     * removes it from the topology, then switches the virtual links and
+     * switch routes of all tenants that use it to their backup paths, as a
+     * port status reporting the link down would.
+     *
+     * @param srcPort the source port of the link
+     */
+    public void linkFailed(final PhysicalPort srcPort) {
+        if (srcPort == null) {
+            return;
+        }
+        final PhysicalLink link;
+        synchronized (this) {
+            link = this.getLink(srcPort, this.getNeighborPort(srcPort));
+            if (link == null) {
+                return;
+            }
+            this.removeLink(link.getSrcPort(), link.getDstPort());
+        }
+        final OVXMap map = OVXMap.getInstance();
+        final TenantExecutor executor = OpenVirteXController.getInstance()
+                .getTenantExecutor();
+        for (final Integer tenantId : map.getTenants(link)) {
+            executor.submit(tenantId, new Runnable() {
+                @Override
+                public void run() {
+                    PhysicalNetwork.this.failover(map, link, tenantId);
+                }
+            });
+        }
+    }
+
+    /**
+     * Switches the virtual links and switch routes of a tenant that use a
+     * failed link to their backup paths.
+     *
+     * @param map the mappings
+     * @param link the failed link
+     * @param tenantId the tenant ID
+     */
+    private void failover(final OVXMap map, final PhysicalLink link,
+            final Integer tenantId) {
+        try {
+            if (map.hasOVXLinks(link, tenantId)) {
+                for (OVXLink vlink : new ArrayList<OVXLink>(map
+                        .getVirtualLinks(link, tenantId))) {
+                    if (!vlink.tryRecovery(link)) {
+                        log.warn("No backup path for virtual link {} in virtual network {}",
+                                vlink.getLinkId(), tenantId);
+                    }
+                }
+            }
+            if (map.hasSwitchRoutes(link, tenantId)) {
+                for (SwitchRoute route : new ArrayList<SwitchRoute>(map
+                        .getSwitchRoutes(link, tenantId))) {
+                    if (!route.tryRecovery(link)) {
+                        log.warn("No backup path for route {} in virtual network {}",
+                                route.getRouteId(), tenantId);
+                    }
+                }
+            }
+        } catch (LinkMappingException e) {
+            log.warn("Couldn't fail over link {} in virtual network {}: {}",
+                    link, tenantId, e.getMessage());
+        }
+    }
+
+    /**
+     * Switches the virtual links and switch routes of all tenants that
+     * failed over from the given link back to it, now that it is up again.
+     *
+     * @param link the link
+     */
+    private void revert(final PhysicalLink link) {
+        final OVXMap map = OVXMap.getInstance();
+        final TenantExecutor executor = OpenVirteXController.getInstance()
+                .getTenantExecutor();
+        for (final Integer tenantId : map.getTenants(link)) {
+            executor.submit(tenantId, new Runnable() {
+                @Override
+                public void run() {
+                    for (OVXLink vlink : map.getUnusableLinks(link, tenantId)) {
+                        vlink.tryRevert(link);
+                    }
+                    for (SwitchRoute route : map.getUnusableRoutes(link,
+                            tenantId)) {
+                        route.tryRevert(link);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Updates the route caches of the big switches that span both ends of
+     * the given link. An added link may shorten any of their paths, a
+     * removed link only affects the paths that used it.
+     *
+     * @param link the link
+     * @param added true if the link was added, false if it was removed
+     */
+    private void invalidateRoutes(final PhysicalLink link, final boolean added) {
+        final OVXMap map = OVXMap.getInstance();
+        for (Integer tenantId : map.listVirtualNetworks().keySet()) {
+            if (!map.hasVirtualSwitch(link.getSrcSwitch(), tenantId)
+                    || !map.hasVirtualSwitch(link.getDstSwitch(), tenantId)) {
+                continue;
+            }
+            try {
+                final OVXSwitch vsw = map.getVirtualSwitch(
+                        link.getSrcSwitch(), tenantId);
+                if (vsw instanceof OVXBigSwitch
+                        && vsw == map.getVirtualSwitch(link.getDstSwitch(),
+                                tenantId)) {
+                    if (added) {
+                        ((OVXBigSwitch) vsw).getRouteCache().invalidateAll();
+                    } else {
+                        ((OVXBigSwitch) vsw).getRouteCache().invalidate(link);
+                    }
+                }
+            } catch (SwitchMappingException e) {
+                log.warn("Inconsistency in OVXMap: {}", e.getMessage());
+            }
         }
     }
 
@@ -198,13 +347,14 @@ public final class PhysicalNetwork extends
             final PhysicalPort dstPort) {
         PhysicalPort neighbourPort = this.getNeighborPort(srcPort);
         if ((neighbourPort != null) && (neighbourPort.equals(dstPort))) {
-            final PhysicalLink link = super.getLink(srcPort, dstPort);
+            final PhysicalLink link = this.getLink(srcPort, dstPort);
             DPIDandPortPair dpp = new DPIDandPortPair(new DPIDandPort(srcPort
                     .getParentSwitch().getSwitchId(), srcPort.getPortNumber()),
                     new DPIDandPort(dstPort.getParentSwitch().getSwitchId(),
                             dstPort.getPortNumber()));
             DBManager.getInstance().delLink(dpp);
             super.removeLink(link);
+            this.invalidateRoutes(link, false);
             log.info("Removing physical link between {}/{} and {}/{}", link
                     .getSrcSwitch().getSwitchName(), link.getSrcPort()
                     .getPortNumber(), link.getDstSwitch().getSwitchName(), link
@@ -269,4 +419,13 @@ public final class PhysicalNetwork extends
         return this.discoveryManager.get(dpid);
     }
 
+    /**
+     * Gets the scheduler that drives the discovery managers.
+     *
+     * @return the discovery scheduler
+     */
+    public DiscoveryScheduler getDiscoveryScheduler() {
+        return this.discoveryScheduler;
+    }
+
 }
@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.elements.network;
+
+import java.util.concurrent.Executors;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs work on the virtual networks of tenants off the switch I/O threads.
+ * <p>
+ * Tenants are spread over a fixed number of single-threaded shards, so the
+ * work of one tenant runs in the order it was submitted while different
+ * tenants are handled in parallel. With no shards, work runs in the
+ * submitting thread.
+ */
+public class TenantExecutor {
+
+    private final ListeningExecutorService[] shards;
+
+    /**
+     * Creates an executor. Shard threads are only started once work is
+     * submitted to them.
+     *
+     * @param nShards the number of shards, 0 to run work in the caller
+     */
+    public TenantExecutor(final int nShards) {
+        this.shards = new ListeningExecutorService[nShards];
+        for (int i = 0; i < nShards; i++) {
+            this.shards[i] = MoreExecutors.listeningDecorator(Executors
+                    .newSingleThreadExecutor(new ThreadFactoryBuilder()
+                            .setNameFormat("ovx-tenant-" + i).setDaemon(true)
+                            .build()));
+        }
+    }
+
+    /**
+     * Submits work on the virtual network of a tenant.
+     *
+     * @param tenantId the tenant ID
+     * @param task the work
+     * @return a future completed once the work has run
+     */
+    public ListenableFuture<?> submit(final int tenantId, final Runnable task) {
+        if (this.shards.length == 0) {
+            return MoreExecutors.sameThreadExecutor().submit(task);
+        }
+        return this.shards[(tenantId & Integer.MAX_VALUE) % this.shards.length]
+                .submit(task);
+    }
+
+    /**
+     * @return the number of shards
+     */
+    public int getShardCount() {
+        return this.shards.length;
+    }
+
+    /**
+     * Stops the shard threads once the submitted work has run.
+     */
+    public void shutdown() {
+        for (ListeningExecutorService shard : this.shards) {
+            shard.shutdown();
+        }
+    }
+
+}
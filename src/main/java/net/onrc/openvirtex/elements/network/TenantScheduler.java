@@ -0,0 +1,493 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.elements.network;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.onrc.openvirtex.util.LatencyHistogram;
+import net.onrc.openvirtex.util.Metrics;
+import net.onrc.openvirtex.util.Metrics.Gauge;
+import net.onrc.openvirtex.util.MetricsRegistry;
+import net.onrc.openvirtex.util.StripedCounter;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jboss.netty.channel.Channel;
+
+/**
+ * Shares the handling of data path messages fairly among tenants.
+ * <p>
+ * The I/O threads submit the messages of a tenant, packet-ins from its
+ * switches and messages from its controllers, to its queue instead of
+ * handling them. Each queue is drained on the shard of its tenant in the
+ * {@link TenantExecutor}, a number of messages given by the weight of the
+ * tenant at a time, so tenants sharing a shard take turns in proportion to
+ * their weights, and a tenant flooding OVX with messages delays its own
+ * messages rather than those of others or the I/O threads. Without shards,
+ * the thread submitting a message drains the queue of its tenant only. The
+ * messages of a tenant are handled one at a time, in the order they were
+ * submitted.
+ * <p>
+ * Packet-ins are admitted by the token bucket of their tenant. Once a
+ * tenant exceeds its rate, its packet-ins are dropped, or only one in
+ * every N of them is admitted, and they are also dropped while its queue
+ * is full. Messages of controllers are never dropped: reading from a
+ * controller is suspended while the queue of its tenant is full.
+ * <p>
+ * With a queue length of 0, messages are handled as soon as they are
+ * submitted.
+ */
+public class TenantScheduler {
+
+    private static Logger log = LogManager.getLogger(TenantScheduler.class
+            .getName());
+
+    /**
+     * What to do with the packet-ins of a tenant over its rate.
+     */
+    public enum Policy {
+        /** Drop them. */
+        DROP,
+        /** Admit one in every sample rate of them. */
+        SAMPLE
+    }
+
+    /**
+     * The share of a tenant: its packet-in rate and weight.
+     */
+    public static final class Budget {
+        private final long rate;
+        private final long burst;
+        private final int weight;
+        private final Policy policy;
+        private final int sampleRate;
+
+        /**
+         * Creates a budget.
+         *
+         * @param rate the packet-ins admitted per second, 0 for no limit
+         * @param burst the packet-ins admitted at once, 0 for the rate
+         * @param weight the messages of the tenant handled per turn,
+         *            relative to other tenants
+         * @param policy what to do with packet-ins over the rate
+         * @param sampleRate the packet-ins over the rate per admitted
+         *            packet-in when sampling
+         */
+        public Budget(final long rate, final long burst, final int weight,
+                final Policy policy, final int sampleRate) {
+            if (rate < 0 || burst < 0) {
+                throw new IllegalArgumentException(
+                        "Rate and burst must not be negative");
+            }
+            if (weight < 1 || sampleRate < 1) {
+                throw new IllegalArgumentException(
+                        "Weight and sample rate must be positive");
+            }
+            if (policy == null) {
+                throw new IllegalArgumentException("Policy must be set");
+            }
+            this.rate = rate;
+            this.burst = burst == 0 ? rate : burst;
+            this.weight = weight;
+            this.policy = policy;
+            this.sampleRate = sampleRate;
+        }
+
+        public long getRate() {
+            return this.rate;
+        }
+
+        public long getBurst() {
+            return this.burst;
+        }
+
+        public int getWeight() {
+            return this.weight;
+        }
+
+        public Policy getPolicy() {
+            return this.policy;
+        }
+
+        public int getSampleRate() {
+            return this.sampleRate;
+        }
+
+        public Map<String, Object> toMap() {
+            final Map<String, Object> map = new LinkedHashMap<String, Object>();
+            map.put("rate", this.rate);
+            map.put("burst", this.burst);
+            map.put("weight", this.weight);
+            map.put("policy", this.policy.name());
+            map.put("sampleRate", this.sampleRate);
+            return map;
+        }
+    }
+
+    private final int maxQueue;
+    private final TenantExecutor executor;
+    private volatile Budget defaultBudget;
+    private final ConcurrentMap<Integer, Tenant> tenants = new ConcurrentHashMap<Integer, Tenant>();
+
+    // Without shards, the tenants whose turn is due on this thread. Set
+    // while the thread drains queues, so messages submitted by their
+    // handling are queued rather than handled within it.
+    private final ThreadLocal<LinkedList<Tenant>> turns = new ThreadLocal<LinkedList<Tenant>>();
+
+    /**
+     * Creates a scheduler draining queues in the submitting threads.
+     *
+     * @param maxQueue the messages queued per tenant, 0 to handle messages
+     *            as soon as they are submitted
+     * @param defaultBudget the budget of tenants without one of their own
+     */
+    public TenantScheduler(final int maxQueue, final Budget defaultBudget) {
+        this(maxQueue, defaultBudget, new TenantExecutor(0));
+    }
+
+    /**
+     * Creates a scheduler.
+     *
+     * @param maxQueue the messages queued per tenant, 0 to handle messages
+     *            as soon as they are submitted
+     * @param defaultBudget the budget of tenants without one of their own
+     * @param executor the executor whose shards drain the queues
+     */
+    public TenantScheduler(final int maxQueue, final Budget defaultBudget,
+            final TenantExecutor executor) {
+        if (maxQueue < 0) {
+            throw new IllegalArgumentException(
+                    "Queue length must not be negative");
+        }
+        this.maxQueue = maxQueue;
+        this.defaultBudget = defaultBudget;
+        this.executor = executor;
+    }
+
+    /**
+     * @return true if messages are queued, false if they are handled as
+     *         soon as they are submitted
+     */
+    public boolean isEnabled() {
+        return this.maxQueue > 0;
+    }
+
+    /**
+     * @return the messages queued per tenant
+     */
+    public int getMaxQueue() {
+        return this.maxQueue;
+    }
+
+    /**
+     * Submits a message of a tenant, and schedules a turn of the tenant if
+     * none is due.
+     *
+     * @param tenantId the tenant of the message
+     * @param channel the channel of the controller the message is from,
+     *            null for a packet-in
+     * @param task the handling of the message
+     */
+    public void submit(final int tenantId, final Channel channel,
+            final Runnable task) {
+        if (this.maxQueue == 0) {
+            task.run();
+            return;
+        }
+        final Tenant tenant = this.getTenant(tenantId);
+        final long now = System.nanoTime();
+        final boolean suspend;
+        final boolean schedule;
+        synchronized (tenant) {
+            if (channel == null && !tenant.admit(now)) {
+                return;
+            }
+            tenant.queue.add(new Entry(task, now));
+            schedule = !tenant.scheduled;
+            tenant.scheduled = true;
+            suspend = channel != null
+                    && tenant.queue.size() >= this.maxQueue
+                    && tenant.suspended.add(channel);
+        }
+        if (suspend) {
+            channel.setReadable(false);
+        }
+        if (schedule) {
+            this.schedule(tenant);
+        }
+    }
+
+    /**
+     * Schedules a turn of a tenant on its shard. Without shards, the turn
+     * is taken by the current thread once it has taken the turns due
+     * before it.
+     *
+     * @param tenant the tenant
+     */
+    private void schedule(final Tenant tenant) {
+        if (this.executor.getShardCount() > 0) {
+            this.executor.submit(tenant.tenantId, tenant);
+            return;
+        }
+        LinkedList<Tenant> due = this.turns.get();
+        if (due != null) {
+            due.add(tenant);
+            return;
+        }
+        due = new LinkedList<Tenant>();
+        due.add(tenant);
+        this.turns.set(due);
+        try {
+            Tenant next;
+            while ((next = due.poll()) != null) {
+                next.run();
+            }
+        } finally {
+            this.turns.remove();
+        }
+    }
+
+    /**
+     * @return the budget of tenants without one of their own
+     */
+    public Budget getDefaultBudget() {
+        return this.defaultBudget;
+    }
+
+    /**
+     * Sets the budget of tenants without one of their own.
+     *
+     * @param budget the budget
+     */
+    public void setDefaultBudget(final Budget budget) {
+        this.defaultBudget = budget;
+    }
+
+    /**
+     * Gets the budget of a tenant.
+     *
+     * @param tenantId the tenant id
+     * @return the budget
+     */
+    public Budget getBudget(final int tenantId) {
+        final Tenant tenant = this.tenants.get(tenantId);
+        return tenant == null ? this.defaultBudget : tenant.getBudget();
+    }
+
+    /**
+     * Sets the budget of a tenant.
+     *
+     * @param tenantId the tenant id
+     * @param budget the budget, null for the default one
+     */
+    public void setBudget(final int tenantId, final Budget budget) {
+        this.getTenant(tenantId).budget = budget;
+    }
+
+    /**
+     * Forgets a tenant once its virtual network is removed. Its queued
+     * messages are still handled.
+     *
+     * @param tenantId the tenant id
+     */
+    public void removeTenant(final int tenantId) {
+        this.tenants.remove(tenantId);
+    }
+
+    private Tenant getTenant(final int tenantId) {
+        Tenant tenant = this.tenants.get(tenantId);
+        if (tenant == null) {
+            final Tenant created = new Tenant(tenantId);
+            tenant = this.tenants.putIfAbsent(tenantId, created);
+            if (tenant == null) {
+                tenant = created;
+                tenant.addGauges();
+            }
+        }
+        return tenant;
+    }
+
+    /**
+     * A queued message.
+     */
+    private static final class Entry {
+        private final Runnable task;
+        private final long time;
+
+        private Entry(final Runnable task, final long time) {
+            this.task = task;
+            this.time = time;
+        }
+    }
+
+    /**
+     * The queue and token bucket of a tenant, and the turn that drains the
+     * queue. Apart from the budget and metrics, guarded by the tenant.
+     */
+    private final class Tenant implements Runnable {
+        private final int tenantId;
+        private volatile Budget budget;
+        private final LinkedList<Entry> queue = new LinkedList<Entry>();
+        private final Set<Channel> suspended = new HashSet<Channel>();
+        // set while a turn is due or being taken
+        private boolean scheduled;
+        private double tokens;
+        private long refilled;
+        private long overRate;
+
+        private final Metrics metrics;
+        private final StripedCounter admitted;
+        private final StripedCounter sampled;
+        private final StripedCounter dropped;
+        private final StripedCounter rejected;
+        private final LatencyHistogram queueTime;
+
+        private Tenant(final int tenantId) {
+            this.tenantId = tenantId;
+            this.refilled = System.nanoTime();
+            this.tokens = -1;
+            this.metrics = MetricsRegistry.getInstance().getTenant(tenantId);
+            this.admitted = this.metrics.getCounter("admittedPacketIns");
+            this.sampled = this.metrics.getCounter("sampledPacketIns");
+            this.dropped = this.metrics.getCounter("droppedPacketIns");
+            this.rejected = this.metrics.getCounter("rejectedPacketIns");
+            this.queueTime = this.metrics.getHistogram("queueTime");
+        }
+
+        private Budget getBudget() {
+            final Budget b = this.budget;
+            return b == null ? TenantScheduler.this.defaultBudget : b;
+        }
+
+        /**
+         * Takes a turn: handles as many queued messages as the weight of the
+         * tenant, and schedules another turn if messages are left.
+         */
+        @Override
+        public void run() {
+            final int weight = this.getBudget().weight;
+            for (int i = 0; i < weight; i++) {
+                final Entry entry;
+                synchronized (this) {
+                    entry = this.queue.poll();
+                    if (entry == null) {
+                        this.scheduled = false;
+                        return;
+                    }
+                }
+                this.queueTime.record(System.nanoTime() - entry.time);
+                try {
+                    entry.task.run();
+                } catch (final RuntimeException e) {
+                    TenantScheduler.log.error(
+                            "Failed to handle message of virtual network {}",
+                            this.tenantId, e);
+                }
+                this.resume();
+            }
+            synchronized (this) {
+                if (this.queue.isEmpty()) {
+                    this.scheduled = false;
+                    return;
+                }
+            }
+            TenantScheduler.this.schedule(this);
+        }
+
+        /**
+         * Resumes reading from the suspended channels once the queue is
+         * half empty.
+         */
+        private void resume() {
+            final List<Channel> resumed;
+            synchronized (this) {
+                if (this.suspended.isEmpty()
+                        || this.queue.size() > TenantScheduler.this.maxQueue / 2) {
+                    return;
+                }
+                resumed = new ArrayList<Channel>(this.suspended);
+                this.suspended.clear();
+            }
+            for (Channel channel : resumed) {
+                channel.setReadable(true);
+            }
+        }
+
+        /**
+         * Decides whether to admit a packet-in.
+         *
+         * @param now the time in nanoseconds
+         * @return true if the packet-in is admitted
+         */
+        private boolean admit(final long now) {
+            if (this.queue.size() >= TenantScheduler.this.maxQueue) {
+                this.rejected.increment();
+                return false;
+            }
+            final Budget b = this.getBudget();
+            if (b.rate == 0) {
+                this.admitted.increment();
+                return true;
+            }
+            // a new bucket starts full
+            if (this.tokens < 0) {
+                this.tokens = b.burst;
+            }
+            this.tokens = Math.min(b.burst, this.tokens + (now - this.refilled)
+                    / 1e9 * b.rate);
+            this.refilled = now;
+            if (this.tokens >= 1) {
+                this.tokens--;
+                this.admitted.increment();
+                return true;
+            }
+            if (b.policy == Policy.SAMPLE && this.overRate++ % b.sampleRate == 0) {
+                this.sampled.increment();
+                return true;
+            }
+            this.dropped.increment();
+            return false;
+        }
+
+        private void addGauges() {
+            this.metrics.addGauge("queuedMessages", new Gauge() {
+                @Override
+                public Object getValue() {
+                    synchronized (Tenant.this) {
+                        return Tenant.this.queue.size();
+                    }
+                }
+            });
+            this.metrics.addGauge("suspendedChannels", new Gauge() {
+                @Override
+                public Object getValue() {
+                    synchronized (Tenant.this) {
+                        return Tenant.this.suspended.size();
+                    }
+                }
+            });
+        }
+    }
+
+}
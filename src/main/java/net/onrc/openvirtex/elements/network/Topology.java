@@ -0,0 +1,206 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.elements.network;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import net.onrc.openvirtex.elements.datapath.Switch;
+import net.onrc.openvirtex.elements.link.Link;
+import net.onrc.openvirtex.elements.port.Port;
+
+import com.google.gson.annotations.Expose;
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * Immutable snapshot of the topology graph of a network. A network
+ * publishes a new snapshot, with a higher version, after its topology
+ * changes; readers query the snapshot they hold without locking, and can
+ * compare versions to tell whether the topology changed since.
+ *
+ * @param <T1> generic Switch type
+ * @param <T2> generic Port type
+ * @param <T3> Generic Link type
+ */
+@SuppressWarnings("rawtypes")
+public final class Topology<T1 extends Switch, T2 extends Port, T3 extends Link> {
+
+    private final long version;
+    @SerializedName("switches")
+    @Expose
+    private final Set<T1> switchSet;
+    @SerializedName("links")
+    @Expose
+    private final Set<T3> linkSet;
+    private final Map<Long, T1> dpidMap;
+    private final Map<T2, T2> neighborPortMap;
+    private final Map<T1, Set<T1>> neighborMap;
+    private final Map<T1, Map<Short, T3>> portLinkMap;
+
+    /**
+     * Copies the topology data structures of a network.
+     *
+     * @param version the version of the topology
+     * @param switchSet the switches
+     * @param linkSet the links
+     * @param dpidMap the switches by DPID
+     * @param neighborPortMap the neighbor port of each port
+     * @param neighborMap the neighbor switches of each switch
+     * @param portLinkMap the outgoing links of each switch by port number
+     */
+    Topology(final long version, final Set<T1> switchSet,
+            final Set<T3> linkSet, final Map<Long, T1> dpidMap,
+            final Map<T2, T2> neighborPortMap,
+            final Map<T1, ? extends Set<T1>> neighborMap,
+            final Map<T1, ? extends Map<Short, T3>> portLinkMap) {
+        this.version = version;
+        this.switchSet = Collections.unmodifiableSet(new HashSet<T1>(
+                switchSet));
+        this.linkSet = Collections.unmodifiableSet(new HashSet<T3>(linkSet));
+        this.dpidMap = new HashMap<Long, T1>(dpidMap);
+        this.neighborPortMap = new HashMap<T2, T2>(neighborPortMap);
+        this.neighborMap = new HashMap<T1, Set<T1>>(neighborMap.size());
+        for (Map.Entry<T1, ? extends Set<T1>> entry : neighborMap.entrySet()) {
+            this.neighborMap.put(entry.getKey(), Collections
+                    .unmodifiableSet(new HashSet<T1>(entry.getValue())));
+        }
+        this.portLinkMap = new HashMap<T1, Map<Short, T3>>(portLinkMap.size());
+        for (Map.Entry<T1, ? extends Map<Short, T3>> entry : portLinkMap
+                .entrySet()) {
+            this.portLinkMap.put(entry.getKey(), Collections
+                    .unmodifiableMap(new HashMap<Short, T3>(entry.getValue())));
+        }
+    }
+
+    /**
+     * Gets the version of the topology, incremented on every change.
+     *
+     * @return the version
+     */
+    public long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * Returns the neighbor switches of the given switch.
+     *
+     * @param sw the switch
+     * @return unmodifiable set of switches
+     */
+    public Set<T1> getNeighbors(final T1 sw) {
+        final Set<T1> neighbors = this.neighborMap.get(sw);
+        if (neighbors == null) {
+            return Collections.emptySet();
+        }
+        return neighbors;
+    }
+
+    /**
+     * Returns the neighbor port of the given port.
+     *
+     * @param port the port
+     * @return the neighbor port, null if the port has no link
+     */
+    public T2 getNeighborPort(final T2 port) {
+        return this.neighborPortMap.get(port);
+    }
+
+    /**
+     * Returns the switch with the given DPID.
+     *
+     * @param dpid the datapath ID
+     * @return the switch, null if unknown
+     */
+    public T1 getSwitch(final Long dpid) {
+        return this.dpidMap.get(dpid);
+    }
+
+    /**
+     * Returns the switches of the topology.
+     *
+     * @return unmodifiable set of switches
+     */
+    public Set<T1> getSwitches() {
+        return this.switchSet;
+    }
+
+    /**
+     * Returns the links of the topology.
+     *
+     * @return unmodifiable set of links
+     */
+    public Set<T3> getLinks() {
+        return this.linkSet;
+    }
+
+    /**
+     * Returns the links that start at the given switch.
+     *
+     * @param sw the switch
+     * @return unmodifiable collection of links
+     */
+    public Collection<T3> getOutgoingLinks(final T1 sw) {
+        final Map<Short, T3> links = this.portLinkMap.get(sw);
+        if (links == null) {
+            return Collections.emptySet();
+        }
+        return links.values();
+    }
+
+    /**
+     * Gets the link between the given ports.
+     *
+     * @param srcPort the source port
+     * @param dstPort the destination port
+     * @return the link, null if it doesn't exist
+     */
+    public T3 getLink(final T2 srcPort, final T2 dstPort) {
+        return Topology.getLink(this.portLinkMap, srcPort, dstPort);
+    }
+
+    /**
+     * Gets the link between the given ports from an index of the outgoing
+     * links of each switch by port number.
+     *
+     * @param portLinkMap the index
+     * @param srcPort the source port
+     * @param dstPort the destination port
+     * @return the link, null if it doesn't exist
+     */
+    static <T3 extends Link> T3 getLink(
+            final Map<? extends Switch, ? extends Map<Short, T3>> portLinkMap,
+            final Port srcPort, final Port dstPort) {
+        if (srcPort == null || dstPort == null) {
+            return null;
+        }
+        final Map<Short, T3> links = portLinkMap.get(srcPort
+                .getParentSwitch());
+        if (links == null) {
+            return null;
+        }
+        final T3 link = links.get(srcPort.getPortNumber());
+        if (link != null && link.getSrcPort().equals(srcPort)
+                && link.getDstPort().equals(dstPort)) {
+            return link;
+        }
+        return null;
+    }
+
+}
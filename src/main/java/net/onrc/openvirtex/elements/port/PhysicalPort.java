@@ -18,8 +18,11 @@ package net.onrc.openvirtex.elements.port;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import net.onrc.openvirtex.api.service.handlers.TenantHandler;
 import net.onrc.openvirtex.core.OpenVirteXController;
@@ -49,7 +52,7 @@ public class PhysicalPort extends Port<PhysicalSwitch, PhysicalLink> {
      */
     private PhysicalPort(final OFPhysicalPort port) {
         super(port);
-        this.ovxPortMap = new HashMap<Integer, HashMap<Integer, OVXPort>>();
+        this.ovxPortMap = new ConcurrentHashMap<Integer, HashMap<Integer, OVXPort>>();
     }
 
     /**
@@ -201,6 +204,16 @@ public class PhysicalPort extends Port<PhysicalSwitch, PhysicalLink> {
         return Collections.unmodifiableList(ports);
     }
 
+    /**
+     * Gets the IDs of the virtual networks with virtual ports that map to
+     * this port.
+     *
+     * @return the tenant IDs
+     */
+    public Set<Integer> getTenants() {
+        return new HashSet<Integer>(this.ovxPortMap.keySet());
+    }
+
     /**
      * Changes the attribute of this port according to a MODIFY PortStatus.
      *
@@ -0,0 +1,244 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.linkdiscovery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.onrc.openvirtex.elements.network.PhysicalNetwork;
+import net.onrc.openvirtex.util.LatencyHistogram;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+
+/**
+ * Drives the discovery managers of all physical switches from a single
+ * timer task. Switches are spread over a number of slots, and every
+ * probeRate / SLOTS milliseconds the managers of the next slot send their
+ * probes, so every switch is probed once every probeRate milliseconds
+ * without all probes going out at once.
+ *
+ * Ports with a link can be probed more often than that to detect silent
+ * link failures quickly: once fast probing is enabled, a dedicated thread
+ * wakes up every FAST_TICK milliseconds and lets every manager probe the
+ * ports that are due.
+ */
+public class DiscoveryScheduler implements TimerTask {
+
+    /**
+     * Default time in milliseconds between two probes of a port.
+     */
+    public static final long DEFAULT_PROBE_RATE = 1000;
+    private static final int SLOTS = 10;
+    private static final long FAST_TICK = 10;
+
+    private static Logger log = LogManager.getLogger(DiscoveryScheduler.class
+            .getName());
+
+    private final long probeRate;
+    private final long fastProbeInterval;
+    private final List<Set<SwitchDiscoveryManager>> slots;
+    // slot of the next registered manager
+    private final AtomicInteger nextSlot = new AtomicInteger();
+    // slot probed on the next run, only used by the timer thread
+    private int slot;
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile boolean stopped;
+    private final AtomicBoolean fastStarted = new AtomicBoolean();
+    private volatile ScheduledExecutorService fastProber;
+    private final LatencyHistogram ackLatency = new LatencyHistogram();
+    private final LatencyHistogram probeTime = new LatencyHistogram();
+
+    /**
+     * Creates a scheduler, started when the first manager is registered.
+     *
+     * @param probeRate the time in milliseconds between two probes of a port
+     * @param fastProbeInterval the default time in milliseconds between two
+     *            probes of a port with a link, 0 to probe them every
+     *            probeRate milliseconds
+     */
+    public DiscoveryScheduler(final long probeRate,
+            final long fastProbeInterval) {
+        this.probeRate = probeRate;
+        this.fastProbeInterval = fastProbeInterval;
+        this.slots = new ArrayList<Set<SwitchDiscoveryManager>>(
+                DiscoveryScheduler.SLOTS);
+        for (int i = 0; i < DiscoveryScheduler.SLOTS; i++) {
+            this.slots.add(Collections
+                    .newSetFromMap(new ConcurrentHashMap<SwitchDiscoveryManager, Boolean>()));
+        }
+    }
+
+    /**
+     * Adds a discovery manager, filling the slots in turn.
+     *
+     * @param sdm the discovery manager
+     */
+    public void register(final SwitchDiscoveryManager sdm) {
+        final int index = (this.nextSlot.getAndIncrement() & Integer.MAX_VALUE)
+                % DiscoveryScheduler.SLOTS;
+        this.slots.get(index).add(sdm);
+        if (this.started.compareAndSet(false, true)) {
+            this.schedule();
+            if (this.fastProbeInterval > 0) {
+                this.startFastProbes();
+            }
+        }
+    }
+
+    /**
+     * Starts the thread probing ports faster than probeRate, if not started
+     * yet.
+     */
+    public void startFastProbes() {
+        if (this.stopped || !this.fastStarted.compareAndSet(false, true)) {
+            return;
+        }
+        this.fastProber = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        final Thread thread = new Thread(r,
+                                "DiscoveryScheduler");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        this.fastProber.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                DiscoveryScheduler.this.runFast();
+            }
+        }, DiscoveryScheduler.FAST_TICK, DiscoveryScheduler.FAST_TICK,
+                TimeUnit.MILLISECONDS);
+        if (this.stopped) {
+            this.fastProber.shutdownNow();
+        }
+        log.info("Probing ports with a link every {} ms",
+                this.fastProbeInterval);
+    }
+
+    /**
+     * Gets the default time between two probes of a port with a link.
+     *
+     * @return the interval in milliseconds, 0 if they are probed every
+     *         probeRate milliseconds
+     */
+    public long getFastProbeInterval() {
+        return this.fastProbeInterval;
+    }
+
+    /**
+     * Stops probing for a discovery manager.
+     *
+     * @param sdm the discovery manager
+     */
+    public void unregister(final SwitchDiscoveryManager sdm) {
+        for (Set<SwitchDiscoveryManager> managers : this.slots) {
+            managers.remove(sdm);
+        }
+    }
+
+    /**
+     * Stops the scheduler for good.
+     */
+    public void stop() {
+        this.stopped = true;
+        final ScheduledExecutorService prober = this.fastProber;
+        if (prober != null) {
+            prober.shutdownNow();
+        }
+    }
+
+    /**
+     * Gets the time between a probe and its acknowledgement, over all
+     * switches.
+     *
+     * @return the latency histogram
+     */
+    public LatencyHistogram getAckLatency() {
+        return this.ackLatency;
+    }
+
+    /**
+     * Gets the time taken to build and send the probes of a switch.
+     *
+     * @return the latency histogram
+     */
+    public LatencyHistogram getProbeTime() {
+        return this.probeTime;
+    }
+
+    /**
+     * Sends the probes of the switches in the current slot, then waits for
+     * the next one.
+     *
+     * @param t timeout
+     */
+    @Override
+    public void run(final Timeout t) {
+        if (this.stopped) {
+            return;
+        }
+        for (SwitchDiscoveryManager sdm : this.slots.get(this.slot)) {
+            final long start = System.nanoTime();
+            try {
+                sdm.sendProbes();
+            } catch (RuntimeException e) {
+                log.warn("Failed to probe ports of {}: {}", sdm.getName(),
+                        e.getMessage());
+            }
+            this.probeTime.record(System.nanoTime() - start);
+        }
+        this.slot = (this.slot + 1) % DiscoveryScheduler.SLOTS;
+        this.schedule();
+    }
+
+    /**
+     * Lets every manager send the fast probes that are due.
+     */
+    private void runFast() {
+        final long now = System.nanoTime();
+        for (Set<SwitchDiscoveryManager> managers : this.slots) {
+            for (SwitchDiscoveryManager sdm : managers) {
+                try {
+                    sdm.sendFastProbes(now);
+                } catch (RuntimeException e) {
+                    log.warn("Failed to probe ports of {}: {}",
+                            sdm.getName(), e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void schedule() {
+        PhysicalNetwork.getTimer().newTimeout(this,
+                Math.max(1, this.probeRate / DiscoveryScheduler.SLOTS),
+                TimeUnit.MILLISECONDS);
+    }
+
+}
@@ -15,15 +15,14 @@
  ******************************************************************************/
 package net.onrc.openvirtex.linkdiscovery;
 
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.onrc.openvirtex.core.io.OVXSendMsg;
@@ -32,16 +31,14 @@ import net.onrc.openvirtex.elements.datapath.PhysicalSwitch;
 import net.onrc.openvirtex.elements.datapath.Switch;
 import net.onrc.openvirtex.elements.network.PhysicalNetwork;
 import net.onrc.openvirtex.elements.port.PhysicalPort;
-import net.onrc.openvirtex.exceptions.PortMappingException;
 import net.onrc.openvirtex.messages.OVXMessageFactory;
 import net.onrc.openvirtex.messages.OVXPacketIn;
 import net.onrc.openvirtex.packet.Ethernet;
 import net.onrc.openvirtex.packet.OVXLLDP;
+import net.onrc.openvirtex.util.LatencyHistogram;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.jboss.netty.util.Timeout;
-import org.jboss.netty.util.TimerTask;
 import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFPacketOut;
 import org.openflow.protocol.OFType;
@@ -52,48 +49,94 @@ import org.openflow.protocol.action.OFActionType;
 /**
  * Run discovery process from a physical switch. Ports are initially labeled as
  * slow ports. When an LLDP is successfully received, label the remote port as
- * fast. Every probeRate milliseconds, loop over all fast ports and send an
- * LLDP, send an LLDP for a single slow port. Based on FlowVisor topology
- * discovery implementation.
+ * fast. Every probe round, triggered by the {@link DiscoveryScheduler}, send
+ * an LLDP on all fast ports and on a single slow port. Based on FlowVisor
+ * topology discovery implementation.
+ *
+ * The probes of a port never change, so they are built once when the port is
+ * added, from a packet template serialized once per switch, and every round
+ * sends the probes of the switch in a single write.
+ *
+ * In fast detection mode, ports with a link are probed every few tens of
+ * milliseconds instead of once per round, so a silent link failure is
+ * detected after MAX_PROBE_COUNT missed probes and the virtual links using
+ * the link are failed over to their backup paths. Edge ports keep the slow
+ * round robin.
  *
  * TODO: add 'fast discovery' mode: drop LLDPs in destination switch but listen
  * for flow_removed messages
  */
-public class SwitchDiscoveryManager implements LLDPEventHandler, OVXSendMsg,
-        TimerTask {
+public class SwitchDiscoveryManager implements LLDPEventHandler, OVXSendMsg {
 
     private final PhysicalSwitch sw;
-    // send 1 probe every probeRate milliseconds
-    private final long probeRate;
-    private final Set<Short> slowPorts;
-    private final Set<Short> fastPorts;
-    // number of unacknowledged probes per port
-    private final Map<Short, AtomicInteger> portProbeCount;
+    private final DiscoveryScheduler scheduler;
+    // probe state of each port, by port number
+    private final ConcurrentSkipListMap<Short, PortProbe> ports;
     // number of probes to send before link is removed
     private static final short MAX_PROBE_COUNT = 3;
-    private Iterator<Short> slowIterator;
+    // last slow port probed, only used by the scheduler
+    private Short slowCursor;
     private final OVXMessageFactory ovxMessageFactory = OVXMessageFactory
             .getInstance();
     private Logger log = LogManager.getLogger(SwitchDiscoveryManager.class.getName());
     private OVXLLDP lldpPacket;
     private Ethernet ethPacket;
     private Ethernet bddpEth;
+    // serialized probes of the first port added, guarded by this
+    private byte[] lldpTemplate;
+    private byte[] bddpTemplate;
     private final boolean useBDDP;
+    private final LatencyHistogram ackLatency = new LatencyHistogram();
+    // earliest time a fast probe is due, only used by the fast prober
+    private long nextFastProbe;
+    // set when the ports to probe fast changed since the last fast round
+    private final AtomicBoolean fastChanged = new AtomicBoolean();
+
+    /**
+     * Probes sent out on a port and their acknowledgement state.
+     */
+    private static final class PortProbe {
+        private final OFPacketOut lldp;
+        private final OFPacketOut bddp;
+        private volatile boolean fast;
+        // number of unacknowledged probes, if fast
+        private final AtomicInteger unacked = new AtomicInteger();
+        // time the last unacknowledged probe was sent, 0 if acknowledged
+        private volatile long sentAt;
+        // time in milliseconds between fast probes, 0 for the default
+        private volatile long interval;
+        // time the next fast probe is due
+        private volatile long nextProbeAt;
+
+        private PortProbe(final OFPacketOut lldp, final OFPacketOut bddp) {
+            this.lldp = lldp;
+            this.bddp = bddp;
+        }
+
+        private void addTo(final List<OFMessage> batch, final long now) {
+            batch.add(this.lldp);
+            if (this.bddp != null) {
+                batch.add(this.bddp);
+            }
+            this.sentAt = now;
+        }
+    }
 
     /**
      * Instantiates discovery manager for the given physical switch. Creates a
-     * generic LLDP packet that will be customized for the port it is sent out on.
-     * Starts the the timer for the discovery process.
+     * generic LLDP packet that will be customized for the ports it is sent
+     * out on. The discovery process starts once the manager is registered
+     * with the scheduler.
      *
      * @param sw the physical switch
+     * @param scheduler the scheduler that triggers the probes
      * @param useBDDP flag to also use BDDP for discovery
      */
-    public SwitchDiscoveryManager(final PhysicalSwitch sw, Boolean... useBDDP) {
+    public SwitchDiscoveryManager(final PhysicalSwitch sw,
+            final DiscoveryScheduler scheduler, final boolean useBDDP) {
         this.sw = sw;
-        this.probeRate = 1000;
-        this.slowPorts = Collections.synchronizedSet(new HashSet<Short>());
-        this.fastPorts = Collections.synchronizedSet(new HashSet<Short>());
-        this.portProbeCount = new HashMap<Short, AtomicInteger>();
+        this.scheduler = scheduler;
+        this.ports = new ConcurrentSkipListMap<Short, PortProbe>();
         this.lldpPacket = new OVXLLDP();
         this.lldpPacket.setSwitch(this.sw);
         this.ethPacket = new Ethernet();
@@ -101,7 +144,7 @@ public class SwitchDiscoveryManager implements LLDPEventHandler, OVXSendMsg,
         this.ethPacket.setDestinationMACAddress(OVXLLDP.LLDP_NICIRA);
         this.ethPacket.setPayload(this.lldpPacket);
         this.ethPacket.setPad(true);
-        this.useBDDP = useBDDP.length > 0 ? useBDDP[0] : false;
+        this.useBDDP = useBDDP;
         if (this.useBDDP) {
             this.bddpEth = new Ethernet();
             this.bddpEth.setPayload(this.lldpPacket);
@@ -110,8 +153,6 @@ public class SwitchDiscoveryManager implements LLDPEventHandler, OVXSendMsg,
             this.bddpEth.setPad(true);
             log.info("Using BDDP to discover network");
         }
-        PhysicalNetwork.getTimer().newTimeout(this, this.probeRate,
-                TimeUnit.MILLISECONDS);
         this.log.debug("Started discovery manager for switch {}",
                 sw.getSwitchId());
 
@@ -126,24 +167,13 @@ public class SwitchDiscoveryManager implements LLDPEventHandler, OVXSendMsg,
     public void addPort(final PhysicalPort port) {
         // Ignore ports that are not on this switch
         if (port.getParentSwitch().equals(this.sw)) {
-            synchronized (this) {
-                this.log.debug("sending init probe to port {}",
-                        port.getPortNumber());
-                OFPacketOut pkt;
-                try {
-                    pkt = this.createLLDPPacketOut(port);
-                    this.sendMsg(pkt, this);
-                    if (useBDDP) {
-                        OFPacketOut bpkt = this.createBDDPPacketOut(port);
-                        this.sendMsg(bpkt, this);
-                    }
-                } catch (PortMappingException e) {
-                    log.warn(e.getMessage());
-                    return;
-                }
-                this.slowPorts.add(port.getPortNumber());
-                this.slowIterator = this.slowPorts.iterator();
-            }
+            this.log.debug("sending init probe to port {}",
+                    port.getPortNumber());
+            final PortProbe probe = this.createProbe(port);
+            this.ports.put(port.getPortNumber(), probe);
+            final List<OFMessage> batch = new ArrayList<OFMessage>(2);
+            probe.addTo(batch, System.nanoTime());
+            this.sw.sendMsgs(batch);
         }
     }
 
@@ -156,124 +186,146 @@ public class SwitchDiscoveryManager implements LLDPEventHandler, OVXSendMsg,
         // Ignore ports that are not on this switch
         if (port.getParentSwitch().equals(this.sw)) {
             short portnum = port.getPortNumber();
-            synchronized (this) {
-                if (this.slowPorts.contains(portnum)) {
-                    this.slowPorts.remove(portnum);
-                    this.slowIterator = this.slowPorts.iterator();
-
-                } else if (this.fastPorts.contains(portnum)) {
-                    this.fastPorts.remove(portnum);
-                    this.portProbeCount.remove(portnum);
-                    // no iterator to update
-                } else {
-                    this.log.warn(
-                            "tried to dynamically remove non-existing port {}",
-                            portnum);
-                }
+            if (this.ports.remove(portnum) == null) {
+                this.log.warn(
+                        "tried to dynamically remove non-existing port {}",
+                        portnum);
             }
         }
     }
 
     /**
      * Method called by remote port to acknowledge receipt of LLDP sent by
-     * this port. If slow port, updates label to fast. If fast port, decrements
-     * number of unacknowledged probes.
+     * this port. If slow port, updates label to fast. Clears the number of
+     * unacknowledged probes, and records the time since the probe was sent.
      *
      * @param port the port
      */
     public void ackProbe(final PhysicalPort port) {
         if (port.getParentSwitch().equals(this.sw)) {
             final short portNumber = port.getPortNumber();
-            synchronized (this) {
-                if (this.slowPorts.contains(portNumber)) {
-                    this.log.debug("Setting slow port to fast: {}:{}", port
-                            .getParentSwitch().getSwitchId(), portNumber);
-                    this.slowPorts.remove(portNumber);
-                    this.slowIterator = this.slowPorts.iterator();
-                    this.fastPorts.add(portNumber);
-                    this.portProbeCount.put(portNumber, new AtomicInteger(0));
-                } else {
-                    if (this.fastPorts.contains(portNumber)) {
-                        this.portProbeCount.get(portNumber).decrementAndGet();
-                    } else {
-                        this.log.debug(
-                                "Got ackProbe for non-existing port: {}",
-                                portNumber);
-                    }
-                }
+            final PortProbe probe = this.ports.get(portNumber);
+            if (probe == null) {
+                this.log.debug("Got ackProbe for non-existing port: {}",
+                        portNumber);
+                return;
+            }
+            final long sentAt = probe.sentAt;
+            if (sentAt != 0) {
+                probe.sentAt = 0;
+                final long latency = System.nanoTime() - sentAt;
+                this.ackLatency.record(latency);
+                this.scheduler.getAckLatency().record(latency);
+            }
+            probe.unacked.set(0);
+            if (!probe.fast) {
+                this.log.debug("Setting slow port to fast: {}:{}", port
+                        .getParentSwitch().getSwitchId(), portNumber);
+                probe.nextProbeAt = 0;
+                probe.fast = true;
+                this.fastChanged.set(true);
             }
         }
     }
 
     /**
-     * Creates packet_out LLDP for specified output port.
+     * Sets the time between two probes of a port while it has a link,
+     * overriding the default of the scheduler. Edge ports are always probed
+     * in the slow round robin.
      *
-     * @param port the port
-     * @return Packet_out message with LLDP data
-     * @throws PortMappingException
+     * @param portNumber the port number
+     * @param millis the interval in milliseconds, 0 for the default
      */
-    private OFPacketOut createLLDPPacketOut(final PhysicalPort port)
-            throws PortMappingException {
-        if (port == null) {
-            throw new PortMappingException(
-                    "Cannot send LLDP associated with a nonexistent port");
+    public void setProbeInterval(final short portNumber, final long millis) {
+        final PortProbe probe = this.ports.get(portNumber);
+        if (probe == null) {
+            this.log.warn("Cannot set probe interval of non-existing port {}",
+                    portNumber);
+            return;
         }
-        final OFPacketOut packetOut = (OFPacketOut) this.ovxMessageFactory
-                .getMessage(OFType.PACKET_OUT);
-        packetOut.setBufferId(OFPacketOut.BUFFER_ID_NONE);
-        final List<OFAction> actionsList = new LinkedList<OFAction>();
-        final OFActionOutput out = (OFActionOutput) this.ovxMessageFactory
-                .getAction(OFActionType.OUTPUT);
-        out.setPort(port.getPortNumber());
-        actionsList.add(out);
-        packetOut.setActions(actionsList);
-        final short alen = SwitchDiscoveryManager.countActionsLen(actionsList);
-        this.lldpPacket.setPort(port);
-        this.ethPacket.setSourceMACAddress(port.getHardwareAddress());
+        probe.interval = millis;
+        probe.nextProbeAt = 0;
+        this.fastChanged.set(true);
+        if (millis > 0) {
+            this.scheduler.startFastProbes();
+        }
+    }
 
-        final byte[] lldp = this.ethPacket.serialize();
-        packetOut.setActionsLength(alen);
-        packetOut.setPacketData(lldp);
-        packetOut
-                .setLength((short) (OFPacketOut.MINIMUM_LENGTH + alen + lldp.length));
-        return packetOut;
+    /**
+     * Gets the time between two probes of a port while it has a link.
+     *
+     * @param portNumber the port number
+     * @return the interval in milliseconds, 0 if probed once per round
+     */
+    public long getProbeInterval(final short portNumber) {
+        final PortProbe probe = this.ports.get(portNumber);
+        return probe == null ? 0 : this.getFastInterval(probe);
+    }
+
+    private long getFastInterval(final PortProbe probe) {
+        return probe.interval > 0 ? probe.interval : this.scheduler
+                .getFastProbeInterval();
     }
 
     /**
-     * Creates packet_out LLDP for specified output port.
+     * Gets the time between the probes of this switch and their
+     * acknowledgement.
+     *
+     * @return the latency histogram
+     */
+    public LatencyHistogram getAckLatency() {
+        return this.ackLatency;
+    }
+
+    /**
+     * Creates the probes sent out on the given port, serializing the
+     * templates of this switch if needed.
      *
      * @param port the port
-     * @return Packet_out message with LLDP data
-     * @throws PortMappingException
+     * @return the probes
      */
-    private OFPacketOut createBDDPPacketOut(final PhysicalPort port)
-            throws PortMappingException {
-        if (port == null) {
-            throw new PortMappingException(
-                    "Cannot send LLDP associated with a nonexistent port");
+    private synchronized PortProbe createProbe(final PhysicalPort port) {
+        if (this.lldpTemplate == null) {
+            this.lldpPacket.setPort(port);
+            this.ethPacket.setSourceMACAddress(port.getHardwareAddress());
+            this.lldpTemplate = this.ethPacket.serialize();
+            if (this.useBDDP) {
+                this.bddpEth.setSourceMACAddress(port.getHardwareAddress());
+                this.bddpTemplate = this.bddpEth.serialize();
+            }
         }
+        return new PortProbe(this.createPacketOut(port,
+                OVXLLDP.copyForPort(this.lldpTemplate, port)),
+                this.useBDDP ? this.createPacketOut(port,
+                        OVXLLDP.copyForPort(this.bddpTemplate, port)) : null);
+    }
+
+    /**
+     * Creates packet_out sending the given data out on the given port.
+     *
+     * @param port the port
+     * @param data the LLDP or BDDP packet
+     * @return Packet_out message with LLDP data
+     */
+    private OFPacketOut createPacketOut(final PhysicalPort port,
+            final byte[] data) {
         final OFPacketOut packetOut = (OFPacketOut) this.ovxMessageFactory
                 .getMessage(OFType.PACKET_OUT);
         packetOut.setBufferId(OFPacketOut.BUFFER_ID_NONE);
-        final List<OFAction> actionsList = new LinkedList<OFAction>();
         final OFActionOutput out = (OFActionOutput) this.ovxMessageFactory
                 .getAction(OFActionType.OUTPUT);
         out.setPort(port.getPortNumber());
-        actionsList.add(out);
+        final List<OFAction> actionsList = Collections
+                .<OFAction>singletonList(out);
         packetOut.setActions(actionsList);
         final short alen = SwitchDiscoveryManager.countActionsLen(actionsList);
-        this.lldpPacket.setPort(port);
-        this.bddpEth.setSourceMACAddress(port.getHardwareAddress());
-
-        final byte[] bddp = this.bddpEth.serialize();
         packetOut.setActionsLength(alen);
-        packetOut.setPacketData(bddp);
+        packetOut.setPacketData(data);
         packetOut
-                .setLength((short) (OFPacketOut.MINIMUM_LENGTH + alen + bddp.length));
+                .setLength((short) (OFPacketOut.MINIMUM_LENGTH + alen + data.length));
         return packetOut;
     }
 
-
     @Override
     public void sendMsg(final OFMessage msg, final OVXSendMsg from) {
         this.sw.sendMsg(msg, this);
@@ -324,78 +376,109 @@ public class SwitchDiscoveryManager implements LLDPEventHandler, OVXSendMsg,
     }
 
     /**
-     * Execute this method every t milliseconds. Loops over all ports
-     * labeled as fast and sends out an LLDP. Send out an LLDP on a single slow
-     * port.
-     *
-     * @param t timeout
-     * @throws Exception
+     * Sends the probes of one round in a single write: an LLDP on all ports
+     * labeled as fast, unless they are probed by fast rounds, and on the next
+     * slow port.
      */
-    @Override
-    public void run(final Timeout t) {
+    public void sendProbes() {
         this.log.debug("sending probes");
-        synchronized (this) {
-            final Iterator<Short> fastIterator = this.fastPorts.iterator();
-            while (fastIterator.hasNext()) {
-                final Short portNumber = fastIterator.next();
-                final int probeCount = this.portProbeCount.get(portNumber)
-                        .getAndIncrement();
-                if (probeCount < SwitchDiscoveryManager.MAX_PROBE_COUNT) {
-                    this.log.debug("sending fast probe to port");
-                    try {
-                        OFPacketOut pkt = this.createLLDPPacketOut(this.sw
-                                .getPort(portNumber));
-                        this.sendMsg(pkt, this);
-                        if (useBDDP) {
-                            OFPacketOut bpkt = this.createBDDPPacketOut(this.sw
-                                    .getPort(portNumber));
-                            this.sendMsg(bpkt, this);
-                        }
-                    } catch (PortMappingException e) {
-                        log.warn(e.getMessage());
-                    }
-                } else {
-                    // Update fast and slow ports
-                    fastIterator.remove();
-                    this.slowPorts.add(portNumber);
-                    this.slowIterator = this.slowPorts.iterator();
-                    this.portProbeCount.remove(portNumber);
-
-                    // Remove link from topology
-                    final PhysicalPort srcPort = this.sw.getPort(portNumber);
-                    final PhysicalPort dstPort = PhysicalNetwork.getInstance()
-                            .getNeighborPort(srcPort);
-                    PhysicalNetwork.getInstance().removeLink(srcPort, dstPort);
-                }
+        final List<OFMessage> batch = new ArrayList<OFMessage>();
+        final long now = System.nanoTime();
+        for (Map.Entry<Short, PortProbe> entry : this.ports.entrySet()) {
+            final PortProbe probe = entry.getValue();
+            if (probe.fast && this.getFastInterval(probe) <= 0) {
+                this.probeFastPort(entry.getKey(), probe, batch, now);
             }
+        }
 
-            // send a probe for the next slow port
-            if (this.slowPorts.size() > 0) {
-                if (!this.slowIterator.hasNext()) {
-                    this.slowIterator = this.slowPorts.iterator();
-                }
-                if (this.slowIterator.hasNext()) {
-                    final short portNumber = this.slowIterator.next();
-                    this.log.debug("sending slow probe to port {}", portNumber);
-                    try {
-                        OFPacketOut pkt = this.createLLDPPacketOut(this.sw
-                                .getPort(portNumber));
-                        this.sendMsg(pkt, this);
-                        if (useBDDP) {
-                            OFPacketOut bpkt = this.createBDDPPacketOut(this.sw
-                                    .getPort(portNumber));
-                            this.sendMsg(bpkt, this);
-                        }
-                    } catch (PortMappingException e) {
-                        log.warn(e.getMessage());
-                    }
+        // send a probe for the next slow port
+        final Map.Entry<Short, PortProbe> slow = this.nextSlowPort();
+        if (slow != null) {
+            this.log.debug("sending slow probe to port {}", slow.getKey());
+            this.slowCursor = slow.getKey();
+            slow.getValue().addTo(batch, now);
+        }
+        this.sw.sendMsgs(batch);
+    }
+
+    /**
+     * Sends in a single write the probes of the ports with a link whose
+     * fast probe interval elapsed.
+     *
+     * @param now the current time in nanoseconds
+     */
+    public void sendFastProbes(final long now) {
+        if (!this.fastChanged.getAndSet(false)
+                && now - this.nextFastProbe < 0) {
+            return;
+        }
+        final List<OFMessage> batch = new ArrayList<OFMessage>();
+        long next = Long.MAX_VALUE;
+        for (Map.Entry<Short, PortProbe> entry : this.ports.entrySet()) {
+            final PortProbe probe = entry.getValue();
+            final long interval = this.getFastInterval(probe);
+            if (!probe.fast || interval <= 0) {
+                continue;
+            }
+            if (probe.nextProbeAt - now <= 0) {
+                if (!this.probeFastPort(entry.getKey(), probe, batch, now)) {
+                    continue;
                 }
+                probe.nextProbeAt = now + TimeUnit.MILLISECONDS.toNanos(interval);
             }
+            next = Math.min(next, probe.nextProbeAt);
+        }
+        this.nextFastProbe = next;
+        this.sw.sendMsgs(batch);
+    }
+
+    /**
+     * Adds the probes of a port labeled as fast to a batch. If too many
+     * probes of the port are unacknowledged, labels it slow instead and
+     * reports the failure of its link.
+     *
+     * @param portNumber the port number
+     * @param probe the probes of the port
+     * @param batch the batch
+     * @param now the current time in nanoseconds
+     * @return true if the probes were added, false if the link failed
+     */
+    private boolean probeFastPort(final short portNumber,
+            final PortProbe probe, final List<OFMessage> batch, final long now) {
+        if (probe.unacked.getAndIncrement() < SwitchDiscoveryManager.MAX_PROBE_COUNT) {
+            probe.addTo(batch, now);
+            return true;
         }
+        probe.fast = false;
+        probe.sentAt = 0;
+        this.log.info("Probes of port {}:{} not acknowledged, link failed",
+                this.sw.getSwitchId(), portNumber);
+        PhysicalNetwork.getInstance().linkFailed(this.sw.getPort(portNumber));
+        return false;
+    }
 
-        // reschedule timer
-        PhysicalNetwork.getTimer().newTimeout(this, this.probeRate,
-                TimeUnit.MILLISECONDS);
+    /**
+     * Finds the first slow port after the last one probed, wrapping around.
+     *
+     * @return the port number and probes, null if all ports are fast
+     */
+    private Map.Entry<Short, PortProbe> nextSlowPort() {
+        final ConcurrentNavigableMap<Short, PortProbe> tail = this.slowCursor == null ? this.ports
+                : this.ports.tailMap(this.slowCursor, false);
+        for (Map.Entry<Short, PortProbe> entry : tail.entrySet()) {
+            if (!entry.getValue().fast) {
+                return entry;
+            }
+        }
+        if (this.slowCursor != null) {
+            for (Map.Entry<Short, PortProbe> entry : this.ports.headMap(
+                    this.slowCursor, true).entrySet()) {
+                if (!entry.getValue().fast) {
+                    return entry;
+                }
+            }
+        }
+        return null;
     }
 
 }
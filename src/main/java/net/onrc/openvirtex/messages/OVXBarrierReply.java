@@ -17,14 +17,28 @@ package net.onrc.openvirtex.messages;
 
 import net.onrc.openvirtex.elements.datapath.PhysicalSwitch;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.openflow.protocol.OFBarrierReply;
 
 public class OVXBarrierReply extends OFBarrierReply implements Virtualizable {
 
+    private final Logger log = LogManager.getLogger(OVXBarrierReply.class
+            .getName());
+
+    /**
+     * Completes the barrier sent with the XID of the reply. Barriers of
+     * tenant controllers are answered by their virtual switch once the
+     * barriers sent on their behalf complete.
+     *
+     * @param sw the physical switch
+     */
     @Override
     public void virtualize(final PhysicalSwitch sw) {
-        // TODO Auto-generated method stubP
-
+        if (!sw.handleBarrierReply(this.getXid())) {
+            this.log.debug("Unknown barrier reply {} from switch {}",
+                    this.getXid(), sw.getSwitchName());
+        }
     }
 
 }
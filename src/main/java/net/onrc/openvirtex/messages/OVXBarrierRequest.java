@@ -19,13 +19,29 @@ import net.onrc.openvirtex.elements.datapath.OVXSwitch;
 
 import org.openflow.protocol.OFBarrierRequest;
 
+import com.google.common.util.concurrent.MoreExecutors;
+
 public class OVXBarrierRequest extends OFBarrierRequest implements
         Devirtualizable {
 
+    /**
+     * Replies to the barrier once every physical switch the virtual switch
+     * sent messages to since its last barrier has processed them, or late
+     * once the barrier timeout expires.
+     *
+     * @param sw the virtual switch
+     */
     @Override
     public void devirtualize(final OVXSwitch sw) {
-        // TODO Auto-generated method stub
-
+        final int xid = this.getXid();
+        sw.sendBarrier().addListener(new Runnable() {
+            @Override
+            public void run() {
+                final OVXBarrierReply reply = new OVXBarrierReply();
+                reply.setXid(xid);
+                sw.sendMsg(reply, sw);
+            }
+        }, MoreExecutors.sameThreadExecutor());
     }
 
 }
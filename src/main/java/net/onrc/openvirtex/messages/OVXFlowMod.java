@@ -25,6 +25,7 @@ import net.onrc.openvirtex.elements.address.IPMapper;
 import net.onrc.openvirtex.elements.datapath.FlowTable;
 import net.onrc.openvirtex.elements.datapath.OVXFlowTable;
 import net.onrc.openvirtex.elements.datapath.OVXSwitch;
+import net.onrc.openvirtex.elements.datapath.PacketBuffer;
 import net.onrc.openvirtex.elements.link.OVXLink;
 import net.onrc.openvirtex.elements.link.OVXLinkField;
 import net.onrc.openvirtex.elements.link.OVXLinkUtils;
@@ -40,6 +41,9 @@ import net.onrc.openvirtex.messages.actions.VirtualizableAction;
 import net.onrc.openvirtex.packet.Ethernet;
 import net.onrc.openvirtex.protocol.OVXMatch;
 import net.onrc.openvirtex.util.OVXUtil;
+import net.onrc.openvirtex.util.PacketTracer;
+import net.onrc.openvirtex.util.PacketTracer.Stage;
+import net.onrc.openvirtex.util.PacketTracer.Trace;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -58,6 +62,7 @@ public class OVXFlowMod extends OFFlowMod implements Devirtualizable {
     private final List<OFAction> approvedActions = new LinkedList<OFAction>();
 
     private long ovxCookie = -1; 
+    private Trace trace = null;
     // hujw
     private final OVXLinkField linkField = OpenVirteXController.getInstance()
             .getOvxLinkField();
@@ -71,70 +76,104 @@ public class OVXFlowMod extends OFFlowMod implements Devirtualizable {
 
         this.sw = sw;
         FlowTable ft = this.sw.getFlowTable();
+        final PacketTracer tracer = PacketTracer.getInstance();
+        this.trace = tracer.sample(sw.getTenantId(), sw.getSwitchId());
 
         int bufferId = OVXPacketOut.BUFFER_ID_NONE;
-        if (sw.getFromBufferMap(this.bufferId) != null) {
-            bufferId = sw.getFromBufferMap(this.bufferId).getBufferId();
+        final PacketBuffer.Entry cause = sw.getFromBufferMap(this.bufferId);
+        if (cause != null) {
+            bufferId = cause.getBufferId();
         }
         final short inport = this.getMatch().getInputPort();
 
         /* let flow table process FlowMod, generate cookie as needed */
-        boolean pflag = ft.handleFlowMods(this.clone());
+        final boolean pflag = ft.handleFlowMods(this.clone());
 
         /* used by OFAction virtualization */
         OVXMatch ovxMatch = new OVXMatch(this.match);
         ovxCookie = ((OVXFlowTable) ft).getCookie(this, false);
         ovxMatch.setCookie(ovxCookie);
         this.setCookie(ovxMatch.getCookie());
+        if (this.trace != null) {
+            this.trace.setCookie(ovxCookie);
+            this.trace.record(Stage.FLOW_MOD, "FlowMod {} on sw {}", this.match,
+                    sw.getName());
+        }
 
         // modified by hujw
         // attach tenantId as the vlan field of ovxMatch
         if (linkField == OVXLinkField.VLAN) {
         	ovxMatch.setDataLayerVirtualLan(sw.getTenantId().shortValue());
-        	this.log.info("Set vlan id {} in match field on sw {}", 
-        			sw.getTenantId().shortValue(), sw.getName());
+        	if (this.trace != null) {
+        	    this.trace.record(Stage.FLOW_MOD,
+        	            "Set vlan id {} in match field on sw {}",
+        	            sw.getTenantId().shortValue(), sw.getName());
+        	}
         }
         
-        for (final OFAction act : this.getActions()) {
-            try {
-                ((VirtualizableAction) act).virtualize(sw,
-                        this.approvedActions, ovxMatch);
-            } catch (final ActionVirtualizationDenied e) {
-                this.log.warn("Action {} could not be virtualized; error: {}",
-                        act, e.getMessage());
-                ft.deleteFlowMod(ovxCookie);
-                sw.sendMsg(OVXMessageUtil.makeError(e.getErrorCode(), this), sw);
-                return;
-            } catch (final DroppedMessageException e) {
-                this.log.warn("Dropping flowmod {}", this);
-                ft.deleteFlowMod(ovxCookie);
-                // TODO perhaps send error message to controller
-                return;
+        tracer.attach(this.trace);
+        try {
+            for (final OFAction act : this.getActions()) {
+                try {
+                    ((VirtualizableAction) act).virtualize(sw,
+                            this.approvedActions, ovxMatch);
+                } catch (final ActionVirtualizationDenied e) {
+                    this.log.warn(
+                            "Action {} could not be virtualized; error: {}",
+                            act, e.getMessage());
+                    ft.deleteFlowMod(ovxCookie);
+                    sw.sendMsg(OVXMessageUtil.makeError(e.getErrorCode(), this),
+                            sw);
+                    return;
+                } catch (final DroppedMessageException e) {
+                    this.log.warn("Dropping flowmod {}", this);
+                    ft.deleteFlowMod(ovxCookie);
+                    // TODO perhaps send error message to controller
+                    return;
+                }
             }
+        } finally {
+            tracer.detach(this.trace);
         }
 
-        final OVXPort ovxInPort = sw.getPort(inport);
         this.setBufferId(bufferId);
+        // Only let traffic in once the paths it leads to are in place, and
+        // hold back later flow mods and barriers of the tenant until then
+        sw.sendAfterPending(ovxMatch.getPathInstall(), new Runnable() {
+            @Override
+            public void run() {
+                OVXFlowMod.this.sendSouth(inport, pflag);
+            }
+        });
+    }
 
-        if (ovxInPort == null) {
-            if (this.match.getWildcardObj().isWildcarded(Flag.IN_PORT)) {
-                /* expand match to all ports */
-                for (OVXPort iport : sw.getPorts().values()) {
-                    int wcard = this.match.getWildcards()
-                            & (~OFMatch.OFPFW_IN_PORT);
-                    this.match.setWildcards(wcard);
-                    prepAndSendSouth(iport, pflag);
+    private void sendSouth(final short inport, final boolean pflag) {
+        // may run once paths are installed, on another thread
+        final PacketTracer tracer = PacketTracer.getInstance();
+        tracer.attach(this.trace);
+        try {
+            final OVXPort ovxInPort = sw.getPort(inport);
+            if (ovxInPort == null) {
+                if (this.match.getWildcardObj().isWildcarded(Flag.IN_PORT)) {
+                    /* expand match to all ports */
+                    for (OVXPort iport : sw.getPorts().values()) {
+                        int wcard = this.match.getWildcards()
+                                & (~OFMatch.OFPFW_IN_PORT);
+                        this.match.setWildcards(wcard);
+                        prepAndSendSouth(iport, pflag);
+                    }
+                } else {
+                    this.log.error(
+                            "Unknown virtual port id {}; dropping flowmod {}",
+                            inport, this);
+                    sw.sendMsg(OVXMessageUtil.makeErrorMsg(
+                            OFFlowModFailedCode.OFPFMFC_EPERM, this), sw);
                 }
             } else {
-                this.log.error(
-                        "Unknown virtual port id {}; dropping flowmod {}",
-                        inport, this);
-                sw.sendMsg(OVXMessageUtil.makeErrorMsg(
-                        OFFlowModFailedCode.OFPFMFC_EPERM, this), sw);
-                return;
+                prepAndSendSouth(ovxInPort, pflag);
             }
-        } else {
-            prepAndSendSouth(ovxInPort, pflag);
+        } finally {
+            tracer.detach(this.trace);
         }
     }
 
@@ -150,12 +189,18 @@ public class OVXFlowMod extends OFFlowMod implements Devirtualizable {
         try {
             if (inPort.isEdge()) {
                 this.prependRewriteActions();
-                log.info("This inPort {} on sw {} is an edge port with actions {}", 
-            			inPort.getPortNumber(), inPort.getParentSwitch().getName(), 
-            			this.approvedActions);
+                if (this.trace != null) {
+                    this.trace.record(Stage.FLOW_MOD,
+                            "This inPort {} on sw {} is an edge port with actions {}",
+                            inPort.getPortNumber(), sw.getName(),
+                            this.approvedActions);
+                }
             } else {
                 IPMapper.rewriteMatch(sw.getTenantId(), this.match);
-                log.info("rewriteMatch {}", this.match);
+                if (this.trace != null) {
+                    this.trace.record(Stage.FLOW_MOD, "rewriteMatch {}",
+                            this.match);
+                }
                 // TODO: Verify why we have two send points... and if this is
                 // the right place for the match rewriting
                 if (inPort != null
@@ -176,7 +221,8 @@ public class OVXFlowMod extends OFFlowMod implements Devirtualizable {
                                 .getVirtualNetwork(sw.getTenantId())
                                 .getFlowManager()
                                 .getFlowId(this.match.getDataLayerSource(),
-                                        this.match.getDataLayerDestination());
+                                        this.match.getDataLayerDestination(),
+                                        sw.getSwitchId(), this.getCookie());
                         OVXLinkUtils lUtils = new OVXLinkUtils(
                                 sw.getTenantId(), link.getLinkId(), flowId);
                         lUtils.rewriteMatch(this.getMatch());
@@ -195,6 +241,12 @@ public class OVXFlowMod extends OFFlowMod implements Devirtualizable {
         this.computeLength();
         if (pflag) {
             this.flags |= OFFlowMod.OFPFF_SEND_FLOW_REM;
+            if (this.trace != null) {
+                this.trace.record(Stage.FLOW_MOD,
+                        "Sending flowmod to sw {}: {}", inPort
+                                .getPhysicalPort().getParentSwitch()
+                                .getName(), this);
+            }
             sw.sendSouth(this, inPort);
         }
     }
@@ -31,7 +31,8 @@ public class OVXFlowRemoved extends OFFlowRemoved implements Virtualizable {
     @Override
     public void virtualize(final PhysicalSwitch sw) {
 
-        int tid = (int) (this.cookie >> 32);
+        final long cookie = this.cookie;
+        int tid = (int) (cookie >> 32);
 
         /* a PhysSwitch can be a OVXLink */
         if (!(sw.getMap().hasVirtualSwitch(sw, tid))) {
@@ -56,6 +57,11 @@ public class OVXFlowRemoved extends OFFlowRemoved implements Virtualizable {
                     vsw.sendMsg(this, sw);
                 }
             }
+            /* give back the flow id of the entry, unless its cookie was reused */
+            if (!vsw.getFlowTable().hasFlowMod(cookie)) {
+                sw.getMap().getVirtualNetwork(tid).getFlowManager()
+                        .releaseFlowId(vsw.getSwitchId(), cookie);
+            }
         } catch (MappingException e) {
             log.warn("Exception fetching FlowMod from FlowTable: {}", e);
         }
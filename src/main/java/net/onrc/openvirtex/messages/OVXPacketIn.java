@@ -41,8 +41,12 @@ import net.onrc.openvirtex.exceptions.SwitchMappingException;
 import net.onrc.openvirtex.packet.ARP;
 import net.onrc.openvirtex.packet.Ethernet;
 import net.onrc.openvirtex.packet.IPv4;
+import net.onrc.openvirtex.packet.PacketRewriter;
 import net.onrc.openvirtex.routing.SwitchRoute;
 import net.onrc.openvirtex.util.MACAddress;
+import net.onrc.openvirtex.util.PacketTracer;
+import net.onrc.openvirtex.util.PacketTracer.Stage;
+import net.onrc.openvirtex.util.PacketTracer.Trace;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -94,6 +98,8 @@ public class OVXPacketIn extends OFPacketIn implements Virtualizable {
 			this.installDropRule(sw, match);
 			return;
 		}
+		final Trace trace = PacketTracer.getInstance().sample(this.tenantId,
+				sw.getSwitchId());
 		
 		// remove it because we preserve the original packets and sent them
 		// to the specific controllers. We only rewrite the match field until 
@@ -110,8 +116,11 @@ public class OVXPacketIn extends OFPacketIn implements Virtualizable {
 		 * controller this should be send to.
 		 */
 		if (this.port.isEdge()) {
-			this.log.info("This port {} on sw {} is an edge port.", 
-					this.port.getPortNumber(), this.port.getParentSwitch().getName());
+			if (trace != null) {
+				trace.record(Stage.PACKET_IN,
+						"This port {} on sw {} is an edge port.",
+						this.port.getPortNumber(), sw.getName());
+			}
 			
 //			this.tenantId = this.fetchTenantId(match, map, true);
 //			if (this.tenantId == null) {
@@ -131,8 +140,11 @@ public class OVXPacketIn extends OFPacketIn implements Virtualizable {
 			this.sendPkt(vSwitch, match, sw);
 			this.learnHostIP(match, map);
 			this.learnAddresses(match, map);
-			this.log.info("Edge PacketIn {} sent to virtual network {}", match,
-					this.tenantId);
+			if (trace != null) {
+				trace.record(Stage.PACKET_IN,
+						"Edge PacketIn {} sent to virtual network {}", match,
+						this.tenantId);
+			}
             
 			return;
 		}
@@ -155,13 +167,21 @@ public class OVXPacketIn extends OFPacketIn implements Virtualizable {
 			PhysicalIPAddress dstIP = new PhysicalIPAddress(
 					match.getNetworkDestination());
 
-			Ethernet eth = new Ethernet();
-			eth.deserialize(this.getPacketData(), 0,
-					this.getPacketData().length);
+			/*
+			 * Common IPv4 and ARP packets are patched in place; anything else
+			 * goes through a full deserialize/serialize.
+			 */
+			Ethernet eth = null;
+			if (!PacketRewriter.isRewritable(this.getPacketData())) {
+				eth = new Ethernet();
+				eth.deserialize(this.getPacketData(), 0,
+						this.getPacketData().length);
+			}
 			
 			// modified by hujw
-			OVXLinkUtils lUtils = new OVXLinkUtils(this.tenantId, eth.getSourceMAC(),
-					eth.getDestinationMAC());
+			OVXLinkUtils lUtils = new OVXLinkUtils(this.tenantId,
+					MACAddress.valueOf(match.getDataLayerSource()),
+					MACAddress.valueOf(match.getDataLayerDestination()));
 			
 			// end
 			// rewrite the OFMatch with the values of the link
@@ -200,12 +220,25 @@ public class OVXPacketIn extends OFPacketIn implements Virtualizable {
                                 .getVirtualNetwork(this.ovxPort.getTenantId())
                                 .getFlowManager()
                                 .getFlowValues(lUtils.getFlowId());
-                        eth.setSourceMACAddress(macList.get(0).toBytes())
-                                .setDestinationMACAddress(
-                                        macList.get(1).toBytes());
-                        match.setDataLayerSource(eth.getSourceMACAddress())
-                                .setDataLayerDestination(
-                                        eth.getDestinationMACAddress());
+                        if (macList.isEmpty()) {
+                            // The flow id was released while the packet was
+                            // in flight
+                            this.log.debug(
+                                    "Dropping PacketIn with released flow id {} on link {}",
+                                    lUtils.getFlowId(), link.getLinkId());
+                            return;
+                        }
+                        final byte[] srcMac = macList.get(0).toBytes();
+                        final byte[] dstMac = macList.get(1).toBytes();
+                        if (eth == null) {
+                            PacketRewriter.setMACAddresses(
+                                    this.getPacketData(), srcMac, dstMac);
+                        } else {
+                            eth.setSourceMACAddress(srcMac)
+                                    .setDestinationMACAddress(dstMac);
+                        }
+                        match.setDataLayerSource(srcMac)
+                                .setDataLayerDestination(dstMac);
                     } catch (NetworkMappingException e) {
                         log.warn(e);
                     }
@@ -219,26 +252,40 @@ public class OVXPacketIn extends OFPacketIn implements Virtualizable {
 
             if (match.getDataLayerType() == Ethernet.TYPE_ARP) {
                 // ARP packet
-                final ARP arp = (ARP) eth.getPayload();
                 // hujw
 //                this.tenantId = this.fetchTenantId(match, map, true);
                 try {
+                    int spa = match.getNetworkSource();
+                    int tpa = match.getNetworkDestination();
                     if (map.hasVirtualIP(srcIP)) {
-                        arp.setSenderProtocolAddress(map.getVirtualIP(srcIP)
-                                .getIp());
+                        spa = map.getVirtualIP(srcIP).getIp();
                     }
                     if (map.hasVirtualIP(dstIP)) {
-                        arp.setTargetProtocolAddress(map.getVirtualIP(dstIP)
-                                .getIp());
+                        tpa = map.getVirtualIP(dstIP).getIp();
+                    }
+                    if (eth == null) {
+                        PacketRewriter.setARPAddresses(this.getPacketData(),
+                                spa, tpa);
+                    } else {
+                        final ARP arp = (ARP) eth.getPayload();
+                        arp.setSenderProtocolAddress(spa);
+                        arp.setTargetProtocolAddress(tpa);
                     }
                 } catch (AddressMappingException e) {
                     log.warn("Inconsistency in OVXMap? : {}", e);
                 }
             } else if (match.getDataLayerType() == Ethernet.TYPE_IPV4) {
                 try {
-                    final IPv4 ip = (IPv4) eth.getPayload();
-                    ip.setDestinationAddress(map.getVirtualIP(dstIP).getIp());
-                    ip.setSourceAddress(map.getVirtualIP(srcIP).getIp());
+                    final int vdst = map.getVirtualIP(dstIP).getIp();
+                    final int vsrc = map.getVirtualIP(srcIP).getIp();
+                    if (eth == null) {
+                        PacketRewriter.setIPv4Addresses(this.getPacketData(),
+                                vsrc, vdst);
+                    } else {
+                        final IPv4 ip = (IPv4) eth.getPayload();
+                        ip.setDestinationAddress(vdst);
+                        ip.setSourceAddress(vsrc);
+                    }
                     // TODO: Incorporate below into fetchTenantId
                     if (this.tenantId == null) {
                         this.tenantId = dstIP.getTenantId();
@@ -247,17 +294,25 @@ public class OVXPacketIn extends OFPacketIn implements Virtualizable {
                     log.warn("Could not rewrite IP fields : {}", e);
                 }
             } else {
-                this.log.info("{} handling not yet implemented; dropping",
-                        match.getDataLayerType());
+                if (trace != null) {
+                    trace.record(Stage.PACKET_IN,
+                            "{} handling not yet implemented; dropping",
+                            match.getDataLayerType());
+                }
                 this.installDropRule(sw, match);
                 return;
             }
-            this.setPacketData(eth.serialize());
+            if (eth != null) {
+                this.setPacketData(eth.serialize());
+            }
 
             vSwitch = this.fetchOVXSwitch(sw, vSwitch, map);
             
-            this.log.info("IPv4/ARP match {} sent to virtual network {}", match,
-                    this.tenantId);
+            if (trace != null) {
+                trace.record(Stage.PACKET_IN,
+                        "IPv4/ARP match {} sent to virtual network {}", match,
+                        this.tenantId);
+            }
             
             this.sendPkt(vSwitch, match, sw);
             this.log.debug("IPv4 PacketIn {} sent to virtual network {}", this,
@@ -276,11 +331,11 @@ public class OVXPacketIn extends OFPacketIn implements Virtualizable {
 //		}
 		vSwitch = this.fetchOVXSwitch(sw, vSwitch, map);
 		this.sendPkt(vSwitch, match, sw);
-		// modified by hujw 
-		// We think this information is important, so rewrite it from 
-		// debug to info.
-		this.log.info("Layer2 PacketIn {} sent to virtual network {}", this,
-				this.tenantId);
+		if (trace != null) {
+			trace.record(Stage.PACKET_IN,
+					"Layer2 PacketIn {} sent to virtual network {}", match,
+					this.tenantId);
+		}
 	}
 
 	private void learnHostIP(OFMatch match, Mappable map) {
@@ -367,6 +422,36 @@ public class OVXPacketIn extends OFPacketIn implements Virtualizable {
 		return null;
 	}
 
+	/**
+	 * Finds the tenant of the packet the way {@link #virtualize} does,
+	 * from its ingress port or source MAC address, without decoding the
+	 * rest of the packet, so the packet-in can be scheduled by tenant.
+	 *
+	 * @param sw the physical switch the packet-in is from
+	 * @return the tenant id, null if it is not known yet
+	 */
+	public Integer lookupTenantId(final PhysicalSwitch sw) {
+		final Mappable map = sw.getMap();
+		if (linkField == OVXLinkField.VLAN) {
+			return map.getTenantId(sw.getSwitchId(), this.getInPort());
+		}
+		final byte[] data = this.getPacketData();
+		if (linkField != OVXLinkField.MAC_ADDRESS || data == null
+				|| data.length < 12) {
+			return null;
+		}
+		final MACAddress mac = MACAddress.valueOf(Arrays.copyOfRange(data,
+				6, 12));
+		if (!map.hasMAC(mac)) {
+			return null;
+		}
+		try {
+			return map.getMAC(mac);
+		} catch (AddressMappingException e) {
+			return null;
+		}
+	}
+
 	private OVXSwitch fetchOVXSwitch(PhysicalSwitch psw, OVXSwitch vswitch,
 			Mappable map) {
 		if (vswitch == null) {
@@ -406,4 +491,14 @@ public class OVXPacketIn extends OFPacketIn implements Virtualizable {
 		this.setLengthU(OFPacketIn.MINIMUM_LENGTH + this.getPacketData().length);
 	}
 
+	/**
+	 * Gets the tenant the packet was found to belong to by
+	 * {@link #virtualize(PhysicalSwitch)}.
+	 *
+	 * @return the tenant id, null if none
+	 */
+	public Integer getTenantId() {
+		return this.tenantId;
+	}
+
 }
\ No newline at end of file
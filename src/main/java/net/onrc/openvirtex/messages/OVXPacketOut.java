@@ -22,6 +22,7 @@ import java.util.List;
 import net.onrc.openvirtex.core.OpenVirteXController;
 import net.onrc.openvirtex.elements.address.IPMapper;
 import net.onrc.openvirtex.elements.datapath.OVXSwitch;
+import net.onrc.openvirtex.elements.datapath.PacketBuffer;
 import net.onrc.openvirtex.elements.link.OVXLinkField;
 import net.onrc.openvirtex.elements.port.OVXPort;
 import net.onrc.openvirtex.exceptions.ActionVirtualizationDenied;
@@ -31,6 +32,9 @@ import net.onrc.openvirtex.messages.actions.OVXActionNetworkLayerSource;
 import net.onrc.openvirtex.messages.actions.OVXActionVirtualLanIdentifier;
 import net.onrc.openvirtex.messages.actions.VirtualizableAction;
 import net.onrc.openvirtex.protocol.OVXMatch;
+import net.onrc.openvirtex.util.PacketTracer;
+import net.onrc.openvirtex.util.PacketTracer.Stage;
+import net.onrc.openvirtex.util.PacketTracer.Trace;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -73,7 +77,7 @@ public class OVXPacketOut extends OFPacketOut implements Devirtualizable {
             ovxMatch = new OVXMatch(match);
             ovxMatch.setPktData(this.packetData);
         } else {
-            final OVXPacketIn cause = sw.getFromBufferMap(this.bufferId);
+            final PacketBuffer.Entry cause = sw.getFromBufferMap(this.bufferId);
             if (cause == null) {
                 this.log.error(
                         "Unknown buffer id {} for virtual switch {}; dropping",
@@ -92,28 +96,45 @@ public class OVXPacketOut extends OFPacketOut implements Devirtualizable {
             }
         }
 
+        final PacketTracer tracer = PacketTracer.getInstance();
+        final Trace trace = tracer.sample(sw.getTenantId(), sw.getSwitchId());
+        if (trace != null) {
+            trace.record(Stage.PACKET_OUT, "PacketOut {} on sw {}", this.match,
+                    sw.getName());
+        }
+
         // modified by hujw
         // attach tenantId as the vlan field of ovxMatch
         if (linkField == OVXLinkField.VLAN) {
         	ovxMatch.setDataLayerVirtualLan(sw.getTenantId().shortValue());
-        	this.log.info("Set vlan id {} in match field on sw {}", 
-        			sw.getTenantId().shortValue(), sw.getName());
+        	if (trace != null) {
+        	    trace.record(Stage.PACKET_OUT,
+        	            "Set vlan id {} in match field on sw {}",
+        	            sw.getTenantId().shortValue(), sw.getName());
+        	}
         }
         // end
-        for (final OFAction act : this.getActions()) {
-            try {
-                ((VirtualizableAction) act).virtualize(sw,
-                        this.approvedActions, ovxMatch);
-
-            } catch (final ActionVirtualizationDenied e) {
-                this.log.warn("Action {} could not be virtualized; error: {}",
-                        act, e.getMessage());
-                sw.sendMsg(OVXMessageUtil.makeError(e.getErrorCode(), this), sw);
-                return;
-            } catch (final DroppedMessageException e) {
-                this.log.debug("Dropping packetOut {}", this);
-                return;
+        tracer.attach(trace);
+        try {
+            for (final OFAction act : this.getActions()) {
+                try {
+                    ((VirtualizableAction) act).virtualize(sw,
+                            this.approvedActions, ovxMatch);
+
+                } catch (final ActionVirtualizationDenied e) {
+                    this.log.warn(
+                            "Action {} could not be virtualized; error: {}",
+                            act, e.getMessage());
+                    sw.sendMsg(OVXMessageUtil.makeError(e.getErrorCode(), this),
+                            sw);
+                    return;
+                } catch (final DroppedMessageException e) {
+                    this.log.debug("Dropping packetOut {}", this);
+                    return;
+                }
             }
+        } finally {
+            tracer.detach(trace);
         }
 
         if (U16.f(this.getInPort()) < U16.f(OFPort.OFPP_MAX.getValue())) {
@@ -135,6 +156,10 @@ public class OVXPacketOut extends OFPacketOut implements Devirtualizable {
             OVXMessageUtil.translateXid(this, inport);
         }
         this.log.debug("Sending packet-out to sw {}: {}", sw.getName(), this);
+        if (trace != null) {
+            trace.record(Stage.PACKET_OUT, "Sending packet-out to sw {}: {}",
+                    sw.getName(), this);
+        }
         sw.sendSouth(this, inport);
     }
 
@@ -15,19 +15,20 @@
  ******************************************************************************/
 package net.onrc.openvirtex.messages;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import net.onrc.openvirtex.core.OpenVirteXController;
 import net.onrc.openvirtex.elements.Mappable;
-import net.onrc.openvirtex.elements.datapath.OVXBigSwitch;
-import net.onrc.openvirtex.elements.datapath.OVXSwitch;
 import net.onrc.openvirtex.elements.datapath.PhysicalSwitch;
 import net.onrc.openvirtex.elements.link.OVXLink;
 import net.onrc.openvirtex.elements.link.PhysicalLink;
-import net.onrc.openvirtex.elements.network.OVXNetwork;
+import net.onrc.openvirtex.elements.network.TenantExecutor;
 import net.onrc.openvirtex.elements.port.LinkPair;
 import net.onrc.openvirtex.elements.port.OVXPort;
 import net.onrc.openvirtex.elements.port.PhysicalPort;
@@ -40,14 +41,18 @@ import org.apache.logging.log4j.Logger;
 import org.openflow.protocol.OFPhysicalPort.OFPortState;
 import org.openflow.protocol.OFPortStatus;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
 public class OVXPortStatus extends OFPortStatus implements Virtualizable {
 
     private final Logger log = LogManager.getLogger(OVXPortStatus.class);
 
     @Override
     public void virtualize(final PhysicalSwitch sw) {
-        Mappable map = sw.getMap();
-        PhysicalPort p = sw.getPort(this.desc.getPortNumber());
+        final Mappable map = sw.getMap();
+        final PhysicalPort p = sw.getPort(this.desc.getPortNumber());
         if (p == null) {
             handlePortAdd(sw, p);
             return;
@@ -56,52 +61,100 @@ public class OVXPortStatus extends OFPortStatus implements Virtualizable {
         log.info("Received {} from switch {}", this.toString(),
                 sw.getSwitchId());
         LinkPair<PhysicalLink> pair = p.getLink();
-        try {
-            Set<Integer> vnets = map.listVirtualNetworks().keySet();
-            for (Integer tenantId : vnets) {
-                /* handle vLinks/routes containing phyLink to/from this port. */
-                if ((pair != null) && (pair.exists())) {
-                    handleLinkChange(sw, map, pair, tenantId);
-                }
-                List<Map<Integer, OVXPort>> vports = p.getOVXPorts(tenantId);
-                /* cycle through all OVXPorts for this port. */
-                Iterator<Map<Integer, OVXPort>> pItr = vports.iterator();
-                while (pItr.hasNext()) {
-                    Map<Integer, OVXPort> mp = pItr.next();
-                    if (mp == null) {
-                        continue;
+        final PhysicalLink plink = ((pair != null) && (pair.exists())) ? pair
+                .getOutLink() : null;
+        final boolean up = !isState(OFPortState.OFPPS_LINK_DOWN)
+                && ((p.getState() & OFPortState.OFPPS_LINK_DOWN.getValue()) == 0);
+        /* only tenants with virtual ports on, or paths through, this port */
+        final Set<Integer> vnets = p.getTenants();
+        if (plink != null) {
+            vnets.addAll(map.getTenants(plink));
+        }
+        final TenantExecutor executor = OpenVirteXController.getInstance()
+                .getTenantExecutor();
+        final AtomicBoolean removed = new AtomicBoolean();
+        final List<ListenableFuture<?>> handled = new ArrayList<ListenableFuture<?>>();
+        for (final Integer tenantId : vnets) {
+            handled.add(executor.submit(tenantId, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        handleTenant(map, p, plink, up, tenantId, removed);
+                    } catch (NetworkMappingException | LinkMappingException e) {
+                        log.warn(
+                                "Couldn't process reason={} for PortStatus for port {} in virtual network {}",
+                                OVXPortStatus.this.reason, p.getPortNumber(),
+                                tenantId);
                     }
-                    for (Map.Entry<Integer, OVXPort> pMap : mp.entrySet()) {
-                        OVXPort vport = pMap.getValue();
-                        if (vport == null) {
-                            continue;
-                        }
-                        if (isReason(OFPortReason.OFPPR_DELETE)) {
-                            /* try to remove OVXPort, vLinks, routes */
-                            vport.unMapHost();
-                            vport.handlePortDelete(this);
-                            sw.removePort(p);
-                        } else if (isReason(OFPortReason.OFPPR_MODIFY)) {
-                            if (isState(OFPortState.OFPPS_LINK_DOWN)) {
-                                /* set ports as edge, but don't remove vLinks */
-                                vport.handlePortDisable(this);
-                            } else if (!isState(OFPortState.OFPPS_LINK_DOWN)
-                                    && ((p.getState() & OFPortState.OFPPS_LINK_DOWN
-                                            .getValue()) == 0)) {
-                                /*
-                                 * set links to non-edge, if it was previously
-                                 * disabled
-                                 */
-                                vport.handlePortEnable(this);
-                            }
-                        }
+                }
+            }));
+        }
+        /* drop the port once no virtual network refers to it anymore */
+        Futures.successfulAsList(handled).addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (removed.get()) {
+                    sw.removePort(p);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    /**
+     * Handles the change of a physical port for a single virtual network.
+     *
+     * @param map
+     *            Mappable containing global information
+     * @param p
+     *            the physical port
+     * @param plink
+     *            the physical link from the port, null if there is none
+     * @param up
+     *            true if the port is up
+     * @param tid
+     *            the tenant ID
+     * @param removed
+     *            set if the physical port is to be removed from its switch
+     * @throws LinkMappingException
+     * @throws NetworkMappingException
+     */
+    private void handleTenant(Mappable map, PhysicalPort p,
+            PhysicalLink plink, boolean up, int tid, AtomicBoolean removed)
+            throws LinkMappingException, NetworkMappingException {
+        /* handle vLinks/routes containing phyLink to/from this port. */
+        if (plink != null) {
+            handleLinkChange(map, plink, up, tid, removed);
+        }
+        List<Map<Integer, OVXPort>> vports = p.getOVXPorts(tid);
+        /* cycle through all OVXPorts for this port. */
+        Iterator<Map<Integer, OVXPort>> pItr = vports.iterator();
+        while (pItr.hasNext()) {
+            Map<Integer, OVXPort> mp = pItr.next();
+            if (mp == null) {
+                continue;
+            }
+            for (OVXPort vport : new ArrayList<OVXPort>(mp.values())) {
+                if (vport == null) {
+                    continue;
+                }
+                if (isReason(OFPortReason.OFPPR_DELETE)) {
+                    /* try to remove OVXPort, vLinks, routes */
+                    vport.unMapHost();
+                    vport.handlePortDelete(this);
+                    removed.set(true);
+                } else if (isReason(OFPortReason.OFPPR_MODIFY)) {
+                    if (isState(OFPortState.OFPPS_LINK_DOWN)) {
+                        /* set ports as edge, but don't remove vLinks */
+                        vport.handlePortDisable(this);
+                    } else if (up) {
+                        /*
+                         * set links to non-edge, if it was previously
+                         * disabled
+                         */
+                        vport.handlePortEnable(this);
                     }
                 }
             }
-        } catch (NetworkMappingException | LinkMappingException e) {
-            log.warn("Couldn't process reason={} for PortStatus for port {}",
-                    this.reason, p.getPortNumber());
-            e.printStackTrace();
         }
     }
 
@@ -124,39 +177,33 @@ public class OVXPortStatus extends OFPortStatus implements Virtualizable {
      *
      * @param map
      *            Mappable containing global information
-     * @param pair
-     *            the LinkPair associated with the PhysicalPort
+     * @param plink
+     *            the PhysicalLink from the PhysicalPort
+     * @param up
+     *            true if the PhysicalPort is up
      * @param tid
      *            the tenant ID
+     * @param removed
+     *            set if the PhysicalPort is to be removed from its switch
      * @throws LinkMappingException
      * @throws NetworkMappingException
      */
-    private void handleLinkChange(PhysicalSwitch sw, Mappable map,
-            LinkPair<PhysicalLink> pair, int tid) throws LinkMappingException,
-            NetworkMappingException {
-        PhysicalLink plink = pair.getOutLink();
-
-        if (!isState(OFPortState.OFPPS_LINK_DOWN)
-                && ((plink.getSrcPort().getState() & OFPortState.OFPPS_LINK_DOWN
-                        .getValue()) == 0)) {
-            OVXNetwork net = map.getVirtualNetwork(tid);
-            for (OVXLink link : net.getLinks()) {
+    private void handleLinkChange(Mappable map, PhysicalLink plink,
+            boolean up, int tid, AtomicBoolean removed)
+            throws LinkMappingException, NetworkMappingException {
+        if (up) {
+            /* only links and routes that failed over from this link */
+            for (OVXLink link : map.getUnusableLinks(plink, tid)) {
                 link.tryRevert(plink);
             }
-            for (OVXSwitch ovxSw : net.getSwitches()) {
-                if (ovxSw instanceof OVXBigSwitch) {
-                    for (Map<OVXPort, SwitchRoute> routeMap : ((OVXBigSwitch) ovxSw)
-                            .getRouteMap().values()) {
-                        for (SwitchRoute route : routeMap.values()) {
-                            route.tryRevert(plink);
-                        }
-                    }
-                }
+            for (SwitchRoute route : map.getUnusableRoutes(plink, tid)) {
+                route.tryRevert(plink);
             }
         }
 
         if (map.hasOVXLinks(plink, tid)) {
-            List<OVXLink> vlinks = map.getVirtualLinks(plink, tid);
+            List<OVXLink> vlinks = new ArrayList<OVXLink>(
+                    map.getVirtualLinks(plink, tid));
             for (OVXLink vlink : vlinks) {
                 if (isReason(OFPortReason.OFPPR_DELETE)) {
                     /* couldn't recover, remove link */
@@ -164,7 +211,7 @@ public class OVXPortStatus extends OFPortStatus implements Virtualizable {
                         OVXPort vport = vlink.getSrcPort();
                         vport.unMapHost();
                         vport.handlePortDelete(this);
-                        sw.removePort(plink.getSrcPort());
+                        removed.set(true);
                     }
                 }
                 if (isReason(OFPortReason.OFPPR_MODIFY)) {
@@ -173,9 +220,7 @@ public class OVXPortStatus extends OFPortStatus implements Virtualizable {
                         if (!vlink.tryRecovery(plink)) {
                             vlink.getSrcPort().handlePortDisable(this);
                         }
-                    } else if (!isState(OFPortState.OFPPS_LINK_DOWN)
-                            && ((plink.getSrcPort().getState() & OFPortState.OFPPS_LINK_DOWN
-                                    .getValue()) == 0)) {
+                    } else if (up) {
                         log.debug("enabling OVXLink mapped to port {}");
                         /*
                          * try to switch back to original path, if not just
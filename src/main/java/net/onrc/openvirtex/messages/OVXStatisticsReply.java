@@ -44,8 +44,9 @@ public class OVXStatisticsReply extends OFStatisticsReply implements
                 VirtualizableStatistic stat = (VirtualizableStatistic) this
                         .getStatistics().get(0);
                 stat.virtualizeStatistic(sw, this);
-            } else if (this.getStatisticType() == OFStatisticsType.FLOW) {
-                sw.setFlowStatistics(null);
+            } else if (this.getStatisticType() == OFStatisticsType.FLOW
+                    && this.getXid() == 0) {
+                sw.getStatisticsManager().handleFlowStatistics(this);
             }
 
         } catch (final ClassCastException e) {
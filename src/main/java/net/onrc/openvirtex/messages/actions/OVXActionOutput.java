@@ -37,6 +37,9 @@ import net.onrc.openvirtex.messages.OVXPacketIn;
 import net.onrc.openvirtex.messages.OVXPacketOut;
 import net.onrc.openvirtex.protocol.OVXMatch;
 import net.onrc.openvirtex.routing.SwitchRoute;
+import net.onrc.openvirtex.util.PacketTracer;
+import net.onrc.openvirtex.util.PacketTracer.Stage;
+import net.onrc.openvirtex.util.PacketTracer.Trace;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -68,12 +71,12 @@ public class OVXActionOutput extends OFActionOutput implements
             log.warn("{}: skipping processing of OFAction", e);
             return;
         }
-        
-        // modify by hujw
-        // If we know the tenantId, attaching the match with it as vlan field.
-        log.info("before OVXMatch {}", match);
-        // end
-        
+        final Trace trace = PacketTracer.getInstance().current();
+        if (trace != null) {
+            trace.record(Stage.ACTION, "Output to port {} on sw {} with match {}",
+                    U16.f(this.getPort()), sw.getName(), match);
+        }
+
         if (match.isFlowMod()) {
             /*
              * FlowMod management Iterate through the output port list. Two main
@@ -94,8 +97,7 @@ public class OVXActionOutput extends OFActionOutput implements
             // TODO: Check if the FM has been retrieved
             // Set match on FlowMod message
             fm.setMatch(match);
-            log.info("after OVXMatch {}", fm.getMatch());
-            
+
             for (final OVXPort outPort : outPortList) {
                 Integer linkId = 0;
                 Integer flowId = 0;
@@ -123,8 +125,11 @@ public class OVXActionOutput extends OFActionOutput implements
                     // If the inPort belongs to an OVXLink, add rewrite actions
                     // to unset the packet link fields
                     if (inPort.isLink()) {
-                    	log.info("This inPort {} on sw {} is a link port", 
-                    			inPort.getPortNumber(), inPort.getParentSwitch().getName());
+                        if (trace != null) {
+                            trace.record(Stage.ACTION,
+                                    "This inPort {} on sw {} is a link port",
+                                    inPort.getPortNumber(), sw.getName());
+                        }
                         final OVXPort dstPort = vnet.getNeighborPort(inPort);
                         final OVXLink link = inPort.getLink().getOutLink();
                         if (link != null
@@ -133,7 +138,8 @@ public class OVXActionOutput extends OFActionOutput implements
                                         .isWildcarded(Flag.DL_SRC))) {
                             flowId = vnet.getFlowManager().getFlowId(
                                     match.getDataLayerSource(),
-                                    match.getDataLayerDestination());
+                                    match.getDataLayerDestination(),
+                                    sw.getSwitchId(), match.getCookie());
                             OVXLinkUtils lUtils = new OVXLinkUtils(
                                     sw.getTenantId(), link.getLinkId(), flowId);
                             approvedActions.addAll(lUtils.unsetLinkFields());
@@ -145,7 +151,7 @@ public class OVXActionOutput extends OFActionOutput implements
                         }
                     }
 
-                    route.generateRouteFMs(fm.clone());
+                    match.addPathInstall(route.generateRouteFMs(fm.clone()));
 
                     // add the output action with the physical outPort (srcPort
                     // of the route)
@@ -181,8 +187,10 @@ public class OVXActionOutput extends OFActionOutput implements
                             try {
                                 flowId = vnet.getFlowManager().storeFlowValues(
                                         match.getDataLayerSource(),
-                                        match.getDataLayerDestination());
-                                link.generateLinkFMs(fm.clone(), flowId);
+                                        match.getDataLayerDestination(),
+                                        sw.getSwitchId(), match.getCookie());
+                                match.addPathInstall(link.generateLinkFMs(
+                                        fm.clone(), flowId));
                                 approvedActions.addAll(new OVXLinkUtils(sw
                                         .getTenantId(), linkId, flowId)
                                         .setLinkFields());
@@ -211,7 +219,8 @@ public class OVXActionOutput extends OFActionOutput implements
                             if (link != null) {
                                 flowId = vnet.getFlowManager().getFlowId(
                                         match.getDataLayerSource(),
-                                        match.getDataLayerDestination());
+                                        match.getDataLayerDestination(),
+                                        sw.getSwitchId(), match.getCookie());
                                 OVXLinkUtils lUtils = new OVXLinkUtils(
                                         sw.getTenantId(), link.getLinkId(),
                                         flowId);
@@ -231,8 +240,10 @@ public class OVXActionOutput extends OFActionOutput implements
                             try {
                                 flowId = vnet.getFlowManager().storeFlowValues(
                                         match.getDataLayerSource(),
-                                        match.getDataLayerDestination());
-                                link.generateLinkFMs(fm.clone(), flowId);
+                                        match.getDataLayerDestination(),
+                                        sw.getSwitchId(), match.getCookie());
+                                match.addPathInstall(link.generateLinkFMs(
+                                        fm.clone(), flowId));
                                 approvedActions.addAll(new OVXLinkUtils(sw
                                         .getTenantId(), linkId, flowId)
                                         .setLinkFields());
@@ -277,18 +288,20 @@ public class OVXActionOutput extends OFActionOutput implements
                  * coming from the end point of the link to the controller.
                  */
                 if (outPort.isLink()) {
-                	this.log.info("The outPort is a link port with match field {}", match);
                     final OVXPort dstPort = outPort.getLink().getOutLink()
                             .getDstPort();
                     dstPort.getParentSwitch().sendMsg(
                             new OVXPacketIn(match.getPktData(),
                                     dstPort.getPortNumber()), sw);
-                    this.log.info(
-                            "Generate a packetIn from OVX Port {}/{}, physicalPort {}/{}",
-                            dstPort.getParentSwitch().getSwitchName(),
-                            dstPort.getPortNumber(), dstPort.getPhysicalPort()
-                                    .getParentSwitch().getSwitchName(),
-                            dstPort.getPhysicalPortNumber());
+                    if (trace != null) {
+                        trace.record(Stage.ACTION,
+                                "Generate a packetIn from OVX Port {}/{}, physicalPort {}/{}",
+                                dstPort.getParentSwitch().getSwitchName(),
+                                dstPort.getPortNumber(), dstPort
+                                        .getPhysicalPort().getParentSwitch()
+                                        .getSwitchName(),
+                                dstPort.getPhysicalPortNumber());
+                    }
                 } else if (sw instanceof OVXBigSwitch) {
                     /**
                      * Big-switch management. Generate a packetOut to the
@@ -303,10 +316,13 @@ public class OVXActionOutput extends OFActionOutput implements
                                 new OVXPacketOut(match.getPktData(),
                                         OFPort.OFPP_NONE.getValue(),
                                         dstPort.getPortNumber()), sw);
-                        this.log.info("PacketOut for a bigSwitch port, "
-                                + "generate a packet from Physical Port {}/{}",
-                                dstPort.getParentSwitch().getSwitchName(),
-                                dstPort.getPortNumber());
+                        if (trace != null) {
+                            trace.record(Stage.ACTION,
+                                    "PacketOut for a bigSwitch port, "
+                                            + "generate a packet from Physical Port {}/{}",
+                                    dstPort.getParentSwitch().getSwitchName(),
+                                    dstPort.getPortNumber());
+                        }
                     }
                 } else {
                     /**
@@ -319,10 +335,11 @@ public class OVXActionOutput extends OFActionOutput implements
                             .prependUnRewriteActions(sw.getTenantId(), match));
                     approvedActions.add(new OFActionOutput(outPort
                             .getPhysicalPortNumber()));
-                    
-                    this.log.info(
-                            "Physical ports are on the same physical switch, rewrite only outPort to {}",
-                            outPort.getPhysicalPortNumber());
+                    if (trace != null) {
+                        trace.record(Stage.ACTION,
+                                "Physical ports are on the same physical switch, rewrite only outPort to {}",
+                                outPort.getPhysicalPortNumber());
+                    }
                 }
             }
             if (throwException) {
@@ -16,11 +16,9 @@
 package net.onrc.openvirtex.messages.statistics;
 
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 
-import net.onrc.openvirtex.elements.datapath.FlowTable;
 import net.onrc.openvirtex.elements.datapath.OVXSingleSwitch;
 import net.onrc.openvirtex.elements.datapath.OVXSwitch;
 import net.onrc.openvirtex.elements.datapath.PhysicalSwitch;
@@ -31,10 +29,13 @@ import net.onrc.openvirtex.messages.OVXStatisticsRequest;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.openflow.protocol.OFPort;
 import org.openflow.protocol.statistics.OFAggregateStatisticsRequest;
 import org.openflow.protocol.statistics.OFStatisticsType;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
 public class OVXAggregateStatisticsRequest extends OFAggregateStatisticsRequest
         implements DevirtualizableStatistic {
 
@@ -44,37 +45,23 @@ public class OVXAggregateStatisticsRequest extends OFAggregateStatisticsRequest
     @Override
     public void devirtualizeStatistic(final OVXSwitch sw,
             final OVXStatisticsRequest msg) {
-
-        OVXAggregateStatisticsReply stat = new OVXAggregateStatisticsReply();
-        int tid = sw.getTenantId();
-        HashSet<Long> uniqueCookies = new HashSet<Long>();
-
-        // the -1 is for beacon...
-        if ((this.match.getWildcardObj().isFull() || this.match.getWildcards() == -1)
-                && this.outPort == OFPort.OFPP_NONE.getValue()) {
-            FlowTable ft = sw.getFlowTable();
-            stat.setFlowCount(ft.getFlowTable().size());
-            stat.setByteCount(0);
-            stat.setPacketCount(0);
-            for (PhysicalSwitch psw : getPhysicalSwitches(sw)) {
-                List<OVXFlowStatisticsReply> reps = psw.getFlowStats(tid);
-                if (reps != null) {
-                    for (OVXFlowStatisticsReply s : reps) {
-
-                        if (!uniqueCookies.contains(s.getCookie())) {
-
-                            stat.setByteCount(stat.getByteCount()
-                                    + s.getByteCount());
-                            stat.setByteCount(stat.getPacketCount()
-                                    + s.getPacketCount());
-                            uniqueCookies.add(s.getCookie());
-
-                        }
-                    }
-
-                }
-            }
+        // poll the switches whose statistics are too old to be served
+        List<ListenableFuture<Void>> refreshes = new LinkedList<ListenableFuture<Void>>();
+        for (PhysicalSwitch psw : getPhysicalSwitches(sw)) {
+            refreshes.add(psw.getStatisticsManager().refreshFlowStatistics());
         }
+        Futures.successfulAsList(refreshes).addListener(new Runnable() {
+            @Override
+            public void run() {
+                sendAggregateStatistics(sw, msg);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    private void sendAggregateStatistics(final OVXSwitch sw,
+            final OVXStatisticsRequest msg) {
+        OVXAggregateStatisticsReply stat = sw.getFlowStatisticsCache()
+                .getAggregateStatistics(this.match, this.outPort);
 
         OVXStatisticsReply reply = new OVXStatisticsReply();
         reply.setXid(msg.getXid());
@@ -84,7 +71,6 @@ public class OVXAggregateStatisticsRequest extends OFAggregateStatisticsRequest
         reply.setLengthU(OVXStatisticsReply.MINIMUM_LENGTH + stat.getLength());
 
         sw.sendMsg(reply, sw);
-
     }
 
     private List<PhysicalSwitch> getPhysicalSwitches(OVXSwitch sw) {
@@ -15,7 +15,6 @@
  ******************************************************************************/
 package net.onrc.openvirtex.messages.statistics;
 
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -23,19 +22,18 @@ import net.onrc.openvirtex.elements.datapath.OVXSingleSwitch;
 import net.onrc.openvirtex.elements.datapath.OVXSwitch;
 import net.onrc.openvirtex.elements.datapath.PhysicalSwitch;
 import net.onrc.openvirtex.elements.port.OVXPort;
-import net.onrc.openvirtex.exceptions.MappingException;
 import net.onrc.openvirtex.exceptions.SwitchMappingException;
-import net.onrc.openvirtex.messages.OVXFlowMod;
 import net.onrc.openvirtex.messages.OVXStatisticsReply;
 import net.onrc.openvirtex.messages.OVXStatisticsRequest;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.openflow.protocol.OFPort;
-import org.openflow.protocol.action.OFAction;
 import org.openflow.protocol.statistics.OFFlowStatisticsRequest;
 import org.openflow.protocol.statistics.OFStatisticsType;
-import org.openflow.util.U16;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 
 public class OVXFlowStatisticsRequest extends OFFlowStatisticsRequest implements
         DevirtualizableStatistic {
@@ -46,59 +44,36 @@ public class OVXFlowStatisticsRequest extends OFFlowStatisticsRequest implements
     @Override
     public void devirtualizeStatistic(final OVXSwitch sw,
             final OVXStatisticsRequest msg) {
-        List<OVXFlowStatisticsReply> replies = new LinkedList<OVXFlowStatisticsReply>();
-        HashSet<Long> uniqueCookies = new HashSet<Long>();
-        int tid = sw.getTenantId();
-        int length = 0;
-
-        if ((this.match.getWildcardObj().isFull() || this.match.getWildcards() == -1) // the
-                                                                                      // -1
-                                                                                      // is
-                                                                                      // for
-                                                                                      // beacon...
-                && this.outPort == OFPort.OFPP_NONE.getValue()) {
-            for (PhysicalSwitch psw : getPhysicalSwitches(sw)) {
-                List<OVXFlowStatisticsReply> reps = psw.getFlowStats(tid);
-                if (reps != null) {
-                    for (OVXFlowStatisticsReply stat : reps) {
-
-                        if (!uniqueCookies.contains(stat.getCookie())) {
-                            OVXFlowMod origFM;
-                            try {
-                                origFM = sw.getFlowMod(stat.getCookie());
-                                uniqueCookies.add(stat.getCookie());
-                            } catch (MappingException e) {
-                                log.warn(
-                                        "FlowMod not found in FlowTable for cookie={}",
-                                        stat.getCookie());
-                                continue;
-                            }
-                            stat.setCookie(origFM.getCookie());
-                            stat.setMatch(origFM.getMatch());
-                            stat.setActions(origFM.getActions());
-                            replies.add(stat);
-                            stat.setLength(U16
-                                    .t(OVXFlowStatisticsReply.MINIMUM_LENGTH));
-                            for (OFAction act : stat.getActions()) {
-                                stat.setLength(U16.t(stat.getLength()
-                                        + act.getLength()));
-                            }
-                            length += stat.getLength();
-                        }
-                    }
-                }
+        // poll the switches whose statistics are too old to be served
+        List<ListenableFuture<Void>> refreshes = new LinkedList<ListenableFuture<Void>>();
+        for (PhysicalSwitch psw : getPhysicalSwitches(sw)) {
+            refreshes.add(psw.getStatisticsManager().refreshFlowStatistics());
+        }
+        Futures.successfulAsList(refreshes).addListener(new Runnable() {
+            @Override
+            public void run() {
+                sendFlowStatistics(sw, msg);
             }
+        }, MoreExecutors.sameThreadExecutor());
+    }
 
-            OVXStatisticsReply reply = new OVXStatisticsReply();
-            reply.setXid(msg.getXid());
-            reply.setStatisticType(OFStatisticsType.FLOW);
-            reply.setStatistics(replies);
+    private void sendFlowStatistics(final OVXSwitch sw,
+            final OVXStatisticsRequest msg) {
+        List<OVXFlowStatisticsReply> replies = sw.getFlowStatisticsCache()
+                .getFlowStatistics(this.match, this.outPort);
+        int length = 0;
+        for (OVXFlowStatisticsReply stat : replies) {
+            length += stat.getLength();
+        }
 
-            reply.setLengthU(OVXStatisticsReply.MINIMUM_LENGTH + length);
+        OVXStatisticsReply reply = new OVXStatisticsReply();
+        reply.setXid(msg.getXid());
+        reply.setStatisticType(OFStatisticsType.FLOW);
+        reply.setStatistics(replies);
 
-            sw.sendMsg(reply, sw);
+        reply.setLengthU(OVXStatisticsReply.MINIMUM_LENGTH + length);
 
-        }
+        sw.sendMsg(reply, sw);
     }
 
     private List<PhysicalSwitch> getPhysicalSwitches(OVXSwitch sw) {
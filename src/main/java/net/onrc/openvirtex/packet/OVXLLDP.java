@@ -98,6 +98,7 @@ public class OVXLLDP extends LLDP {
             + PORT_TLV_SIZE + TTL_TLV_SIZE + NAME_TLV_SIZE + DPID_TLV_SIZE + 12);
 
     // Field offsets in OVX-generated LLDP
+    private static final short SRC_MAC_OFFSET = 6;
     private static final short ETHERTYPE_OFFSET = 12;
     private static final short PORT_OFFSET = 26;
     private static final short DPID_OFFSET = 54;
@@ -266,6 +267,23 @@ public class OVXLLDP extends LLDP {
         return super.serialize();
     }
 
+    /**
+     * Copies a serialized LLDP or BDDP packet sent out on some port of a
+     * switch into the packet for another port of the same switch. Only the
+     * source MAC address and the port TLV differ between the two.
+     *
+     * @param template the serialized packet, without VLAN tag
+     * @param port the port the copy is sent out on
+     * @return the packet for the port
+     */
+    public static byte[] copyForPort(final byte[] template, final Port port) {
+        final byte[] packet = Arrays.copyOf(template, template.length);
+        System.arraycopy(port.getHardwareAddress(), 0, packet,
+                SRC_MAC_OFFSET, 6);
+        ByteBuffer.wrap(packet).putShort(PORT_OFFSET, port.getPortNumber());
+        return packet;
+    }
+
     /**
      * Checks if LLDP packet has correct size, LLDP multicast address, and
      * ethertype. Packet assumed to have Ethernet header.
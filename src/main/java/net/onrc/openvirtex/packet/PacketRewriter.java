@@ -0,0 +1,235 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.packet;
+
+/**
+ * Rewrites addresses of raw Ethernet frames in place, without building the
+ * packet object tree. Only handles the common cases: IPv4 and ARP for IPv4
+ * over Ethernet, optionally with a single VLAN tag. Checksums affected by an
+ * address change are updated incrementally (RFC 1624).
+ * <p>
+ * Callers should check {@link #isRewritable(byte[])} first and fall back to
+ * {@link Ethernet} for anything else.
+ */
+public final class PacketRewriter {
+
+    private static final int ETH_HEADER_LENGTH = 14;
+    private static final int VLAN_TAG_LENGTH = 4;
+    private static final int IPV4_MIN_HEADER_LENGTH = 20;
+    private static final int ARP_IPV4_LENGTH = 28;
+
+    private static final int IPV4_CHECKSUM = 10;
+    private static final int IPV4_SRC = 12;
+    private static final int IPV4_DST = 16;
+    private static final int TCP_CHECKSUM = 16;
+    private static final int UDP_CHECKSUM = 6;
+    private static final int ARP_SPA = 14;
+    private static final int ARP_TPA = 24;
+
+    /**
+     * Overrides default constructor to no-op private constructor.
+     * Required by checkstyle.
+     */
+    private PacketRewriter() {
+    }
+
+    /**
+     * Gets the offset of the network layer header.
+     *
+     * @param data the frame
+     * @return the offset, or -1 if the frame is too short
+     */
+    private static int getNetworkOffset(final byte[] data) {
+        if (data.length < ETH_HEADER_LENGTH) {
+            return -1;
+        }
+        if (getShort(data, 12) == (short) 0x8100) {
+            return data.length < ETH_HEADER_LENGTH + VLAN_TAG_LENGTH ? -1
+                    : ETH_HEADER_LENGTH + VLAN_TAG_LENGTH;
+        }
+        return ETH_HEADER_LENGTH;
+    }
+
+    /**
+     * Gets the ethertype of the frame, skipping a VLAN tag if present.
+     *
+     * @param data the frame
+     * @param nwOffset the offset of the network layer header
+     * @return the ethertype
+     */
+    private static short getEtherType(final byte[] data, final int nwOffset) {
+        return getShort(data, nwOffset - 2);
+    }
+
+    /**
+     * Checks if the frame can be rewritten in place, i.e. it is an IPv4
+     * packet whose header is complete, or an ARP packet for IPv4 over
+     * Ethernet.
+     *
+     * @param data the frame
+     * @return true if the frame can be rewritten in place
+     */
+    public static boolean isRewritable(final byte[] data) {
+        if (data == null) {
+            return false;
+        }
+        final int nw = getNetworkOffset(data);
+        if (nw < 0) {
+            return false;
+        }
+        final short etherType = getEtherType(data, nw);
+        if (etherType == Ethernet.TYPE_IPV4) {
+            if (data.length < nw + IPV4_MIN_HEADER_LENGTH
+                    || (data[nw] >> 4 & 0xf) != 4) {
+                return false;
+            }
+            final int headerLength = (data[nw] & 0xf) * 4;
+            return headerLength >= IPV4_MIN_HEADER_LENGTH
+                    && data.length >= nw + headerLength;
+        } else if (etherType == Ethernet.TYPE_ARP) {
+            return data.length >= nw + ARP_IPV4_LENGTH
+                    && getShort(data, nw) == ARP.HW_TYPE_ETHERNET
+                    && getShort(data, nw + 2) == ARP.PROTO_TYPE_IP
+                    && data[nw + 4] == 6 && data[nw + 5] == 4;
+        }
+        return false;
+    }
+
+    /**
+     * Sets the source and destination MAC addresses of the frame.
+     *
+     * @param data the frame
+     * @param src the source MAC address
+     * @param dst the destination MAC address
+     */
+    public static void setMACAddresses(final byte[] data, final byte[] src,
+            final byte[] dst) {
+        System.arraycopy(dst, 0, data, 0, 6);
+        System.arraycopy(src, 0, data, 6, 6);
+    }
+
+    /**
+     * Sets the source and destination addresses of an IPv4 frame, updating
+     * the IPv4 header checksum and, for unfragmented TCP and UDP, the
+     * transport checksum. Checksums that lie beyond the end of a truncated
+     * frame are left alone.
+     *
+     * @param data the frame
+     * @param src the source IP address
+     * @param dst the destination IP address
+     */
+    public static void setIPv4Addresses(final byte[] data, final int src,
+            final int dst) {
+        final int nw = getNetworkOffset(data);
+        final int oldSrc = getInt(data, nw + IPV4_SRC);
+        final int oldDst = getInt(data, nw + IPV4_DST);
+        if (oldSrc == src && oldDst == dst) {
+            return;
+        }
+        putInt(data, nw + IPV4_SRC, src);
+        putInt(data, nw + IPV4_DST, dst);
+        putShort(data, nw + IPV4_CHECKSUM, (short) adjustChecksum(
+                getShort(data, nw + IPV4_CHECKSUM), oldSrc, src, oldDst, dst));
+
+        /* the transport checksum covers the addresses via the pseudo header */
+        final int fragmentOffset = getShort(data, nw + 6) & 0x1fff;
+        if (fragmentOffset != 0) {
+            return;
+        }
+        final int tp = nw + (data[nw] & 0xf) * 4;
+        final byte protocol = data[nw + 9];
+        if (protocol == IPv4.PROTOCOL_TCP
+                && data.length >= tp + TCP_CHECKSUM + 2) {
+            putShort(data, tp + TCP_CHECKSUM, (short) adjustChecksum(
+                    getShort(data, tp + TCP_CHECKSUM), oldSrc, src, oldDst,
+                    dst));
+        } else if (protocol == IPv4.PROTOCOL_UDP
+                && data.length >= tp + UDP_CHECKSUM + 2) {
+            final short checksum = getShort(data, tp + UDP_CHECKSUM);
+            /* a zero UDP checksum means none was computed */
+            if (checksum != 0) {
+                int adjusted = adjustChecksum(checksum, oldSrc, src, oldDst,
+                        dst);
+                if (adjusted == 0) {
+                    adjusted = 0xffff;
+                }
+                putShort(data, tp + UDP_CHECKSUM, (short) adjusted);
+            }
+        }
+    }
+
+    /**
+     * Sets the sender and target protocol addresses of an ARP frame.
+     *
+     * @param data the frame
+     * @param spa the sender protocol address
+     * @param tpa the target protocol address
+     */
+    public static void setARPAddresses(final byte[] data, final int spa,
+            final int tpa) {
+        final int nw = getNetworkOffset(data);
+        putInt(data, nw + ARP_SPA, spa);
+        putInt(data, nw + ARP_TPA, tpa);
+    }
+
+    /**
+     * Updates a one's complement checksum for two changed 32-bit words.
+     *
+     * @param checksum the current checksum
+     * @param old1 the first word before the change
+     * @param new1 the first word after the change
+     * @param old2 the second word before the change
+     * @param new2 the second word after the change
+     * @return the updated checksum
+     */
+    static int adjustChecksum(final short checksum, final int old1,
+            final int new1, final int old2, final int new2) {
+        /* HC' = ~(~HC + ~m + m') for every changed 16-bit word m */
+        int sum = ~checksum & 0xffff;
+        sum += (~old1 >>> 16 & 0xffff) + (~old1 & 0xffff);
+        sum += (new1 >>> 16 & 0xffff) + (new1 & 0xffff);
+        sum += (~old2 >>> 16 & 0xffff) + (~old2 & 0xffff);
+        sum += (new2 >>> 16 & 0xffff) + (new2 & 0xffff);
+        while (sum >>> 16 != 0) {
+            sum = (sum & 0xffff) + (sum >>> 16);
+        }
+        return ~sum & 0xffff;
+    }
+
+    private static short getShort(final byte[] data, final int offset) {
+        return (short) ((data[offset] & 0xff) << 8 | data[offset + 1] & 0xff);
+    }
+
+    private static void putShort(final byte[] data, final int offset,
+            final short value) {
+        data[offset] = (byte) (value >> 8);
+        data[offset + 1] = (byte) value;
+    }
+
+    private static int getInt(final byte[] data, final int offset) {
+        return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16
+                | (data[offset + 2] & 0xff) << 8 | data[offset + 3] & 0xff;
+    }
+
+    private static void putInt(final byte[] data, final int offset,
+            final int value) {
+        data[offset] = (byte) (value >> 24);
+        data[offset + 1] = (byte) (value >> 16);
+        data[offset + 2] = (byte) (value >> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+}
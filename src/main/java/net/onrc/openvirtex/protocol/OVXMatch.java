@@ -15,7 +15,9 @@
  ******************************************************************************/
 package net.onrc.openvirtex.protocol;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 import net.onrc.openvirtex.elements.address.IPMapper;
 import net.onrc.openvirtex.messages.actions.OVXActionNetworkLayerDestination;
@@ -28,6 +30,9 @@ import org.openflow.util.HexString;
 import org.openflow.util.U16;
 import org.openflow.util.U8;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
 /**
  * The Class OVXMatch. This class extends the OFMatch class, in order to carry
  * some useful informations for OpenVirteX, as the cookie (used by flowMods
@@ -44,6 +49,9 @@ public class OVXMatch extends OFMatch {
     /** The pkt data. */
     protected byte[] pktData;
 
+    /** The installations of the paths the flow mod leads to. */
+    protected List<ListenableFuture<?>> pathInstalls;
+
     /**
      * Instantiates a new void OVXatch.
      */
@@ -118,6 +126,32 @@ public class OVXMatch extends OFMatch {
         this.pktData = pktData;
     }
 
+    /**
+     * Adds the installation of a path the flow mod leads to, e.g. of a
+     * virtual link or big switch route.
+     *
+     * @param install the installation
+     */
+    public void addPathInstall(final ListenableFuture<?> install) {
+        if (this.pathInstalls == null) {
+            this.pathInstalls = new ArrayList<ListenableFuture<?>>();
+        }
+        this.pathInstalls.add(install);
+    }
+
+    /**
+     * Gets the installation of all paths the flow mod leads to.
+     *
+     * @return a future completed once all paths are installed, or null if
+     *         the flow mod leads to no path
+     */
+    public ListenableFuture<?> getPathInstall() {
+        if (this.pathInstalls == null) {
+            return null;
+        }
+        return Futures.successfulAsList(this.pathInstalls);
+    }
+
     /**
      * Checks if this match belongs to a flow mod (e.g. the cookie is not zero).
      *
@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.routing;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.onrc.openvirtex.core.OpenVirteXController;
+import net.onrc.openvirtex.elements.datapath.PhysicalSwitch;
+import net.onrc.openvirtex.elements.network.PhysicalNetwork;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import org.openflow.protocol.OFMessage;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Installs the transit flow mods of a virtual link or big switch route
+ * without blocking the caller.
+ * <p>
+ * Flow mods are written to all switches of the path at once. Committing
+ * sends a barrier to every switch written to, and returns a future that
+ * completes once all of them have replied, so that the flow mod letting
+ * traffic into the path can be sent after the rest of the path is in place.
+ * A switch that does not reply within the barrier timeout is no longer
+ * waited for, and a timeout of 0 disables the barriers altogether.
+ */
+public class PathInstaller {
+
+    private static Logger log = LogManager.getLogger(PathInstaller.class
+            .getName());
+
+    private static final AtomicLong INSTALLS = new AtomicLong();
+    private static final AtomicLong TIMEOUTS = new AtomicLong();
+
+    private final long timeout;
+    private final Set<PhysicalSwitch> switches;
+    private final List<ListenableFuture<?>> dependencies;
+
+    /**
+     * Creates an installer waiting for barrier replies for the configured
+     * time.
+     */
+    public PathInstaller() {
+        this(OpenVirteXController.getInstance().getBarrierTimeout());
+    }
+
+    /**
+     * Creates an installer waiting for barrier replies for the given time.
+     *
+     * @param timeout the time in milliseconds, 0 to not send barriers
+     */
+    public PathInstaller(final long timeout) {
+        this.timeout = timeout;
+        this.switches = new LinkedHashSet<PhysicalSwitch>();
+        this.dependencies = new ArrayList<ListenableFuture<?>>();
+    }
+
+    /**
+     * Writes a message to a switch of the path. The message is encoded
+     * before returning, so the caller may change and send it again.
+     *
+     * @param sw the physical switch
+     * @param msg the message
+     */
+    public void send(final PhysicalSwitch sw, final OFMessage msg) {
+        sw.sendMsg(msg, sw);
+        this.switches.add(sw);
+    }
+
+    /**
+     * Makes the installation complete only after the given one, e.g. the
+     * installation of the virtual link a route leads to.
+     *
+     * @param install the other installation
+     */
+    public void dependOn(final ListenableFuture<?> install) {
+        this.dependencies.add(install);
+    }
+
+    /**
+     * Sends a barrier to every switch written to, or writes out the messages
+     * held back for them if barriers are disabled.
+     *
+     * @return a future completed once all switches have replied or timed out
+     */
+    public ListenableFuture<Void> commit() {
+        PathInstaller.INSTALLS.incrementAndGet();
+        final List<ListenableFuture<?>> barriers = new ArrayList<ListenableFuture<?>>();
+        for (PhysicalSwitch sw : this.switches) {
+            if (this.timeout > 0) {
+                // the barrier writes out the burst as well
+                barriers.add(sw.sendBarrier());
+            } else {
+                sw.flush();
+            }
+        }
+        final List<ListenableFuture<?>> pending = new ArrayList<ListenableFuture<?>>(
+                this.dependencies);
+        pending.addAll(barriers);
+        if (pending.isEmpty()) {
+            return Futures.immediateFuture(null);
+        }
+        final SettableFuture<Void> done = SettableFuture.create();
+        final ListenableFuture<?> all = Futures.successfulAsList(pending);
+        all.addListener(new Runnable() {
+            @Override
+            public void run() {
+                done.set(null);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        if (!done.isDone() && this.timeout > 0) {
+            final Timeout timer = PhysicalNetwork.getTimer().newTimeout(
+                    new TimerTask() {
+                        @Override
+                        public void run(final Timeout t) {
+                            if (done.isDone()) {
+                                return;
+                            }
+                            PathInstaller.TIMEOUTS.incrementAndGet();
+                            PathInstaller.log.warn(
+                                    "No barrier reply from {} within {} ms",
+                                    PathInstaller.this.switches,
+                                    PathInstaller.this.timeout);
+                            // stop waiting for the missing replies
+                            for (ListenableFuture<?> barrier : barriers) {
+                                barrier.cancel(false);
+                            }
+                            done.set(null);
+                        }
+                    }, this.timeout, TimeUnit.MILLISECONDS);
+            done.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    timer.cancel();
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+        return done;
+    }
+
+    /**
+     * @return the number of paths installed
+     */
+    public static long getInstallCount() {
+        return PathInstaller.INSTALLS.get();
+    }
+
+    /**
+     * @return the number of paths that were not confirmed in time
+     */
+    public static long getTimeoutCount() {
+        return PathInstaller.TIMEOUTS.get();
+    }
+
+}
@@ -0,0 +1,275 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.routing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.onrc.openvirtex.elements.OVXMap;
+import net.onrc.openvirtex.elements.datapath.OVXBigSwitch;
+import net.onrc.openvirtex.elements.datapath.PhysicalSwitch;
+import net.onrc.openvirtex.elements.link.PhysicalLink;
+import net.onrc.openvirtex.elements.network.PhysicalNetwork;
+import net.onrc.openvirtex.elements.network.Topology;
+import net.onrc.openvirtex.elements.port.PhysicalPort;
+import net.onrc.openvirtex.exceptions.SwitchMappingException;
+import net.onrc.openvirtex.routing.ShortestPath.Predecessor;
+
+/**
+ * Caches the shortest path trees of a big switch. The first route
+ * requested from a physical switch computes the tree to every other physical
+ * switch of the big switch, so the primary paths of all routes from that
+ * switch cost a single Dijkstra run.
+ * <p>
+ * A new physical link between two switches of the big switch may shorten
+ * any path, so it drops all trees. A removed link only drops the trees that
+ * use it. Cached paths are also checked against the physical network before
+ * being returned, so a tree missed by an invalidation is recomputed rather
+ * than used.
+ */
+public class RouteCache {
+
+    private final OVXBigSwitch vSwitch;
+    // Links between the physical switches of the big switch, and the
+    // version of the physical topology they were read from, guarded by this
+    private List<PhysicalLink> edges;
+    private long edgesVersion;
+    private final ConcurrentHashMap<PhysicalSwitch, Map<PhysicalSwitch, Predecessor>> trees;
+    // Bumped by every invalidation, so that trees computed from an older
+    // topology are not cached
+    private final AtomicLong version;
+
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong lastRecomputeTime;
+    private final AtomicLong totalRecomputeTime;
+
+    /**
+     * Creates an empty route cache for the given big switch.
+     *
+     * @param vSwitch the big switch
+     */
+    public RouteCache(final OVXBigSwitch vSwitch) {
+        this.vSwitch = vSwitch;
+        this.trees = new ConcurrentHashMap<PhysicalSwitch, Map<PhysicalSwitch, Predecessor>>();
+        this.version = new AtomicLong();
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.lastRecomputeTime = new AtomicLong();
+        this.totalRecomputeTime = new AtomicLong();
+    }
+
+    /**
+     * Gets the physical links between the physical switches of the big
+     * switch, sorted.
+     *
+     * @return unmodifiable list of links
+     * @throws SwitchMappingException if the big switch is not mapped
+     */
+    public synchronized List<PhysicalLink> getEdges()
+            throws SwitchMappingException {
+        final Topology<PhysicalSwitch, PhysicalPort, PhysicalLink> topology = PhysicalNetwork
+                .getInstance().getTopology();
+        if (this.edges == null || this.edgesVersion != topology.getVersion()) {
+            final Set<PhysicalSwitch> switches = new HashSet<PhysicalSwitch>(
+                    OVXMap.getInstance().getPhysicalSwitches(this.vSwitch));
+            final List<PhysicalLink> links = new ArrayList<PhysicalLink>();
+            for (PhysicalSwitch sw : switches) {
+                for (PhysicalLink link : topology.getOutgoingLinks(sw)) {
+                    if (switches.contains(link.getDstSwitch())) {
+                        links.add(link);
+                    }
+                }
+            }
+            Collections.sort(links);
+            this.edges = Collections.unmodifiableList(links);
+            this.edgesVersion = topology.getVersion();
+        }
+        return this.edges;
+    }
+
+    /**
+     * Gets the shortest path between two physical switches of the big
+     * switch.
+     *
+     * @param srcSw the source switch
+     * @param dstSw the destination switch
+     * @return the path, empty if both switches are the same, or null if no
+     *         path exists
+     * @throws SwitchMappingException if the big switch is not mapped
+     */
+    public LinkedList<PhysicalLink> getPath(final PhysicalSwitch srcSw,
+            final PhysicalSwitch dstSw) throws SwitchMappingException {
+        if (srcSw == dstSw) {
+            return new LinkedList<PhysicalLink>();
+        }
+        Map<PhysicalSwitch, Predecessor> tree = this.trees.get(srcSw);
+        if (tree != null) {
+            final LinkedList<PhysicalLink> path = RouteCache.walk(tree, dstSw);
+            if (path == null || RouteCache.isValid(path)) {
+                this.hits.incrementAndGet();
+                return path;
+            }
+            this.invalidate(path);
+        }
+        this.misses.incrementAndGet();
+        final long version = this.version.get();
+        final long start = System.nanoTime();
+        final ShortestPath spf = new ShortestPath(this.getEdges());
+        spf.execute(srcSw);
+        tree = spf.getPredecessors();
+        final long elapsed = System.nanoTime() - start;
+        this.lastRecomputeTime.set(elapsed);
+        this.totalRecomputeTime.addAndGet(elapsed);
+        // invalidations hold the lock, so none can come between the check
+        // and the put
+        synchronized (this) {
+            if (this.version.get() == version) {
+                this.trees.put(srcSw, tree);
+            }
+        }
+        return RouteCache.walk(tree, dstSw);
+    }
+
+    /**
+     * Drops all cached trees, e.g. after a link between two switches of the
+     * big switch has been added.
+     */
+    public synchronized void invalidateAll() {
+        this.version.incrementAndGet();
+        this.edges = null;
+        this.trees.clear();
+    }
+
+    /**
+     * Drops the cached trees that use the given link, e.g. after the link has
+     * been removed.
+     *
+     * @param link the physical link
+     */
+    public synchronized void invalidate(final PhysicalLink link) {
+        this.invalidate(Collections.singleton(link));
+    }
+
+    private synchronized void invalidate(final Iterable<PhysicalLink> links) {
+        this.version.incrementAndGet();
+        this.edges = null;
+        final Set<PhysicalLink> removed = new HashSet<PhysicalLink>();
+        for (PhysicalLink link : links) {
+            removed.add(link);
+        }
+        final Iterator<Map<PhysicalSwitch, Predecessor>> it = this.trees
+                .values().iterator();
+        while (it.hasNext()) {
+            for (Predecessor pred : it.next().values()) {
+                if (removed.contains(pred.getLink())) {
+                    it.remove();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds the path to the given switch from a shortest path tree.
+     *
+     * @return the path, or null if the switch is not reachable
+     */
+    private static LinkedList<PhysicalLink> walk(
+            final Map<PhysicalSwitch, Predecessor> tree,
+            final PhysicalSwitch dstSw) {
+        Predecessor pred = tree.get(dstSw);
+        if (pred == null) {
+            return null;
+        }
+        final LinkedList<PhysicalLink> path = new LinkedList<PhysicalLink>();
+        while (pred != null) {
+            path.addFirst(pred.getLink());
+            pred = tree.get(pred.getSwitch());
+        }
+        return path;
+    }
+
+    /**
+     * Checks that all links of a path are still part of the physical
+     * network.
+     */
+    private static boolean isValid(final List<PhysicalLink> path) {
+        final PhysicalNetwork network = PhysicalNetwork.getInstance();
+        for (PhysicalLink link : path) {
+            if (network.getLink(link.getSrcPort(), link.getDstPort()) != link) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the number of paths served from a cached tree.
+     *
+     * @return the number of hits
+     */
+    public long getHitCount() {
+        return this.hits.get();
+    }
+
+    /**
+     * Gets the number of paths that required computing a tree.
+     *
+     * @return the number of misses
+     */
+    public long getMissCount() {
+        return this.misses.get();
+    }
+
+    /**
+     * Gets the fraction of paths served from a cached tree.
+     *
+     * @return the hit rate, between 0 and 1
+     */
+    public double getHitRate() {
+        final long h = this.hits.get();
+        final long total = h + this.misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * Gets the time spent computing the last tree.
+     *
+     * @return the time in microseconds
+     */
+    public long getLastRecomputeTime() {
+        return this.lastRecomputeTime.get() / 1000;
+    }
+
+    /**
+     * Gets the total time spent computing trees.
+     *
+     * @return the time in microseconds
+     */
+    public long getTotalRecomputeTime() {
+        return this.totalRecomputeTime.get() / 1000;
+    }
+
+}
@@ -16,15 +16,14 @@
 package net.onrc.openvirtex.routing;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
-import net.onrc.openvirtex.elements.OVXMap;
 import net.onrc.openvirtex.elements.datapath.OVXBigSwitch;
 import net.onrc.openvirtex.elements.datapath.PhysicalSwitch;
 import net.onrc.openvirtex.elements.link.OVXLink;
@@ -97,10 +96,17 @@ public class ShortestPath implements Routable {
     }
 
     private List<PhysicalLink> edges;
-    private LinkedHashSet<PhysicalSwitch> settledNodes;
-    private LinkedHashSet<PhysicalSwitch> unSettledNodes;
     private Map<PhysicalSwitch, Predecessor> predecessors;
-    private Map<PhysicalSwitch, Integer> distance;
+
+    // Adjacency of the current edge list, switches numbered 0..n-1. The
+    // outgoing edges of a node are linked through nextEdge, in edge list
+    // order, starting at firstEdge.
+    private Map<PhysicalSwitch, Integer> nodeIds;
+    private PhysicalSwitch[] nodes;
+    private int[] firstEdge;
+    private int[] nextEdge;
+    private int[] edgeDst;
+    private int[] edgeMetric;
 
     /**
      * Instantiates a new shortest path. Gets an immutable copy of the physical
@@ -112,143 +118,157 @@ public class ShortestPath implements Routable {
     }
 
     /**
-     * Compute all the paths between a source switch and all the switches in the
-     * network.
+     * Instantiates a new shortest path over the given links.
      *
-     * @param source
-     *            the source switch
+     * @param edges the links
      */
-    public void execute(final PhysicalSwitch source) {
-        /*
-         * TODO: The alg is not optimal because it recomputes all the paths from
-         * the source every time we call computePath. A solution is to store
-         * this info. Evaluate pros/cons
-         */
-        this.settledNodes = new LinkedHashSet<PhysicalSwitch>();
-        this.unSettledNodes = new LinkedHashSet<PhysicalSwitch>();
-        this.distance = new HashMap<PhysicalSwitch, Integer>();
-        this.predecessors = new HashMap<PhysicalSwitch, Predecessor>();
-        this.distance.put(source, 0);
-        this.unSettledNodes.add(source);
-        while (this.unSettledNodes.size() > 0) {
-            final PhysicalSwitch node = this.getMinimum(this.unSettledNodes);
-            this.settledNodes.add(node);
-            this.unSettledNodes.remove(node);
-            this.findMinimalDistances(node);
-        }
+    ShortestPath(final List<PhysicalLink> edges) {
+        this.edges = new ArrayList<PhysicalLink>(edges);
     }
 
     /**
-     * Find minimal distances from a given node.
-     *
-     * @param node
-     *            the source node
+     * Builds the adjacency index of the current edge list.
      */
-    private void findMinimalDistances(final PhysicalSwitch node) {
-        final List<PhysicalSwitch> adjacentNodes = this.getNeighbors(node);
-        for (final PhysicalSwitch target : adjacentNodes) {
-            if (this.getShortestDistance(target) > this
-                    .getShortestDistance(node)
-                    + this.getBestLink(node, target).getMetric()) {
-                final PhysicalLink bestLink = this.getBestLink(node, target);
-                this.distance.put(target, this.getShortestDistance(node)
-                        + bestLink.getMetric());
-                this.predecessors.put(target, new Predecessor(node, bestLink));
-                this.unSettledNodes.add(target);
-            }
+    private void buildGraph() {
+        final int m = this.edges.size();
+        this.nodeIds = new HashMap<PhysicalSwitch, Integer>();
+        final List<PhysicalSwitch> nodeList = new ArrayList<PhysicalSwitch>();
+        final int[] edgeSrc = new int[m];
+        this.edgeDst = new int[m];
+        this.edgeMetric = new int[m];
+        for (int e = 0; e < m; e++) {
+            final PhysicalLink edge = this.edges.get(e);
+            edgeSrc[e] = this.getNodeId(edge.getSrcSwitch(), nodeList);
+            this.edgeDst[e] = this.getNodeId(edge.getDstSwitch(), nodeList);
+            this.edgeMetric[e] = edge.getMetric();
+        }
+        this.nodes = nodeList.toArray(new PhysicalSwitch[nodeList.size()]);
+        this.firstEdge = new int[this.nodes.length];
+        Arrays.fill(this.firstEdge, -1);
+        this.nextEdge = new int[m];
+        // Prepend in reverse so that edges are visited in list order
+        for (int e = m - 1; e >= 0; e--) {
+            this.nextEdge[e] = this.firstEdge[edgeSrc[e]];
+            this.firstEdge[edgeSrc[e]] = e;
         }
     }
 
-    /**
-     * Gets the best link between two switches. Uses the link metric to evaluate
-     * the link with the highest throughput (e.g., the lowest metric)
-     *
-     * @param node
-     *            the source node
-     * @param target
-     *            the destination node
-     * @return the best link
-     */
-    private PhysicalLink getBestLink(final PhysicalSwitch node,
-            final PhysicalSwitch target) {
-        PhysicalLink bestLink = null;
-        for (final PhysicalLink edge : this.edges) {
-            if (edge.getSrcSwitch().equals(node)
-                    && edge.getDstSwitch().equals(target)) {
-                if (bestLink == null || bestLink.getMetric() > edge.getMetric()) {
-                    bestLink = edge;
-                }
-            }
+    private int getNodeId(final PhysicalSwitch sw,
+            final List<PhysicalSwitch> nodeList) {
+        Integer id = this.nodeIds.get(sw);
+        if (id == null) {
+            id = nodeList.size();
+            this.nodeIds.put(sw, id);
+            nodeList.add(sw);
         }
-        return bestLink;
+        return id;
     }
 
     /**
-     * Gets the unsettled neighboring switches from a given switch.
+     * Compute all the paths between a source switch and all the switches in the
+     * network. Among parallel links between two switches, the one with the
+     * lowest metric is used.
      *
-     * @param node
-     *            the node
-     * @return the neighbors list
+     * @param source
+     *            the source switch
      */
-    private List<PhysicalSwitch> getNeighbors(final PhysicalSwitch node) {
-        final List<PhysicalSwitch> neighbors = new ArrayList<PhysicalSwitch>();
-        for (final PhysicalLink edge : this.edges) {
-            if (edge.getSrcSwitch().equals(node)
-                    && !this.isSettled(edge.getDstSwitch())) {
-                neighbors.add(edge.getDstSwitch());
-            }
+    public void execute(final PhysicalSwitch source) {
+        this.buildGraph();
+        this.predecessors = new HashMap<PhysicalSwitch, Predecessor>();
+        final Integer src = this.nodeIds.get(source);
+        if (src == null) {
+            return;
         }
-        return neighbors;
-    }
+        final int n = this.nodes.length;
+        final int[] distance = new int[n];
+        final int[] predEdge = new int[n];
+        final boolean[] settled = new boolean[n];
+        Arrays.fill(distance, Integer.MAX_VALUE);
+        Arrays.fill(predEdge, -1);
+        distance[src] = 0;
 
-    /**
-     * Return the physical switch that has the shortest distance.
-     *
-     * @param vertices
-     *            list of physical switches
-     * @return the closest switch
-     */
-    private PhysicalSwitch getMinimum(
-            final LinkedHashSet<PhysicalSwitch> vertices) {
-        PhysicalSwitch minimum = null;
-        for (final PhysicalSwitch vertex : vertices) {
-            if (minimum == null) {
-                minimum = vertex;
-            } else {
-                if (this.getShortestDistance(vertex) < this
-                        .getShortestDistance(minimum)) {
-                    minimum = vertex;
+        // Binary heap of (distance << 32 | node); stale entries are skipped
+        long[] heap = new long[Math.max(16, n)];
+        int size = 0;
+        heap[size++] = src;
+        while (size > 0) {
+            final long top = heap[0];
+            heap[0] = heap[--size];
+            ShortestPath.siftDown(heap, size);
+            final int node = (int) top;
+            if (settled[node]) {
+                continue;
+            }
+            settled[node] = true;
+            for (int e = this.firstEdge[node]; e != -1; e = this.nextEdge[e]) {
+                final int target = this.edgeDst[e];
+                if (settled[target]) {
+                    continue;
+                }
+                final long d = (long) distance[node] + this.edgeMetric[e];
+                if (d < distance[target]) {
+                    distance[target] = (int) d;
+                    predEdge[target] = e;
+                    if (size == heap.length) {
+                        heap = Arrays.copyOf(heap, size * 2);
+                    }
+                    heap[size] = d << 32 | target;
+                    ShortestPath.siftUp(heap, size++);
                 }
             }
         }
-        return minimum;
+
+        for (int node = 0; node < n; node++) {
+            if (predEdge[node] != -1) {
+                final PhysicalLink link = this.edges.get(predEdge[node]);
+                this.predecessors.put(this.nodes[node], new Predecessor(
+                        link.getSrcSwitch(), link));
+            }
+        }
     }
 
     /**
-     * Checks if the physical switch is the settle list.
+     * Gets the shortest path tree computed by the last call to
+     * {@link #execute(PhysicalSwitch)}, i.e. the predecessor of every
+     * reachable switch.
      *
-     * @param vertex
-     *            the physical switch
-     * @return true, if is settled
+     * @return the predecessors
      */
-    private boolean isSettled(final PhysicalSwitch vertex) {
-        return this.settledNodes.contains(vertex);
+    Map<PhysicalSwitch, Predecessor> getPredecessors() {
+        return this.predecessors;
     }
 
-    /**
-     * Gets the shortest distance to the given destination.
-     *
-     * @param destination
-     *            the destination
-     * @return the shortest distance
-     */
-    private int getShortestDistance(final PhysicalSwitch destination) {
-        final Integer d = this.distance.get(destination);
-        if (d == null) {
-            return Integer.MAX_VALUE;
-        } else {
-            return d;
+    private static void siftUp(final long[] heap, int i) {
+        final long key = heap[i];
+        while (i > 0) {
+            final int parent = (i - 1) >>> 1;
+            if (heap[parent] <= key) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
         }
+        heap[i] = key;
+    }
+
+    private static void siftDown(final long[] heap, final int size) {
+        if (size == 0) {
+            return;
+        }
+        final long key = heap[0];
+        int i = 0;
+        int child;
+        while ((child = 2 * i + 1) < size) {
+            if (child + 1 < size && heap[child + 1] < heap[child]) {
+                child++;
+            }
+            if (key <= heap[child]) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = key;
     }
 
     /**
@@ -349,28 +369,18 @@ public class ShortestPath implements Routable {
             }
         }
 
-        // Run Djikstra to compute all the paths (primary and backups)
-        List<PhysicalLink> phyLinkList = new ArrayList<PhysicalLink>(
-                PhysicalNetwork.getInstance().getLinks());
-        Collections.sort(phyLinkList);
+        // The primary path comes from the big switch's cached shortest path
+        // tree of the source switch, backups are computed on the links of
+        // the big switch that are not used by the previous paths
+        final RouteCache cache = vSwitch.getRouteCache();
+        final PhysicalSwitch srcSw = srcPort.getPhysicalPort()
+                .getParentSwitch();
+        final PhysicalSwitch dstSw = dstPort.getPhysicalPort()
+                .getParentSwitch();
         LinkedList<PhysicalLink> path = new LinkedList<>();
         LinkedList<PhysicalLink> revpath = new LinkedList<>();
-
-        // Retrieve the list of physical switches from the OVXMap and remove
-        // from the edges
-        // (physical network copy) all the edges that don't have that switches
-        // as src or dst
-        // (remove all the links that go outside the big-switch).
-        this.edges.clear();
         try {
-            List<PhysicalSwitch> phySwList = OVXMap.getInstance()
-                    .getPhysicalSwitches(vSwitch);
-            for (PhysicalLink edge : phyLinkList) {
-                if (phySwList.contains(edge.getSrcSwitch())
-                        && phySwList.contains(edge.getDstSwitch())) {
-                    this.edges.add(edge);
-                }
-            }
+            this.edges = new ArrayList<PhysicalLink>(cache.getEdges());
         } catch (SwitchMappingException e1) {
             log.error(
                     "Cannot retrieve the physical switches associated to the virtual big-switch {} in the OVXMap. "
@@ -386,7 +396,15 @@ public class ShortestPath implements Routable {
             this.edges.removeAll(revpath);
             path.clear();
             revpath.clear();
-            path = computePath(srcPort, dstPort);
+            if (i == 0) {
+                try {
+                    path = cache.getPath(srcSw, dstSw);
+                } catch (SwitchMappingException e) {
+                    path = null;
+                }
+            } else {
+                path = computePath(srcSw, dstSw);
+            }
             if (!checkPath(path)) {
                 if (i == 0) {
                     log.warn(
@@ -17,7 +17,6 @@ package net.onrc.openvirtex.routing;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -27,10 +26,12 @@ import java.util.List;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.onrc.openvirtex.api.service.handlers.TenantHandler;
 import net.onrc.openvirtex.core.OpenVirteXController;
 import net.onrc.openvirtex.db.DBManager;
+import net.onrc.openvirtex.elements.Mappable;
 import net.onrc.openvirtex.elements.OVXMap;
 import net.onrc.openvirtex.elements.Persistable;
 import net.onrc.openvirtex.elements.address.IPMapper;
@@ -53,6 +54,9 @@ import net.onrc.openvirtex.messages.OVXFlowMod;
 import net.onrc.openvirtex.messages.actions.OVXActionStripVirtualLan;
 import net.onrc.openvirtex.messages.actions.OVXActionVirtualLanIdentifier;
 import net.onrc.openvirtex.packet.Ethernet;
+import net.onrc.openvirtex.util.PacketTracer;
+import net.onrc.openvirtex.util.PacketTracer.Stage;
+import net.onrc.openvirtex.util.PacketTracer.Trace;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -61,10 +65,12 @@ import org.openflow.protocol.OFPacketOut;
 import org.openflow.protocol.OFPort;
 import org.openflow.protocol.action.OFAction;
 import org.openflow.protocol.action.OFActionOutput;
-import org.openflow.protocol.action.OFActionType;
 import org.openflow.protocol.action.OFActionVirtualLanIdentifier;
 import org.openflow.util.U8;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
 /**
  * This class presents an abstraction for a route within a big switch.
  * A route consists of a virtual switch, the ingress and egress ports on that
@@ -93,6 +99,8 @@ public class SwitchRoute extends Link<OVXPort, PhysicalSwitch> implements
     private PhysicalPort inPort;
     // A reference to the PhysicalPort at the start of the path
     private PhysicalPort outPort;
+    private volatile long switchTime;
+    private final AtomicLong switchCount = new AtomicLong();
     //hujw
     final OVXLinkField linkField = OpenVirteXController.getInstance()
             .getOvxLinkField();
@@ -282,50 +290,81 @@ public class SwitchRoute extends Link<OVXPort, PhysicalSwitch> implements
                         .getSwitchName(), this.getRouteId(), this.getSrcPort()
                         .getPortNumber(), this.getDstPort().getPortNumber(),
                 physicalLinks);
-        Collection<OVXFlowMod> flows = this.getSrcPort().getParentSwitch()
-                .getFlowTable().getFlowTable();
-        for (OVXFlowMod fe : flows) {
-        	SwitchRoute.log.info("****"+fe.getMatch());
-            for (OFAction act : fe.getActions()) {
-                if (act.getType() == OFActionType.OUTPUT
-                        && fe.getMatch().getInputPort() == this.getSrcPort()
-                                .getPortNumber()
-                        && ((OFActionOutput) act).getPort() == this
-                                .getDstPort().getPortNumber()) {
-                    SwitchRoute.log.debug(
-                            "Virtual network {}, switch {}, route {} between ports {}-{}: switch fm {}",
-                            this.getTenantId(), this.getSrcPort()
-                                    .getParentSwitch().getSwitchName(), this
-                                    .getRouteId(), this.getSrcPort()
-                                    .getPortNumber(), this.getDstPort()
-                                    .getPortNumber(), fe);
-                    counter++;
-
-                    OVXFlowMod fm = fe.clone();
-                    fm.setCookie(((OVXFlowTable) this.getSrcPort()
-                            .getParentSwitch().getFlowTable()).getCookie(fe,
-                            true));
-                    // modified by hujw
-                    // attach tenantId as the vlan field of ovxMatch
-                    if (linkField == OVXLinkField.VLAN) {
-                    	fm.getMatch().setDataLayerVirtualLan(sw.getTenantId().shortValue());
-                    	SwitchRoute.log.info("switchPath - Set vlan id {} in match field {} on sw {}", 
-                    			sw.getTenantId().shortValue(),
-                    			fm.getMatch(),
-                    			sw.getName());
-                    }
-                    // end
-                    this.generateRouteFMs(fm);
-                    this.generateFirstFM(fm);
-                }
+        final long start = System.nanoTime();
+        final PathInstaller installer = new PathInstaller();
+        final List<OVXFlowMod> firstFMs = new LinkedList<OVXFlowMod>();
+        for (OVXFlowMod fe : this.getSrcPort().getParentSwitch().getFlowTable()
+                .getFlowModsByOutPort(this.getDstPort().getPortNumber())) {
+            if (fe.getMatch().getInputPort() != this.getSrcPort()
+                    .getPortNumber()) {
+                continue;
+            }
+            SwitchRoute.log.debug(
+                    "Virtual network {}, switch {}, route {} between ports {}-{}: switch fm {}",
+                    this.getTenantId(), this.getSrcPort().getParentSwitch()
+                            .getSwitchName(), this.getRouteId(), this
+                            .getSrcPort().getPortNumber(), this.getDstPort()
+                            .getPortNumber(), fe);
+            counter++;
+
+            OVXFlowMod fm = fe.clone();
+            fm.setCookie(((OVXFlowTable) this.getSrcPort().getParentSwitch()
+                    .getFlowTable()).getCookie(fe, true));
+            // modified by hujw
+            // attach tenantId as the vlan field of ovxMatch
+            if (linkField == OVXLinkField.VLAN) {
+            	fm.getMatch().setDataLayerVirtualLan(sw.getTenantId().shortValue());
+            	SwitchRoute.log.debug("switchPath - Set vlan id {} in match field {} on sw {}", 
+            			sw.getTenantId().shortValue(),
+            			fm.getMatch(),
+            			sw.getName());
+            }
+            // end
+            if (this.generateRouteFMs(fm, installer)) {
+                firstFMs.add(fm);
             }
         }
-        log.info(
-                "Virtual network {}, switch {}, route {} between ports {}-{}: {} flow-mod switched to the new path",
-                this.getTenantId(), this.getSrcPort().getParentSwitch()
-                        .getSwitchName(), this.getRouteId(), this.getSrcPort()
-                        .getPortNumber(), this.getDstPort().getPortNumber(),
-                counter);
+        final int flows = counter;
+        // Move traffic to the new path once all of it is in place
+        installer.commit().addListener(new Runnable() {
+            @Override
+            public void run() {
+                for (OVXFlowMod fm : firstFMs) {
+                    SwitchRoute.this.generateFirstFM(fm);
+                }
+                SwitchRoute.this.getSrcSwitch().flush();
+                SwitchRoute.this.switchTime = (System.nanoTime() - start) / 1000;
+                SwitchRoute.this.switchCount.incrementAndGet();
+                SwitchRoute.log.info(
+                        "Virtual network {}, switch {}, route {} between ports {}-{}: {} flow-mod switched to the new path in {} us",
+                        SwitchRoute.this.getTenantId(), SwitchRoute.this
+                                .getSrcPort().getParentSwitch()
+                                .getSwitchName(), SwitchRoute.this
+                                .getRouteId(), SwitchRoute.this.getSrcPort()
+                                .getPortNumber(), SwitchRoute.this
+                                .getDstPort().getPortNumber(), flows,
+                        SwitchRoute.this.switchTime);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    /**
+     * Gets the time the last path switch took, from the switch until the
+     * first flow mods were sent over to the new path.
+     *
+     * @return the time in microseconds
+     */
+    public long getSwitchTime() {
+        return this.switchTime;
+    }
+
+    /**
+     * Gets the number of path switches.
+     *
+     * @return the number of path switches
+     */
+    public long getSwitchCount() {
+        return this.switchCount.get();
     }
 
     /**
@@ -333,11 +372,29 @@ public class SwitchRoute extends Link<OVXPort, PhysicalSwitch> implements
      * base an a given controller-generated flow mod.
      *
      * @param fm the virtual flow mod
+     * @return a future completed once the route, and the virtual link it
+     *         leads to if any, have been installed
+     */
+    public ListenableFuture<Void> generateRouteFMs(final OVXFlowMod fm) {
+        final PathInstaller installer = new PathInstaller();
+        this.generateRouteFMs(fm, installer);
+        return installer.commit();
+    }
+
+    /**
+     * Sends all flow mods needed to bring up switch route through the given
+     * installer, based an a given controller-generated flow mod.
+     *
+     * @param fm the virtual flow mod
+     * @param installer the installer
+     * @return true if the route was sent, false otherwise
      */
-    public void generateRouteFMs(final OVXFlowMod fm) {
+    private boolean generateRouteFMs(final OVXFlowMod fm,
+            final PathInstaller installer) {
         // This list includes all the actions that have to be applied at the end
         // of the route
         final LinkedList<OFAction> outActions = new LinkedList<OFAction>();
+        final Trace trace = PacketTracer.getInstance().current();
         /*
          * Check the outPort: - if it's an edge, configure the route's last FM
          * to rewrite the IPs and generate the route FMs - if it's a link: -
@@ -345,12 +402,14 @@ public class SwitchRoute extends Link<OVXPort, PhysicalSwitch> implements
          * last FM to rewrite the MACs - generate the route FMs
          */
         if (this.getDstPort().isEdge()) {
-        	log.info("This dstPort {} on sw {} is an edge port and with match {}", 
-        			this.getDstPort().getPortNumber(), 
-        			this.getDstPort().getParentSwitch().getName(),
-        			fm.getMatch());
             outActions.addAll(IPMapper.prependUnRewriteActions(sw.getTenantId(), fm.getMatch()));
-            log.info("outActions {}", outActions);
+            if (trace != null) {
+                trace.record(Stage.ROUTE,
+                        "Route {}: dstPort {} on sw {} is an edge port, match {} and outActions {}",
+                        this.routeId, this.getDstPort().getPortNumber(),
+                        this.getDstPort().getParentSwitch().getName(),
+                        fm.getMatch(), outActions);
+            }
         } else {
             final OVXLink link = this.getDstPort().getLink().getOutLink();
             Integer linkId = link.getLinkId();
@@ -362,7 +421,7 @@ public class SwitchRoute extends Link<OVXPort, PhysicalSwitch> implements
                         .getFlowManager()
                         .storeFlowValues(fm.getMatch().getDataLayerSource(),
                                 fm.getMatch().getDataLayerDestination());
-                link.generateLinkFMs(fm.clone(), flowId);
+                installer.dependOn(link.generateLinkFMs(fm.clone(), flowId));
                 outActions.addAll(new OVXLinkUtils(this.getTenantId(), linkId,
                         flowId).setLinkFields());
 //                // modified by hujw (next, we can try to use this.getVlan(). But must confirm 
@@ -393,8 +452,11 @@ public class SwitchRoute extends Link<OVXPort, PhysicalSwitch> implements
         // We need to rewrite the vlan field in match by tenantId.
         if (linkField == OVXLinkField.VLAN) {
         	fm.getMatch().setDataLayerVirtualLan(sw.getTenantId().shortValue());
-        	SwitchRoute.log.info("Set vlan id {} in match field on sw {}", 
-        			sw.getTenantId().shortValue(), sw.getName());	
+        	if (trace != null) {
+        	    trace.record(Stage.ROUTE,
+        	            "Set vlan id {} in match field on sw {}",
+        	            sw.getTenantId().shortValue(), sw.getName());
+        	}
         }
         // end
 
@@ -418,7 +480,7 @@ public class SwitchRoute extends Link<OVXPort, PhysicalSwitch> implements
             }
         } catch (LinkMappingException e) {
             SwitchRoute.log.warn("Could not fetch route : {}", e);
-            return;
+            return false;
         }
         Collections.reverse(reverseLinks);
 
@@ -430,11 +492,13 @@ public class SwitchRoute extends Link<OVXPort, PhysicalSwitch> implements
                         + OFActionOutput.MINIMUM_LENGTH);
                 fm.setActions(Arrays.asList((OFAction) new OFActionOutput(
                         outPort.getPortNumber(), (short) 0xffff)));
-                phyLink.getSrcPort().getParentSwitch()
-                        .sendMsg(fm, phyLink.getSrcPort().getParentSwitch());
-                SwitchRoute.log.info(
-                        "Sending big-switch route intermediate fm to sw {}: {}",
-                        phyLink.getSrcPort().getParentSwitch().getName(), fm);
+                if (trace != null) {
+                    trace.record(Stage.ROUTE,
+                            "Sending big-switch route intermediate fm to sw {}: {}",
+                            phyLink.getSrcPort().getParentSwitch().getName(),
+                            fm);
+                }
+                installer.send(phyLink.getSrcPort().getParentSwitch(), fm);
 
             } else {
                 /*
@@ -451,21 +515,17 @@ public class SwitchRoute extends Link<OVXPort, PhysicalSwitch> implements
                     actLenght += act.getLengthU();
                 }
                 fm.setLengthU(OFFlowMod.MINIMUM_LENGTH + actLenght);
-                phyLink.getSrcPort().getParentSwitch()
-                        .sendMsg(fm, phyLink.getSrcPort().getParentSwitch());
-                SwitchRoute.log.info("Sending big-switch route last fm to sw {}: {}",
-                        phyLink.getSrcPort().getParentSwitch().getName(), fm);
+                if (trace != null) {
+                    trace.record(Stage.ROUTE,
+                            "Sending big-switch route last fm to sw {}: {}",
+                            phyLink.getSrcPort().getParentSwitch().getName(),
+                            fm);
+                }
+                installer.send(phyLink.getSrcPort().getParentSwitch(), fm);
             }
             outPort = phyLink.getDstPort();
         }
-
-        // TODO: With POX we need to put a timeout between this flows and the
-        // first flowMod. Check how to solve
-        try {
-            Thread.sleep(5);
-        } catch (final InterruptedException e1) {
-            SwitchRoute.log.warn("Timeout failed, might be a problem for POX controller: {}", e1);
-        }
+        return true;
     }
 
     /**
@@ -558,7 +618,11 @@ public class SwitchRoute extends Link<OVXPort, PhysicalSwitch> implements
 
     @Override
     public void unregister() {
-        this.srcPort.getParentSwitch().getMap().removeRoute(this);
+        final Mappable map = this.srcPort.getParentSwitch().getMap();
+        map.removeRoute(this);
+        for (List<PhysicalLink> path : this.unusableRoutes.values()) {
+            map.removeUnusablePath(this, path);
+        }
     }
 
     @Override
@@ -633,7 +697,12 @@ public class SwitchRoute extends Link<OVXPort, PhysicalSwitch> implements
                         .getInstance().getRoute(this));
                 Collections.copy(unusableLinks,
                         OVXMap.getInstance().getRoute(this));
-                this.unusableRoutes.put(this.getPriority(), unusableLinks);
+                OVXMap.getInstance().addUnusablePath(this, unusableLinks);
+                final List<PhysicalLink> replaced = this.unusableRoutes.put(
+                        this.getPriority(), unusableLinks);
+                if (replaced != null) {
+                    this.removeUnusablePath(replaced);
+                }
             } catch (LinkMappingException e) {
                 log.warn("No physical Links mapped to SwitchRoute? : {}", e);
                 return false;
@@ -675,10 +744,12 @@ public class SwitchRoute extends Link<OVXPort, PhysicalSwitch> implements
      * @return true for success, false otherwise
      */
     public boolean tryRevert(PhysicalLink plink) {
+        final List<List<PhysicalLink>> reverted = new ArrayList<List<PhysicalLink>>();
         Iterator<Byte> it = this.unusableRoutes.descendingKeySet().iterator();
         while (it.hasNext()) {
             Byte curPriority = it.next();
             if (this.unusableRoutes.get(curPriority).contains(plink)) {
+                reverted.add(this.unusableRoutes.get(curPriority));
                 log.info(
                         "Reactivate all inactive paths for virtual network {} big-switch {}"
                         + "internal route {} between ports ({},{}) in virtual network {} ",
@@ -711,7 +782,25 @@ public class SwitchRoute extends Link<OVXPort, PhysicalSwitch> implements
                 it.remove();
             }
         }
+        for (List<PhysicalLink> path : reverted) {
+            this.removeUnusablePath(path);
+        }
         return true;
     }
 
+    /**
+     * Removes the physical links of a path that is no longer unusable from
+     * the unusable path index, unless another unusable path of this route
+     * still goes through them.
+     *
+     * @param path the path
+     */
+    private void removeUnusablePath(final List<PhysicalLink> path) {
+        final Set<PhysicalLink> plinks = new HashSet<PhysicalLink>(path);
+        for (List<PhysicalLink> unusable : this.unusableRoutes.values()) {
+            plinks.removeAll(unusable);
+        }
+        OVXMap.getInstance().removeUnusablePath(this, plinks);
+    }
+
 }
@@ -0,0 +1,224 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.util;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bidirectional map between flow ids and pairs of source and destination MAC
+ * addresses, held as primitive longs.
+ * <p>
+ * Pairs are found through an open addressing table with linear probing,
+ * and ids are looked up in an array indexed by id, so ids should be small
+ * and dense. Lookups do not lock; updates are serialized by the caller.
+ * Slots of removed pairs are never reused by the same table, so a reader
+ * always sees the pair a slot was published with. They are dropped when the
+ * table is rebuilt.
+ */
+public class FlowIdTable {
+
+    private static final int EMPTY = 0;
+    private static final int REMOVED = -1;
+    private static final int MIN_CAPACITY = 16;
+    // set on the source MAC of the pair of allocated ids
+    private static final long VALID = 1L << 63;
+
+    /**
+     * Open addressing table of pairs. Keys are written before their id is
+     * published, and never changed afterwards.
+     */
+    private static final class Slots {
+        private final long[] srcs;
+        private final long[] dsts;
+        private final AtomicIntegerArray ids;
+        private final int mask;
+
+        private Slots(final int capacity) {
+            this.srcs = new long[capacity];
+            this.dsts = new long[capacity];
+            this.ids = new AtomicIntegerArray(capacity);
+            this.mask = capacity - 1;
+        }
+    }
+
+    private volatile Slots slots = new Slots(FlowIdTable.MIN_CAPACITY);
+    // source and destination MAC of each id
+    private volatile AtomicLongArray pairs = new AtomicLongArray(
+            2 * FlowIdTable.MIN_CAPACITY);
+    // pairs in the table, and slots taken by pairs or removed pairs
+    private int size;
+    private int used;
+
+    /**
+     * Gets the id of a pair.
+     *
+     * @param src the source MAC
+     * @param dst the destination MAC
+     * @return the id, 0 if the pair has none
+     */
+    public int getId(final long src, final long dst) {
+        final Slots s = this.slots;
+        int i = FlowIdTable.hash(src, dst) & s.mask;
+        while (true) {
+            final int id = s.ids.get(i);
+            if (id == FlowIdTable.EMPTY) {
+                return 0;
+            }
+            if (id != FlowIdTable.REMOVED && s.srcs[i] == src
+                    && s.dsts[i] == dst) {
+                return id;
+            }
+            i = (i + 1) & s.mask;
+        }
+    }
+
+    /**
+     * Gets the source MAC of the pair of an id.
+     *
+     * @param id the id
+     * @return the MAC, -1 if the id is not in the table
+     */
+    public long getSource(final int id) {
+        final AtomicLongArray p = this.pairs;
+        if (id <= 0 || 2 * id >= p.length()) {
+            return -1;
+        }
+        final long src = p.get(2 * id);
+        return (src & FlowIdTable.VALID) == 0 ? -1 : src & ~FlowIdTable.VALID;
+    }
+
+    /**
+     * Gets the destination MAC of the pair of an id.
+     *
+     * @param id the id
+     * @return the MAC, -1 if the id is not in the table
+     */
+    public long getDestination(final int id) {
+        final AtomicLongArray p = this.pairs;
+        if (this.getSource(id) == -1) {
+            return -1;
+        }
+        return p.get(2 * id + 1);
+    }
+
+    /**
+     * Adds a pair with the given id. Calls must be serialized with other
+     * updates.
+     *
+     * @param id the id, larger than 0
+     * @param src the source MAC
+     * @param dst the destination MAC
+     */
+    public void put(final int id, final long src, final long dst) {
+        if (2 * (this.used + 1) > this.slots.ids.length()) {
+            this.rebuild(this.size + 1);
+        }
+        final Slots s = this.slots;
+        int i = FlowIdTable.hash(src, dst) & s.mask;
+        while (s.ids.get(i) != FlowIdTable.EMPTY) {
+            i = (i + 1) & s.mask;
+        }
+        s.srcs[i] = src;
+        s.dsts[i] = dst;
+        s.ids.set(i, id);
+        this.size++;
+        this.used++;
+
+        AtomicLongArray p = this.pairs;
+        if (2 * id + 1 >= p.length()) {
+            final AtomicLongArray grown = new AtomicLongArray(Math.max(
+                    2 * p.length(), 2 * (id + 1)));
+            for (int j = 0; j < p.length(); j++) {
+                grown.set(j, p.get(j));
+            }
+            this.pairs = grown;
+            p = grown;
+        }
+        p.set(2 * id + 1, dst);
+        p.set(2 * id, src | FlowIdTable.VALID);
+    }
+
+    /**
+     * Removes the pair of an id. Calls must be serialized with other
+     * updates.
+     *
+     * @param id the id
+     * @return true if the id was in the table
+     */
+    public boolean remove(final int id) {
+        final long src = this.getSource(id);
+        if (src == -1) {
+            return false;
+        }
+        final long dst = this.pairs.get(2 * id + 1);
+        final Slots s = this.slots;
+        int i = FlowIdTable.hash(src, dst) & s.mask;
+        while (s.ids.get(i) != id) {
+            i = (i + 1) & s.mask;
+        }
+        s.ids.set(i, FlowIdTable.REMOVED);
+        this.pairs.set(2 * id, 0);
+        this.size--;
+        return true;
+    }
+
+    /**
+     * Gets the number of pairs in the table.
+     *
+     * @return the number of pairs
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Moves the pairs to a new table, at most a quarter full once it holds
+     * the given number of pairs.
+     */
+    private void rebuild(final int expected) {
+        int capacity = FlowIdTable.MIN_CAPACITY;
+        while (capacity < 4 * expected) {
+            capacity <<= 1;
+        }
+        final Slots old = this.slots;
+        final Slots s = new Slots(capacity);
+        for (int j = 0; j < old.ids.length(); j++) {
+            final int id = old.ids.get(j);
+            if (id == FlowIdTable.EMPTY || id == FlowIdTable.REMOVED) {
+                continue;
+            }
+            int i = FlowIdTable.hash(old.srcs[j], old.dsts[j]) & s.mask;
+            while (s.ids.get(i) != FlowIdTable.EMPTY) {
+                i = (i + 1) & s.mask;
+            }
+            s.srcs[i] = old.srcs[j];
+            s.dsts[i] = old.dsts[j];
+            s.ids.set(i, id);
+        }
+        this.slots = s;
+        this.used = this.size;
+    }
+
+    private static int hash(final long src, final long dst) {
+        long h = src * 0x9E3779B97F4A7C15L ^ dst;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+}
@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies, recorded in nanoseconds and reported in
+ * microseconds. Each power of two is split in eight buckets, so percentiles
+ * are reported within 12.5% from a nanosecond to about a minute. As with
+ * {@link StripedCounter}, threads record into separate copies of the
+ * buckets, summed when read.
+ */
+public class LatencyHistogram {
+
+    // buckets per power of two are 2^SUB_BITS
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << LatencyHistogram.SUB_BITS;
+    // latencies from 2^MAX_BITS nanoseconds share the last bucket
+    private static final int MAX_BITS = 36;
+    private static final int BUCKETS = (LatencyHistogram.MAX_BITS
+            - LatencyHistogram.SUB_BITS + 1) * LatencyHistogram.SUB_BUCKETS;
+    // buckets and total of a stripe, rounded up to whole cache lines
+    private static final int STRIDE = (LatencyHistogram.BUCKETS + 1
+            + StripedCounter.PADDING - 1)
+            / StripedCounter.PADDING * StripedCounter.PADDING;
+    private static final int STRIPES = Math.min(StripedCounter.STRIPES, 4);
+
+    private final AtomicLongArray counts = new AtomicLongArray(
+            LatencyHistogram.STRIPES * LatencyHistogram.STRIDE);
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    public void record(final long nanos) {
+        final long value = Math.max(0, nanos);
+        final int base = StripedCounter.stripe(LatencyHistogram.STRIPES)
+                * LatencyHistogram.STRIDE;
+        this.counts.incrementAndGet(base + LatencyHistogram.bucket(value));
+        this.counts.addAndGet(base + LatencyHistogram.BUCKETS, value);
+        long current = this.max.get();
+        while (value > current && !this.max.compareAndSet(current, value)) {
+            current = this.max.get();
+        }
+    }
+
+    /**
+     * Gets the bucket of a latency.
+     *
+     * @param nanos the latency in nanoseconds, not negative
+     * @return the bucket
+     */
+    static int bucket(final long nanos) {
+        if (nanos < LatencyHistogram.SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        final long value = Math.min(nanos,
+                (1L << LatencyHistogram.MAX_BITS) - 1);
+        final int shift = 63 - Long.numberOfLeadingZeros(value)
+                - LatencyHistogram.SUB_BITS;
+        return (shift + 1) * LatencyHistogram.SUB_BUCKETS
+                + (int) (value >>> shift) - LatencyHistogram.SUB_BUCKETS;
+    }
+
+    /**
+     * Gets the highest latency counted by a bucket.
+     *
+     * @param bucket the bucket
+     * @return the latency in nanoseconds
+     */
+    static long upperBound(final int bucket) {
+        if (bucket < LatencyHistogram.SUB_BUCKETS) {
+            return bucket;
+        }
+        final int shift = bucket / LatencyHistogram.SUB_BUCKETS - 1;
+        final long sub = bucket % LatencyHistogram.SUB_BUCKETS
+                + LatencyHistogram.SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    private long getCount(final int bucket) {
+        long count = 0;
+        for (int i = 0; i < LatencyHistogram.STRIPES; i++) {
+            count += this.counts.get(i * LatencyHistogram.STRIDE + bucket);
+        }
+        return count;
+    }
+
+    /**
+     * Gets the number of recorded latencies.
+     *
+     * @return the count
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+            count += this.getCount(i);
+        }
+        return count;
+    }
+
+    /**
+     * Gets an upper bound of the given percentile of the recorded
+     * latencies.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the latency in microseconds, 0 if nothing was recorded
+     */
+    public long getPercentile(final double percentile) {
+        return this.getPercentileNanos(percentile) / 1000;
+    }
+
+    /**
+     * Gets an upper bound of the given percentile of the recorded
+     * latencies.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the latency in nanoseconds, 0 if nothing was recorded
+     */
+    public long getPercentileNanos(final double percentile) {
+        final long[] buckets = new long[LatencyHistogram.BUCKETS];
+        long count = 0;
+        for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+            buckets[i] = this.getCount(i);
+            count += buckets[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+            seen += buckets[i];
+            // the last bucket is bounded by the maximum only
+            if (seen >= rank && i < LatencyHistogram.BUCKETS - 1) {
+                return Math.min(LatencyHistogram.upperBound(i), this.max.get());
+            }
+        }
+        return this.max.get();
+    }
+
+    /**
+     * Gets the highest recorded latency.
+     *
+     * @return the latency in nanoseconds
+     */
+    public long getMaxNanos() {
+        return this.max.get();
+    }
+
+    /**
+     * Summarizes the recorded latencies for the API: count, mean, median,
+     * 90th, 99th and 99.9th percentiles and maximum, in microseconds.
+     *
+     * @return the summary
+     */
+    public Map<String, Object> toMap() {
+        final Map<String, Object> map = new HashMap<String, Object>();
+        final long count = this.getCount();
+        map.put("count", count);
+        map.put("mean", count == 0 ? 0 : this.getCount(LatencyHistogram.BUCKETS)
+                / count / 1000);
+        map.put("p50", this.getPercentile(50));
+        map.put("p90", this.getPercentile(90));
+        map.put("p99", this.getPercentile(99));
+        map.put("p999", this.getPercentile(99.9));
+        map.put("max", this.max.get() / 1000);
+        return map;
+    }
+
+}
@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A named group of metrics: counters, latency histograms, gauges reading
+ * values kept elsewhere, and nested groups. Metrics are created on first
+ * use; callers on the data path keep the counters and histograms they
+ * update rather than looking them up for each message.
+ */
+public class Metrics {
+
+    /**
+     * A value read when the metrics are reported.
+     */
+    public interface Gauge {
+        Object getValue();
+    }
+
+    private final ConcurrentMap<String, StripedCounter> counters = new ConcurrentHashMap<String, StripedCounter>();
+    private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+    private final ConcurrentMap<String, Metrics> groups = new ConcurrentHashMap<String, Metrics>();
+
+    /**
+     * Gets a counter, creating it if needed.
+     *
+     * @param name the name of the counter
+     * @return the counter
+     */
+    public StripedCounter getCounter(final String name) {
+        StripedCounter counter = this.counters.get(name);
+        if (counter == null) {
+            final StripedCounter created = new StripedCounter();
+            counter = this.counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Gets a latency histogram, creating it if needed.
+     *
+     * @param name the name of the histogram
+     * @return the histogram
+     */
+    public LatencyHistogram getHistogram(final String name) {
+        LatencyHistogram histogram = this.histograms.get(name);
+        if (histogram == null) {
+            final LatencyHistogram created = new LatencyHistogram();
+            histogram = this.histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Adds a gauge, replacing the one of the same name.
+     *
+     * @param name the name of the gauge
+     * @param gauge the gauge
+     */
+    public void addGauge(final String name, final Gauge gauge) {
+        this.gauges.put(name, gauge);
+    }
+
+    /**
+     * Gets a nested group, creating it if needed.
+     *
+     * @param name the name of the group
+     * @return the group
+     */
+    public Metrics getGroup(final String name) {
+        Metrics group = this.groups.get(name);
+        if (group == null) {
+            final Metrics created = new Metrics();
+            group = this.groups.putIfAbsent(name, created);
+            if (group == null) {
+                group = created;
+            }
+        }
+        return group;
+    }
+
+    /**
+     * Gets a nested group if it exists.
+     *
+     * @param name the name of the group
+     * @return the group, null if none
+     */
+    public Metrics findGroup(final String name) {
+        return this.groups.get(name);
+    }
+
+    /**
+     * Nests a group, replacing the one of the same name. Elements whose
+     * metrics outlive their registration keep their own group, and put it
+     * when they become visible.
+     *
+     * @param name the name of the group
+     * @param group the group
+     */
+    public void putGroup(final String name, final Metrics group) {
+        this.groups.put(name, group);
+    }
+
+    /**
+     * Removes a nested group, unless it was replaced since it was put.
+     *
+     * @param name the name of the group
+     * @param group the group to remove
+     */
+    public void removeGroup(final String name, final Metrics group) {
+        this.groups.remove(name, group);
+    }
+
+    /**
+     * Reads the metrics for the API: counters as numbers, histograms as
+     * their summary, gauges as their value and groups as nested maps.
+     *
+     * @return the metrics by name
+     */
+    public Map<String, Object> toMap() {
+        final Map<String, Object> map = new TreeMap<String, Object>();
+        for (Map.Entry<String, StripedCounter> entry : this.counters.entrySet()) {
+            map.put(entry.getKey(), entry.getValue().get());
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : this.histograms
+                .entrySet()) {
+            map.put(entry.getKey(), entry.getValue().toMap());
+        }
+        for (Map.Entry<String, Gauge> entry : this.gauges.entrySet()) {
+            map.put(entry.getKey(), entry.getValue().getValue());
+        }
+        for (Map.Entry<String, Metrics> entry : this.groups.entrySet()) {
+            map.put(entry.getKey(), entry.getValue().toMap());
+        }
+        return map;
+    }
+
+}
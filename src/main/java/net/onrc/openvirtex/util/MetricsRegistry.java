@@ -0,0 +1,248 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openflow.util.HexString;
+
+/**
+ * Metrics of OVX, read through the API and JMX. The root group holds global
+ * groups such as the one of the channels, the groups of the physical
+ * switches by dpid and the groups of the virtual networks by tenant id,
+ * which hold the groups of their virtual switches.
+ * <p>
+ * Through JMX the metrics are one read-only bean whose attributes are the
+ * counters, gauges and histogram summaries, named by their path in the
+ * groups.
+ */
+public final class MetricsRegistry implements DynamicMBean {
+
+    private static Logger log = LogManager.getLogger(MetricsRegistry.class
+            .getName());
+
+    /**
+     * Name the registry is registered with in the platform MBean server.
+     */
+    public static final String OBJECT_NAME = "net.onrc.openvirtex:type=Metrics";
+
+    private static MetricsRegistry instance = new MetricsRegistry();
+
+    private final Metrics root = new Metrics();
+    private final Metrics switches = this.root.getGroup("switches");
+    private final Metrics tenantGroups = this.root.getGroup("tenants");
+    // groups of the tenants, by id to spare the data path building names
+    private final ConcurrentMap<Integer, Metrics> tenants = new ConcurrentHashMap<Integer, Metrics>();
+
+    private MetricsRegistry() {
+    }
+
+    public static MetricsRegistry getInstance() {
+        return MetricsRegistry.instance;
+    }
+
+    /**
+     * @return the group holding all metrics
+     */
+    public Metrics getRoot() {
+        return this.root;
+    }
+
+    /**
+     * Gets a global group, creating it if needed.
+     *
+     * @param name the name of the group
+     * @return the group
+     */
+    public Metrics getGroup(final String name) {
+        return this.root.getGroup(name);
+    }
+
+    /**
+     * @return the group holding the groups of the physical switches, named
+     *         by {@link #name(long)}
+     */
+    public Metrics getSwitches() {
+        return this.switches;
+    }
+
+    /**
+     * Gets the group of a virtual network, creating it if needed.
+     *
+     * @param tenantId the tenant id
+     * @return the group
+     */
+    public Metrics getTenant(final int tenantId) {
+        Metrics group = this.tenants.get(tenantId);
+        if (group == null) {
+            final Metrics created = new Metrics();
+            group = this.tenants.putIfAbsent(tenantId, created);
+            if (group == null) {
+                group = created;
+                this.tenantGroups.putGroup(String.valueOf(tenantId), group);
+            }
+        }
+        return group;
+    }
+
+    /**
+     * Gets the group of a virtual network if it exists.
+     *
+     * @param tenantId the tenant id
+     * @return the group, null if none
+     */
+    public Metrics findTenant(final int tenantId) {
+        return this.tenants.get(tenantId);
+    }
+
+    /**
+     * Removes the group of a virtual network.
+     *
+     * @param tenantId the tenant id
+     */
+    public void removeTenant(final int tenantId) {
+        final Metrics group = this.tenants.remove(tenantId);
+        if (group != null) {
+            this.tenantGroups.removeGroup(String.valueOf(tenantId), group);
+        }
+    }
+
+    /**
+     * Gets the name of the group of a switch.
+     *
+     * @param dpid the dpid of the switch
+     * @return the name
+     */
+    public static String name(final long dpid) {
+        return HexString.toHexString(dpid);
+    }
+
+    /**
+     * Registers the registry in the platform MBean server, if not already.
+     */
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName(MetricsRegistry.OBJECT_NAME));
+        } catch (final InstanceAlreadyExistsException e) {
+            MetricsRegistry.log.debug("Metrics already registered with JMX");
+        } catch (final JMException e) {
+            MetricsRegistry.log.warn("Unable to register metrics with JMX: {}",
+                    e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the metrics as attributes named by their path.
+     *
+     * @return the attributes by name
+     */
+    private Map<String, Object> getAttributeMap() {
+        final Map<String, Object> attributes = new TreeMap<String, Object>();
+        MetricsRegistry.flatten("", this.root.toMap(), attributes);
+        return attributes;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void flatten(final String prefix,
+            final Map<String, Object> map, final Map<String, Object> out) {
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            final String name = prefix + entry.getKey();
+            final Object value = entry.getValue();
+            if (value instanceof Map) {
+                MetricsRegistry.flatten(name + ".", (Map<String, Object>) value,
+                        out);
+            } else if (value instanceof Number) {
+                out.put(name, value);
+            } else {
+                out.put(name, String.valueOf(value));
+            }
+        }
+    }
+
+    @Override
+    public Object getAttribute(final String attribute)
+            throws AttributeNotFoundException {
+        final Map<String, Object> attributes = this.getAttributeMap();
+        if (!attributes.containsKey(attribute)) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return attributes.get(attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(final String[] names) {
+        final Map<String, Object> attributes = this.getAttributeMap();
+        final AttributeList list = new AttributeList();
+        for (String name : names) {
+            if (attributes.containsKey(name)) {
+                list.add(new Attribute(name, attributes.get(name)));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(final Attribute attribute)
+            throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: "
+                + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(final AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(final String actionName, final Object[] params,
+            final String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        final List<MBeanAttributeInfo> infos = new ArrayList<MBeanAttributeInfo>();
+        for (Map.Entry<String, Object> entry : this.getAttributeMap()
+                .entrySet()) {
+            infos.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue()
+                    .getClass().getName(), entry.getKey(), true, false, false));
+        }
+        return new MBeanInfo(this.getClass().getName(), "OpenVirteX metrics",
+                infos.toArray(new MBeanAttributeInfo[infos.size()]), null,
+                null, null);
+    }
+
+}
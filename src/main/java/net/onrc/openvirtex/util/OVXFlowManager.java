@@ -15,109 +15,223 @@
  ******************************************************************************/
 package net.onrc.openvirtex.util;
 
-import java.math.BigInteger;
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
-import java.util.List;
+import java.util.Map;
 
-import net.onrc.openvirtex.elements.host.Host;
 import net.onrc.openvirtex.exceptions.DroppedMessageException;
 import net.onrc.openvirtex.exceptions.IndexOutOfBoundException;
 import net.onrc.openvirtex.util.BitSetIndex.IndexType;
 
-import org.apache.commons.lang.ArrayUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import com.google.common.collect.HashBiMap;
-
+/**
+ * Gives out the flow ids encoding the source and destination MAC addresses
+ * of the traffic of a virtual network on virtual links.
+ * <p>
+ * Ids are allocated when a pair of addresses is first used, and are held
+ * by the flow entries using them: an id is given back once the last flow
+ * entry holding it is removed, so the id space stays compact. Lookups do
+ * not lock.
+ */
 public class OVXFlowManager {
     static Logger log = LogManager.getLogger(OVXFlowManager.class.getName());
 
-    private final HashBiMap<Integer, BigInteger> flowValues;
+    private final FlowIdTable flowValues;
     private final BitSetIndex flowCounter;
     private final Integer tenantId;
-    private Collection<Host> hostList;
+    // number of flow entries holding each id, and the id held by each flow
+    // entry by virtual switch and cookie, guarded by this
+    private int[] holders;
+    private final Map<Long, Map<Long, Integer>> heldIds;
 
-    public OVXFlowManager(Integer tenantId, Collection<Host> hostList) {
-        this.flowValues = HashBiMap.create();
+    public OVXFlowManager(Integer tenantId) {
+        this.flowValues = new FlowIdTable();
         this.flowCounter = new BitSetIndex(IndexType.FLOW_COUNTER);
         this.tenantId = tenantId;
-        this.hostList = hostList;
+        this.holders = new int[16];
+        this.heldIds = new HashMap<Long, Map<Long, Integer>>();
     }
 
+    /**
+     * Gets the flow id of a pair of MAC addresses, allocating one if the pair
+     * has none.
+     *
+     * @param srcMac the source MAC address
+     * @param dstMac the destination MAC address
+     * @return the flow id
+     * @throws IndexOutOfBoundException if no flow id is left
+     */
     public Integer storeFlowValues(final byte[] srcMac, final byte[] dstMac)
             throws IndexOutOfBoundException {
-        // TODO: Optimize flow numbers
-        final BigInteger dualMac = new BigInteger(ArrayUtils.addAll(srcMac,
-                dstMac));
-        Integer flowId = this.flowValues.inverse().get(dualMac);
-        if (flowId == null) {
-            flowId = this.flowCounter.getNewIndex();
-            log.debug(
-                    "virtual net = {}: save flowId = {} that is associated to {} {}",
-                    this.tenantId, flowId, MACAddress.valueOf(srcMac)
-                            .toString(), MACAddress.valueOf(dstMac).toString());
-            this.flowValues.put(flowId, dualMac);
+        final long src = MACAddress.valueOf(srcMac).toLong();
+        final long dst = MACAddress.valueOf(dstMac).toLong();
+        final int flowId = this.flowValues.getId(src, dst);
+        if (flowId != 0) {
+            return flowId;
+        }
+        synchronized (this) {
+            return this.allocate(src, dst);
+        }
+    }
+
+    /**
+     * Gets the flow id of a pair of MAC addresses, allocating one if the pair
+     * has none, and holds it for the given flow entry until
+     * {@link #releaseFlowId(long, long)}.
+     *
+     * @param srcMac the source MAC address
+     * @param dstMac the destination MAC address
+     * @param switchId the virtual switch of the flow entry
+     * @param cookie the physical cookie of the flow entry
+     * @return the flow id
+     * @throws IndexOutOfBoundException if no flow id is left
+     */
+    public synchronized Integer storeFlowValues(final byte[] srcMac,
+            final byte[] dstMac, final long switchId, final long cookie)
+            throws IndexOutOfBoundException {
+        final int flowId = this.allocate(MACAddress.valueOf(srcMac).toLong(),
+                MACAddress.valueOf(dstMac).toLong());
+        Map<Long, Integer> cookies = this.heldIds.get(switchId);
+        if (cookies == null) {
+            cookies = new HashMap<Long, Integer>();
+            this.heldIds.put(switchId, cookies);
+        }
+        final Integer old = cookies.put(cookie, flowId);
+        if (old == null || old != flowId) {
+            this.holders[flowId]++;
+            /* the cookie was given to a new flow entry */
+            if (old != null) {
+                this.unhold(old);
+            }
         }
         return flowId;
     }
 
+    /**
+     * Gives back the flow id held by a flow entry that was removed.
+     *
+     * @param switchId the virtual switch of the flow entry
+     * @param cookie the physical cookie of the flow entry
+     */
+    public synchronized void releaseFlowId(final long switchId,
+            final long cookie) {
+        final Map<Long, Integer> cookies = this.heldIds.get(switchId);
+        if (cookies == null) {
+            return;
+        }
+        final Integer flowId = cookies.remove(cookie);
+        if (flowId != null) {
+            this.unhold(flowId);
+        }
+        if (cookies.isEmpty()) {
+            this.heldIds.remove(switchId);
+        }
+    }
+
     public LinkedList<MACAddress> getFlowValues(final Integer flowId) {
         final LinkedList<MACAddress> macList = new LinkedList<MACAddress>();
-        final BigInteger dualMac = this.flowValues.get(flowId);
-        if (dualMac != null) {
-            final MACAddress srcMac = MACAddress.valueOf(dualMac.shiftRight(48)
-                    .longValue());
-            final MACAddress dstMac = MACAddress.valueOf(dualMac.longValue());
-            macList.add(srcMac);
-            macList.add(dstMac);
+        final long src = this.flowValues.getSource(flowId);
+        final long dst = this.flowValues.getDestination(flowId);
+        if (src != -1 && dst != -1) {
+            macList.add(MACAddress.valueOf(src));
+            macList.add(MACAddress.valueOf(dst));
         }
         return macList;
     }
 
+    /**
+     * Gets the flow id of a pair of MAC addresses, allocating one if the pair
+     * has none.
+     *
+     * @param srcMac the source MAC address
+     * @param dstMac the destination MAC address
+     * @return the flow id
+     * @throws DroppedMessageException if no flow id is left
+     */
     public Integer getFlowId(final byte[] srcMac, final byte[] dstMac)
             throws DroppedMessageException {
-        final BigInteger dualMac = new BigInteger(ArrayUtils.addAll(srcMac,
-                dstMac));
-        final Integer flowId = this.flowValues.inverse().get(dualMac);
-        if (flowId != null && flowId != 0) {
-            log.debug(
-                    "virtual net = {}: retrieving flowId {} that is associated to {} {}",
-                    this.tenantId, flowId, MACAddress.valueOf(srcMac)
-                            .toString(), MACAddress.valueOf(dstMac).toString());
-            return flowId;
+        try {
+            return this.storeFlowValues(srcMac, dstMac);
+        } catch (IndexOutOfBoundException e) {
+            throw this.outOfIds(srcMac, dstMac);
         }
-        throw new DroppedMessageException(
-                "virtual net =  "
-                        + this.tenantId
-                        + ": unable to retrive the flowId associated to these mac addresses: "
-                        + MACAddress.valueOf(srcMac).toString() + "-"
-                        + MACAddress.valueOf(dstMac).toString()
-                        + ". Dropping message!");
     }
 
     /**
-     * Gets list of all registered MAC addresses in this virtual network.
+     * Gets the flow id of a pair of MAC addresses, allocating one if the pair
+     * has none, and holds it for the given flow entry until
+     * {@link #releaseFlowId(long, long)}.
+     *
+     * @param srcMac the source MAC address
+     * @param dstMac the destination MAC address
+     * @param switchId the virtual switch of the flow entry
+     * @param cookie the physical cookie of the flow entry
+     * @return the flow id
+     * @throws DroppedMessageException if no flow id is left
      */
-    private List<MACAddress> getMACList() {
-        final List<MACAddress> result = new LinkedList<MACAddress>();
-        for (final Host host : this.hostList) {
-            result.add(host.getMac());
+    public Integer getFlowId(final byte[] srcMac, final byte[] dstMac,
+            final long switchId, final long cookie)
+            throws DroppedMessageException {
+        try {
+            return this.storeFlowValues(srcMac, dstMac, switchId, cookie);
+        } catch (IndexOutOfBoundException e) {
+            throw this.outOfIds(srcMac, dstMac);
         }
-        return result;
     }
 
-    public void boot() throws IndexOutOfBoundException {
-        final List<MACAddress> macList = this.getMACList();
-        for (final MACAddress srcMac : macList) {
-            this.storeFlowValues(srcMac.toBytes(),
-                    MACAddress.valueOf("ff:ff:ff:ff:ff:ff").toBytes());
-            for (final MACAddress dstMac : macList) {
-                if (srcMac.toLong() != dstMac.toLong()) {
-                    this.storeFlowValues(srcMac.toBytes(), dstMac.toBytes());
-                }
+    /**
+     * Gets the number of flow ids in use.
+     *
+     * @return the number of flow ids
+     */
+    public synchronized int getFlowCount() {
+        return this.flowValues.size();
+    }
+
+    private DroppedMessageException outOfIds(final byte[] srcMac,
+            final byte[] dstMac) {
+        return new DroppedMessageException("virtual net =  " + this.tenantId
+                + ": unable to allocate a flowId for these mac addresses: "
+                + MACAddress.valueOf(srcMac).toString() + "-"
+                + MACAddress.valueOf(dstMac).toString()
+                + ". Dropping message!");
+    }
+
+    /**
+     * Gets the flow id of a pair, allocating one if needed. Must be called
+     * with the lock held.
+     */
+    private int allocate(final long src, final long dst)
+            throws IndexOutOfBoundException {
+        int flowId = this.flowValues.getId(src, dst);
+        if (flowId == 0) {
+            flowId = this.flowCounter.getNewIndex();
+            log.debug(
+                    "virtual net = {}: save flowId = {} that is associated to {} {}",
+                    this.tenantId, flowId, MACAddress.valueOf(src),
+                    MACAddress.valueOf(dst));
+            this.flowValues.put(flowId, src, dst);
+            if (flowId >= this.holders.length) {
+                this.holders = Arrays.copyOf(this.holders, Math.max(
+                        2 * this.holders.length, flowId + 1));
             }
         }
+        return flowId;
+    }
+
+    /**
+     * Drops a holder of a flow id, giving the id back once it has none. Must
+     * be called with the lock held.
+     */
+    private void unhold(final int flowId) {
+        if (--this.holders[flowId] == 0) {
+            this.flowValues.remove(flowId);
+            this.flowCounter.releaseIndex(flowId);
+            log.debug("virtual net = {}: released flowId = {}",
+                    this.tenantId, flowId);
+        }
     }
 }
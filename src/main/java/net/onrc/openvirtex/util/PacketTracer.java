@@ -0,0 +1,376 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.util;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.openflow.util.HexString;
+
+/**
+ * Records how a sample of the messages of the data path are virtualized,
+ * in place of logging every message.
+ * <p>
+ * One in every N messages of the selected tenants and switches is traced.
+ * The events of a traced message share a {@link Trace}, and are kept in a
+ * ring buffer holding the most recent events of all traces. Events are
+ * formatted when recorded, so only traced messages pay for it; messages
+ * that are not traced cost a volatile read.
+ * <p>
+ * The handler of a message samples it on entry, and attaches the trace to
+ * its thread while other classes process the message on its behalf, so
+ * they can record events through {@link #current()}.
+ */
+public final class PacketTracer {
+
+    /**
+     * Default number of events kept.
+     */
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    /**
+     * Stage of the data path an event was recorded at.
+     */
+    public enum Stage {
+        PACKET_IN, PACKET_OUT, FLOW_MOD, ACTION, LINK, ROUTE
+    }
+
+    /**
+     * Selection of the traced messages. Empty sets select all tenants or
+     * switches.
+     */
+    private static final class Sampling {
+        private final int rate;
+        private final Set<Integer> tenants;
+        private final Set<Long> dpids;
+
+        private Sampling(final int rate, final Set<Integer> tenants,
+                final Set<Long> dpids) {
+            this.rate = rate;
+            this.tenants = tenants;
+            this.dpids = dpids;
+        }
+    }
+
+    private static final Sampling OFF = new Sampling(0,
+            Collections.<Integer>emptySet(), Collections.<Long>emptySet());
+
+    private static PacketTracer instance = new PacketTracer(
+            PacketTracer.DEFAULT_CAPACITY);
+
+    private volatile Sampling sampling = PacketTracer.OFF;
+    // messages selected for sampling, and traces started
+    private final AtomicLong selected = new AtomicLong();
+    private final AtomicLong traceIds = new AtomicLong();
+    private final ThreadLocal<Trace> attached = new ThreadLocal<Trace>();
+
+    private final AtomicReferenceArray<Event> events;
+    private final int mask;
+    // sequence number of the next event
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Creates a tracer keeping the given number of events, rounded up to a
+     * power of two. Tracing is off until {@link #setSampling}.
+     *
+     * @param capacity the number of events kept
+     */
+    public PacketTracer(final int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.events = new AtomicReferenceArray<Event>(size);
+        this.mask = size - 1;
+    }
+
+    public static PacketTracer getInstance() {
+        return PacketTracer.instance;
+    }
+
+    /**
+     * Sets the messages to trace.
+     *
+     * @param rate trace one in every rate messages, 0 to turn tracing off
+     * @param tenants the tenants to trace, all if empty
+     * @param dpids the switches to trace, all if empty
+     */
+    public void setSampling(final int rate, final Collection<Integer> tenants,
+            final Collection<Long> dpids) {
+        if (rate < 0) {
+            throw new IllegalArgumentException("Sample rate must not be negative");
+        }
+        if (rate == 0) {
+            this.sampling = PacketTracer.OFF;
+            return;
+        }
+        this.sampling = new Sampling(rate, Collections
+                .unmodifiableSet(new HashSet<Integer>(tenants)), Collections
+                .unmodifiableSet(new HashSet<Long>(dpids)));
+    }
+
+    /**
+     * Sets the sample rate, tracing messages of all tenants and switches.
+     *
+     * @param rate trace one in every rate messages, 0 to turn tracing off
+     */
+    public void setSampling(final int rate) {
+        this.setSampling(rate, Collections.<Integer>emptySet(),
+                Collections.<Long>emptySet());
+    }
+
+    /**
+     * @return the sample rate, 0 if tracing is off
+     */
+    public int getSampleRate() {
+        return this.sampling.rate;
+    }
+
+    /**
+     * @return the traced tenants, all if empty
+     */
+    public Set<Integer> getTenants() {
+        return this.sampling.tenants;
+    }
+
+    /**
+     * @return the traced switches, all if empty
+     */
+    public Set<Long> getDpids() {
+        return this.sampling.dpids;
+    }
+
+    /**
+     * Decides whether to trace a message entering the data path.
+     *
+     * @param tenantId the tenant of the message
+     * @param dpid the switch the message is handled on: physical for
+     *            messages of switches, virtual for messages of controllers
+     * @return the trace of the message, null if it is not traced
+     */
+    public Trace sample(final int tenantId, final long dpid) {
+        final Sampling s = this.sampling;
+        if (s.rate == 0) {
+            return null;
+        }
+        if (!s.tenants.isEmpty() && !s.tenants.contains(tenantId)
+                || !s.dpids.isEmpty() && !s.dpids.contains(dpid)) {
+            return null;
+        }
+        if (s.rate > 1 && this.selected.getAndIncrement() % s.rate != 0) {
+            return null;
+        }
+        return new Trace(this.traceIds.incrementAndGet(), tenantId, dpid);
+    }
+
+    /**
+     * Attaches a trace to the calling thread until {@link #detach(Trace)}.
+     *
+     * @param trace the trace, null if the message is not traced
+     */
+    public void attach(final Trace trace) {
+        if (trace != null) {
+            this.attached.set(trace);
+        }
+    }
+
+    /**
+     * Detaches a trace from the calling thread.
+     *
+     * @param trace the trace given to {@link #attach(Trace)}
+     */
+    public void detach(final Trace trace) {
+        if (trace != null) {
+            this.attached.remove();
+        }
+    }
+
+    /**
+     * Gets the trace of the message the calling thread handles.
+     *
+     * @return the trace, null if the message is not traced
+     */
+    public Trace current() {
+        if (this.sampling.rate == 0) {
+            return null;
+        }
+        return this.attached.get();
+    }
+
+    /**
+     * Gets the recorded events still kept, oldest first.
+     *
+     * @param after the sequence number to get events after, -1 for all
+     * @param tenantId the tenant of the events, null for all
+     * @param dpid the switch of the events, null for all
+     * @param cookie the physical cookie of the flow of the events, null for
+     *            all
+     * @param limit the maximum number of events, 0 for no limit
+     * @return the events
+     */
+    public List<Event> getEvents(final long after, final Integer tenantId,
+            final Long dpid, final Long cookie, final int limit) {
+        final List<Event> list = new LinkedList<Event>();
+        final long end = this.sequence.get();
+        long seq = Math.max(after + 1, end - this.events.length());
+        for (; seq < end; seq++) {
+            final Event event = this.events.get((int) seq & this.mask);
+            // skip events overwritten since, or not written yet
+            if (event == null || event.seq != seq) {
+                continue;
+            }
+            final Trace trace = event.trace;
+            if (tenantId != null && trace.tenantId != tenantId
+                    || dpid != null && trace.dpid != dpid
+                    || cookie != null && trace.cookie != cookie) {
+                continue;
+            }
+            list.add(event);
+            if (list.size() == limit) {
+                break;
+            }
+        }
+        return list;
+    }
+
+    private void add(final Trace trace, final Stage stage, final String message) {
+        final long seq = this.sequence.getAndIncrement();
+        this.events.set((int) seq & this.mask, new Event(seq, trace, stage,
+                message));
+    }
+
+    /**
+     * The events recorded for a traced message.
+     */
+    public final class Trace {
+        private final long id;
+        private final int tenantId;
+        private final long dpid;
+        private volatile long cookie = -1;
+
+        private Trace(final long id, final int tenantId, final long dpid) {
+            this.id = id;
+            this.tenantId = tenantId;
+            this.dpid = dpid;
+        }
+
+        public long getId() {
+            return this.id;
+        }
+
+        public int getTenantId() {
+            return this.tenantId;
+        }
+
+        public long getDpid() {
+            return this.dpid;
+        }
+
+        /**
+         * @return the physical cookie of the flow of the message, -1 if none
+         */
+        public long getCookie() {
+            return this.cookie;
+        }
+
+        /**
+         * Sets the physical cookie of the flow of the message, selecting its
+         * events, including those recorded before, by cookie.
+         *
+         * @param cookie the cookie
+         */
+        public void setCookie(final long cookie) {
+            this.cookie = cookie;
+        }
+
+        /**
+         * Records an event, formatted as log messages.
+         *
+         * @param stage the stage of the data path
+         * @param format the message, with {} placeholders
+         * @param args the values of the placeholders
+         */
+        public void record(final Stage stage, final String format,
+                final Object... args) {
+            PacketTracer.this.add(this, stage,
+                    ParameterizedMessage.format(format, args));
+        }
+    }
+
+    /**
+     * An event of a trace.
+     */
+    public static final class Event {
+        private final long seq;
+        private final long time;
+        private final Trace trace;
+        private final Stage stage;
+        private final String message;
+
+        private Event(final long seq, final Trace trace, final Stage stage,
+                final String message) {
+            this.seq = seq;
+            this.time = System.currentTimeMillis();
+            this.trace = trace;
+            this.stage = stage;
+            this.message = message;
+        }
+
+        /**
+         * @return the sequence number of the event, increasing with time
+         */
+        public long getSequence() {
+            return this.seq;
+        }
+
+        public Trace getTrace() {
+            return this.trace;
+        }
+
+        public Stage getStage() {
+            return this.stage;
+        }
+
+        public String getMessage() {
+            return this.message;
+        }
+
+        public Map<String, Object> toMap() {
+            final Map<String, Object> map = new LinkedHashMap<String, Object>();
+            map.put("seq", this.seq);
+            map.put("time", this.time);
+            map.put("traceId", this.trace.id);
+            map.put("tenantId", this.trace.tenantId);
+            map.put("dpid", HexString.toHexString(this.trace.dpid));
+            if (this.trace.cookie != -1) {
+                map.put("cookie", this.trace.cookie);
+            }
+            map.put("stage", this.stage.name());
+            map.put("message", this.message);
+            return map;
+        }
+    }
+
+}
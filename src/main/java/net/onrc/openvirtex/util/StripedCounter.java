@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free counter updated by many threads. Each thread adds to one of
+ * several cells, chosen by thread id and kept on separate cache lines, so
+ * threads of the I/O pools do not contend on the same value. Reads sum the
+ * cells.
+ */
+public class StripedCounter {
+
+    /**
+     * Number of cells, a power of two.
+     */
+    static final int STRIPES;
+    // longs per cache line
+    static final int PADDING = 8;
+
+    static {
+        final int cpus = Runtime.getRuntime().availableProcessors();
+        int stripes = 1;
+        while (stripes < cpus && stripes < 64) {
+            stripes <<= 1;
+        }
+        STRIPES = stripes;
+    }
+
+    private final AtomicLongArray cells = new AtomicLongArray(
+            StripedCounter.STRIPES * StripedCounter.PADDING);
+
+    /**
+     * Adds one to the counter.
+     */
+    public void increment() {
+        this.add(1);
+    }
+
+    /**
+     * Adds to the counter.
+     *
+     * @param delta the value to add
+     */
+    public void add(final long delta) {
+        this.cells.addAndGet(StripedCounter.stripe(StripedCounter.STRIPES)
+                * StripedCounter.PADDING, delta);
+    }
+
+    /**
+     * Gets the value of the counter. Concurrent updates may or may not be
+     * counted.
+     *
+     * @return the value
+     */
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < this.cells.length(); i += StripedCounter.PADDING) {
+            sum += this.cells.get(i);
+        }
+        return sum;
+    }
+
+    /**
+     * Gets the cell of the calling thread.
+     *
+     * @param stripes the number of cells, a power of two
+     * @return the cell index
+     */
+    static int stripe(final int stripes) {
+        return (int) Thread.currentThread().getId() & (stripes - 1);
+    }
+
+}
@@ -53,6 +53,11 @@ public class OFEchoRequest extends OFMessage {
         this.length = U16.t(OFEchoRequest.MINIMUM_LENGTH);
     }
 
+    @Override
+    public boolean isLazilyDecodable() {
+        return true;
+    }
+
     @Override
     public void readFrom(final ChannelBuffer bb) {
         super.readFrom(bb);
@@ -67,6 +72,7 @@ public class OFEchoRequest extends OFMessage {
      * @return the payload
      */
     public byte[] getPayload() {
+        this.decode();
         return this.payload;
     }
 
@@ -75,11 +81,15 @@ public class OFEchoRequest extends OFMessage {
      *            the payload to set
      */
     public void setPayload(final byte[] payload) {
+        this.decode();
         this.payload = payload;
     }
 
     @Override
     public void writeTo(final ChannelBuffer bb) {
+        if (this.writeWireTo(bb)) {
+            return;
+        }
         super.writeTo(bb);
         if (this.payload != null) {
             bb.writeBytes(this.payload);
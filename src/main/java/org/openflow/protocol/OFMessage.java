@@ -58,6 +58,9 @@ public class OFMessage {
     protected short length;
     protected int xid;
 
+    // Undecoded message as read off the wire, if it was read lazily
+    protected ChannelBuffer wire;
+
     private ConcurrentHashMap<String, Object> storage;
 
     public OFMessage() {
@@ -189,6 +192,80 @@ public class OFMessage {
         data.writeInt(this.xid);
     }
 
+    /**
+     * Checks if the body of this message can be decoded on first access
+     * rather than when it is read off the wire. Messages that return true
+     * decode themselves before any access to their body.
+     *
+     * @return true if the message supports lazy decoding
+     */
+    public boolean isLazilyDecodable() {
+        return false;
+    }
+
+    /**
+     * Reads the header of this message off the wire and keeps a slice of the
+     * whole message, to be decoded on first access to the body. The slice
+     * shares its content with the given buffer, which must not be modified
+     * afterwards.
+     *
+     * @param data
+     */
+    public void readLazilyFrom(final ChannelBuffer data) {
+        final int start = data.readerIndex();
+        this.version = data.getByte(start);
+        this.type = OFType.valueOf(data.getByte(start + 1));
+        this.length = data.getShort(start + 2);
+        this.xid = data.getInt(start + 4);
+        this.wire = data.readSlice(this.getLengthU());
+    }
+
+    /**
+     * Checks if the body of this message has been decoded.
+     *
+     * @return false if the message still holds its undecoded wire format
+     */
+    public boolean isDecoded() {
+        return this.wire == null;
+    }
+
+    /**
+     * Decodes the body of a lazily read message. Header fields that have
+     * been set since the message was read are kept.
+     */
+    protected void decode() {
+        final ChannelBuffer wire = this.wire;
+        if (wire != null) {
+            final byte version = this.version;
+            final int xid = this.xid;
+            this.readFrom(wire.duplicate());
+            this.version = version;
+            this.xid = xid;
+            this.wire = null;
+        }
+    }
+
+    /**
+     * Writes a lazily read message whose body has not been decoded, copying
+     * the body as it was read off the wire.
+     *
+     * @param data
+     * @return true if the message was written, false if it must be encoded
+     */
+    protected boolean writeWireTo(final ChannelBuffer data) {
+        final ChannelBuffer wire = this.wire;
+        if (wire == null) {
+            return false;
+        }
+        data.writeByte(this.version);
+        data.writeByte(this.type.getTypeValue());
+        data.writeShort(this.length);
+        data.writeInt(this.xid);
+        data.writeBytes(wire, OFMessage.MINIMUM_LENGTH, wire.capacity()
+                - OFMessage.MINIMUM_LENGTH);
+        return true;
+    }
+
     /**
      * Returns a summary of the message
      *
@@ -60,6 +60,7 @@ public class OFVendor extends OFMessage implements OFVendorDataFactoryAware {
      * @return the vendor
      */
     public int getVendor() {
+        this.decode();
         return this.vendor;
     }
 
@@ -68,6 +69,7 @@ public class OFVendor extends OFMessage implements OFVendorDataFactoryAware {
      *            the vendor to set
      */
     public void setVendor(final int vendor) {
+        this.decode();
         this.vendor = vendor;
     }
 
@@ -75,6 +77,7 @@ public class OFVendor extends OFMessage implements OFVendorDataFactoryAware {
      * @return the data
      */
     public OFVendorData getVendorData() {
+        this.decode();
         return this.vendorData;
     }
 
@@ -83,6 +86,7 @@ public class OFVendor extends OFMessage implements OFVendorDataFactoryAware {
      *            the data to set
      */
     public void setVendorData(final OFVendorData vendorData) {
+        this.decode();
         this.vendorData = vendorData;
     }
 
@@ -91,6 +95,11 @@ public class OFVendor extends OFMessage implements OFVendorDataFactoryAware {
         this.vendorDataFactory = vendorDataFactory;
     }
 
+    @Override
+    public boolean isLazilyDecodable() {
+        return true;
+    }
+
     @Override
     public void readFrom(final ChannelBuffer data) {
         super.readFrom(data);
@@ -105,6 +114,9 @@ public class OFVendor extends OFMessage implements OFVendorDataFactoryAware {
 
     @Override
     public void writeTo(final ChannelBuffer data) {
+        if (this.writeWireTo(data)) {
+            return;
+        }
         super.writeTo(data);
         data.writeInt(this.vendor);
         if (this.vendorData != null) {
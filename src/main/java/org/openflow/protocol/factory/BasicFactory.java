@@ -93,12 +93,30 @@ public class BasicFactory implements OFMessageFactory, OFActionFactory,
     @Override
     public List<OFMessage> parseMessage(final ChannelBuffer data)
             throws MessageParseException {
+        return this.parseMessage(data, false);
+    }
+
+    /**
+     * Parses the messages in the buffer. In lazy mode, the body of messages
+     * that support it is only decoded on first access, and the messages keep
+     * slices of the buffer until then.
+     *
+     * @param data
+     *            the ChannelBuffer to parse for OpenFlow messages
+     * @param lazy
+     *            true to decode message bodies on first access
+     * @return a list of OFMessage instances, or null if the buffer does not
+     *         hold a complete message
+     * @throws MessageParseException
+     */
+    public List<OFMessage> parseMessage(final ChannelBuffer data,
+            final boolean lazy) throws MessageParseException {
         final List<OFMessage> msglist = new ArrayList<OFMessage>();
         OFMessage msg = null;
 
         while (data.readableBytes() >= OFMessage.MINIMUM_LENGTH) {
             data.markReaderIndex();
-            msg = this.parseMessageOne(data);
+            msg = this.parseMessageOne(data, lazy);
             if (msg == null) {
                 data.resetReaderIndex();
                 break;
@@ -116,28 +134,35 @@ public class BasicFactory implements OFMessageFactory, OFActionFactory,
 
     public OFMessage parseMessageOne(final ChannelBuffer data)
             throws MessageParseException {
+        return this.parseMessageOne(data, false);
+    }
+
+    public OFMessage parseMessageOne(final ChannelBuffer data,
+            final boolean lazy) throws MessageParseException {
         try {
-            final OFMessage demux = new OFMessage();
             OFMessage ofm = null;
 
             if (data.readableBytes() < OFMessage.MINIMUM_LENGTH) {
                 return ofm;
             }
 
+            // Peek at the header instead of parsing it twice
             data.markReaderIndex();
-            demux.readFrom(data);
-            data.resetReaderIndex();
-
-            if (demux.getLengthU() > data.readableBytes()) {
+            final int start = data.readerIndex();
+            if (data.getUnsignedShort(start + 2) > data.readableBytes()) {
                 return ofm;
             }
 
-            ofm = this.getMessage(demux.getType());
+            ofm = this.getMessage(OFType.valueOf(data.getByte(start + 1)));
             if (ofm == null) {
                 return null;
             }
 
             this.injectFactories(ofm);
+            if (lazy && ofm.isLazilyDecodable()) {
+                ofm.readLazilyFrom(data);
+                return ofm;
+            }
             ofm.readFrom(data);
             if (OFMessage.class.equals(ofm.getClass())) {
                 // advance the position for un-implemented messages
@@ -19,9 +19,13 @@ import junit.framework.Test;
 import junit.framework.TestSuite;
 import net.onrc.openvirtex.api.service.handlers.tenant.APITests;
 import net.onrc.openvirtex.core.BaseCtrlTests;
+import net.onrc.openvirtex.db.BaseDBTests;
 import net.onrc.openvirtex.elements.BaseMapTests;
 import net.onrc.openvirtex.elements.address.BaseIPTests;
 import net.onrc.openvirtex.elements.datapath.BaseTranslatorTests;
+import net.onrc.openvirtex.messages.BaseMessageTests;
+import net.onrc.openvirtex.packet.BasePacketTests;
+import net.onrc.openvirtex.routing.BaseRoutingTests;
 
 /**
  * Parent class for tests.
@@ -43,6 +47,10 @@ public final class AllTests {
         suite.addTest(BaseIPTests.suite());
         suite.addTest(BaseTranslatorTests.suite());
         suite.addTest(APITests.suite());
+        suite.addTest(BasePacketTests.suite());
+        suite.addTest(BaseDBTests.suite());
+        suite.addTest(BaseRoutingTests.suite());
+        suite.addTest(BaseMessageTests.suite());
         // $JUnit-END$
         return suite;
     }
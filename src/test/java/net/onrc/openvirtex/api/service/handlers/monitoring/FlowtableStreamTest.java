@@ -0,0 +1,274 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.api.service.handlers.monitoring;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import net.onrc.openvirtex.api.service.handlers.MonitoringHandler;
+import net.onrc.openvirtex.api.service.handlers.StreamingHandler.ResultWriter;
+import net.onrc.openvirtex.api.service.handlers.tenant.AbstractAPICalls;
+import net.onrc.openvirtex.api.service.handlers.tenant.TestSwitch;
+import net.onrc.openvirtex.core.OpenVirteXController;
+import net.onrc.openvirtex.core.cmd.CmdLineSettings;
+import net.onrc.openvirtex.elements.OVXMap;
+import net.onrc.openvirtex.elements.network.OVXNetwork;
+import net.onrc.openvirtex.elements.network.PhysicalNetwork;
+import net.onrc.openvirtex.messages.statistics.OVXFlowStatisticsReply;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Error;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
+
+/**
+ * Tests streamed and paginated flow tables, and reports the memory and time
+ * needed to return large flow tables with and without streaming.
+ */
+public class FlowtableStreamTest extends TestCase {
+
+    private static Logger log = LogManager.getLogger(FlowtableStreamTest.class
+            .getName());
+
+    private OpenVirteXController ctl = null;
+    private int tenantId;
+
+    public FlowtableStreamTest(final String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return new TestSuite(FlowtableStreamTest.class);
+    }
+
+    /**
+     * Tests that pages of the physical flow tables follow each other in
+     * order, and that flows are filtered.
+     */
+    @SuppressWarnings("unchecked")
+    public void testPaging() throws Exception {
+        this.addSwitch(2, 10);
+        this.addSwitch(1, 15);
+
+        final List<Long> cookies = new ArrayList<Long>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            final Map<String, Object> params = new HashMap<String, Object>();
+            params.put(MonitoringHandler.LIMIT, 10L);
+            if (cursor != null) {
+                params.put(MonitoringHandler.CURSOR, cursor);
+            }
+            final Map<String, Object> page = this.stream(params);
+            for (Map<String, Object> flow : (List<Map<String, Object>>) page
+                    .get("flows")) {
+                cookies.add(((Number) flow.get("cookie")).longValue());
+            }
+            cursor = (String) page.get("next");
+            pages++;
+        } while (cursor != null);
+        Assert.assertEquals(25, cookies.size());
+        // the last page is full, so one more empty page is returned
+        Assert.assertEquals(3, pages);
+        for (int i = 0; i < 15; i++) {
+            Assert.assertEquals(this.cookie(i), (long) cookies.get(i));
+        }
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(this.cookie(i), (long) cookies.get(15 + i));
+        }
+
+        final Map<String, Object> params = new HashMap<String, Object>();
+        params.put(MonitoringHandler.DPID, 2L);
+        params.put(MonitoringHandler.COOKIE_MIN, this.cookie(3));
+        params.put(MonitoringHandler.COOKIE_MAX, this.cookie(5));
+        final List<Map<String, Object>> flows = (List<Map<String, Object>>) this
+                .stream(params).get("flows");
+        Assert.assertEquals(3, flows.size());
+        Assert.assertEquals("00:00:00:00:00:00:00:02",
+                flows.get(0).get(MonitoringHandler.DPID));
+
+        params.put(MonitoringHandler.CURSOR, "2");
+        try {
+            new GetPhysicalFlowtable().stream(params);
+            Assert.fail("Invalid cursor accepted");
+        } catch (final JSONRPC2Error e) {
+            Assert.assertEquals(JSONRPC2Error.INVALID_PARAMS.getCode(),
+                    e.getCode());
+        }
+    }
+
+    /**
+     * Reports the memory held and the time taken to return the physical
+     * flow table of a switch, built as maps then serialized as before, and
+     * streamed as a whole or by pages. Only runs with -Dovx.benchmarks=true,
+     * as the table of a million flows takes close to a gigabyte of heap.
+     */
+    public void testBenchmark() throws Exception {
+        if (!Boolean.getBoolean("ovx.benchmarks")) {
+            return;
+        }
+        final int flows = 1000000;
+        this.addSwitch(1, flows);
+        final Map<String, Object> params = new HashMap<String, Object>();
+        params.put(MonitoringHandler.DPID, 1L);
+
+        long heap = FlowtableStreamTest.used();
+        long start = System.nanoTime();
+        JSONRPC2Response resp = new GetPhysicalFlowtable().process(params);
+        String built = resp.toJSONString();
+        final long buildTime = System.nanoTime() - start;
+        // the response and its string are held until written
+        final long buildHeap = FlowtableStreamTest.used() - heap;
+        final int buildLength = built.length();
+        resp = null;
+        built = null;
+
+        final CountingWriter all = new CountingWriter(false);
+        start = System.nanoTime();
+        new GetPhysicalFlowtable().stream(params).write(new JsonWriter(all));
+        final long streamTime = System.nanoTime() - start;
+        heap = FlowtableStreamTest.used();
+        final CountingWriter sampled = new CountingWriter(true);
+        new GetPhysicalFlowtable().stream(params).write(
+                new JsonWriter(sampled));
+        final long streamHeap = sampled.peak - heap;
+
+        params.put(MonitoringHandler.LIMIT, 1000L);
+        start = System.nanoTime();
+        new GetPhysicalFlowtable().stream(params).write(
+                new JsonWriter(new CountingWriter(false)));
+        final long pageTime = System.nanoTime() - start;
+
+        log.info("{} flows: built {} chars in {} ms holding {} MB, "
+                + "streamed {} chars in {} ms holding {} MB, "
+                + "streamed a page of 1000 in {} ms",
+                flows, buildLength, buildTime / 1000000, buildHeap >> 20,
+                all.count, streamTime / 1000000, streamHeap >> 20,
+                pageTime / 1000000);
+    }
+
+    /**
+     * Counts the characters written and drops them, sampling the heap in
+     * use every so often if asked to.
+     */
+    private static class CountingWriter extends Writer {
+        private final boolean sample;
+        private long count;
+        private long peak;
+
+        CountingWriter(final boolean sample) {
+            this.sample = sample;
+        }
+
+        @Override
+        public void write(final char[] cbuf, final int off, final int len) {
+            if (this.sample
+                    && this.count / 50000000 != (this.count + len) / 50000000) {
+                this.peak = Math.max(this.peak, FlowtableStreamTest.used());
+            }
+            this.count += len;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * @return the heap in use after a garbage collection
+     */
+    private static long used() {
+        System.gc();
+        final Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> stream(final Map<String, Object> params)
+            throws JSONRPC2Error, IOException {
+        params.put(MonitoringHandler.TENANT, (long) this.tenantId);
+        final ResultWriter result = new GetPhysicalFlowtable().stream(params);
+        final StringWriter out = new StringWriter();
+        result.write(new JsonWriter(out));
+        return new Gson().fromJson(out.toString(), Map.class);
+    }
+
+    private long cookie(final int flow) {
+        return (long) this.tenantId << 32 | flow;
+    }
+
+    /**
+     * Adds a switch whose last statistics poll returned the given number of
+     * flows, listed in reverse order of cookie.
+     */
+    private void addSwitch(final long dpid, final int flows) {
+        final TestSwitch sw = new TestSwitch(dpid);
+        PhysicalNetwork.getInstance().addSwitch(sw);
+        final OFMatch match = new OFMatch();
+        final List<OFAction> actions = Collections
+                .<OFAction>singletonList(new OFActionOutput((short) 1));
+        final List<OVXFlowStatisticsReply> stats = new ArrayList<OVXFlowStatisticsReply>(
+                flows);
+        for (int i = flows - 1; i >= 0; i--) {
+            final OVXFlowStatisticsReply stat = new OVXFlowStatisticsReply();
+            stat.setCookie(this.cookie(i));
+            stat.setMatch(match);
+            stat.setActions(actions);
+            stats.add(stat);
+        }
+        sw.setFlowStatistics(Collections.singletonMap(this.tenantId, stats));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.ctl = new OpenVirteXController(new CmdLineSettings());
+        final JSONRPC2Response resp = new AbstractAPICalls().createNetwork();
+        this.tenantId = (Integer) ((Map<String, Object>) resp.getResult())
+                .get("tenantId");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        OVXMap.reset();
+        PhysicalNetwork.reset();
+        OVXNetwork.reset();
+        this.ctl = null;
+        super.tearDown();
+    }
+
+}
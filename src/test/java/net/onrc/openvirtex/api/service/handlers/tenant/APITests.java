@@ -17,6 +17,7 @@ package net.onrc.openvirtex.api.service.handlers.tenant;
 
 import junit.framework.Test;
 import junit.framework.TestSuite;
+import net.onrc.openvirtex.api.service.handlers.monitoring.FlowtableStreamTest;
 
 /**
  * Parent class for API tests.
@@ -34,6 +35,8 @@ public final class APITests {
         final TestSuite suite = new TestSuite(APITests.class.getName());
         // $JUnit-BEGIN$
         suite.addTest(PassingAPITest.suite());
+        suite.addTest(FlowtableStreamTest.suite());
+        suite.addTest(ProvisionTest.suite());
         // $JUnit-END$
         return suite;
     }
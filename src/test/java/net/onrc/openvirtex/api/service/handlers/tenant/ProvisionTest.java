@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.api.service.handlers.tenant;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import net.onrc.openvirtex.api.service.handlers.TenantHandler;
+import net.onrc.openvirtex.core.OpenVirteXController;
+import net.onrc.openvirtex.core.cmd.CmdLineSettings;
+import net.onrc.openvirtex.elements.OVXMap;
+import net.onrc.openvirtex.elements.network.OVXNetwork;
+import net.onrc.openvirtex.elements.network.PhysicalNetwork;
+import net.onrc.openvirtex.elements.port.PhysicalPort;
+
+import org.openflow.protocol.OFPhysicalPort;
+
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Error;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
+
+/**
+ * Tests the creation of whole virtual networks in one call.
+ */
+public class ProvisionTest extends TestCase {
+
+    private OpenVirteXController ctl = null;
+
+    public ProvisionTest(final String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return new TestSuite(ProvisionTest.class);
+    }
+
+    /**
+     * Tests that a network copying the physical network is created with all
+     * its elements.
+     */
+    @SuppressWarnings("unchecked")
+    public void testProvision() {
+        final Map<String, Object> params = this.makeNetwork();
+        final JSONRPC2Response resp = new ProvisionOVXNetwork()
+                .process(params);
+        Assert.assertNull(resp.getError());
+
+        final Map<String, Object> result = (Map<String, Object>) resp
+                .getResult();
+        Assert.assertEquals(2,
+                ((List<?>) result.get(TenantHandler.SWITCHES)).size());
+        Assert.assertEquals(4, ((List<?>) result.get(TenantHandler.PORTS)).size());
+        Assert.assertEquals(1, ((List<?>) result.get(TenantHandler.LINKS)).size());
+        Assert.assertEquals(2, ((List<?>) result.get(TenantHandler.HOSTS)).size());
+        Assert.assertTrue(((Map<String, Object>) result
+                .get(TenantHandler.TIMING)).containsKey("validate"));
+
+        final OVXNetwork net = OVXMap.getInstance().listVirtualNetworks()
+                .get(result.get(TenantHandler.TENANT));
+        Assert.assertEquals(2, net.getSwitches().size());
+        Assert.assertEquals(2, net.getLinkSet().size());
+        Assert.assertEquals(2, net.getHosts().size());
+    }
+
+    /**
+     * Tests that an invalid network is reported with the faulty element,
+     * and that nothing is created.
+     */
+    @SuppressWarnings("unchecked")
+    public void testInvalid() {
+        final Map<String, Object> params = this.makeNetwork();
+        // the host port is already connected to the link
+        ((List<Map<String, Object>>) params.get(TenantHandler.HOSTS)).get(1)
+                .put(TenantHandler.PORT, 1);
+        final JSONRPC2Response resp = new ProvisionOVXNetwork()
+                .process(params);
+        Assert.assertEquals(JSONRPC2Error.INVALID_PARAMS.getCode(), resp
+                .getError().getCode());
+        Assert.assertTrue(resp.getError().getMessage(), resp.getError()
+                .getMessage().contains("hosts[1]"));
+        Assert.assertTrue(OVXMap.getInstance().listVirtualNetworks().isEmpty());
+    }
+
+    /**
+     * Describes a network of two switches, linked by their first ports,
+     * with a host on their second port.
+     */
+    private Map<String, Object> makeNetwork() {
+        final Map<String, Object> params = new HashMap<String, Object>();
+        params.put(TenantHandler.CTRLURLS,
+                new ArrayList<String>(Arrays.asList("tcp:127.0.0.1:6633")));
+        params.put(TenantHandler.NETADD, "10.0.0.0");
+        params.put(TenantHandler.NETMASK, 24);
+        final List<Map<String, Object>> switches = new ArrayList<Map<String, Object>>();
+        final List<Map<String, Object>> ports = new ArrayList<Map<String, Object>>();
+        final List<Map<String, Object>> hosts = new ArrayList<Map<String, Object>>();
+        for (long dpid = 1; dpid <= 2; dpid++) {
+            final Map<String, Object> sw = new HashMap<String, Object>();
+            sw.put(TenantHandler.DPIDS, Arrays.asList(dpid));
+            switches.add(sw);
+            for (short port = 1; port <= 2; port++) {
+                ports.add(this.makePort(TenantHandler.DPID, dpid,
+                        TenantHandler.PORT, port));
+            }
+            final Map<String, Object> host = this.makePort(
+                    TenantHandler.DPID, dpid, TenantHandler.PORT, 2);
+            host.put(TenantHandler.MAC, "00:00:00:00:00:0" + dpid);
+            hosts.add(host);
+        }
+        final Map<String, Object> link = this.makePort(TenantHandler.SRC_DPID,
+                1, TenantHandler.SRC_PORT, 1);
+        link.putAll(this.makePort(TenantHandler.DST_DPID, 2,
+                TenantHandler.DST_PORT, 1));
+        link.put(TenantHandler.ALGORITHM, "manual");
+        link.put(TenantHandler.BACKUPS, 0);
+        link.put(TenantHandler.PATH, "1/1-2/1");
+        link.put(TenantHandler.PRIORITY, 100);
+        params.put(TenantHandler.SWITCHES, switches);
+        params.put(TenantHandler.PORTS, ports);
+        params.put(TenantHandler.LINKS, Arrays.asList(link));
+        params.put(TenantHandler.HOSTS, hosts);
+        return params;
+    }
+
+    private Map<String, Object> makePort(final String dpidField,
+            final long dpid, final String portField, final int port) {
+        final Map<String, Object> params = new HashMap<String, Object>();
+        params.put(dpidField, dpid);
+        params.put(portField, port);
+        return params;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.ctl = new OpenVirteXController(new CmdLineSettings());
+        final PhysicalPort[] ports = new PhysicalPort[2];
+        for (int i = 0; i < 2; i++) {
+            final TestSwitch sw = new TestSwitch(i + 1);
+            PhysicalNetwork.getInstance().addSwitch(sw);
+            for (short number = 1; number <= 2; number++) {
+                final PhysicalPort port = new PhysicalPort(
+                        new OFPhysicalPort(), sw, number == 2);
+                port.setHardwareAddress(new byte[] {0x01, 0x02, 0x03, 0x04,
+                        (byte) i, (byte) number});
+                port.setPortNumber(number);
+                sw.addPort(port);
+            }
+            ports[i] = sw.getPort((short) 1);
+        }
+        PhysicalNetwork.getInstance().createLink(ports[0], ports[1]);
+        PhysicalNetwork.getInstance().createLink(ports[1], ports[0]);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        OVXMap.reset();
+        PhysicalNetwork.reset();
+        OVXNetwork.reset();
+        this.ctl = null;
+        super.tearDown();
+    }
+
+}
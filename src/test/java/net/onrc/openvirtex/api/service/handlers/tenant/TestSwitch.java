@@ -15,6 +15,8 @@
  ******************************************************************************/
 package net.onrc.openvirtex.api.service.handlers.tenant;
 
+import java.util.List;
+
 import org.openflow.protocol.OFMessage;
 
 import net.onrc.openvirtex.core.io.OVXSendMsg;
@@ -34,4 +36,8 @@ public class TestSwitch extends PhysicalSwitch {
          */
     }
 
+    @Override
+    public void sendMsgs(final List<OFMessage> msgs) {
+    }
+
 }
@@ -0,0 +1,184 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.core;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import junit.framework.Assert;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import net.onrc.openvirtex.util.LatencyHistogram;
+import net.onrc.openvirtex.util.Metrics;
+import net.onrc.openvirtex.util.MetricsRegistry;
+import net.onrc.openvirtex.util.StripedCounter;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Tests the counters, latency histograms and registry of the metrics.
+ */
+public class MetricsTest extends TestCase {
+
+    private static Logger log = LogManager.getLogger(MetricsTest.class
+            .getName());
+
+    public MetricsTest(final String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return new TestSuite(MetricsTest.class);
+    }
+
+    /**
+     * Tests that percentiles are reported within an eighth of the recorded
+     * latencies.
+     */
+    public void testHistogram() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.getPercentile(50));
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        histogram.record(-5);
+        Assert.assertEquals(1001, histogram.getCount());
+        Assert.assertEquals(1000000, histogram.getMaxNanos());
+        final long p50 = histogram.getPercentile(50);
+        Assert.assertTrue(p50 >= 500 && p50 <= 500 * 9 / 8);
+        final long p99 = histogram.getPercentile(99);
+        Assert.assertTrue(p99 >= 990 && p99 <= 1000);
+        Assert.assertEquals(0, histogram.getPercentileNanos(0));
+        for (long nanos = 1; nanos < 1L << 40; nanos = nanos * 3 + 1) {
+            final LatencyHistogram one = new LatencyHistogram();
+            one.record(nanos);
+            one.record(Long.MAX_VALUE);
+            Assert.assertTrue(one.getPercentileNanos(50) >= nanos);
+            Assert.assertTrue(nanos >= 1L << 36
+                    || one.getPercentileNanos(50) <= nanos * 9 / 8);
+        }
+        final Map<String, Object> map = histogram.toMap();
+        Assert.assertEquals(1001L, map.get("count"));
+        Assert.assertEquals(1000L, map.get("max"));
+    }
+
+    /**
+     * Tests that groups are created once and reported as nested maps, and
+     * that a group replaced since it was put is not removed.
+     */
+    public void testRegistry() throws Exception {
+        final MetricsRegistry registry = MetricsRegistry.getInstance();
+        final Metrics tenant = registry.getTenant(Integer.MAX_VALUE);
+        Assert.assertSame(tenant, registry.getTenant(Integer.MAX_VALUE));
+        tenant.getCounter("packetIns").add(3);
+        tenant.getHistogram("packetInTime").record(2000);
+
+        final Metrics sw = new Metrics();
+        sw.getCounter("messagesIn").increment();
+        tenant.getGroup("switches").putGroup(MetricsRegistry.name(1), sw);
+        final Metrics replaced = new Metrics();
+        tenant.getGroup("switches").putGroup(MetricsRegistry.name(1), replaced);
+        tenant.getGroup("switches").removeGroup(MetricsRegistry.name(1), sw);
+        Assert.assertSame(replaced, tenant.getGroup("switches").findGroup(
+                MetricsRegistry.name(1)));
+
+        final Map<?, ?> tenants = (Map<?, ?>) registry.getRoot().toMap()
+                .get("tenants");
+        final Map<?, ?> map = (Map<?, ?>) tenants.get(String
+                .valueOf(Integer.MAX_VALUE));
+        Assert.assertEquals(3L, map.get("packetIns"));
+        Assert.assertEquals(2L, ((Map<?, ?>) map.get("packetInTime"))
+                .get("max"));
+
+        registry.register();
+        registry.register();
+        final String attribute = "tenants." + Integer.MAX_VALUE + ".packetIns";
+        Assert.assertEquals(3L, ManagementFactory.getPlatformMBeanServer()
+                .getAttribute(new ObjectName(MetricsRegistry.OBJECT_NAME),
+                        attribute));
+
+        registry.removeTenant(Integer.MAX_VALUE);
+        Assert.assertNull(registry.findTenant(Integer.MAX_VALUE));
+        Assert.assertFalse(((Map<?, ?>) registry.getRoot().toMap()
+                .get("tenants")).containsKey(String.valueOf(Integer.MAX_VALUE)));
+    }
+
+    /**
+     * Reports the cost of counting and recording latencies from several
+     * threads, against a single atomic counter.
+     */
+    public void testBenchmark() throws InterruptedException {
+        final int threads = 4;
+        final int updates = 1000000;
+        final StripedCounter counter = new StripedCounter();
+        final AtomicLong atomic = new AtomicLong();
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        final long striped = MetricsTest.run(threads, new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < updates; i++) {
+                    counter.increment();
+                }
+            }
+        });
+        final long shared = MetricsTest.run(threads, new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < updates; i++) {
+                    atomic.incrementAndGet();
+                }
+            }
+        });
+        final long recorded = MetricsTest.run(threads, new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < updates; i++) {
+                    histogram.record(i);
+                }
+            }
+        });
+
+        log.info("{} threads: {} ns per striped increment, {} ns per atomic "
+                + "increment, {} ns per latency recorded", threads, striped
+                / updates, shared / updates, recorded / updates);
+        Assert.assertEquals(threads * updates, counter.get());
+        Assert.assertEquals(threads * updates, atomic.get());
+        Assert.assertEquals(threads * updates, histogram.getCount());
+    }
+
+    private static long run(final int threads, final Runnable task)
+            throws InterruptedException {
+        final Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(task);
+        }
+        final long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return System.nanoTime() - start;
+    }
+
+}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.core.io;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import net.onrc.openvirtex.core.OpenVirteXController;
+import net.onrc.openvirtex.core.cmd.CmdLineSettings;
+import net.onrc.openvirtex.elements.datapath.PhysicalSwitch;
+import net.onrc.openvirtex.messages.OVXMessageFactory;
+import net.onrc.openvirtex.routing.PathInstaller;
+
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFType;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Tests the handling of messages received from connected switches.
+ */
+public class SwitchChannelHandlerTest extends TestCase {
+
+    OpenVirteXController ctl = null;
+
+    /**
+     * A connected switch that records the barriers sent to it.
+     */
+    private static class TestSwitch extends PhysicalSwitch {
+        private final List<Integer> barriers = new ArrayList<Integer>();
+
+        TestSwitch(final long switchId) {
+            super(switchId);
+            this.setConnected(true);
+        }
+
+        @Override
+        public void sendMsg(final OFMessage msg, final OVXSendMsg from) {
+            if (msg.getType() == OFType.BARRIER_REQUEST) {
+                this.barriers.add(msg.getXid());
+            }
+        }
+    }
+
+    public SwitchChannelHandlerTest(final String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return new TestSuite(SwitchChannelHandlerTest.class);
+    }
+
+    /**
+     * Tests that a barrier reply received from an active switch completes
+     * the path installation waiting for it.
+     */
+    public void testBarrierReply() {
+        final TestSwitch sw = new TestSwitch(1);
+        final SwitchChannelHandler h = new SwitchChannelHandler(this.ctl);
+        h.sw = sw;
+
+        final PathInstaller installer = new PathInstaller(60000);
+        installer.send(sw, new OFFlowMod());
+        final ListenableFuture<Void> done = installer.commit();
+        Assert.assertEquals(1, sw.barriers.size());
+        Assert.assertFalse(done.isDone());
+
+        final OFMessage reply = OVXMessageFactory.getInstance().getMessage(
+                OFType.BARRIER_REPLY);
+        reply.setXid(sw.barriers.get(0));
+        try {
+            SwitchChannelHandler.ChannelState.ACTIVE.processOFMessage(h,
+                    reply);
+        } catch (final Exception e) {
+            Assert.fail("Barrier reply not handled: " + e);
+        }
+        Assert.assertTrue(done.isDone());
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.ctl = new OpenVirteXController(new CmdLineSettings());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.ctl = null;
+        super.tearDown();
+    }
+
+}
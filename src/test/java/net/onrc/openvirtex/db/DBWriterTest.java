@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.db;
+
+import java.util.List;
+
+import junit.framework.Assert;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import net.onrc.openvirtex.api.service.handlers.TenantHandler;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+public class DBWriterTest extends TestCase {
+
+    private static final String KEY = "switches";
+
+    private MemoryConnection conn;
+
+    public DBWriterTest(final String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return new TestSuite(DBWriterTest.class);
+    }
+
+    private static DBObject tenant(final int tenantId) {
+        return new BasicDBObject(TenantHandler.TENANT, tenantId);
+    }
+
+    private static DBObject sw(final long dpid) {
+        return new BasicDBObject(TenantHandler.DPID, dpid);
+    }
+
+    private List<?> getSwitches(final int tenantId) {
+        final List<DBObject> docs = this.conn.find(DBManager.DB_VNET,
+                tenant(tenantId));
+        Assert.assertEquals(1, docs.size());
+        return (List<?>) docs.get(0).get(KEY);
+    }
+
+    /**
+     * Tests that updates of the same document are coalesced into a single
+     * update per flush.
+     */
+    public void testCoalesce() {
+        final DBWriter writer = new DBWriter(this.conn, DBWriter.Mode.BATCHED,
+                1000, 1000, 60000);
+        writer.start();
+        for (long i = 0; i < 100; i++) {
+            writer.addToSet(DBManager.DB_VNET, tenant(1), KEY, sw(i));
+            writer.addToSet(DBManager.DB_VNET, tenant(2), KEY, sw(i));
+        }
+        Assert.assertEquals(200, writer.getQueueDepth());
+        writer.flush();
+
+        Assert.assertEquals(0, writer.getQueueDepth());
+        Assert.assertEquals(200, writer.getWriteCount());
+        Assert.assertEquals(2, writer.getUpdateCount());
+        Assert.assertEquals(2, this.conn.getOperationCount());
+        Assert.assertEquals(100, this.getSwitches(1).size());
+        Assert.assertEquals(100, this.getSwitches(2).size());
+        writer.close();
+    }
+
+    /**
+     * Tests that pulls are ordered after the additions they follow.
+     */
+    public void testAddThenPull() {
+        final DBWriter writer = new DBWriter(this.conn, DBWriter.Mode.BATCHED,
+                1000, 1000, 60000);
+        writer.start();
+        writer.addToSet(DBManager.DB_VNET, tenant(1), KEY, sw(1));
+        writer.addToSet(DBManager.DB_VNET, tenant(1), KEY, sw(2));
+        writer.addToSet(DBManager.DB_VNET, tenant(1), KEY, sw(3));
+        writer.pull(DBManager.DB_VNET, tenant(1), KEY, sw(3));
+        writer.flush();
+        Assert.assertEquals(2, this.conn.getOperationCount());
+        Assert.assertEquals(2, this.getSwitches(1).size());
+
+        writer.addToSet(DBManager.DB_VNET, tenant(1), KEY, sw(4));
+        writer.pull(DBManager.DB_VNET, tenant(1), KEY, sw(1));
+        writer.addToSet(DBManager.DB_VNET, tenant(1), KEY, sw(1));
+        writer.close();
+        Assert.assertEquals(5, this.conn.getOperationCount());
+        final List<?> switches = this.getSwitches(1);
+        Assert.assertEquals(3, switches.size());
+        Assert.assertTrue(switches.contains(sw(1)));
+        Assert.assertTrue(switches.contains(sw(4)));
+    }
+
+    /**
+     * Tests that inserts and removes of whole documents keep their order.
+     */
+    public void testDocuments() {
+        final DBWriter writer = new DBWriter(this.conn, DBWriter.Mode.ASYNC);
+        writer.start();
+        final BasicDBObject doc = new BasicDBObject(TenantHandler.TENANT, 1);
+        doc.put("network", "10.0.0.0");
+        writer.insert(DBManager.DB_VNET, tenant(1), doc);
+        writer.addToSet(DBManager.DB_VNET, tenant(1), KEY, sw(1));
+        writer.remove(DBManager.DB_VNET, tenant(1), doc);
+        writer.flush();
+        Assert.assertTrue(this.conn.find(DBManager.DB_VNET, tenant(1))
+                .isEmpty());
+        writer.close();
+    }
+
+    /**
+     * Tests that sync mode writes on the calling thread.
+     */
+    public void testSync() {
+        final DBWriter writer = new DBWriter(this.conn, DBWriter.Mode.SYNC);
+        writer.start();
+        writer.addToSet(DBManager.DB_VNET, tenant(1), KEY, sw(1));
+        Assert.assertEquals(1, this.conn.getOperationCount());
+        writer.addToSet(DBManager.DB_VNET, tenant(1), KEY, sw(2));
+        Assert.assertEquals(2, this.conn.getOperationCount());
+        Assert.assertEquals(2, writer.getFlushCount());
+        Assert.assertEquals(2, this.getSwitches(1).size());
+        writer.close();
+    }
+
+    /**
+     * Tests that no writes are lost when the queue is full.
+     */
+    public void testBounded() throws InterruptedException {
+        final DBWriter writer = new DBWriter(this.conn, DBWriter.Mode.ASYNC,
+                4, 4, 0);
+        writer.start();
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int tenantId = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (long i = 0; i < 500; i++) {
+                        writer.addToSet(DBManager.DB_VNET, tenant(tenantId),
+                                KEY, sw(i));
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        writer.close();
+        for (int t = 0; t < threads.length; t++) {
+            Assert.assertEquals(500, this.getSwitches(t).size());
+        }
+        Assert.assertEquals(2000, writer.getWriteCount());
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.conn = new MemoryConnection();
+    }
+
+}
@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.db;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Database connection that keeps all collections in memory. Understands
+ * the subset of the update language used by {@link DBManager}, i.e.
+ * $addToSet (with or without $each) and $pull, and counts the number of
+ * operations it was asked to perform. Meant for testing the persistence
+ * pipeline without a running MongoDB.
+ */
+public class MemoryConnection implements DBConnection {
+
+    private final Map<String, List<DBObject>> collections;
+    private long operations;
+
+    public MemoryConnection() {
+        this.collections = new HashMap<String, List<DBObject>>();
+        this.operations = 0;
+    }
+
+    @Override
+    public void connect(String host, Integer port) {
+    }
+
+    @Override
+    public void disconnect() {
+    }
+
+    @Override
+    public synchronized void insert(String coll, DBObject doc) {
+        this.operations++;
+        this.getCollection(coll).add(new BasicDBObject(doc.toMap()));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public synchronized void update(String coll, DBObject query,
+            DBObject update, boolean upsert) {
+        this.operations++;
+        DBObject doc = null;
+        for (DBObject d : this.getCollection(coll)) {
+            if (this.matches(d, query)) {
+                doc = d;
+                break;
+            }
+        }
+        if (doc == null) {
+            if (!upsert) {
+                return;
+            }
+            doc = new BasicDBObject(query.toMap());
+            this.getCollection(coll).add(doc);
+        }
+        for (String op : update.keySet()) {
+            DBObject fields = (DBObject) update.get(op);
+            for (String field : fields.keySet()) {
+                List<Object> values = (List<Object>) doc.get(field);
+                if (values == null) {
+                    values = new ArrayList<Object>();
+                    doc.put(field, values);
+                }
+                Object value = fields.get(field);
+                if (op.equals("$addToSet")) {
+                    if (value instanceof DBObject
+                            && ((DBObject) value).containsField("$each")) {
+                        for (Object v : (List<Object>) ((DBObject) value)
+                                .get("$each")) {
+                            if (!values.contains(v)) {
+                                values.add(v);
+                            }
+                        }
+                    } else if (!values.contains(value)) {
+                        values.add(value);
+                    }
+                } else if (op.equals("$pull")) {
+                    Iterator<Object> iter = values.iterator();
+                    while (iter.hasNext()) {
+                        if (this.pullMatches(iter.next(), value)) {
+                            iter.remove();
+                        }
+                    }
+                } else {
+                    throw new UnsupportedOperationException(op);
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void remove(String coll, DBObject query) {
+        this.operations++;
+        Iterator<DBObject> iter = this.getCollection(coll).iterator();
+        while (iter.hasNext()) {
+            if (this.matches(iter.next(), query)) {
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Gets all documents of a collection that match the query.
+     *
+     * @param coll the collection name
+     * @param query the query
+     * @return the matching documents
+     */
+    public synchronized List<DBObject> find(String coll, DBObject query) {
+        List<DBObject> docs = new ArrayList<DBObject>();
+        for (DBObject doc : this.getCollection(coll)) {
+            if (this.matches(doc, query)) {
+                docs.add(doc);
+            }
+        }
+        return docs;
+    }
+
+    /**
+     * Gets the number of insert, update and remove operations performed,
+     * i.e. the number of round trips a real database would have seen.
+     *
+     * @return the number of operations
+     */
+    public synchronized long getOperationCount() {
+        return this.operations;
+    }
+
+    private List<DBObject> getCollection(String coll) {
+        List<DBObject> docs = this.collections.get(coll);
+        if (docs == null) {
+            docs = new ArrayList<DBObject>();
+            this.collections.put(coll, docs);
+        }
+        return docs;
+    }
+
+    private boolean matches(DBObject doc, DBObject query) {
+        for (String key : query.keySet()) {
+            Object value = doc.get(key);
+            if (value == null || !value.equals(query.get(key))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if an array element matches a $pull condition. Like MongoDB,
+     * a document condition matches every element that has the same values
+     * for all of the condition's fields.
+     */
+    @SuppressWarnings("unchecked")
+    private boolean pullMatches(Object element, Object cond) {
+        if (cond instanceof Map && element instanceof Map) {
+            Map<String, Object> e = (Map<String, Object>) element;
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) cond)
+                    .entrySet()) {
+                Object value = e.get(entry.getKey());
+                if (value == null || !value.equals(entry.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return element.equals(cond);
+    }
+
+}
@@ -17,6 +17,11 @@ package net.onrc.openvirtex.elements;
 
 import junit.framework.Test;
 import junit.framework.TestSuite;
+import net.onrc.openvirtex.elements.network.DiscoveryTest;
+import net.onrc.openvirtex.elements.network.FailoverTest;
+import net.onrc.openvirtex.elements.network.FlowManagerTest;
+import net.onrc.openvirtex.elements.network.TenantSchedulerTest;
+import net.onrc.openvirtex.elements.network.TopologyTest;
 
 /**
  * Parent class for map tests.
@@ -34,6 +39,11 @@ public final class BaseMapTests {
         final TestSuite suite = new TestSuite(BaseMapTests.class.getName());
         // $JUnit-BEGIN$
         suite.addTest(MapAddTest.suite());
+        suite.addTest(TopologyTest.suite());
+        suite.addTest(DiscoveryTest.suite());
+        suite.addTest(FailoverTest.suite());
+        suite.addTest(FlowManagerTest.suite());
+        suite.addTest(TenantSchedulerTest.suite());
         // $JUnit-END$
         return suite;
     }
@@ -21,8 +21,14 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.openflow.protocol.OFPhysicalPort;
 
+import com.googlecode.concurrenttrees.radix.ConcurrentRadixTree;
+import com.googlecode.concurrenttrees.radix.RadixTree;
+import com.googlecode.concurrenttrees.radix.node.concrete.DefaultCharArrayNodeFactory;
+
 import junit.framework.Assert;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
@@ -55,6 +61,9 @@ import net.onrc.openvirtex.util.MACAddress;
  */
 public class MapAddTest extends TestCase {
 
+    private static Logger log = LogManager.getLogger(MapAddTest.class
+            .getName());
+
     private static final int MAXIPS = 1000;
     private static final int MAXTIDS = 10;
     private static final int MAXPSW = 1000;
@@ -62,6 +71,8 @@ public class MapAddTest extends TestCase {
     @SuppressWarnings("unused")
     private OpenVirteXController ctl = null;
     private Mappable map = null;
+    // MACs added and ports bound by the benchmark, removed on tear down
+    private MACAddress[] benchmarkMacs = null;
 
     public MapAddTest(final String name) {
         super(name);
@@ -147,6 +158,103 @@ public class MapAddTest extends TestCase {
 
     }
 
+    /**
+     * Tests that virtual IP addresses are listed and removed per tenant.
+     */
+    public void testVirtualIPs() {
+        final int tid = 100;
+        for (int i = 0; i < MapAddTest.MAXIPS; i++) {
+            this.map.addIP(new PhysicalIPAddress(tid << 16 | i),
+                    new OVXIPAddress(tid, i));
+            this.map.addIP(new PhysicalIPAddress((tid + 1) << 16 | i),
+                    new OVXIPAddress(tid + 1, i));
+        }
+        final OVXMap ovxMap = (OVXMap) this.map;
+        Assert.assertEquals(MapAddTest.MAXIPS, ovxMap.getVirtualIPs(tid)
+                .size());
+
+        this.map.removeVirtualIPs(tid);
+        Assert.assertTrue(ovxMap.getVirtualIPs(tid).isEmpty());
+        Assert.assertFalse(this.map.hasPhysicalIP(new OVXIPAddress(tid, 1),
+                tid));
+        Assert.assertFalse(this.map.hasVirtualIP(new PhysicalIPAddress(
+                tid << 16 | 1)));
+        Assert.assertTrue(this.map.hasPhysicalIP(
+                new OVXIPAddress(tid + 1, 1), tid + 1));
+        Assert.assertTrue(this.map.hasVirtualIP(new PhysicalIPAddress(
+                (tid + 1) << 16 | 1)));
+        this.map.removeVirtualIPs(tid + 1);
+    }
+
+    /**
+     * Tests binding physical ports to tenants, including DPIDs that use all
+     * 64 bits.
+     */
+    public void testBindPorts() {
+        final long[] dpids = {1L, 0xFFFF000000000001L, 0x0001000000000001L};
+        for (int i = 0; i < dpids.length; i++) {
+            for (short port = 1; port <= 4; port++) {
+                this.map.bindPhysicalPort(dpids[i], port, i);
+            }
+        }
+        for (int i = 0; i < dpids.length; i++) {
+            Assert.assertEquals(Integer.valueOf(i),
+                    this.map.getTenantId(dpids[i], (short) 4));
+        }
+        this.map.releasePhysicalPort(dpids[1], (short) 4, 1);
+        Assert.assertNull(this.map.getTenantId(dpids[1], (short) 4));
+        Assert.assertEquals(Integer.valueOf(2),
+                this.map.getTenantId(dpids[2], (short) 4));
+        Assert.assertNull(this.map.getTenantId(2L, (short) 1));
+    }
+
+    /**
+     * Reports the time of a MAC and a port lookup, compared to the string
+     * keyed radix trees the map used to be built on. Only runs with
+     * -Dovx.benchmarks=true.
+     */
+    public void testLookupBenchmark() {
+        if (!Boolean.getBoolean("ovx.benchmarks")) {
+            return;
+        }
+        final int runs = 1000000;
+        final RadixTree<Integer> macTree = new ConcurrentRadixTree<Integer>(
+                new DefaultCharArrayNodeFactory());
+        final RadixTree<Integer> portTree = new ConcurrentRadixTree<Integer>(
+                new DefaultCharArrayNodeFactory());
+        final MACAddress[] macs = new MACAddress[MapAddTest.MAXPSW];
+        this.benchmarkMacs = macs;
+        for (int i = 0; i < MapAddTest.MAXPSW; i++) {
+            macs[i] = MACAddress.valueOf(0x00163E000000L + i);
+            this.map.addMAC(macs[i], i % MapAddTest.MAXTIDS);
+            macTree.put(macs[i].toStringNoColon(), i % MapAddTest.MAXTIDS);
+            this.map.bindPhysicalPort(i, (short) 1, i % MapAddTest.MAXTIDS);
+            portTree.put(i + "-" + 1, i % MapAddTest.MAXTIDS);
+        }
+
+        long sum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            sum += macTree.getValueForExactKey(macs[i % macs.length]
+                    .toStringNoColon());
+            sum += portTree.getValueForExactKey((i % macs.length) + "-" + 1);
+        }
+        final long tree = System.nanoTime() - start;
+        start = System.nanoTime();
+        try {
+            for (int i = 0; i < runs; i++) {
+                sum -= this.map.getMAC(macs[i % macs.length]);
+                sum -= this.map.getTenantId(i % macs.length, (short) 1);
+            }
+        } catch (AddressMappingException e) {
+            Assert.fail("Error mapping: " + e);
+        }
+        final long hash = System.nanoTime() - start;
+        Assert.assertEquals(0, sum);
+        log.info("MAC and port lookup: {} ns with radix trees, {} ns with "
+                + "hash maps", tree / runs, hash / runs);
+    }
+
     /**
      * Tests adding links to the map.
      */
@@ -294,6 +402,16 @@ public class MapAddTest extends TestCase {
 
     @Override
     protected void tearDown() throws Exception {
+        if (this.benchmarkMacs != null) {
+            for (int i = 0; i < this.benchmarkMacs.length; i++) {
+                if (this.benchmarkMacs[i] != null) {
+                    this.map.removeMAC(this.benchmarkMacs[i]);
+                    this.map.releasePhysicalPort(i, (short) 1,
+                            i % MapAddTest.MAXTIDS);
+                }
+            }
+            this.benchmarkMacs = null;
+        }
         super.tearDown();
     }
 
@@ -0,0 +1,275 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.elements.datapath;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import net.onrc.openvirtex.api.service.handlers.tenant.TestSwitch;
+import net.onrc.openvirtex.core.OpenVirteXController;
+import net.onrc.openvirtex.core.cmd.CmdLineSettings;
+import net.onrc.openvirtex.core.io.OVXSendMsg;
+import net.onrc.openvirtex.messages.OVXBarrierReply;
+import net.onrc.openvirtex.messages.OVXBarrierRequest;
+import net.onrc.openvirtex.messages.OVXFlowMod;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFType;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Tests barriers of tenant controllers, with physical switches replying to
+ * barriers after a simulated round trip time.
+ */
+public class BarrierTest extends TestCase {
+
+    private static Logger log = LogManager.getLogger(BarrierTest.class
+            .getName());
+
+    private static final long RTT_MICROS = 1000;
+
+    private OpenVirteXController ctl = null;
+    private ScheduledExecutorService network;
+
+    public BarrierTest(final String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return new TestSuite(BarrierTest.class);
+    }
+
+    /**
+     * Physical switch that keeps the messages sent to it, and replies to
+     * barriers one round trip time later.
+     */
+    private class RemoteSwitch extends TestSwitch {
+        private final List<OFMessage> received = new CopyOnWriteArrayList<OFMessage>();
+        private volatile boolean silent;
+        private volatile long rttMicros = BarrierTest.RTT_MICROS;
+
+        RemoteSwitch(final long dpid) {
+            super(dpid);
+            this.setConnected(true);
+        }
+
+        @Override
+        public void sendMsg(final OFMessage msg, final OVXSendMsg from) {
+            if (from instanceof OVXSwitch) {
+                ((OVXSwitch) from).addBarrierTarget(this);
+            }
+            this.received.add(msg);
+            if (msg.getType() != OFType.BARRIER_REQUEST || this.silent) {
+                return;
+            }
+            final OVXBarrierReply reply = new OVXBarrierReply();
+            reply.setXid(msg.getXid());
+            BarrierTest.this.network.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    RemoteSwitch.this.handleIO(reply, null);
+                }
+            }, this.rttMicros, TimeUnit.MICROSECONDS);
+        }
+
+        private int count(final OFType type) {
+            int count = 0;
+            for (OFMessage msg : this.received) {
+                if (msg.getType() == type) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Virtual switch that keeps the barrier replies sent to its controller.
+     */
+    private static class TenantSwitch extends OVXSingleSwitch {
+        private final BlockingQueue<OFMessage> replies = new LinkedBlockingQueue<OFMessage>();
+
+        TenantSwitch() {
+            super(1, 1);
+        }
+
+        @Override
+        public void sendMsg(final OFMessage msg, final OVXSendMsg from) {
+            this.replies.add(msg);
+        }
+
+        private void requestBarrier(final int xid) {
+            final OVXBarrierRequest req = new OVXBarrierRequest();
+            req.setXid(xid);
+            req.devirtualize(this);
+        }
+
+        private int barrier(final int xid) throws InterruptedException {
+            this.requestBarrier(xid);
+            final OFMessage reply = this.replies.poll(5, TimeUnit.SECONDS);
+            Assert.assertNotNull("No barrier reply", reply);
+            Assert.assertEquals(OFType.BARRIER_REPLY, reply.getType());
+            return reply.getXid();
+        }
+    }
+
+    /**
+     * Tests that a barrier is replied to once the physical switches sent
+     * messages since the last barrier replied, including messages waiting
+     * for paths to be installed.
+     */
+    public void testBarrier() throws Exception {
+        final TenantSwitch vsw = new TenantSwitch();
+        final RemoteSwitch psw1 = new RemoteSwitch(1);
+        final RemoteSwitch psw2 = new RemoteSwitch(2);
+
+        /* nothing sent, the barrier completes right away */
+        Assert.assertEquals(5, vsw.barrier(5));
+
+        psw1.sendMsg(new OVXFlowMod(), vsw);
+        final SettableFuture<Void> paths = SettableFuture.create();
+        final SettableFuture<Void> sent = SettableFuture.create();
+        vsw.addPendingSend(sent);
+        paths.addListener(new Runnable() {
+            @Override
+            public void run() {
+                psw2.sendMsg(new OVXFlowMod(), vsw);
+                sent.set(null);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+
+        final OVXBarrierRequest req = new OVXBarrierRequest();
+        req.setXid(7);
+        req.devirtualize(vsw);
+        Assert.assertNull(vsw.replies.poll(10 * RTT_MICROS,
+                TimeUnit.MICROSECONDS));
+        Assert.assertEquals(0, psw1.count(OFType.BARRIER_REQUEST));
+
+        paths.set(null);
+        Assert.assertEquals(7, vsw.replies.poll(5, TimeUnit.SECONDS)
+                .getXid());
+        Assert.assertEquals(1, psw1.count(OFType.BARRIER_REQUEST));
+        Assert.assertEquals(1, psw2.count(OFType.BARRIER_REQUEST));
+        /* the flow mod goes out before the barrier */
+        Assert.assertEquals(OFType.FLOW_MOD, psw2.received.get(0).getType());
+
+        /* only the switches sent messages since are sent a barrier */
+        psw2.sendMsg(new OVXFlowMod(), vsw);
+        Assert.assertEquals(8, vsw.barrier(8));
+        Assert.assertEquals(1, psw1.count(OFType.BARRIER_REQUEST));
+        Assert.assertEquals(2, psw2.count(OFType.BARRIER_REQUEST));
+    }
+
+    /**
+     * Tests that a barrier with nothing to wait for is not replied to
+     * before an earlier barrier still waiting for a slow physical switch.
+     */
+    public void testBarrierOrder() throws Exception {
+        final TenantSwitch vsw = new TenantSwitch();
+        final RemoteSwitch psw = new RemoteSwitch(1);
+        psw.rttMicros = 100 * BarrierTest.RTT_MICROS;
+        psw.sendMsg(new OVXFlowMod(), vsw);
+
+        vsw.requestBarrier(1);
+        vsw.requestBarrier(2);
+        Assert.assertEquals(1, psw.count(OFType.BARRIER_REQUEST));
+        Assert.assertEquals(1, vsw.replies.poll(5, TimeUnit.SECONDS)
+                .getXid());
+        Assert.assertEquals(2, vsw.replies.poll(5, TimeUnit.SECONDS)
+                .getXid());
+    }
+
+    /**
+     * Tests that a barrier is replied to late, rather than never, when a
+     * connected physical switch does not reply to its barrier.
+     */
+    public void testTimeout() throws Exception {
+        final TenantSwitch vsw = new TenantSwitch();
+        final RemoteSwitch psw1 = new RemoteSwitch(1);
+        final RemoteSwitch psw2 = new RemoteSwitch(2);
+        psw2.silent = true;
+        psw1.sendMsg(new OVXFlowMod(), vsw);
+        psw2.sendMsg(new OVXFlowMod(), vsw);
+
+        vsw.sendBarrier(50).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(1, psw2.count(OFType.BARRIER_REQUEST));
+        /* the missing reply is no longer expected */
+        final int xid = psw2.received.get(1).getXid();
+        Assert.assertFalse(psw2.handleBarrierReply(xid));
+    }
+
+    /**
+     * Reports the rate of flow mods installed by a controller waiting for a
+     * barrier after each flow mod, and by a controller sending them all
+     * before a single barrier.
+     */
+    public void testBenchmark() throws Exception {
+        final TenantSwitch vsw = new TenantSwitch();
+        final RemoteSwitch[] psws = new RemoteSwitch[4];
+        for (int i = 0; i < psws.length; i++) {
+            psws[i] = new RemoteSwitch(i + 1);
+        }
+        final int flows = 400;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < flows; i++) {
+            psws[i % psws.length].sendMsg(new OVXFlowMod(), vsw);
+            vsw.barrier(i);
+        }
+        final long waiting = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < flows; i++) {
+            psws[i % psws.length].sendMsg(new OVXFlowMod(), vsw);
+        }
+        vsw.barrier(flows);
+        final long pipelined = System.nanoTime() - start;
+
+        log.info("{} flow mods on {} switches with a {} us round trip: {} flows/s "
+                + "with a barrier per flow mod, {} flows/s with a single barrier",
+                flows, psws.length, RTT_MICROS,
+                flows * 1000000000L / waiting, flows * 1000000000L / pipelined);
+        Assert.assertTrue(pipelined < waiting);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.ctl = new OpenVirteXController(new CmdLineSettings());
+        this.network = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.network.shutdownNow();
+        this.ctl = null;
+        super.tearDown();
+    }
+
+}
@@ -36,6 +36,9 @@ public final class BaseTranslatorTests {
         // $JUnit-BEGIN$
         suite.addTest(TranslatorTest.suite());
         suite.addTest(FlowTableTest.suite());
+        suite.addTest(PacketBufferTest.suite());
+        suite.addTest(StatisticsManagerTest.suite());
+        suite.addTest(BarrierTest.suite());
         // $JUnit-END$
         return suite;
     }
@@ -16,6 +16,10 @@
 package net.onrc.openvirtex.elements.datapath;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
 
 import junit.framework.Assert;
 import junit.framework.Test;
@@ -24,11 +28,16 @@ import junit.framework.TestSuite;
 import net.onrc.openvirtex.core.OpenVirteXController;
 import net.onrc.openvirtex.core.cmd.CmdLineSettings;
 import net.onrc.openvirtex.elements.OVXMap;
+import net.onrc.openvirtex.elements.datapath.statistics.FlowStatisticsCache;
 import net.onrc.openvirtex.messages.OVXFlowMod;
+import net.onrc.openvirtex.messages.statistics.OVXAggregateStatisticsReply;
+import net.onrc.openvirtex.messages.statistics.OVXFlowStatisticsReply;
 
 import org.openflow.protocol.OFFlowMod;
 import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFPort;
 import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
 
 public class FlowTableTest extends TestCase {
 
@@ -231,6 +240,166 @@ public class FlowTableTest extends TestCase {
          */
     }
 
+    /** the indexed flow table must find the same entries as a linear scan. */
+    public void testIndexedFlowTable() {
+        final OVXSwitch vsw = new OVXSingleSwitch(1, 1);
+        final OVXFlowTable linear = new OVXFlowTable(vsw);
+        final OVXFlowTable indexed = new OVXIndexedFlowTable(vsw);
+        final Random rand = new Random(42);
+
+        for (long c = 1; c <= 500; c++) {
+            final OVXFlowMod fm = this.getFlowMod();
+            fm.setMatch(this.getRandomMatch(rand)).setPriority(
+                    (short) rand.nextInt(3));
+            linear.addFlowMod(fm, c);
+            indexed.addFlowMod(fm.clone(), c);
+        }
+        /* remove a few entries to exercise unindexing */
+        for (long c = 1; c <= 500; c += 7) {
+            linear.deleteFlowMod(c);
+            indexed.deleteFlowMod(c);
+        }
+
+        for (int i = 0; i < 500; i++) {
+            final OVXFlowMod fm = this.getFlowMod();
+            fm.setMatch(this.getRandomMatch(rand)).setPriority(
+                    (short) rand.nextInt(3));
+            Assert.assertEquals(
+                    new HashSet<Long>(linear.findMatches(fm.getMatch(), true)),
+                    new HashSet<Long>(indexed.findMatches(fm.getMatch(), true)));
+            Assert.assertEquals(
+                    new HashSet<Long>(linear.findMatches(fm.getMatch(), false)),
+                    new HashSet<Long>(indexed.findMatches(fm.getMatch(), false)));
+            Assert.assertEquals(linear.findEqual(fm.getMatch()) == null,
+                    indexed.findEqual(fm.getMatch()) == null);
+            Assert.assertEquals(linear.isOverlapping(fm),
+                    indexed.isOverlapping(fm));
+        }
+    }
+
+    /** the output port index must follow additions, replacements and deletes. */
+    public void testOutPortIndex() {
+        final OVXSwitch vsw = new OVXSingleSwitch(1, 1);
+        for (OVXFlowTable oft : new OVXFlowTable[] {new OVXFlowTable(vsw),
+                new OVXIndexedFlowTable(vsw)}) {
+            for (long c = 1; c <= 10; c++) {
+                final OVXFlowMod fm = this.getFlowMod();
+                fm.setMatch(new OFMatch().setInputPort((short) c));
+                fm.setActions(Arrays.asList((OFAction) new OFActionOutput(
+                        (short) (c % 2 + 1), (short) 0xffff)));
+                oft.addFlowMod(fm, c);
+            }
+            Assert.assertEquals(5, oft.getFlowModsByOutPort((short) 1).size());
+            Assert.assertEquals(5, oft.getFlowModsByOutPort((short) 2).size());
+            Assert.assertTrue(oft.getFlowModsByOutPort((short) 3).isEmpty());
+
+            /* replace an entry outputting to port 1 by one outputting to 3 */
+            final OVXFlowMod fm = this.getFlowMod();
+            fm.setActions(Arrays.asList((OFAction) new OFActionOutput(
+                    (short) 3, (short) 0xffff)));
+            oft.addFlowMod(fm, 2);
+            oft.deleteFlowMod(1L);
+            Assert.assertEquals(4, oft.getFlowModsByOutPort((short) 1).size());
+            Assert.assertEquals(4, oft.getFlowModsByOutPort((short) 2).size());
+            Assert.assertSame(fm, oft.getFlowModsByOutPort((short) 3)
+                    .iterator().next());
+        }
+    }
+
+    /** statistics requests must be answered from the polled counters. */
+    public void testFlowStatisticsCache() {
+        final OVXSwitch vsw = new OVXSingleSwitch(1, 1);
+        final FlowTable ft = vsw.getFlowTable();
+        final FlowStatisticsCache cache = vsw.getFlowStatisticsCache();
+        final PhysicalSwitch psw1 = new PhysicalSwitch(1);
+        final PhysicalSwitch psw2 = new PhysicalSwitch(2);
+        final List<OVXFlowStatisticsReply> stats = new ArrayList<OVXFlowStatisticsReply>();
+        for (long c = 1; c <= 10; c++) {
+            final OVXFlowMod fm = this.getFlowMod();
+            fm.setMatch(new OFMatch().setInputPort((short) c).setWildcards(
+                    OFMatch.OFPFW_ALL & ~OFMatch.OFPFW_IN_PORT));
+            fm.setActions(Arrays.asList((OFAction) new OFActionOutput(
+                    (short) (c % 2 + 1), (short) 0xffff)));
+            fm.setCookie(100 + c);
+            ft.addFlowMod(fm, 1L << 32 | c);
+            stats.add(this.getFlowStat(1L << 32 | c, c));
+        }
+        cache.update(psw1, stats);
+        /* the counters of the first switch reporting a cookie are served */
+        cache.update(psw2, Arrays.asList(this.getFlowStat(1L << 32 | 1, 1000)));
+
+        final short none = OFPort.OFPP_NONE.getValue();
+        final List<OVXFlowStatisticsReply> all = cache.getFlowStatistics(
+                new OFMatch(), none);
+        Assert.assertEquals(10, all.size());
+        for (OVXFlowStatisticsReply stat : all) {
+            Assert.assertEquals(stat.getCookie() - 100, stat.getPacketCount());
+            Assert.assertEquals(stat.getCookie() - 100, stat.getMatch()
+                    .getInputPort());
+        }
+        final OFMatch inPort = new OFMatch().setInputPort((short) 3)
+                .setWildcards(OFMatch.OFPFW_ALL & ~OFMatch.OFPFW_IN_PORT);
+        Assert.assertEquals(103, cache.getFlowStatistics(inPort, none).get(0)
+                .getCookie());
+        Assert.assertEquals(5, cache.getFlowStatistics(new OFMatch(), (short) 1)
+                .size());
+        Assert.assertTrue(cache.getFlowStatistics(inPort, (short) 1).isEmpty());
+        final OVXAggregateStatisticsReply agg = cache.getAggregateStatistics(
+                new OFMatch(), (short) 2);
+        Assert.assertEquals(5, agg.getFlowCount());
+        Assert.assertEquals(1 + 3 + 5 + 7 + 9, agg.getPacketCount());
+        Assert.assertEquals(10 * (1 + 3 + 5 + 7 + 9), agg.getByteCount());
+
+        /* the second switch takes over once the first stops reporting */
+        cache.update(psw1, stats.subList(1, stats.size()));
+        cache.update(psw2, Arrays.asList(this.getFlowStat(1L << 32 | 1, 1000)));
+        Assert.assertEquals(1000 + 54, cache.getAggregateStatistics(
+                new OFMatch(), none).getPacketCount());
+
+        /* a cookie given to another flow is not served until polled again */
+        ft.deleteFlowMod(1L << 32 | 2);
+        ft.addFlowMod(this.getFlowMod(), 1L << 32 | 2);
+        Assert.assertEquals(9, cache.getFlowStatistics(new OFMatch(), none)
+                .size());
+        Assert.assertEquals(10, cache.getAggregateStatistics(new OFMatch(),
+                none).getFlowCount());
+    }
+
+    private OVXFlowStatisticsReply getFlowStat(long cookie, long packets) {
+        final OVXFlowStatisticsReply stat = new OVXFlowStatisticsReply();
+        stat.setCookie(cookie);
+        stat.setPacketCount(packets);
+        stat.setByteCount(10 * packets);
+        return stat;
+    }
+
+    private OFMatch getRandomMatch(Random rand) {
+        final OFMatch match = new OFMatch();
+        int wcards = OFMatch.OFPFW_ALL;
+        if (rand.nextBoolean()) {
+            match.setInputPort((short) (1 + rand.nextInt(3)));
+            wcards &= ~OFMatch.OFPFW_IN_PORT;
+        }
+        if (rand.nextBoolean()) {
+            match.setDataLayerDestination(new byte[] {0, 0, 0, 0, 0,
+                    (byte) rand.nextInt(3)});
+            wcards &= ~OFMatch.OFPFW_DL_DST;
+        }
+        if (rand.nextBoolean()) {
+            match.setDataLayerType((short) 0x800);
+            wcards &= ~OFMatch.OFPFW_DL_TYPE;
+        }
+        if (rand.nextBoolean()) {
+            match.setNetworkDestination(rand.nextInt(3));
+            wcards &= ~OFMatch.OFPFW_NW_DST_ALL & ~OFMatch.OFPFW_NW_DST_MASK;
+        }
+        if (rand.nextBoolean()) {
+            match.setTransportDestination((short) rand.nextInt(3));
+            wcards &= ~OFMatch.OFPFW_TP_DST;
+        }
+        return match.setWildcards(wcards);
+    }
+
     @Override
     protected void setUp() throws Exception {
         super.setUp();
@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.elements.datapath;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import junit.framework.Assert;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.openflow.protocol.OFPacketOut;
+
+/**
+ * Tests the buffering of packet_ins sent to controllers.
+ */
+public class PacketBufferTest extends TestCase {
+
+    public PacketBufferTest(final String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return new TestSuite(PacketBufferTest.class);
+    }
+
+    /**
+     * Tests that overwritten buffer IDs are no longer resolved, and that
+     * only packets overwritten before being referred to are counted.
+     */
+    public void testOverwrite() {
+        final PacketBuffer buffer = new PacketBuffer(4, 0, 0);
+        final int[] ids = new int[6];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = buffer.add(100 + i, (short) i, new byte[64]);
+        }
+        Assert.assertNull(buffer.get(ids[0]));
+        Assert.assertNull(buffer.get(ids[1]));
+        Assert.assertNull(buffer.get(OFPacketOut.BUFFER_ID_NONE));
+        Assert.assertEquals(2, buffer.getMissCount());
+        Assert.assertEquals(2, buffer.getOverwriteCount());
+
+        final PacketBuffer.Entry entry = buffer.get(ids[2]);
+        Assert.assertEquals(102, entry.getBufferId());
+        Assert.assertEquals(2, entry.getInPort());
+        buffer.add(106, (short) 6, new byte[64]);
+        buffer.add(107, (short) 7, new byte[64]);
+        Assert.assertEquals(3, buffer.getOverwriteCount());
+        Assert.assertEquals(8, buffer.getBufferedCount());
+    }
+
+    /**
+     * Tests that expired packets are no longer resolved.
+     */
+    public void testExpiry() throws InterruptedException {
+        final PacketBuffer buffer = new PacketBuffer(4, 10, 0);
+        final int id = buffer.add(100, (short) 1, new byte[64]);
+        Assert.assertNotNull(buffer.get(id));
+        Thread.sleep(50);
+        Assert.assertNull(buffer.get(id));
+        Assert.assertEquals(1, buffer.getExpirationCount());
+    }
+
+    /**
+     * Tests that only the data of packets the physical switch also buffers
+     * is truncated.
+     */
+    public void testTruncate() {
+        final PacketBuffer buffer = new PacketBuffer(4, 0, 32);
+        final int buffered = buffer.add(100, (short) 1, new byte[64]);
+        final int unbuffered = buffer.add(OFPacketOut.BUFFER_ID_NONE,
+                (short) 1, new byte[64]);
+        Assert.assertEquals(32, buffer.get(buffered).getPacketData().length);
+        Assert.assertEquals(64, buffer.get(unbuffered).getPacketData().length);
+    }
+
+    /**
+     * Tests that concurrent writers get distinct buffer IDs.
+     */
+    public void testConcurrent() throws InterruptedException {
+        final PacketBuffer buffer = new PacketBuffer(1 << 16, 0, 0);
+        final ConcurrentHashMap<Integer, Integer> ids = new ConcurrentHashMap<Integer, Integer>();
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int port = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        ids.put(buffer.add(i, (short) port, null), port);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(40000, ids.size());
+        for (Integer id : ids.keySet()) {
+            Assert.assertEquals(ids.get(id).shortValue(), buffer.get(id)
+                    .getInPort());
+        }
+        Assert.assertEquals(0, buffer.getOverwriteCount());
+    }
+
+}
@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.elements.datapath;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import net.onrc.openvirtex.core.OpenVirteXController;
+import net.onrc.openvirtex.core.cmd.CmdLineSettings;
+import net.onrc.openvirtex.core.io.OVXSendMsg;
+import net.onrc.openvirtex.elements.datapath.statistics.StatisticsManager;
+import net.onrc.openvirtex.messages.OVXStatisticsReply;
+import net.onrc.openvirtex.messages.OVXStatisticsRequest;
+import net.onrc.openvirtex.messages.statistics.OVXFlowStatisticsReply;
+
+import org.kohsuke.args4j.CmdLineParser;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFStatisticsReply.OFStatisticsReplyFlags;
+import org.openflow.protocol.statistics.OFStatistics;
+import org.openflow.protocol.statistics.OFStatisticsType;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Tests the collection of flow statistics from physical switches.
+ */
+public class StatisticsManagerTest extends TestCase {
+
+    OpenVirteXController ctl = null;
+    private TestSwitch sw;
+    private StatisticsManager stats;
+
+    /**
+     * A switch recording the messages sent to it.
+     */
+    private class TestSwitch extends PhysicalSwitch {
+        private final List<OFMessage> sent = new ArrayList<OFMessage>();
+
+        TestSwitch(final long switchId) {
+            super(switchId);
+        }
+
+        @Override
+        public void sendMsg(final OFMessage msg, final OVXSendMsg from) {
+            this.sent.add(msg);
+        }
+    }
+
+    public StatisticsManagerTest(final String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return new TestSuite(StatisticsManagerTest.class);
+    }
+
+    /**
+     * Tests that the statistics of a poll are made available once all parts
+     * of the reply are received.
+     */
+    public void testMultipart() {
+        this.stats.handleFlowStatistics(this.makeReply(true, 1, 1, 2));
+        Assert.assertNull(this.sw.getFlowStats(1));
+        this.stats.handleFlowStatistics(this.makeReply(false, 2, 3));
+        Assert.assertEquals(2, this.sw.getFlowStats(1).size());
+        Assert.assertEquals(1, this.sw.getFlowStats(2).size());
+        Assert.assertEquals(3, this.stats.getFlowCount());
+        Assert.assertEquals(2 * OVXStatisticsReply.MINIMUM_LENGTH + 3
+                * OVXFlowStatisticsReply.MINIMUM_LENGTH,
+                this.stats.getReplyLength());
+
+        // an empty reply clears the statistics
+        this.stats.handleFlowStatistics(this.makeReply(false, 1));
+        Assert.assertNull(this.sw.getFlowStats(1));
+    }
+
+    /**
+     * Tests that switches whose flows do not change are polled less often,
+     * and switches whose flows change more often.
+     */
+    public void testAdapt() {
+        final long base = TimeUnit.SECONDS.toMillis(this.ctl.getStatsRefresh());
+        this.stats.handleFlowStatistics(this.makeReply(false, 1, 1, 2, 3, 4));
+        this.stats.handleFlowStatistics(this.makeReply(false, 1, 1, 2, 3, 4));
+        Assert.assertEquals(0.0, this.stats.getChurn());
+        Assert.assertEquals(2 * base, this.stats.getInterval());
+
+        this.stats.handleFlowStatistics(this.makeReply(false, 1, 1, 2, 3, 5));
+        Assert.assertEquals(0.5, this.stats.getChurn());
+        Assert.assertEquals(base / 2, this.stats.getInterval());
+
+        this.stats.handleFlowStatistics(this.makeReply(false, 1, 1, 2, 3, 5, 6));
+        Assert.assertEquals(0.2, this.stats.getChurn());
+        Assert.assertEquals(base, this.stats.getInterval());
+    }
+
+    /**
+     * Tests that statistics older than the maximum age are polled before
+     * being served, and that a switch not replying is not waited for.
+     */
+    public void testRefresh() throws Exception {
+        this.stats.handleFlowStatistics(this.makeReply(false, 1, 1));
+        Assert.assertTrue(this.stats.refreshFlowStatistics().isDone());
+        Assert.assertTrue(this.sw.sent.isEmpty());
+
+        Thread.sleep(100);
+        final ListenableFuture<Void> refresh = this.stats
+                .refreshFlowStatistics();
+        Assert.assertFalse(refresh.isDone());
+        // a single poll for concurrent requests
+        Assert.assertSame(refresh, this.stats.refreshFlowStatistics());
+        Assert.assertEquals(1, this.sw.sent.size());
+        Assert.assertEquals(OFStatisticsType.FLOW,
+                ((OVXStatisticsRequest) this.sw.sent.get(0))
+                        .getStatisticType());
+        this.stats.handleFlowStatistics(this.makeReply(false, 1, 1, 2));
+        Assert.assertTrue(refresh.isDone());
+        Assert.assertEquals(2, this.sw.getFlowStats(1).size());
+
+        Thread.sleep(100);
+        this.stats.refreshFlowStatistics().get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(2, this.sw.sent.size());
+    }
+
+    /**
+     * Makes a flow statistics reply, or part of it, with one flow per
+     * cookie of the given tenant.
+     */
+    private OVXStatisticsReply makeReply(final boolean more,
+            final int tenantId, final int... flows) {
+        final OVXStatisticsReply reply = new OVXStatisticsReply();
+        reply.setStatisticType(OFStatisticsType.FLOW);
+        final List<OFStatistics> stats = new ArrayList<OFStatistics>();
+        for (int flow : flows) {
+            final OVXFlowStatisticsReply stat = new OVXFlowStatisticsReply();
+            stat.setCookie((long) tenantId << 32 | flow);
+            stats.add(stat);
+        }
+        reply.setStatistics(stats);
+        reply.setLengthU(OVXStatisticsReply.MINIMUM_LENGTH + stats.size()
+                * OVXFlowStatisticsReply.MINIMUM_LENGTH);
+        if (more) {
+            reply.setFlags(OFStatisticsReplyFlags.REPLY_MORE.getTypeValue());
+        }
+        return reply;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final CmdLineSettings settings = new CmdLineSettings();
+        new CmdLineParser(settings).parseArgument("--stats-max-age", "50");
+        this.ctl = new OpenVirteXController(settings);
+        this.sw = new TestSwitch(1);
+        this.stats = this.sw.getStatisticsManager();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.ctl = null;
+        super.tearDown();
+    }
+
+}
@@ -15,6 +15,10 @@
  ******************************************************************************/
 package net.onrc.openvirtex.elements.datapath;
 
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
 import junit.framework.Assert;
 import junit.framework.Test;
 import junit.framework.TestCase;
@@ -61,6 +65,52 @@ public class TranslatorTest extends TestCase {
         Assert.assertEquals(pair.getXid(), ofh.getXid());
     }
 
+    public void testConcurrentTranslate() throws InterruptedException {
+        final int nThreads = 4;
+        final int perThread = 2000;
+        final Set<Integer> xids = Collections
+                .newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+        final Thread[] threads = new Thread[nThreads];
+        for (int t = 0; t < nThreads; t++) {
+            final OVXSwitch vsw = new OVXSingleSwitch(t + 1, 1);
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        final int xid = translator.translate(i, vsw);
+                        xids.add(xid);
+                        final XidPair<OVXSwitch> pair = translator
+                                .untranslate(xid);
+                        if (pair == null || pair.getXid() != i
+                                || pair.getSwitch() != vsw) {
+                            xids.remove(xid);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        /* every XID is unique and maps back to its original message */
+        Assert.assertEquals(nThreads * perThread, xids.size());
+        Assert.assertEquals(nThreads * perThread, this.translator.getHitCount());
+        Assert.assertEquals(0, this.translator.getMissCount());
+    }
+
+    public void testEviction() {
+        final OVXSwitch vsw = new OVXSingleSwitch(1, 1);
+        final int first = this.translator.translate(0, vsw);
+        for (int i = 1; i <= XidTranslator.MAX_SIZE; i++) {
+            this.translator.translate(i, vsw);
+        }
+        /* the oldest translation was overwritten by a newer one */
+        Assert.assertNull(this.translator.untranslate(first));
+        Assert.assertEquals(1, this.translator.getEvictionCount());
+        Assert.assertEquals(1, this.translator.getMissCount());
+    }
+
     @Override
     protected void setUp() throws Exception {
         super.setUp();
@@ -0,0 +1,202 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.elements.network;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import net.onrc.openvirtex.api.service.handlers.tenant.TestSwitch;
+import net.onrc.openvirtex.core.OpenVirteXController;
+import net.onrc.openvirtex.core.cmd.CmdLineSettings;
+import net.onrc.openvirtex.elements.OVXMap;
+import net.onrc.openvirtex.elements.datapath.DPIDandPort;
+import net.onrc.openvirtex.elements.port.PhysicalPort;
+import net.onrc.openvirtex.linkdiscovery.SwitchDiscoveryManager;
+import net.onrc.openvirtex.packet.Ethernet;
+import net.onrc.openvirtex.packet.OVXLLDP;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.OFPhysicalPort;
+import org.openflow.protocol.action.OFActionOutput;
+
+/**
+ * Tests the probes sent by the discovery managers of physical switches.
+ */
+public class DiscoveryTest extends TestCase {
+
+    private static Logger log = LogManager.getLogger(DiscoveryTest.class
+            .getName());
+
+    private OpenVirteXController ctl = null;
+    private PhysicalNetwork net;
+
+    public DiscoveryTest(final String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return new TestSuite(DiscoveryTest.class);
+    }
+
+    /**
+     * Switch that keeps the batches of messages written to it.
+     */
+    private static class RecordingSwitch extends TestSwitch {
+        private final List<List<OFMessage>> writes = new ArrayList<List<OFMessage>>();
+
+        RecordingSwitch(final long dpid) {
+            super(dpid);
+        }
+
+        @Override
+        public void sendMsgs(final List<OFMessage> msgs) {
+            this.writes.add(msgs);
+        }
+    }
+
+    /**
+     * Tests that the probes built from the template of a switch are the
+     * packets serialized for each port.
+     */
+    public void testTemplate() {
+        final RecordingSwitch sw = this.addSwitch(1, 3);
+        Assert.assertEquals(3, sw.writes.size());
+        for (List<OFMessage> write : sw.writes) {
+            Assert.assertEquals(1, write.size());
+            final OFPacketOut po = (OFPacketOut) write.get(0);
+            final short number = ((OFActionOutput) po.getActions().get(0))
+                    .getPort();
+            final PhysicalPort port = sw.getPort(number);
+
+            final OVXLLDP lldp = new OVXLLDP();
+            lldp.setSwitch(sw);
+            lldp.setPort(port);
+            final Ethernet eth = new Ethernet();
+            eth.setEtherType(Ethernet.TYPE_LLDP);
+            eth.setDestinationMACAddress(OVXLLDP.LLDP_NICIRA);
+            eth.setSourceMACAddress(port.getHardwareAddress());
+            eth.setPayload(lldp);
+            eth.setPad(true);
+            Assert.assertTrue(Arrays.equals(eth.serialize(),
+                    po.getPacketData()));
+
+            final DPIDandPort dp = OVXLLDP.parseLLDP(po.getPacketData());
+            Assert.assertEquals(1, dp.getDpid());
+            Assert.assertEquals(number, dp.getPort());
+        }
+    }
+
+    /**
+     * Tests that a round probes all fast ports and one slow port in a single
+     * write, and that a link is removed once its probes are not
+     * acknowledged.
+     */
+    public void testRounds() {
+        final RecordingSwitch sw1 = this.addSwitch(1, 3);
+        this.addSwitch(2, 3);
+        final SwitchDiscoveryManager sdm = this.net.getDiscoveryManager(1);
+        final PhysicalPort src = sw1.getPort((short) 1);
+        this.net.createLink(src, this.net.getSwitch(2L).getPort((short) 1));
+        this.net.ackProbe(src);
+        Assert.assertEquals(1, sdm.getAckLatency().getCount());
+
+        sw1.writes.clear();
+        sdm.sendProbes();
+        Assert.assertEquals(1, sw1.writes.size());
+        Assert.assertEquals(2, sw1.writes.get(0).size());
+        sdm.sendProbes();
+        sdm.sendProbes();
+        Assert.assertNotNull(this.net.getNeighborPort(src));
+        // the fourth unacknowledged probe is not sent, the link is removed
+        sdm.sendProbes();
+        Assert.assertEquals(1, sw1.writes.get(3).size());
+        Assert.assertNull(this.net.getNeighborPort(src));
+    }
+
+    /**
+     * Reports the time taken by probe rounds of switches whose ports are
+     * all fast.
+     */
+    public void testBenchmark() {
+        final int switches = 200;
+        final int ports = 48;
+        final List<SwitchDiscoveryManager> sdms = new ArrayList<SwitchDiscoveryManager>();
+        for (int i = 1; i <= switches; i++) {
+            final RecordingSwitch sw = this.addSwitch(i, ports);
+            final SwitchDiscoveryManager sdm = this.net.getDiscoveryManager(i);
+            for (PhysicalPort port : sw.getPorts().values()) {
+                sdm.ackProbe(port);
+            }
+            sdms.add(sdm);
+        }
+        final int rounds = 100;
+        final long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (int i = 0; i < switches; i++) {
+                final SwitchDiscoveryManager sdm = sdms.get(i);
+                sdm.sendProbes();
+                for (PhysicalPort port : this.net.getSwitch(i + 1L)
+                        .getPorts().values()) {
+                    sdm.ackProbe(port);
+                }
+            }
+        }
+        final long time = System.nanoTime() - start;
+        log.info("{} rounds of {} switches with {} ports in {} ms, ack latency {}",
+                rounds, switches, ports, time / 1000000, this.net
+                        .getDiscoveryScheduler().getAckLatency().toMap());
+    }
+
+    private RecordingSwitch addSwitch(final long dpid, final int ports) {
+        final RecordingSwitch sw = new RecordingSwitch(dpid);
+        this.net.addSwitch(sw);
+        for (short number = 1; number <= ports; number++) {
+            final PhysicalPort port = new PhysicalPort(new OFPhysicalPort(),
+                    sw, false);
+            port.setHardwareAddress(new byte[] {0x01, 0x02, 0x03,
+                    (byte) dpid, 0x00, (byte) number});
+            port.setPortNumber(number);
+            sw.addPort(port);
+        }
+        return sw;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.ctl = new OpenVirteXController(new CmdLineSettings());
+        this.net = PhysicalNetwork.getInstance();
+        // probe rounds are run by the tests only
+        this.net.getDiscoveryScheduler().stop();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        OVXMap.reset();
+        PhysicalNetwork.reset();
+        this.ctl = null;
+        super.tearDown();
+    }
+
+}
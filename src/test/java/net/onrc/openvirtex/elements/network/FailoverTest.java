@@ -0,0 +1,240 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.elements.network;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import junit.framework.Assert;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import net.onrc.openvirtex.api.service.handlers.HandlerUtils;
+import net.onrc.openvirtex.api.service.handlers.TenantHandler;
+import net.onrc.openvirtex.api.service.handlers.tenant.ProvisionOVXNetwork;
+import net.onrc.openvirtex.api.service.handlers.tenant.TestSwitch;
+import net.onrc.openvirtex.core.OpenVirteXController;
+import net.onrc.openvirtex.core.cmd.CmdLineSettings;
+import net.onrc.openvirtex.elements.OVXMap;
+import net.onrc.openvirtex.elements.datapath.PhysicalSwitch;
+import net.onrc.openvirtex.elements.link.OVXLink;
+import net.onrc.openvirtex.elements.link.PhysicalLink;
+import net.onrc.openvirtex.elements.port.PhysicalPort;
+import net.onrc.openvirtex.messages.OVXPacketIn;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.kohsuke.args4j.CmdLineParser;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.OFPhysicalPort;
+import org.openflow.protocol.action.OFActionOutput;
+
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
+
+/**
+ * Measures the time from a silent link failure to the failover of the
+ * virtual link using it, with switches that loop discovery probes back
+ * over simulated wires.
+ */
+public class FailoverTest extends TestCase {
+
+    private static Logger log = LogManager.getLogger(FailoverTest.class
+            .getName());
+
+    private static final int PROBE_INTERVAL = 20;
+
+    private OpenVirteXController ctl = null;
+    private PhysicalNetwork net;
+    // the port at the other end of the wire of each port, if the wire is up
+    private final Map<PhysicalPort, PhysicalPort> wires = new ConcurrentHashMap<PhysicalPort, PhysicalPort>();
+
+    public FailoverTest(final String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return new TestSuite(FailoverTest.class);
+    }
+
+    /**
+     * Switch that delivers the probes it sends out on a wired port to the
+     * switch at the other end, as a packet_in.
+     */
+    private class SimulatedSwitch extends TestSwitch {
+
+        SimulatedSwitch(final long dpid) {
+            super(dpid);
+        }
+
+        @Override
+        public void sendMsgs(final List<OFMessage> msgs) {
+            for (OFMessage msg : msgs) {
+                final OFPacketOut po = (OFPacketOut) msg;
+                final PhysicalPort src = this.getPort(((OFActionOutput) po
+                        .getActions().get(0)).getPort());
+                final PhysicalPort dst = FailoverTest.this.wires.get(src);
+                if (dst != null) {
+                    FailoverTest.this.net.handleLLDP(new OVXPacketIn(po
+                            .getPacketData(), dst.getPortNumber()), dst
+                            .getParentSwitch());
+                }
+            }
+        }
+    }
+
+    /**
+     * Cuts the wire of the primary path of a virtual link, and reports the
+     * time until the link switched to its backup path.
+     */
+    public void testFailover() throws Exception {
+        // switches 1 and 2 are linked through 3 and 4, or 3, 5 and 4
+        final PhysicalSwitch[] sws = new PhysicalSwitch[5];
+        for (int i = 0; i < sws.length; i++) {
+            sws[i] = new SimulatedSwitch(i + 1);
+            this.net.addSwitch(sws[i]);
+        }
+        for (int i = 0; i < sws.length; i++) {
+            for (short number = 1; number <= 3; number++) {
+                final PhysicalPort port = new PhysicalPort(
+                        new OFPhysicalPort(), sws[i], false);
+                port.setHardwareAddress(new byte[] {0x01, 0x02, 0x03, 0x04,
+                        (byte) i, (byte) number});
+                port.setPortNumber(number);
+                sws[i].addPort(port);
+            }
+        }
+        this.wire(sws[0], 1, sws[2], 1);
+        this.wire(sws[2], 2, sws[3], 1);
+        this.wire(sws[3], 2, sws[1], 1);
+        this.wire(sws[2], 3, sws[4], 1);
+        this.wire(sws[4], 2, sws[3], 3);
+        // let the slow rounds discover all wires
+        for (int round = 0; round < 3; round++) {
+            for (PhysicalSwitch sw : sws) {
+                this.net.getDiscoveryManager(sw.getSwitchId()).sendProbes();
+            }
+        }
+        Assert.assertEquals(10, this.net.getLinks().size());
+        Assert.assertEquals(PROBE_INTERVAL, this.net.getDiscoveryManager(1)
+                .getProbeInterval((short) 1));
+
+        final JSONRPC2Response resp = new ProvisionOVXNetwork().process(this
+                .makeNetwork());
+        Assert.assertNull(resp.getError());
+        final OVXNetwork vnet = OVXMap.getInstance().listVirtualNetworks()
+                .values().iterator().next();
+        final int linkId = vnet.getLinkSet().iterator().next().getLinkId();
+        final OVXLink vlink = vnet.setLinkPath(linkId, HandlerUtils
+                .getPhysicalPath("1/1-3/1,3/3-5/1,5/2-4/3,4/2-2/1"),
+                (byte) 50);
+        final PhysicalLink backup = this.net.getLink(
+                sws[2].getPort((short) 3), sws[4].getPort((short) 1));
+
+        final long cut = System.nanoTime();
+        this.wires.remove(sws[2].getPort((short) 2));
+        this.wires.remove(sws[3].getPort((short) 1));
+        long failover = 0;
+        while (System.nanoTime() - cut < 5000000000L) {
+            if (OVXMap.getInstance().getPhysicalLinks(vlink).contains(backup)) {
+                failover = System.nanoTime() - cut;
+                break;
+            }
+            Thread.sleep(1);
+        }
+        Assert.assertTrue("No failover", failover > 0);
+        Assert.assertNull(this.net.getNeighborPort(sws[2].getPort((short) 2)));
+        log.info("Probing links every {} ms, failed over {} ms after the link was cut",
+                PROBE_INTERVAL, failover / 1000000);
+    }
+
+    private void wire(final PhysicalSwitch sw1, final int port1,
+            final PhysicalSwitch sw2, final int port2) {
+        final PhysicalPort p1 = sw1.getPort((short) port1);
+        final PhysicalPort p2 = sw2.getPort((short) port2);
+        this.wires.put(p1, p2);
+        this.wires.put(p2, p1);
+    }
+
+    /**
+     * Describes a network of switches 1 and 2, linked by their first ports
+     * through switches 3 and 4, with a host on their second port.
+     */
+    private Map<String, Object> makeNetwork() {
+        final Map<String, Object> params = new HashMap<String, Object>();
+        params.put(TenantHandler.CTRLURLS,
+                new ArrayList<String>(Arrays.asList("tcp:127.0.0.1:6633")));
+        params.put(TenantHandler.NETADD, "10.0.0.0");
+        params.put(TenantHandler.NETMASK, 24);
+        final List<Map<String, Object>> switches = new ArrayList<Map<String, Object>>();
+        final List<Map<String, Object>> ports = new ArrayList<Map<String, Object>>();
+        final List<Map<String, Object>> hosts = new ArrayList<Map<String, Object>>();
+        for (long dpid = 1; dpid <= 2; dpid++) {
+            final Map<String, Object> sw = new HashMap<String, Object>();
+            sw.put(TenantHandler.DPIDS, Arrays.asList(dpid));
+            switches.add(sw);
+            for (short port = 1; port <= 2; port++) {
+                final Map<String, Object> p = new HashMap<String, Object>();
+                p.put(TenantHandler.DPID, dpid);
+                p.put(TenantHandler.PORT, port);
+                ports.add(p);
+            }
+            final Map<String, Object> host = new HashMap<String, Object>();
+            host.put(TenantHandler.DPID, dpid);
+            host.put(TenantHandler.PORT, 2);
+            host.put(TenantHandler.MAC, "00:00:00:00:00:0" + dpid);
+            hosts.add(host);
+        }
+        final Map<String, Object> link = new HashMap<String, Object>();
+        link.put(TenantHandler.SRC_DPID, 1);
+        link.put(TenantHandler.SRC_PORT, 1);
+        link.put(TenantHandler.DST_DPID, 2);
+        link.put(TenantHandler.DST_PORT, 1);
+        link.put(TenantHandler.ALGORITHM, "manual");
+        link.put(TenantHandler.BACKUPS, 0);
+        link.put(TenantHandler.PATH, "1/1-3/1,3/2-4/1,4/2-2/1");
+        link.put(TenantHandler.PRIORITY, 100);
+        params.put(TenantHandler.SWITCHES, switches);
+        params.put(TenantHandler.PORTS, ports);
+        params.put(TenantHandler.LINKS, Arrays.asList(link));
+        params.put(TenantHandler.HOSTS, hosts);
+        return params;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final CmdLineSettings settings = new CmdLineSettings();
+        new CmdLineParser(settings).parseArgument("--fast-probe-interval",
+                String.valueOf(FailoverTest.PROBE_INTERVAL));
+        this.ctl = new OpenVirteXController(settings);
+        this.net = PhysicalNetwork.getInstance();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        OVXMap.reset();
+        PhysicalNetwork.reset();
+        OVXNetwork.reset();
+        this.ctl = null;
+        super.tearDown();
+    }
+
+}
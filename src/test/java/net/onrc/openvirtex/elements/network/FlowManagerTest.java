@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.elements.network;
+
+import java.util.LinkedList;
+
+import junit.framework.Assert;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import net.onrc.openvirtex.core.OpenVirteXController;
+import net.onrc.openvirtex.core.cmd.CmdLineSettings;
+import net.onrc.openvirtex.util.MACAddress;
+import net.onrc.openvirtex.util.OVXFlowManager;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Tests the allocation of the flow ids of a virtual network.
+ */
+public class FlowManagerTest extends TestCase {
+
+    private static Logger log = LogManager.getLogger(FlowManagerTest.class
+            .getName());
+
+    private OpenVirteXController ctl = null;
+
+    public FlowManagerTest(final String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return new TestSuite(FlowManagerTest.class);
+    }
+
+    /**
+     * Tests that ids are allocated on first use, and map back to their
+     * addresses.
+     */
+    public void testFlowIds() throws Exception {
+        final OVXFlowManager fm = new OVXFlowManager(1);
+        Assert.assertEquals(0, fm.getFlowCount());
+        final int id = fm.storeFlowValues(mac(1), mac(2));
+        Assert.assertEquals(1, id);
+        Assert.assertEquals(id, (int) fm.getFlowId(mac(1), mac(2)));
+        Assert.assertEquals(2, (int) fm.getFlowId(mac(2), mac(1)));
+        Assert.assertEquals(2, fm.getFlowCount());
+
+        final LinkedList<MACAddress> macs = fm.getFlowValues(id);
+        Assert.assertEquals(MACAddress.valueOf(mac(1)), macs.get(0));
+        Assert.assertEquals(MACAddress.valueOf(mac(2)), macs.get(1));
+        Assert.assertTrue(fm.getFlowValues(3).isEmpty());
+    }
+
+    /**
+     * Tests that an id is given back once the last flow entry holding it is
+     * removed, and reused for the next pair.
+     */
+    public void testRelease() throws Exception {
+        final OVXFlowManager fm = new OVXFlowManager(1);
+        final int id = fm.storeFlowValues(mac(1), mac(2), 1, 10);
+        Assert.assertEquals(id, (int) fm.getFlowId(mac(1), mac(2), 2, 10));
+        fm.releaseFlowId(1, 10);
+        Assert.assertEquals(1, fm.getFlowCount());
+        /* releasing twice does not drop the other holder */
+        fm.releaseFlowId(1, 10);
+        Assert.assertEquals(1, fm.getFlowCount());
+        fm.releaseFlowId(2, 10);
+        Assert.assertEquals(0, fm.getFlowCount());
+        Assert.assertTrue(fm.getFlowValues(id).isEmpty());
+        Assert.assertEquals(id, (int) fm.storeFlowValues(mac(3), mac(4)));
+
+        /* a cookie given to a new flow entry drops the id of the old one */
+        final int other = fm.storeFlowValues(mac(5), mac(6), 1, 11);
+        fm.storeFlowValues(mac(5), mac(7), 1, 11);
+        Assert.assertTrue(fm.getFlowValues(other).isEmpty());
+        Assert.assertEquals(2, fm.getFlowCount());
+    }
+
+    /**
+     * Reports the boot time and heap of virtual networks whose hosts each
+     * talk to a few others, for growing numbers of hosts.
+     */
+    public void testBenchmark() throws Exception {
+        final int peers = 8;
+        for (int hosts : new int[] {1000, 5000, 10000}) {
+            final long heap = usedHeap();
+            long start = System.nanoTime();
+            final OVXFlowManager fm = new OVXFlowManager(1);
+            final long boot = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            long cookie = 0;
+            for (int src = 1; src <= hosts; src++) {
+                for (int p = 1; p <= peers; p++) {
+                    fm.storeFlowValues(mac(src), mac((src + p) % hosts + 1),
+                            1, cookie++);
+                }
+            }
+            final long alloc = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int src = 1; src <= hosts; src++) {
+                for (int p = 1; p <= peers; p++) {
+                    fm.getFlowId(mac(src), mac((src + p) % hosts + 1));
+                }
+            }
+            final long lookup = System.nanoTime() - start;
+            final long used = usedHeap() - heap;
+            Assert.assertEquals(hosts * peers, fm.getFlowCount());
+            log.info("{} hosts: boot {} us, {} flow ids allocated in {} ms "
+                    + "and looked up in {} ms, {} KB of heap, "
+                    + "{} pairs stored at boot before",
+                    hosts, boot / 1000, fm.getFlowCount(), alloc / 1000000,
+                    lookup / 1000000, used / 1024,
+                    (long) hosts * hosts);
+        }
+    }
+
+    private static byte[] mac(final long host) {
+        return MACAddress.valueOf(0x020000000000L | host).toBytes();
+    }
+
+    private static long usedHeap() {
+        final Runtime rt = Runtime.getRuntime();
+        System.gc();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.ctl = new OpenVirteXController(new CmdLineSettings());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.ctl = null;
+        super.tearDown();
+    }
+
+}
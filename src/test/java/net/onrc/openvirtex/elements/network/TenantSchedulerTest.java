@@ -0,0 +1,219 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.elements.network;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import net.onrc.openvirtex.elements.network.TenantScheduler.Budget;
+import net.onrc.openvirtex.elements.network.TenantScheduler.Policy;
+import net.onrc.openvirtex.util.Metrics;
+import net.onrc.openvirtex.util.MetricsRegistry;
+
+/**
+ * Tests the admission of packet-ins by tenant and the fair sharing of
+ * message handling among tenants.
+ */
+public class TenantSchedulerTest extends TestCase {
+
+    // tenant ids unlikely to be used by other tests
+    private static final int TENANT_A = 1000001;
+    private static final int TENANT_B = 1000002;
+    private static final int TENANT_C = 1000003;
+
+    public TenantSchedulerTest(final String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return new TestSuite(TenantSchedulerTest.class);
+    }
+
+    @Override
+    protected void tearDown() {
+        MetricsRegistry.getInstance().removeTenant(TenantSchedulerTest.TENANT_A);
+        MetricsRegistry.getInstance().removeTenant(TenantSchedulerTest.TENANT_B);
+        MetricsRegistry.getInstance().removeTenant(TenantSchedulerTest.TENANT_C);
+    }
+
+    /**
+     * Tests that packet-ins over the rate of a tenant are dropped or
+     * sampled, without affecting other tenants.
+     */
+    public void testAdmission() {
+        final TenantScheduler scheduler = new TenantScheduler(16, new Budget(
+                1, 3, 1, Policy.DROP, 1));
+        final AtomicInteger handled = new AtomicInteger();
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                handled.incrementAndGet();
+            }
+        };
+
+        for (int i = 0; i < 10; i++) {
+            scheduler.submit(TenantSchedulerTest.TENANT_A, null, task);
+        }
+        Assert.assertEquals(3, handled.get());
+
+        scheduler.setBudget(TenantSchedulerTest.TENANT_A, new Budget(1, 3, 1,
+                Policy.SAMPLE, 2));
+        for (int i = 0; i < 4; i++) {
+            scheduler.submit(TenantSchedulerTest.TENANT_A, null, task);
+        }
+        Assert.assertEquals(5, handled.get());
+
+        scheduler.setBudget(TenantSchedulerTest.TENANT_B, new Budget(0, 0, 1,
+                Policy.DROP, 1));
+        for (int i = 0; i < 10; i++) {
+            scheduler.submit(TenantSchedulerTest.TENANT_B, null, task);
+        }
+        Assert.assertEquals(15, handled.get());
+
+        final Metrics metrics = MetricsRegistry.getInstance().findTenant(
+                TenantSchedulerTest.TENANT_A);
+        Assert.assertEquals(3, metrics.getCounter("admittedPacketIns").get());
+        Assert.assertEquals(2, metrics.getCounter("sampledPacketIns").get());
+        Assert.assertEquals(9, metrics.getCounter("droppedPacketIns").get());
+        Assert.assertEquals(5, metrics.getHistogram("queueTime").getCount());
+    }
+
+    /**
+     * Tests that queued messages are handled in proportion to the weights
+     * of their tenants, each tenant in order.
+     */
+    public void testFairness() {
+        final TenantScheduler scheduler = new TenantScheduler(16, new Budget(
+                0, 0, 1, Policy.DROP, 1));
+        scheduler.setBudget(TenantSchedulerTest.TENANT_B, new Budget(0, 0, 2,
+                Policy.DROP, 1));
+        final List<String> handled = new ArrayList<String>();
+
+        // messages submitted while a message is handled are queued
+        scheduler.submit(TenantSchedulerTest.TENANT_C, null, new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 6; i++) {
+                    scheduler.submit(TenantSchedulerTest.TENANT_A, null,
+                            record(handled, "a" + i));
+                }
+                for (int i = 0; i < 6; i++) {
+                    scheduler.submit(TenantSchedulerTest.TENANT_B, null,
+                            record(handled, "b" + i));
+                }
+                Assert.assertTrue(handled.isEmpty());
+            }
+        });
+
+        Assert.assertEquals(12, handled.size());
+        int b = 0;
+        for (String message : handled.subList(0, 9)) {
+            if (message.startsWith("b")) {
+                b++;
+            }
+        }
+        Assert.assertEquals(6, b);
+        int a = 0;
+        b = 0;
+        for (String message : handled) {
+            final int expected = message.startsWith("a") ? a++ : b++;
+            Assert.assertEquals(expected, Integer.parseInt(message.substring(1)));
+        }
+    }
+
+    /**
+     * Tests that queues are drained on the shards of their tenants, so a
+     * tenant whose handling blocks holds up neither the submitting thread
+     * nor a tenant of another shard.
+     */
+    public void testShards() throws Exception {
+        final TenantExecutor executor = new TenantExecutor(2);
+        final TenantScheduler scheduler = new TenantScheduler(16, new Budget(
+                0, 0, 1, Policy.DROP, 1), executor);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch handled = new CountDownLatch(2);
+        final Thread submitter = Thread.currentThread();
+        final AtomicInteger onSubmitter = new AtomicInteger();
+        try {
+            // tenants A and B are on different shards
+            scheduler.submit(TenantSchedulerTest.TENANT_A, null, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            for (int i = 0; i < 2; i++) {
+                scheduler.submit(TenantSchedulerTest.TENANT_B, null,
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                if (Thread.currentThread() == submitter) {
+                                    onSubmitter.incrementAndGet();
+                                }
+                                handled.countDown();
+                            }
+                        });
+            }
+            Assert.assertTrue(handled.await(5, TimeUnit.SECONDS));
+            Assert.assertEquals(0, onSubmitter.get());
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    private static Runnable record(final List<String> handled,
+            final String message) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                handled.add(message);
+            }
+        };
+    }
+
+    /**
+     * Tests that messages are handled as they are submitted without a
+     * queue.
+     */
+    public void testDisabled() {
+        final TenantScheduler scheduler = new TenantScheduler(0, new Budget(
+                1, 1, 1, Policy.DROP, 1));
+        final AtomicInteger handled = new AtomicInteger();
+        for (int i = 0; i < 5; i++) {
+            scheduler.submit(TenantSchedulerTest.TENANT_A, null, new Runnable() {
+                @Override
+                public void run() {
+                    handled.incrementAndGet();
+                }
+            });
+        }
+        Assert.assertEquals(5, handled.get());
+        Assert.assertFalse(scheduler.isEnabled());
+    }
+
+}
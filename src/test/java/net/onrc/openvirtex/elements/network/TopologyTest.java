@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.elements.network;
+
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import net.onrc.openvirtex.api.service.handlers.monitoring.GetPhysicalTopology;
+import net.onrc.openvirtex.api.service.handlers.tenant.TestSwitch;
+import net.onrc.openvirtex.core.OpenVirteXController;
+import net.onrc.openvirtex.core.cmd.CmdLineSettings;
+import net.onrc.openvirtex.elements.OVXMap;
+import net.onrc.openvirtex.elements.datapath.PhysicalSwitch;
+import net.onrc.openvirtex.elements.link.PhysicalLink;
+import net.onrc.openvirtex.elements.port.PhysicalPort;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openflow.protocol.OFPhysicalPort;
+
+/**
+ * Tests the snapshots of the physical topology.
+ */
+public class TopologyTest extends TestCase {
+
+    private static Logger log = LogManager.getLogger(TopologyTest.class
+            .getName());
+
+    private OpenVirteXController ctl = null;
+    private PhysicalNetwork net;
+
+    public TopologyTest(final String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return new TestSuite(TopologyTest.class);
+    }
+
+    /**
+     * Tests that a snapshot is not changed by later changes, and that
+     * removing a switch removes its links.
+     */
+    public void testSnapshot() {
+        final PhysicalSwitch[] sws = this.makeLine(3);
+        final Topology<PhysicalSwitch, PhysicalPort, PhysicalLink> before = this.net
+                .getTopology();
+        Assert.assertSame(before, this.net.getTopology());
+        Assert.assertEquals(before.getVersion(), this.net.getVersion());
+        Assert.assertEquals(4, before.getLinks().size());
+
+        this.net.removeSwitch(sws[1]);
+        Assert.assertTrue(this.net.getVersion() > before.getVersion());
+        Assert.assertEquals(3, before.getSwitches().size());
+        Assert.assertEquals(4, before.getLinks().size());
+        Assert.assertSame(sws[1], before.getNeighborPort(sws[0].getPort(
+                (short) 2)).getParentSwitch());
+
+        final Topology<PhysicalSwitch, PhysicalPort, PhysicalLink> after = this.net
+                .getTopology();
+        Assert.assertEquals(2, after.getSwitches().size());
+        Assert.assertTrue(after.getLinks().isEmpty());
+        Assert.assertNull(after.getSwitch(sws[1].getSwitchId()));
+        Assert.assertTrue(after.getNeighbors(sws[0]).isEmpty());
+        Assert.assertTrue(after.getNeighbors(sws[2]).isEmpty());
+        Assert.assertNull(after.getNeighborPort(sws[0].getPort((short) 2)));
+        Assert.assertTrue(after.getOutgoingLinks(sws[2]).isEmpty());
+    }
+
+    /**
+     * Tests that the physical topology is reported from a snapshot.
+     */
+    @SuppressWarnings("unchecked")
+    public void testSerialize() {
+        this.makeLine(3);
+        final Map<String, Object> result = (Map<String, Object>) new GetPhysicalTopology()
+                .process(null).getResult();
+        Assert.assertEquals(3, ((List<?>) result.get("switches")).size());
+        Assert.assertEquals(4, ((List<?>) result.get("links")).size());
+    }
+
+    /**
+     * Reports the time taken to remove switches from a large topology, and
+     * to look links up while it changes.
+     */
+    public void testBenchmark() {
+        final int size = 5000;
+        final PhysicalSwitch[] sws = this.makeLine(size);
+        final PhysicalPort port = sws[0].getPort((short) 2);
+        long start = System.nanoTime();
+        int found = 0;
+        for (int i = 0; i < 1000000; i++) {
+            if (this.net.getNeighborPort(port) != null) {
+                found++;
+            }
+        }
+        final long lookupTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 1; i < size; i += 2) {
+            this.net.removeSwitch(sws[i]);
+        }
+        final long removeTime = System.nanoTime() - start;
+        Assert.assertTrue(this.net.getLinks().isEmpty());
+        log.info("{} switches: 1M neighbor lookups ({} found) in {} ms, "
+                + "removed {} switches in {} ms", size, found,
+                lookupTime / 1000000, size / 2, removeTime / 1000000);
+    }
+
+    /**
+     * Makes a line of switches, the second port of each linked to the first
+     * port of the next one.
+     */
+    private PhysicalSwitch[] makeLine(final int size) {
+        final PhysicalSwitch[] sws = new PhysicalSwitch[size];
+        for (int i = 0; i < size; i++) {
+            sws[i] = new TestSwitch(i + 1);
+            this.net.addSwitch(sws[i]);
+            for (short number = 1; number <= 2; number++) {
+                final PhysicalPort port = new PhysicalPort(
+                        new OFPhysicalPort(), sws[i], false);
+                port.setPortNumber(number);
+                sws[i].addPort(port);
+            }
+            if (i > 0) {
+                final PhysicalPort src = sws[i - 1].getPort((short) 2);
+                final PhysicalPort dst = sws[i].getPort((short) 1);
+                this.net.createLink(src, dst);
+                this.net.createLink(dst, src);
+            }
+        }
+        return sws;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.ctl = new OpenVirteXController(new CmdLineSettings());
+        this.net = PhysicalNetwork.getInstance();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        OVXMap.reset();
+        PhysicalNetwork.reset();
+        this.ctl = null;
+        super.tearDown();
+    }
+
+}
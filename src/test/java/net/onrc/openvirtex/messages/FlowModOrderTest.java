@@ -0,0 +1,229 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.messages;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import junit.framework.Assert;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import net.onrc.openvirtex.api.service.handlers.TenantHandler;
+import net.onrc.openvirtex.api.service.handlers.tenant.AbstractAPICalls;
+import net.onrc.openvirtex.api.service.handlers.tenant.TestSwitch;
+import net.onrc.openvirtex.core.OpenVirteXController;
+import net.onrc.openvirtex.core.cmd.CmdLineSettings;
+import net.onrc.openvirtex.core.io.OVXSendMsg;
+import net.onrc.openvirtex.elements.OVXMap;
+import net.onrc.openvirtex.elements.datapath.OVXSwitch;
+import net.onrc.openvirtex.elements.network.OVXNetwork;
+import net.onrc.openvirtex.elements.network.PhysicalNetwork;
+import net.onrc.openvirtex.elements.port.PhysicalPort;
+import net.onrc.openvirtex.messages.actions.OVXActionOutput;
+
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPhysicalPort;
+import org.openflow.protocol.OFType;
+import org.openflow.protocol.action.OFAction;
+
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
+
+/**
+ * Tests that flow mods of a virtual switch reach the physical switch in the
+ * order they were sent, even when the first one waits for the path of a
+ * virtual link to be installed.
+ */
+public class FlowModOrderTest extends TestCase {
+
+    private OpenVirteXController ctl = null;
+    private final AbstractAPICalls api = new AbstractAPICalls();
+    private final RemoteSwitch[] sws = new RemoteSwitch[3];
+    private OVXSwitch vsw;
+
+    public static Test suite() {
+        return new TestSuite(FlowModOrderTest.class);
+    }
+
+    /**
+     * Physical switch that keeps the messages sent to it, and holds back
+     * its barrier replies until released.
+     */
+    private static class RemoteSwitch extends TestSwitch {
+        private final List<OFMessage> received = new CopyOnWriteArrayList<OFMessage>();
+        private final List<Integer> barriers = new CopyOnWriteArrayList<Integer>();
+
+        RemoteSwitch(final long dpid) {
+            super(dpid);
+            this.setConnected(true);
+        }
+
+        @Override
+        public void sendMsg(final OFMessage msg, final OVXSendMsg from) {
+            if (from instanceof OVXSwitch) {
+                ((OVXSwitch) from).addBarrierTarget(this);
+            }
+            if (msg.getType() == OFType.BARRIER_REQUEST) {
+                this.barriers.add(msg.getXid());
+            } else {
+                this.received.add(msg);
+            }
+        }
+
+        void release() {
+            for (Integer xid : this.barriers) {
+                this.handleBarrierReply(xid);
+            }
+            this.barriers.clear();
+        }
+
+        List<Short> getFlowModCommands() {
+            final List<Short> commands = new ArrayList<Short>();
+            for (OFMessage msg : this.received) {
+                if (msg.getType() == OFType.FLOW_MOD) {
+                    commands.add(((OFFlowMod) msg).getCommand());
+                }
+            }
+            return commands;
+        }
+    }
+
+    /**
+     * Tests that a delete sent after a flow mod over a virtual link is not
+     * sent before it, while the path of the link is being installed.
+     */
+    public void testDeleteAfterLinkFlowMod() {
+        final OVXFlowMod add = new OVXFlowMod();
+        final OFMatch match = new OFMatch();
+        match.setWildcards(OFMatch.OFPFW_ALL & ~OFMatch.OFPFW_IN_PORT
+                & ~OFMatch.OFPFW_DL_SRC & ~OFMatch.OFPFW_DL_DST);
+        match.setInputPort((short) 2);
+        match.setDataLayerSource("00:00:00:00:00:01");
+        match.setDataLayerDestination("00:00:00:00:00:02");
+        add.setMatch(match);
+        add.setCommand(OFFlowMod.OFPFC_ADD);
+        add.setBufferId(OVXPacketOut.BUFFER_ID_NONE);
+        final OVXActionOutput output = new OVXActionOutput();
+        output.setPort((short) 1);
+        add.setActions(Collections.singletonList((OFAction) output));
+        add.setLengthU(OFFlowMod.MINIMUM_LENGTH + OVXActionOutput.MINIMUM_LENGTH);
+        add.devirtualize(this.vsw);
+        /* the transit flow mod is sent, the ingress one waits */
+        Assert.assertEquals(1, this.sws[2].getFlowModCommands().size());
+        Assert.assertTrue(this.sws[0].getFlowModCommands().isEmpty());
+
+        final OVXFlowMod delete = new OVXFlowMod();
+        delete.setMatch(match.clone());
+        delete.setCommand(OFFlowMod.OFPFC_DELETE);
+        delete.setBufferId(OVXPacketOut.BUFFER_ID_NONE);
+        delete.setActions(new ArrayList<OFAction>());
+        delete.setLengthU(OFFlowMod.MINIMUM_LENGTH);
+        delete.devirtualize(this.vsw);
+        Assert.assertTrue(this.sws[0].getFlowModCommands().isEmpty());
+
+        for (RemoteSwitch sw : this.sws) {
+            sw.release();
+        }
+        Assert.assertEquals(
+                Arrays.asList(OFFlowMod.OFPFC_ADD,
+                        OFFlowMod.OFPFC_DELETE),
+                this.sws[0].getFlowModCommands());
+    }
+
+    private PhysicalPort makePort(final RemoteSwitch sw, final short number,
+            final boolean isEdge) {
+        final PhysicalPort port = new PhysicalPort(new OFPhysicalPort(), sw,
+                isEdge);
+        port.setHardwareAddress(new byte[] {0x00, 0x00, 0x00,
+                sw.getSwitchId().byteValue(), 0x00, (byte) number});
+        port.setPortNumber(number);
+        sw.addPort(port);
+        return port;
+    }
+
+    private void connect(final PhysicalPort src, final PhysicalPort dst) {
+        PhysicalNetwork.getInstance().createLink(src, dst);
+        PhysicalNetwork.getInstance().createLink(dst, src);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object getResult(final JSONRPC2Response resp, final String field) {
+        Assert.assertNull(resp.getError() == null ? null : resp.getError()
+                .getMessage(), resp.getError());
+        return ((Map<String, Object>) resp.getResult()).get(field);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.ctl = new OpenVirteXController(new CmdLineSettings());
+        /* switch 1 reaches switch 2 through switch 3 */
+        for (int i = 0; i < this.sws.length; i++) {
+            this.sws[i] = new RemoteSwitch(i + 1);
+            PhysicalNetwork.getInstance().addSwitch(this.sws[i]);
+        }
+        this.connect(this.makePort(this.sws[0], (short) 1, false),
+                this.makePort(this.sws[2], (short) 1, false));
+        this.connect(this.makePort(this.sws[2], (short) 3, false),
+                this.makePort(this.sws[1], (short) 1, false));
+        this.makePort(this.sws[0], (short) 2, true);
+
+        final int tenantId = (Integer) this.getResult(
+                this.api.createNetwork(10000), TenantHandler.TENANT);
+        final long src = (Long) this.getResult(
+                this.api.createSwitch(tenantId, Collections.singletonList(1)),
+                TenantHandler.VDPID);
+        final long dst = (Long) this.getResult(
+                this.api.createSwitch(tenantId, Collections.singletonList(2)),
+                TenantHandler.VDPID);
+        final short srcPort = (Short) this.getResult(
+                this.api.createPort(tenantId, 1L, (short) 1),
+                TenantHandler.VPORT);
+        final short dstPort = (Short) this.getResult(
+                this.api.createPort(tenantId, 2L, (short) 1),
+                TenantHandler.VPORT);
+        final short edgePort = (Short) this.getResult(
+                this.api.createPort(tenantId, 1L, (short) 2),
+                TenantHandler.VPORT);
+        final int linkId = (Integer) this.getResult(this.api.connectLink(
+                tenantId, src, srcPort, dst, dstPort, "manual", (byte) 0),
+                TenantHandler.LINK);
+        this.getResult(this.api.setLinkPath(tenantId, linkId,
+                "1/1-3/1,3/3-2/1", (byte) 100), TenantHandler.LINK);
+
+        this.vsw = OVXMap.getInstance().getVirtualNetwork(tenantId)
+                .getSwitch(src);
+        Assert.assertEquals(2, edgePort);
+        this.vsw.getPort(srcPort).boot();
+        this.vsw.getPort(edgePort).boot();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        OVXMap.reset();
+        PhysicalNetwork.reset();
+        OVXNetwork.reset();
+        this.ctl = null;
+        super.tearDown();
+    }
+
+}
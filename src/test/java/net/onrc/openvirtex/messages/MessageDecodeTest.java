@@ -0,0 +1,234 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.messages;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import net.onrc.openvirtex.core.OpenVirteXController;
+import net.onrc.openvirtex.core.cmd.CmdLineSettings;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.openflow.protocol.OFEchoRequest;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketIn.OFPacketInReason;
+import org.openflow.protocol.OFVendor;
+import org.openflow.protocol.factory.MessageParseException;
+import org.openflow.protocol.vendor.OFByteArrayVendorData;
+
+/**
+ * Tests the lazy decoding of OpenFlow messages, and reports the decode and
+ * encode throughput of both modes on a synthetic OpenFlow 1.0 control
+ * channel.
+ */
+public class MessageDecodeTest extends TestCase {
+
+    private static Logger log = LogManager.getLogger(MessageDecodeTest.class
+            .getName());
+
+    OpenVirteXController ctl = null;
+    private final OVXMessageFactory factory = OVXMessageFactory.getInstance();
+
+    public MessageDecodeTest(final String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return new TestSuite(MessageDecodeTest.class);
+    }
+
+    /**
+     * Tests that both modes decode the same messages, and that encoding them
+     * again gives back the original bytes.
+     */
+    public void testRoundTrip() throws MessageParseException {
+        final ChannelBuffer traffic = MessageDecodeTest.makeTraffic(10, 4);
+        final List<OFMessage> eager = this.factory.parseMessage(traffic
+                .duplicate());
+        final List<OFMessage> lazy = this.factory.parseMessage(
+                traffic.duplicate(), true);
+        Assert.assertEquals(eager.size(), lazy.size());
+        for (int i = 0; i < eager.size(); i++) {
+            Assert.assertEquals(eager.get(i).getClass(), lazy.get(i)
+                    .getClass());
+            Assert.assertEquals(eager.get(i).getXid(), lazy.get(i).getXid());
+        }
+        Assert.assertEquals(traffic, MessageDecodeTest.encode(eager));
+        Assert.assertEquals(traffic, MessageDecodeTest.encode(lazy));
+    }
+
+    /**
+     * Tests that the body of a lazily read message is decoded on first
+     * access, and that header changes survive decoding.
+     */
+    public void testDecodeOnAccess() throws MessageParseException {
+        final List<OFMessage> msgs = this.factory.parseMessage(
+                MessageDecodeTest.makeTraffic(1, 4), true);
+        final OFEchoRequest echo = (OFEchoRequest) msgs.get(0);
+        final OFVendor vendor = (OFVendor) msgs.get(3);
+        Assert.assertFalse(echo.isDecoded());
+        Assert.assertFalse(vendor.isDecoded());
+        // Packet ins are always decoded
+        Assert.assertTrue(msgs.get(4).isDecoded());
+
+        echo.setXid(42);
+        final ChannelBuffer raw = MessageDecodeTest.encode(msgs.subList(0, 1));
+        Assert.assertFalse(echo.isDecoded());
+        Assert.assertEquals(42, raw.getInt(4));
+
+        Assert.assertTrue(Arrays.equals(MessageDecodeTest.payload(16),
+                echo.getPayload()));
+        Assert.assertTrue(echo.isDecoded());
+        Assert.assertEquals(42, echo.getXid());
+        Assert.assertEquals(raw, MessageDecodeTest.encode(msgs.subList(0, 1)));
+
+        Assert.assertEquals(0x2320, vendor.getVendor());
+        Assert.assertTrue(Arrays.equals(MessageDecodeTest.payload(256),
+                ((OFByteArrayVendorData) vendor.getVendorData()).getBytes()));
+    }
+
+    /**
+     * Reports the time to decode and encode the same traffic in both modes,
+     * for the whole channel and for the messages that can be read lazily.
+     */
+    public void testBenchmark() throws MessageParseException {
+        this.benchmark("all", MessageDecodeTest.makeTraffic(1000, 4));
+        this.benchmark("echo and vendor",
+                MessageDecodeTest.makeTraffic(1000, 0));
+    }
+
+    private void benchmark(final String name, final ChannelBuffer traffic)
+            throws MessageParseException {
+        final int runs = 20;
+        // Alternate the modes and keep the best of several trials, so that
+        // neither mode pays for warming up or for the other's garbage
+        final long[] best = {Long.MAX_VALUE, Long.MAX_VALUE};
+        int msgs = 0;
+        for (int trial = 0; trial < 5; trial++) {
+            for (int mode = 0; mode < 2; mode++) {
+                final long start = System.nanoTime();
+                msgs = this.run(traffic, mode == 1, runs);
+                best[mode] = Math.min(best[mode], System.nanoTime() - start);
+            }
+        }
+        log.info("{} messages: {} per second eager, {} per second lazy",
+                name, msgs * 1000000000L / best[0], msgs * 1000000000L
+                        / best[1]);
+    }
+
+    private int run(final ChannelBuffer traffic, final boolean lazy,
+            final int runs) throws MessageParseException {
+        int msgs = 0;
+        for (int i = 0; i < runs; i++) {
+            final List<OFMessage> decoded = this.factory.parseMessage(
+                    traffic.duplicate(), lazy);
+            for (OFMessage m : decoded) {
+                // What the controller does to every message it forwards
+                m.setXid(m.getXid() + 1);
+            }
+            Assert.assertEquals(traffic.readableBytes(),
+                    MessageDecodeTest.encode(decoded).readableBytes());
+            msgs += decoded.size();
+        }
+        return msgs;
+    }
+
+    private static ChannelBuffer encode(final List<OFMessage> msgs) {
+        int size = 0;
+        for (final OFMessage m : msgs) {
+            size += m.getLengthU();
+        }
+        final ChannelBuffer buf = ChannelBuffers.buffer(size);
+        for (final OFMessage m : msgs) {
+            m.writeTo(buf);
+        }
+        return buf;
+    }
+
+    /**
+     * Creates a stream of echoes, barriers, vendor messages and packet ins,
+     * in the proportions of an OpenFlow 1.0 channel between a switch and a
+     * controller.
+     *
+     * @param rounds the number of echo request and reply pairs
+     * @param packetIns the number of packet ins per echo request
+     */
+    private static ChannelBuffer makeTraffic(final int rounds,
+            final int packetIns) {
+        final List<OFMessage> msgs = new ArrayList<OFMessage>();
+        int xid = 1;
+        for (int i = 0; i < rounds; i++) {
+            final OVXEchoRequest echo = new OVXEchoRequest();
+            echo.setPayload(MessageDecodeTest.payload(16));
+            echo.setLengthU(OFEchoRequest.MINIMUM_LENGTH + 16);
+            msgs.add(echo);
+            final OVXEchoReply reply = new OVXEchoReply();
+            reply.setPayload(MessageDecodeTest.payload(16));
+            reply.setLengthU(OFEchoRequest.MINIMUM_LENGTH + 16);
+            msgs.add(reply);
+            msgs.add(new OVXBarrierReply());
+            final OVXVendor vendor = new OVXVendor();
+            vendor.setVendor(0x2320);
+            vendor.setVendorData(new OFByteArrayVendorData(MessageDecodeTest
+                    .payload(256)));
+            vendor.setLengthU(OFVendor.MINIMUM_LENGTH + 256);
+            msgs.add(vendor);
+            for (int p = 0; p < packetIns; p++) {
+                final OVXPacketIn pi = new OVXPacketIn();
+                pi.setBufferId(-1);
+                pi.setInPort((short) (p + 1));
+                pi.setReason(OFPacketInReason.NO_MATCH);
+                pi.setPacketData(MessageDecodeTest.payload(128));
+                pi.setTotalLength((short) 128);
+                pi.setLengthU(OVXPacketIn.MINIMUM_LENGTH + 128);
+                msgs.add(pi);
+            }
+        }
+        for (OFMessage m : msgs) {
+            m.setXid(xid++);
+        }
+        return MessageDecodeTest.encode(msgs);
+    }
+
+    private static byte[] payload(final int length) {
+        final byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) i;
+        }
+        return payload;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.ctl = new OpenVirteXController(new CmdLineSettings());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.ctl = null;
+        super.tearDown();
+    }
+
+}
@@ -0,0 +1,205 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.messages;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Assert;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import net.onrc.openvirtex.core.io.OVXMessageEncoder;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.DownstreamMessageEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.openflow.protocol.OFBarrierRequest;
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFMessage;
+
+/**
+ * Tests the batching of outbound messages by the encoder.
+ */
+public class MessageEncodeTest extends TestCase {
+
+    /**
+     * Stands for a busy connection: writes complete only when told to.
+     */
+    private static class SlowWrites extends SimpleChannelDownstreamHandler {
+        private final List<ChannelFuture> futures = new ArrayList<ChannelFuture>();
+
+        @Override
+        public void writeRequested(final ChannelHandlerContext ctx,
+                final MessageEvent e) {
+            this.futures.add(e.getFuture());
+            ctx.sendDownstream(new DownstreamMessageEvent(ctx.getChannel(),
+                    Channels.future(ctx.getChannel()), e.getMessage(), e
+                            .getRemoteAddress()));
+        }
+
+        /**
+         * Completes the oldest write that is still in progress.
+         */
+        void complete() {
+            this.futures.remove(0).setSuccess();
+        }
+    }
+
+    private SlowWrites slow;
+
+    public MessageEncodeTest(final String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return new TestSuite(MessageEncodeTest.class);
+    }
+
+    /**
+     * Tests that the messages written while a write is in progress are
+     * written out together once it completes, in order, and as they were
+     * when written.
+     */
+    public void testBatch() {
+        final EncoderEmbedder<ChannelBuffer> embedder = this
+                .embed(new OVXMessageEncoder(16384));
+        final OFFlowMod fm = MessageEncodeTest.makeFlowMod();
+        final List<ChannelFuture> futures = new ArrayList<ChannelFuture>();
+        for (int xid = 0; xid < 10; xid++) {
+            // Callers reuse flow mods once they have been sent
+            fm.setXid(xid);
+            futures.add(embedder.getPipeline().getChannel()
+                    .write(Collections.singletonList(fm)));
+        }
+        // Only the first message is written while the channel is idle
+        Assert.assertEquals(1, embedder.size());
+        Assert.assertEquals(OFFlowMod.MINIMUM_LENGTH, embedder.poll()
+                .readableBytes());
+
+        this.slow.complete();
+        Assert.assertTrue(futures.get(0).isSuccess());
+        Assert.assertFalse(futures.get(1).isDone());
+        Assert.assertEquals(1, embedder.size());
+        final ChannelBuffer buf = embedder.poll();
+        Assert.assertEquals(9 * OFFlowMod.MINIMUM_LENGTH, buf.readableBytes());
+        for (int xid = 1; xid < 10; xid++) {
+            Assert.assertEquals(xid,
+                    buf.getInt((xid - 1) * OFFlowMod.MINIMUM_LENGTH + 4));
+        }
+
+        this.slow.complete();
+        for (final ChannelFuture future : futures) {
+            Assert.assertTrue(future.isSuccess());
+        }
+        embedder.finish();
+    }
+
+    /**
+     * Tests that a batch is written out once it holds the maximum batch
+     * size, and that pending messages are written out on close.
+     */
+    public void testMaxBatchSize() {
+        final EncoderEmbedder<ChannelBuffer> embedder = this
+                .embed(new OVXMessageEncoder(3 * OFFlowMod.MINIMUM_LENGTH));
+        for (int i = 0; i < 12; i++) {
+            embedder.offer(Collections.singletonList(MessageEncodeTest
+                    .makeFlowMod()));
+        }
+        // The first message, then three full batches
+        Assert.assertEquals(4, embedder.size());
+        Assert.assertTrue(embedder.finish());
+        Assert.assertEquals(5, embedder.size());
+        final ChannelBuffer[] bufs = embedder.pollAll(new ChannelBuffer[5]);
+        Assert.assertEquals(3 * OFFlowMod.MINIMUM_LENGTH,
+                bufs[3].readableBytes());
+        Assert.assertEquals(2 * OFFlowMod.MINIMUM_LENGTH,
+                bufs[4].readableBytes());
+    }
+
+    /**
+     * Tests that a barrier writes out the batch it ends.
+     */
+    public void testBarrier() {
+        final EncoderEmbedder<ChannelBuffer> embedder = this
+                .embed(new OVXMessageEncoder(16384));
+        embedder.offer(Collections.singletonList(MessageEncodeTest
+                .makeFlowMod()));
+        embedder.offer(Collections.singletonList(MessageEncodeTest
+                .makeFlowMod()));
+        embedder.offer(Collections
+                .singletonList((OFMessage) new OFBarrierRequest()));
+        Assert.assertEquals(2, embedder.size());
+        embedder.poll();
+        Assert.assertEquals(OFFlowMod.MINIMUM_LENGTH
+                + OFMessage.MINIMUM_LENGTH, embedder.poll().readableBytes());
+        embedder.finish();
+    }
+
+    /**
+     * Tests that flushing writes out the held back messages.
+     */
+    public void testFlush() {
+        final OVXMessageEncoder encoder = new OVXMessageEncoder(16384);
+        final EncoderEmbedder<ChannelBuffer> embedder = this.embed(encoder);
+        for (int i = 0; i < 3; i++) {
+            embedder.offer(Collections.singletonList(MessageEncodeTest
+                    .makeFlowMod()));
+        }
+        Assert.assertEquals(1, embedder.size());
+        OVXMessageEncoder.flush(embedder.getPipeline().getChannel());
+        Assert.assertEquals(2, embedder.size());
+        embedder.poll();
+        Assert.assertEquals(2 * OFFlowMod.MINIMUM_LENGTH, embedder.poll()
+                .readableBytes());
+        embedder.finish();
+    }
+
+    /**
+     * Tests that every message is written out on its own when batching is
+     * disabled.
+     */
+    public void testNoBatch() {
+        final EncoderEmbedder<ChannelBuffer> embedder = this
+                .embed(new OVXMessageEncoder());
+        for (int i = 0; i < 10; i++) {
+            embedder.offer(Collections.singletonList(MessageEncodeTest
+                    .makeFlowMod()));
+        }
+        Assert.assertEquals(10, embedder.size());
+        embedder.finish();
+    }
+
+    private EncoderEmbedder<ChannelBuffer> embed(
+            final OVXMessageEncoder encoder) {
+        this.slow = new SlowWrites();
+        return new EncoderEmbedder<ChannelBuffer>(this.slow, encoder);
+    }
+
+    private static OFFlowMod makeFlowMod() {
+        final OFFlowMod fm = new OFFlowMod();
+        fm.setMatch(new OFMatch());
+        return fm;
+    }
+
+}
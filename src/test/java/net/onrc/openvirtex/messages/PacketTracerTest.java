@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.messages;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Assert;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import net.onrc.openvirtex.util.PacketTracer;
+import net.onrc.openvirtex.util.PacketTracer.Event;
+import net.onrc.openvirtex.util.PacketTracer.Stage;
+import net.onrc.openvirtex.util.PacketTracer.Trace;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openflow.protocol.OFMatch;
+
+/**
+ * Tests the sampling and recording of traces of data path messages.
+ */
+public class PacketTracerTest extends TestCase {
+
+    private static Logger log = LogManager.getLogger(PacketTracerTest.class
+            .getName());
+
+    public PacketTracerTest(final String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return new TestSuite(PacketTracerTest.class);
+    }
+
+    /**
+     * Tests that one in every N messages of the selected tenants and
+     * switches is traced.
+     */
+    public void testSampling() {
+        final PacketTracer tracer = new PacketTracer(16);
+        Assert.assertNull(tracer.sample(1, 1));
+
+        tracer.setSampling(3, Arrays.asList(1), Collections.<Long>emptyList());
+        int traced = 0;
+        for (int i = 0; i < 9; i++) {
+            Assert.assertNull(tracer.sample(2, 1));
+            if (tracer.sample(1, 1) != null) {
+                traced++;
+            }
+        }
+        Assert.assertEquals(3, traced);
+
+        tracer.setSampling(1, Collections.<Integer>emptyList(), Arrays.asList(5L));
+        Assert.assertNull(tracer.sample(2, 4));
+        Assert.assertNotNull(tracer.sample(2, 5));
+
+        /* the trace attached to the thread is seen while tracing is on */
+        final Trace trace = tracer.sample(2, 5);
+        Assert.assertNull(tracer.current());
+        tracer.attach(trace);
+        Assert.assertSame(trace, tracer.current());
+        tracer.setSampling(0);
+        Assert.assertNull(tracer.current());
+        tracer.detach(trace);
+        tracer.setSampling(1);
+        Assert.assertNull(tracer.current());
+    }
+
+    /**
+     * Tests that the most recent events are kept, and selected by tenant,
+     * switch, flow and sequence number.
+     */
+    public void testEvents() {
+        final PacketTracer tracer = new PacketTracer(4);
+        tracer.setSampling(1);
+        final Trace flow = tracer.sample(1, 1);
+        flow.record(Stage.FLOW_MOD, "flow {}", 0);
+        flow.setCookie(42);
+        final Trace packet = tracer.sample(2, 7);
+        final OFMatch match = new OFMatch();
+        match.setInputPort((short) 3);
+        packet.record(Stage.PACKET_IN, "match {}", match);
+        /* events keep the values they were recorded with */
+        match.setInputPort((short) 4);
+        for (int i = 1; i < 5; i++) {
+            flow.record(Stage.ACTION, "flow {}", i);
+        }
+
+        List<Event> events = tracer.getEvents(-1, null, null, null, 0);
+        Assert.assertEquals(4, events.size());
+        Assert.assertEquals(2, events.get(0).getSequence());
+        Assert.assertEquals("flow 1", events.get(0).getMessage());
+        Assert.assertEquals("flow 4", events.get(3).getMessage());
+
+        events = tracer.getEvents(3, 1, 1L, 42L, 1);
+        Assert.assertEquals(1, events.size());
+        Assert.assertEquals("flow 3", events.get(0).getMessage());
+        Assert.assertEquals(Stage.ACTION, events.get(0).getStage());
+        Assert.assertEquals(42, events.get(0).getTrace().getCookie());
+        Assert.assertTrue(tracer.getEvents(-1, 2, null, null, 0).isEmpty());
+
+        final Trace other = tracer.sample(2, 7);
+        other.record(Stage.PACKET_IN, "match {}", match);
+        events = tracer.getEvents(-1, 2, 7L, null, 0);
+        Assert.assertEquals(1, events.size());
+        Assert.assertEquals("match " + match, events.get(0).getMessage());
+        Assert.assertEquals(other.getId(), events.get(0).getTrace().getId());
+    }
+
+    /**
+     * Reports the cost of deciding whether to trace a message, with tracing
+     * off and on, against logging each message.
+     */
+    public void testBenchmark() {
+        final PacketTracer tracer = new PacketTracer(
+                PacketTracer.DEFAULT_CAPACITY);
+        final OFMatch match = new OFMatch();
+        final int messages = 1000000;
+        long traced = 0;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            final Trace trace = tracer.sample(i & 7, i);
+            if (trace != null) {
+                trace.record(Stage.FLOW_MOD, "rewriteMatch {}", match);
+                traced++;
+            }
+        }
+        final long off = System.nanoTime() - start;
+
+        tracer.setSampling(1000);
+        start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            final Trace trace = tracer.sample(i & 7, i);
+            if (trace != null) {
+                trace.record(Stage.FLOW_MOD, "rewriteMatch {}", match);
+                traced++;
+            }
+        }
+        final long sampled = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < messages / 100; i++) {
+            match.toString();
+        }
+        final long formatted = (System.nanoTime() - start) * 100;
+
+        log.info("{} messages: {} ns per message with tracing off, {} ns "
+                + "tracing one in 1000, {} ns formatting each match",
+                messages, off / messages, sampled / messages, formatted
+                        / messages);
+        Assert.assertEquals(messages / 1000, traced);
+    }
+
+}
@@ -0,0 +1,274 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.messages;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import net.onrc.openvirtex.api.service.handlers.HandlerUtils;
+import net.onrc.openvirtex.api.service.handlers.TenantHandler;
+import net.onrc.openvirtex.api.service.handlers.tenant.AbstractAPICalls;
+import net.onrc.openvirtex.api.service.handlers.tenant.TestSwitch;
+import net.onrc.openvirtex.core.OpenVirteXController;
+import net.onrc.openvirtex.core.cmd.CmdLineSettings;
+import net.onrc.openvirtex.elements.OVXMap;
+import net.onrc.openvirtex.elements.link.OVXLink;
+import net.onrc.openvirtex.elements.link.PhysicalLink;
+import net.onrc.openvirtex.elements.network.OVXNetwork;
+import net.onrc.openvirtex.elements.network.PhysicalNetwork;
+import net.onrc.openvirtex.elements.network.TenantExecutor;
+import net.onrc.openvirtex.elements.port.PhysicalPort;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openflow.protocol.OFPhysicalPort;
+import org.openflow.protocol.OFPhysicalPort.OFPortState;
+import org.openflow.protocol.OFPortStatus.OFPortReason;
+
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
+
+/**
+ * Tests the failover and revert of virtual links on physical link flaps,
+ * and reports the time to handle a flap across many virtual networks.
+ * <p>
+ * Each virtual network has a virtual link between two switches, over one of
+ * several physical paths through a core switch, with the path through the
+ * next core switch as backup. The link flapping is on the path of only some
+ * of the virtual networks.
+ */
+public class PortStatusTest extends TestCase {
+
+    private static Logger log = LogManager.getLogger(PortStatusTest.class
+            .getName());
+
+    private static final int TENANTS = 200;
+    private static final int CORES = 10;
+
+    private OpenVirteXController ctl = null;
+    private final AbstractAPICalls api = new AbstractAPICalls();
+    private final List<OVXLink> vlinks = new ArrayList<OVXLink>();
+    private final List<List<PhysicalLink>> primaries = new ArrayList<List<PhysicalLink>>();
+    private final List<List<PhysicalLink>> backups = new ArrayList<List<PhysicalLink>>();
+
+    public static Test suite() {
+        return new TestSuite(PortStatusTest.class);
+    }
+
+    /**
+     * Tests that only the virtual links on the flapping link fail over, and
+     * that they switch back once it is up again.
+     */
+    public void testFlap() throws Exception {
+        final PhysicalLink flapping = this.getCoreLink(0);
+        this.flap(flapping, false);
+        for (int i = 0; i < this.vlinks.size(); i++) {
+            final List<PhysicalLink> expected = this.primaries.get(i).contains(
+                    flapping) ? this.backups.get(i) : this.primaries.get(i);
+            Assert.assertEquals(expected,
+                    OVXMap.getInstance().getPhysicalLinks(this.vlinks.get(i)));
+        }
+        Assert.assertEquals(PortStatusTest.TENANTS / PortStatusTest.CORES,
+                OVXMap.getInstance().getTenants(flapping).size());
+
+        this.flap(flapping, true);
+        for (int i = 0; i < this.vlinks.size(); i++) {
+            Assert.assertEquals(this.primaries.get(i), OVXMap.getInstance()
+                    .getPhysicalLinks(this.vlinks.get(i)));
+            Assert.assertTrue(OVXMap.getInstance()
+                    .getUnusableLinks(flapping, i + 1).isEmpty());
+        }
+    }
+
+    /**
+     * Reports the time to handle a link going down and up again, and the
+     * time to find the virtual links to revert by trying every virtual link
+     * of every virtual network, as done before, and with the index.
+     */
+    public void testFlapBenchmark() throws Exception {
+        final int flaps = 20;
+        long start = System.nanoTime();
+        for (int i = 0; i < flaps; i++) {
+            final PhysicalLink flapping = this.getCoreLink(i
+                    % PortStatusTest.CORES);
+            this.flap(flapping, false);
+            this.flap(flapping, true);
+        }
+        final long flap = (System.nanoTime() - start) / flaps / 2;
+
+        final int runs = 1000;
+        final PhysicalLink flapping = this.getCoreLink(0);
+        final OVXMap map = OVXMap.getInstance();
+        start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            for (OVXNetwork net : map.listVirtualNetworks().values()) {
+                for (OVXLink link : net.getLinks()) {
+                    link.tryRevert(flapping);
+                }
+            }
+        }
+        final long scan = (System.nanoTime() - start) / runs;
+        start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            for (Integer tenantId : map.getTenants(flapping)) {
+                for (OVXLink link : map.getUnusableLinks(flapping, tenantId)) {
+                    link.tryRevert(flapping);
+                }
+            }
+        }
+        final long index = (System.nanoTime() - start) / runs;
+        log.info("{} virtual networks, {} tenant threads: {} us per port status, "
+                + "finding links to revert takes {} us scanning, {} us indexed",
+                PortStatusTest.TENANTS, this.ctl.getTenantExecutor()
+                        .getShardCount(), flap / 1000, scan / 1000,
+                index / 1000);
+    }
+
+    /**
+     * Sends the port status of the source port of a physical link, and
+     * waits for every virtual network to be updated.
+     */
+    private void flap(final PhysicalLink plink, final boolean up)
+            throws Exception {
+        final OFPhysicalPort desc = new OFPhysicalPort();
+        desc.setPortNumber(plink.getSrcPort().getPortNumber());
+        desc.setState(up ? 0 : OFPortState.OFPPS_LINK_DOWN.getValue());
+        final OVXPortStatus status = new OVXPortStatus();
+        status.setReason(OFPortReason.OFPPR_MODIFY.getReasonCode());
+        status.setDesc(desc);
+        status.virtualize(plink.getSrcSwitch());
+
+        final TenantExecutor executor = this.ctl.getTenantExecutor();
+        for (int i = 0; i < executor.getShardCount(); i++) {
+            executor.submit(i, new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private PhysicalLink getCoreLink(final int core) {
+        return HandlerUtils.getPhysicalPath(this.getPath(core)).get(2);
+    }
+
+    private PhysicalPort makePort(final TestSwitch sw, final short number) {
+        final PhysicalPort port = new PhysicalPort(new OFPhysicalPort(), sw,
+                false);
+        port.setHardwareAddress(new byte[] {0x00, 0x00, 0x00,
+                sw.getSwitchId().byteValue(), 0x00, (byte) number});
+        port.setPortNumber(number);
+        sw.addPort(port);
+        return port;
+    }
+
+    private void connect(final PhysicalPort src, final PhysicalPort dst) {
+        PhysicalNetwork.getInstance().createLink(src, dst);
+        PhysicalNetwork.getInstance().createLink(dst, src);
+    }
+
+    private String getPath(final int core) {
+        return "1/1-3/1,3/" + (core + 2) + "-" + (core + 10) + "/1,"
+                + (core + 10) + "/2-4/" + (core + 2) + ",4/1-2/1";
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object getResult(final JSONRPC2Response resp, final String field) {
+        Assert.assertNull(resp.getError() == null ? null : resp.getError()
+                .getMessage(), resp.getError());
+        return ((Map<String, Object>) resp.getResult()).get(field);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.ctl = new OpenVirteXController(new CmdLineSettings());
+        /*
+         * switch 1 reaches switch 2 through switch 3, any of the core
+         * switches and switch 4
+         */
+        final TestSwitch[] sws = new TestSwitch[4];
+        for (int i = 0; i < sws.length; i++) {
+            sws[i] = new TestSwitch(i + 1);
+            PhysicalNetwork.getInstance().addSwitch(sws[i]);
+        }
+        this.connect(this.makePort(sws[0], (short) 1),
+                this.makePort(sws[2], (short) 1));
+        this.connect(this.makePort(sws[3], (short) 1),
+                this.makePort(sws[1], (short) 1));
+        for (int i = 0; i < PortStatusTest.CORES; i++) {
+            final TestSwitch core = new TestSwitch(i + 10);
+            PhysicalNetwork.getInstance().addSwitch(core);
+            this.connect(this.makePort(sws[2], (short) (i + 2)),
+                    this.makePort(core, (short) 1));
+            this.connect(this.makePort(core, (short) 2),
+                    this.makePort(sws[3], (short) (i + 2)));
+        }
+
+        for (int t = 0; t < PortStatusTest.TENANTS; t++) {
+            final int tenantId = (Integer) this.getResult(
+                    this.api.createNetwork(10000 + t), TenantHandler.TENANT);
+            final long src = (Long) this.getResult(
+                    this.api.createSwitch(tenantId, Collections.singletonList(1)),
+                    TenantHandler.VDPID);
+            final long dst = (Long) this.getResult(
+                    this.api.createSwitch(tenantId, Collections.singletonList(2)),
+                    TenantHandler.VDPID);
+            final short srcPort = (Short) this.getResult(
+                    this.api.createPort(tenantId, 1L, (short) 1),
+                    TenantHandler.VPORT);
+            final short dstPort = (Short) this.getResult(
+                    this.api.createPort(tenantId, 2L, (short) 1),
+                    TenantHandler.VPORT);
+            final int linkId = (Integer) this.getResult(this.api.connectLink(
+                    tenantId, src, srcPort, dst, dstPort, "manual", (byte) 0),
+                    TenantHandler.LINK);
+            final int primary = t % PortStatusTest.CORES;
+            final int backup = (t + 1) % PortStatusTest.CORES;
+            this.getResult(this.api.setLinkPath(tenantId, linkId,
+                    this.getPath(primary), (byte) 100), TenantHandler.LINK);
+            this.getResult(this.api.setLinkPath(tenantId, linkId,
+                    this.getPath(backup), (byte) 50), TenantHandler.LINK);
+
+            /* the link from switch 1, not the one back to it */
+            for (OVXLink vlink : OVXMap.getInstance()
+                    .getVirtualNetwork(tenantId).getLinks()) {
+                if (vlink.getSrcSwitch().getSwitchId() == src) {
+                    this.vlinks.add(vlink);
+                }
+            }
+            this.primaries.add(HandlerUtils.getPhysicalPath(this
+                    .getPath(primary)));
+            this.backups.add(HandlerUtils.getPhysicalPath(this.getPath(backup)));
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        OVXMap.reset();
+        PhysicalNetwork.reset();
+        OVXNetwork.reset();
+        this.ctl = null;
+        super.tearDown();
+    }
+
+}
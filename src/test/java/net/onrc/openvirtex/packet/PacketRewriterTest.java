@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.packet;
+
+import java.util.Arrays;
+
+import junit.framework.Assert;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class PacketRewriterTest extends TestCase {
+
+    private static final byte[] SRC_MAC = {0x00, 0x00, 0x00, 0x00, 0x00, 0x01};
+    private static final byte[] DST_MAC = {0x00, 0x00, 0x00, 0x00, 0x00, 0x02};
+    private static final int SRC_IP = IPv4.toIPv4Address("10.0.0.1");
+    private static final int DST_IP = IPv4.toIPv4Address("10.0.0.2");
+    private static final int NEW_SRC_IP = IPv4.toIPv4Address("1.0.0.1");
+    private static final int NEW_DST_IP = IPv4.toIPv4Address("1.0.0.2");
+
+    public PacketRewriterTest(final String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return new TestSuite(PacketRewriterTest.class);
+    }
+
+    private byte[] makeIPv4(final int src, final int dst, final IPacket l4,
+            final byte protocol, final short vlan) {
+        final IPv4 ip = new IPv4();
+        ip.setSourceAddress(src).setDestinationAddress(dst).setTtl((byte) 64)
+                .setProtocol(protocol).setPayload(l4);
+        final Ethernet eth = new Ethernet();
+        eth.setSourceMACAddress(SRC_MAC).setDestinationMACAddress(DST_MAC)
+                .setEtherType(Ethernet.TYPE_IPV4).setVlanID(vlan)
+                .setPayload(ip);
+        return eth.serialize();
+    }
+
+    private UDP makeUDP() {
+        final UDP udp = new UDP();
+        udp.setSourcePort((short) 5000).setDestinationPort((short) 53)
+                .setPayload(new Data(new byte[] {1, 2, 3, 4, 5}));
+        return udp;
+    }
+
+    private TCP makeTCP() {
+        final TCP tcp = new TCP();
+        tcp.setSourcePort((short) 5000).setDestinationPort((short) 80)
+                .setSequence(42).setWindowSize((short) 1024)
+                .setPayload(new Data(new byte[] {1, 2, 3}));
+        return tcp;
+    }
+
+    /* in-place rewrite must give the same bytes as building the new packet */
+    public void testRewriteUDP() {
+        final byte[] data = this.makeIPv4(SRC_IP, DST_IP, this.makeUDP(),
+                IPv4.PROTOCOL_UDP, Ethernet.VLAN_UNTAGGED);
+        Assert.assertTrue(PacketRewriter.isRewritable(data));
+        PacketRewriter.setIPv4Addresses(data, NEW_SRC_IP, NEW_DST_IP);
+        Assert.assertTrue(Arrays.equals(this.makeIPv4(NEW_SRC_IP, NEW_DST_IP,
+                this.makeUDP(), IPv4.PROTOCOL_UDP, Ethernet.VLAN_UNTAGGED),
+                data));
+    }
+
+    public void testRewriteTCPWithVlan() {
+        final byte[] data = this.makeIPv4(SRC_IP, DST_IP, this.makeTCP(),
+                IPv4.PROTOCOL_TCP, (short) 10);
+        Assert.assertTrue(PacketRewriter.isRewritable(data));
+        PacketRewriter.setIPv4Addresses(data, NEW_SRC_IP, NEW_DST_IP);
+        Assert.assertTrue(Arrays.equals(this.makeIPv4(NEW_SRC_IP, NEW_DST_IP,
+                this.makeTCP(), IPv4.PROTOCOL_TCP, (short) 10), data));
+    }
+
+    public void testRewriteARP() {
+        final ARP arp = new ARP();
+        arp.setHardwareType(ARP.HW_TYPE_ETHERNET)
+                .setProtocolType(ARP.PROTO_TYPE_IP)
+                .setHardwareAddressLength((byte) 6)
+                .setProtocolAddressLength((byte) 4)
+                .setOpCode(ARP.OP_REQUEST).setSenderHardwareAddress(SRC_MAC)
+                .setSenderProtocolAddress(SRC_IP)
+                .setTargetHardwareAddress(new byte[6])
+                .setTargetProtocolAddress(DST_IP);
+        final Ethernet eth = new Ethernet();
+        eth.setSourceMACAddress(SRC_MAC).setDestinationMACAddress(DST_MAC)
+                .setEtherType(Ethernet.TYPE_ARP).setPayload(arp);
+        final byte[] data = eth.serialize();
+        Assert.assertTrue(PacketRewriter.isRewritable(data));
+
+        PacketRewriter.setARPAddresses(data, NEW_SRC_IP, NEW_DST_IP);
+        PacketRewriter.setMACAddresses(data, DST_MAC, SRC_MAC);
+        arp.setSenderProtocolAddress(NEW_SRC_IP).setTargetProtocolAddress(
+                NEW_DST_IP);
+        eth.setSourceMACAddress(DST_MAC).setDestinationMACAddress(SRC_MAC);
+        Assert.assertTrue(Arrays.equals(eth.serialize(), data));
+    }
+
+    public void testNotRewritable() {
+        final Ethernet eth = new Ethernet();
+        eth.setSourceMACAddress(SRC_MAC).setDestinationMACAddress(DST_MAC)
+                .setEtherType(Ethernet.TYPE_LLDP)
+                .setPayload(new Data(new byte[] {1, 2, 3}));
+        Assert.assertFalse(PacketRewriter.isRewritable(eth.serialize()));
+        /* truncated IPv4 header */
+        final byte[] data = this.makeIPv4(SRC_IP, DST_IP, this.makeUDP(),
+                IPv4.PROTOCOL_UDP, Ethernet.VLAN_UNTAGGED);
+        Assert.assertFalse(PacketRewriter.isRewritable(Arrays.copyOf(data, 20)));
+    }
+
+}
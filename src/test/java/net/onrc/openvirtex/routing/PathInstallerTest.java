@@ -0,0 +1,215 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.routing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import net.onrc.openvirtex.core.OpenVirteXController;
+import net.onrc.openvirtex.core.cmd.CmdLineSettings;
+import net.onrc.openvirtex.core.io.OVXSendMsg;
+import net.onrc.openvirtex.elements.datapath.PhysicalSwitch;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFType;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Tests the installation of paths confirmed by barriers, and reports the
+ * flow mod install rate across multi-hop virtual links.
+ */
+public class PathInstallerTest extends TestCase {
+
+    private static Logger log = LogManager.getLogger(PathInstallerTest.class
+            .getName());
+
+    OpenVirteXController ctl = null;
+    private ExecutorService replier;
+
+    /**
+     * A connected switch that replies to barriers from another thread,
+     * unless told to hold the replies back.
+     */
+    private class TestSwitch extends PhysicalSwitch {
+        private final AtomicInteger flowMods = new AtomicInteger();
+        private final List<Integer> held = Collections
+                .synchronizedList(new ArrayList<Integer>());
+        private volatile boolean hold;
+
+        TestSwitch(final long switchId) {
+            super(switchId);
+            this.setConnected(true);
+        }
+
+        @Override
+        public void sendMsg(final OFMessage msg, final OVXSendMsg from) {
+            if (msg.getType() != OFType.BARRIER_REQUEST) {
+                this.flowMods.incrementAndGet();
+                return;
+            }
+            final int xid = msg.getXid();
+            if (this.hold) {
+                this.held.add(xid);
+                return;
+            }
+            PathInstallerTest.this.replier.execute(new Runnable() {
+                @Override
+                public void run() {
+                    TestSwitch.this.handleBarrierReply(xid);
+                }
+            });
+        }
+
+        void release() {
+            for (Integer xid : this.held) {
+                Assert.assertTrue(this.handleBarrierReply(xid));
+            }
+            this.held.clear();
+        }
+    }
+
+    public PathInstallerTest(final String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return new TestSuite(PathInstallerTest.class);
+    }
+
+    /**
+     * Tests that an installation completes only once every switch of the
+     * path and every path it depends on have replied.
+     */
+    public void testBarriers() {
+        final TestSwitch[] sws = this.makePath(3);
+        for (TestSwitch sw : sws) {
+            sw.hold = true;
+        }
+        final PathInstaller link = new PathInstaller(60000);
+        link.send(sws[2], new OFFlowMod());
+        final ListenableFuture<Void> linkDone = link.commit();
+        final PathInstaller route = new PathInstaller(60000);
+        route.send(sws[0], new OFFlowMod());
+        route.send(sws[1], new OFFlowMod());
+        route.send(sws[1], new OFFlowMod());
+        route.dependOn(linkDone);
+        final ListenableFuture<Void> routeDone = route.commit();
+        Assert.assertEquals(2, sws[1].flowMods.get());
+        // one barrier per switch
+        Assert.assertEquals(1, sws[1].held.size());
+
+        sws[0].release();
+        sws[1].release();
+        Assert.assertFalse(routeDone.isDone());
+        sws[2].release();
+        Assert.assertTrue(linkDone.isDone());
+        Assert.assertTrue(routeDone.isDone());
+    }
+
+    /**
+     * Tests that a switch that does not reply is not waited for beyond the
+     * timeout.
+     */
+    public void testTimeout() throws Exception {
+        final TestSwitch[] sws = this.makePath(2);
+        sws[1].hold = true;
+        final long timeouts = PathInstaller.getTimeoutCount();
+        final PathInstaller installer = new PathInstaller(50);
+        installer.send(sws[0], new OFFlowMod());
+        installer.send(sws[1], new OFFlowMod());
+        final ListenableFuture<Void> done = installer.commit();
+        done.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(timeouts + 1, PathInstaller.getTimeoutCount());
+        // the late reply is no longer expected
+        Assert.assertFalse(sws[1].handleBarrierReply(sws[1].held.get(0)));
+        Assert.assertTrue(new PathInstaller(0).commit().isDone());
+    }
+
+    /**
+     * Reports the rate at which flow mods are installed on virtual links of
+     * 2 to 8 hops, when waiting 5 ms after each link as before, and when
+     * waiting for barrier replies without blocking.
+     */
+    public void testBenchmark() throws Exception {
+        for (int hops : new int[] {2, 4, 8}) {
+            final TestSwitch[] sws = this.makePath(hops);
+            final int slept = 100;
+            long start = System.nanoTime();
+            for (int i = 0; i < slept; i++) {
+                for (TestSwitch sw : sws) {
+                    sw.sendMsg(new OFFlowMod(), sw);
+                }
+                Thread.sleep(5);
+            }
+            final long sleepRate = slept * hops * 1000000000L
+                    / (System.nanoTime() - start);
+
+            final int paths = 10000;
+            final List<ListenableFuture<Void>> installs = new ArrayList<ListenableFuture<Void>>(
+                    paths);
+            start = System.nanoTime();
+            for (int i = 0; i < paths; i++) {
+                final PathInstaller installer = new PathInstaller(60000);
+                for (TestSwitch sw : sws) {
+                    installer.send(sw, new OFFlowMod());
+                }
+                installs.add(installer.commit());
+            }
+            Futures.allAsList(installs).get(60, TimeUnit.SECONDS);
+            final long barrierRate = (long) paths * hops * 1000000000L
+                    / (System.nanoTime() - start);
+            log.info("{} hops: {} flow mods per second with sleeps, {} with barriers",
+                    hops, sleepRate, barrierRate);
+        }
+    }
+
+    private TestSwitch[] makePath(final int hops) {
+        final TestSwitch[] sws = new TestSwitch[hops];
+        for (int i = 0; i < hops; i++) {
+            sws[i] = new TestSwitch(i + 1);
+        }
+        return sws;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.ctl = new OpenVirteXController(new CmdLineSettings());
+        this.replier = Executors.newSingleThreadExecutor();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.replier.shutdownNow();
+        this.ctl = null;
+        super.tearDown();
+    }
+
+}
@@ -0,0 +1,252 @@
+/*******************************************************************************
+ * Copyright 2014 Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.onrc.openvirtex.routing;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import junit.framework.Assert;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import net.onrc.openvirtex.core.OpenVirteXController;
+import net.onrc.openvirtex.core.cmd.CmdLineSettings;
+import net.onrc.openvirtex.elements.datapath.PhysicalSwitch;
+import net.onrc.openvirtex.elements.link.PhysicalLink;
+import net.onrc.openvirtex.elements.port.PhysicalPort;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openflow.protocol.OFPhysicalPort;
+import org.openflow.protocol.OFPhysicalPort.OFPortFeatures;
+
+/**
+ * Tests the shortest path computation on synthetic leaf-spine and fat-tree
+ * topologies, and reports its running time on fabrics of 100 to 2000
+ * switches.
+ */
+public class ShortestPathTest extends TestCase {
+
+    private static Logger log = LogManager.getLogger(ShortestPathTest.class
+            .getName());
+
+    OpenVirteXController ctl = null;
+    private long nextDpid;
+
+    public ShortestPathTest(final String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return new TestSuite(ShortestPathTest.class);
+    }
+
+    /**
+     * Tests that leaves are two hops apart.
+     */
+    public void testLeafSpine() {
+        final List<PhysicalLink> links = new ArrayList<PhysicalLink>();
+        final PhysicalSwitch[] leaves = this.makeLeafSpine(links, 4, 16);
+        final ShortestPath spf = new ShortestPath(links);
+
+        final LinkedList<PhysicalLink> path = spf.computePath(leaves[0],
+                leaves[5]);
+        this.checkPath(path, leaves[0], leaves[5]);
+        Assert.assertEquals(2, path.size());
+        Assert.assertTrue(spf.computePath(leaves[3], leaves[3]).isEmpty());
+    }
+
+    /**
+     * Tests hop counts within and across pods of a fat tree.
+     */
+    public void testFatTree() {
+        final List<PhysicalLink> links = new ArrayList<PhysicalLink>();
+        final PhysicalSwitch[] edges = this.makeFatTree(links, 4);
+        final ShortestPath spf = new ShortestPath(links);
+
+        // edges[0] and edges[1] share a pod, edges[2] is in the next one
+        LinkedList<PhysicalLink> path = spf.computePath(edges[0], edges[1]);
+        this.checkPath(path, edges[0], edges[1]);
+        Assert.assertEquals(2, path.size());
+        path = spf.computePath(edges[0], edges[2]);
+        this.checkPath(path, edges[0], edges[2]);
+        Assert.assertEquals(4, path.size());
+    }
+
+    /**
+     * Tests that the metric, not the hop count, is minimized, and that the
+     * best of two parallel links is used.
+     */
+    public void testMetric() {
+        final List<PhysicalLink> links = new ArrayList<PhysicalLink>();
+        final PhysicalSwitch a = new PhysicalSwitch(this.nextDpid++);
+        final PhysicalSwitch b = new PhysicalSwitch(this.nextDpid++);
+        final PhysicalSwitch c = new PhysicalSwitch(this.nextDpid++);
+        final int slow = OFPortFeatures.OFPPF_10MB_FD.getValue();
+        final int fast = OFPortFeatures.OFPPF_10GB_FD.getValue();
+        this.connect(links, a, (short) 1, b, (short) 1, slow);
+        this.connect(links, a, (short) 2, c, (short) 1, fast);
+        this.connect(links, c, (short) 2, b, (short) 2, slow);
+        this.connect(links, c, (short) 3, b, (short) 3, fast);
+        final ShortestPath spf = new ShortestPath(links);
+
+        final LinkedList<PhysicalLink> path = spf.computePath(a, b);
+        this.checkPath(path, a, b);
+        Assert.assertEquals(2, path.size());
+        Assert.assertEquals(3, path.getLast().getSrcPort().getPortNumber());
+        Assert.assertNull(new ShortestPath(links.subList(0, 0))
+                .computePath(a, b));
+    }
+
+    /**
+     * Reports the time to compute all paths from one switch.
+     */
+    public void testBenchmark() {
+        for (int leaves : new int[] {96, 496, 1992}) {
+            final List<PhysicalLink> links = new ArrayList<PhysicalLink>();
+            final PhysicalSwitch[] sws = this.makeLeafSpine(links, 8, leaves);
+            this.benchmark("leaf-spine", leaves + 8, links, sws);
+        }
+        for (int k : new int[] {8, 16, 32}) {
+            final List<PhysicalLink> links = new ArrayList<PhysicalLink>();
+            final PhysicalSwitch[] sws = this.makeFatTree(links, k);
+            this.benchmark("fat-tree", 5 * k * k / 4, links, sws);
+        }
+    }
+
+    private void benchmark(final String name, final int switches,
+            final List<PhysicalLink> links, final PhysicalSwitch[] edges) {
+        final ShortestPath spf = new ShortestPath(links);
+        final int runs = 10;
+        // Warm up
+        spf.execute(edges[0]);
+        final long start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            spf.execute(edges[i % edges.length]);
+        }
+        final long elapsed = (System.nanoTime() - start) / runs / 1000;
+        final LinkedList<PhysicalLink> path = spf.computePath(edges[0],
+                edges[edges.length - 1]);
+        this.checkPath(path, edges[0], edges[edges.length - 1]);
+        log.info("{} with {} switches and {} links: {} us per source",
+                name, switches, links.size(), elapsed);
+    }
+
+    private void checkPath(final LinkedList<PhysicalLink> path,
+            final PhysicalSwitch src, final PhysicalSwitch dst) {
+        Assert.assertNotNull(path);
+        Assert.assertSame(src, path.getFirst().getSrcSwitch());
+        Assert.assertSame(dst, path.getLast().getDstSwitch());
+        PhysicalSwitch sw = src;
+        for (PhysicalLink link : path) {
+            Assert.assertSame(sw, link.getSrcSwitch());
+            sw = link.getDstSwitch();
+        }
+    }
+
+    /**
+     * Creates a leaf-spine fabric in which every leaf connects to every
+     * spine.
+     *
+     * @return the leaves
+     */
+    private PhysicalSwitch[] makeLeafSpine(final List<PhysicalLink> links,
+            final int spines, final int leaves) {
+        final PhysicalSwitch[] spine = new PhysicalSwitch[spines];
+        final PhysicalSwitch[] leaf = new PhysicalSwitch[leaves];
+        for (int s = 0; s < spines; s++) {
+            spine[s] = new PhysicalSwitch(this.nextDpid++);
+        }
+        for (int l = 0; l < leaves; l++) {
+            leaf[l] = new PhysicalSwitch(this.nextDpid++);
+            for (int s = 0; s < spines; s++) {
+                this.connect(links, leaf[l], (short) (s + 1), spine[s],
+                        (short) (l + 1), 0);
+            }
+        }
+        return leaf;
+    }
+
+    /**
+     * Creates a k-ary fat tree with k pods of k/2 edge and k/2 aggregation
+     * switches, and (k/2)^2 core switches.
+     *
+     * @return the edge switches, ordered by pod
+     */
+    private PhysicalSwitch[] makeFatTree(final List<PhysicalLink> links,
+            final int k) {
+        final int half = k / 2;
+        final PhysicalSwitch[] core = new PhysicalSwitch[half * half];
+        final PhysicalSwitch[] edges = new PhysicalSwitch[k * half];
+        for (int c = 0; c < core.length; c++) {
+            core[c] = new PhysicalSwitch(this.nextDpid++);
+        }
+        for (int p = 0; p < k; p++) {
+            final PhysicalSwitch[] agg = new PhysicalSwitch[half];
+            for (int a = 0; a < half; a++) {
+                agg[a] = new PhysicalSwitch(this.nextDpid++);
+                for (int c = 0; c < half; c++) {
+                    this.connect(links, agg[a], (short) (half + c + 1),
+                            core[a * half + c], (short) (p + 1), 0);
+                }
+            }
+            for (int e = 0; e < half; e++) {
+                final PhysicalSwitch edge = new PhysicalSwitch(this.nextDpid++);
+                for (int a = 0; a < half; a++) {
+                    this.connect(links, edge, (short) (half + a + 1), agg[a],
+                            (short) (e + 1), 0);
+                }
+                edges[p * half + e] = edge;
+            }
+        }
+        return edges;
+    }
+
+    /**
+     * Connects two switches with a pair of links.
+     */
+    private void connect(final List<PhysicalLink> links,
+            final PhysicalSwitch a, final short portA, final PhysicalSwitch b,
+            final short portB, final int features) {
+        final PhysicalPort pa = this.makePort(a, portA, features);
+        final PhysicalPort pb = this.makePort(b, portB, features);
+        links.add(new PhysicalLink(pa, pb));
+        links.add(new PhysicalLink(pb, pa));
+    }
+
+    private PhysicalPort makePort(final PhysicalSwitch sw, final short number,
+            final int features) {
+        final OFPhysicalPort ofpp = new OFPhysicalPort();
+        ofpp.setPortNumber(number);
+        ofpp.setCurrentFeatures(features);
+        return new PhysicalPort(ofpp, sw, false);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.ctl = new OpenVirteXController(new CmdLineSettings());
+        this.nextDpid = 1;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.ctl = null;
+        super.tearDown();
+    }
+
+}
@@ -10,6 +10,7 @@ from optparse import OptionParser
 import urllib2
 import json
 import getpass
+import time
 
 VERSION = '0.1'
 
@@ -406,6 +407,62 @@ def do_stopPort(gopts, opts, args):
     if result:
         print "Port (port_id %s) has been shutdown in virtual switch (tenant_id %s, switch_id %s)" % (args[2], args[0], args[1])
 
+def pa_setPacketTracing(args, cmd):
+    usage = "%s [options] <sample_rate>" % USAGE.format(cmd)
+    (sdesc, ldesc) = DESCS[cmd]
+    parser = OptionParser(usage=usage, description=ldesc)
+    parser.add_option("-t", "--tenants", dest="tenants", default=None,
+                      help="Comma separated tenant_ids to trace; default all")
+    parser.add_option("-d", "--dpids", dest="dpids", default=None,
+                      help="Comma separated dpids to trace; default all")
+    return parser.parse_args(args)
+
+def do_setPacketTracing(gopts, opts, args):
+    if len(args) != 1:
+        print "setPacketTracing : Must specify a sample rate, 0 to stop tracing"
+        sys.exit()
+    req = { "sampleRate" : int(args[0]) }
+    if opts.tenants:
+        req["tenantIds"] = [int(t) for t in opts.tenants.split(",")]
+    if opts.dpids:
+        req["dpids"] = [int(d.replace(":", ""), 16) for d in opts.dpids.split(",")]
+    result = connect(gopts, "tenant", "setPacketTracing", data=req, passwd=getPasswd(gopts))
+    print json.dumps(result)
+
+def pa_setTenantSchedule(args, cmd):
+    usage = "%s [options] <tenant_id>" % USAGE.format(cmd)
+    (sdesc, ldesc) = DESCS[cmd]
+    parser = OptionParser(usage=usage, description=ldesc)
+    parser.add_option("-r", "--rate", dest="rate", default=None,
+                      help="Packet_ins admitted per second, 0 for no limit")
+    parser.add_option("-b", "--burst", dest="burst", default=None,
+                      help="Packet_ins admitted at once, 0 for the rate")
+    parser.add_option("-w", "--weight", dest="weight", default=None,
+                      help="Share of the handling time relative to other tenants")
+    parser.add_option("-p", "--policy", dest="policy", default=None,
+                      help="What to do with packet_ins over the rate: drop or sample")
+    parser.add_option("-s", "--sample-rate", dest="sampleRate", default=None,
+                      help="Packet_ins over the rate per admitted packet_in when sampling")
+    return parser.parse_args(args)
+
+def do_setTenantSchedule(gopts, opts, args):
+    if len(args) != 1:
+        print "setTenantSchedule : Must specify a tenant_id"
+        sys.exit()
+    req = { "tenantId" : int(args[0]) }
+    if opts.rate:
+        req["rate"] = int(opts.rate)
+    if opts.burst:
+        req["burst"] = int(opts.burst)
+    if opts.weight:
+        req["weight"] = int(opts.weight)
+    if opts.policy:
+        req["policy"] = opts.policy
+    if opts.sampleRate:
+        req["sampleRate"] = int(opts.sampleRate)
+    result = connect(gopts, "tenant", "setTenantSchedule", data=req, passwd=getPasswd(gopts))
+    print json.dumps(result)
+
 def pa_getPhysicalFlowtable(args, cmd):
     usage = "%s [<physical_dpid>]" % USAGE.format(cmd)
     (sdesc, ldesc) = DESCS[cmd]
@@ -494,6 +551,64 @@ def do_getVirtualFlowtable(gopts, opts, args):
     result = connect(gopts, "status", "getVirtualFlowtable", data=req, passwd=getPasswd(gopts))
     print json.dumps(result)
 
+def pa_getMetrics(args, cmd):
+    usage = "%s [options]" % USAGE.format(cmd)
+    (sdesc, ldesc) = DESCS[cmd]
+    parser = OptionParser(usage=usage, description=ldesc)
+    parser.add_option("-t", "--tenant", dest="tenant", default=None,
+                      help="Only show the metrics of this tenant_id")
+    parser.add_option("-d", "--dpid", dest="dpid", default=None,
+                      help="Only show the metrics of this physical dpid, or virtual dpid with --tenant")
+    return parser.parse_args(args)
+
+def do_getMetrics(gopts, opts, args):
+    if len(args) > 0:
+        print "getMetrics : No arguments"
+        sys.exit()
+    req = {}
+    if opts.tenant:
+        req["tenantId"] = int(opts.tenant)
+    if opts.dpid:
+        req["dpid"] = int(opts.dpid.replace(":", ""), 16)
+    result = connect(gopts, "status", "getMetrics", data=req, passwd=getPasswd(gopts))
+    print json.dumps(result, sort_keys=True, indent=2)
+
+def pa_getPacketTraces(args, cmd):
+    usage = "%s [options]" % USAGE.format(cmd)
+    (sdesc, ldesc) = DESCS[cmd]
+    parser = OptionParser(usage=usage, description=ldesc)
+    parser.add_option("-t", "--tenant", dest="tenant", default=None,
+                      help="Only show the traces of this tenant_id")
+    parser.add_option("-d", "--dpid", dest="dpid", default=None,
+                      help="Only show the traces of messages handled on this dpid")
+    parser.add_option("-c", "--cookie", dest="cookie", default=None,
+                      help="Only show the traces of the flow with this physical cookie")
+    parser.add_option("-f", "--follow", action="store_true", dest="follow", default=False,
+                      help="Keep showing new traces as they are recorded")
+    return parser.parse_args(args)
+
+def do_getPacketTraces(gopts, opts, args):
+    if len(args) > 0:
+        print "getPacketTraces : No arguments"
+        sys.exit()
+    req = {}
+    if opts.tenant:
+        req["tenantId"] = int(opts.tenant)
+    if opts.dpid:
+        req["dpid"] = int(opts.dpid.replace(":", ""), 16)
+    if opts.cookie:
+        req["cookie"] = int(opts.cookie, 0)
+    passwd = getPasswd(gopts)
+    while True:
+        result = connect(gopts, "status", "getPacketTraces", data=req, passwd=passwd)
+        for event in result["events"]:
+            print json.dumps(event)
+        if not opts.follow:
+            break
+        sys.stdout.flush()
+        req["cursor"] = result["next"]
+        time.sleep(1)
+
 def pa_getVirtualHosts(args, cmd):
     usage = "%s <tenant_id>" % USAGE.format(cmd)
     (sdesc, ldesc) = DESCS[cmd]
@@ -657,11 +772,16 @@ CMDS = {
     'stopSwitch': (pa_stopSwitch, do_stopSwitch),
     'stopPort': (pa_stopPort, do_stopPort), 
 
+    'setPacketTracing': (pa_setPacketTracing, do_setPacketTracing),
+    'setTenantSchedule': (pa_setTenantSchedule, do_setTenantSchedule),
+
     'getPhysicalFlowtable': (pa_getPhysicalFlowtable, do_getPhysicalFlowtable),
     'getPhysicalHosts': (pa_getPhysicalHosts, do_getPhysicalHosts),
     'getPhysicalTopology': (pa_getPhysicalTopology, do_getPhysicalTopology),
     'listVirtualNetworks': (pa_listVirtualNetworks, do_listVirtualNetworks),
 
+    'getMetrics': (pa_getMetrics, do_getMetrics),
+    'getPacketTraces': (pa_getPacketTraces, do_getPacketTraces),
     'getVirtualAddressMapping': (pa_getVirtualAddressMapping, do_getVirtualAddressMapping),
     'getVirtualFlowtable': (pa_getVirtualFlowtable, do_getVirtualFlowtable),
     'getVirtualHosts': (pa_getVirtualHosts, do_getVirtualHosts),
@@ -744,7 +864,24 @@ DESCS = {
                      ("Shutdown a virtual port. Must specify a tenant_id, a virtual switch_id and a virtual port_id."
                         "\nExample: stopPort 1 00:a4:23:05:00:00:00:01 1")),
 
+    'setPacketTracing' : ("Trace a sample of the messages of the data path",
+                     ("Trace one in every sample_rate packet_ins, packet_outs and flow_mods, optionally of some tenants and switches only. "
+                      "Must specify a sample rate, 0 to stop tracing."
+                        "\nExample: setPacketTracing --tenants 1 --dpids 00:00:00:00:00:00:00:01 100")),
+    'setTenantSchedule' : ("Set the packet_in rate and scheduling weight of a virtual network",
+                     ("Set the packet_ins admitted per second and at once, the scheduling weight, and whether packet_ins over the rate "
+                      "are dropped or sampled, for a tenant_id. Only applies when OVX is started with --tenant-queue."
+                        "\nExample: setTenantSchedule --rate 1000 --weight 2 --policy sample --sample-rate 10 1")),
+
     # Monitoring API - admin only
+    'getMetrics' : ("Get the throughput and latency metrics of OVX",
+                    ("Get the counters, latency histograms in microseconds and gauges of OVX, "
+                     "optionally of a tenant_id, a physical dpid, or a virtual dpid of a tenant_id only."
+                     "\nExample: getMetrics --tenant 1")),
+    'getPacketTraces' : ("Get the recent traces of data path messages",
+                         ("Get the recent traces of data path messages, optionally of a tenant_id, dpid or physical flow cookie only. "
+                          "With --follow, keep showing new traces."
+                          "\nExample: getPacketTraces --tenant 1 --follow")),
     'getPhysicalFlowtable' : ("Get the physical flowtable of a specified switch or all switches",
                               ("Get the physical flowtable of a specified switch or all switches. Specify optional physical switch_id."
                               "\nExample: getPhysicalFlowtable 00:00:00:00:00:00:00:01")),